@@ -0,0 +1,474 @@
+package bird.client;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import bird.model.Constants;
+import bird.model.SocketOptions;
+
+/**
+ * Runs requests given on the command line or in a file without prompting,
+ * one request per line in the file e.g.
+ *
+ *   -addbird -name robin -color red -weight 0.08 -height 0.25
+ *   -addsighting -name robin -location "Hyde Park" -date "10/19/26, 10:40 AM"
+ *   -listsightings -name "rob.*" -start "1/1/26, 12:00 AM" -end "12/31/26, 11:59 PM"
+ *   -deletesightings -name robin -start "1/1/26, 12:00 AM" -end "2/1/26, 12:00 AM"
+ *   -updatesighting -name robin -location "Hyde Prk" -date "10/19/26, 10:40 AM" -newlocation "Hyde Park"
+ *   -querybirds -color red -minweight 0.05 -maxweight 0.1 -match all
+ *   -searchnames -name robn -distance 1 -limit 10
+ *   -summary -name robin -days 30 -limit 5
+ *   -export -folder backup
+ *
+ * Requests are spread over a pool of keep alive connections. All the requests
+ * naming the same bird go over the same connection so they keep their order.
+ * Create dataset requests are sent before everything else, and quit requests
+ * after. A request the server
+ * turns away, or whose connection fails, is sent again after a pause.
+ */
+class BatchRunner {
+
+	private static final String NAME_SWITCH = "-name";
+	private static final String COLOR_SWITCH = "-color";
+	private static final String WEIGHT_SWITCH = "-weight";
+	private static final String HEIGHT_SWITCH = "-height";
+	private static final String LOCATION_SWITCH = "-location";
+	private static final String DATE_SWITCH = "-date";
+	private static final String START_SWITCH = "-start";
+	private static final String END_SWITCH = "-end";
+	private static final String FOLDER_SWITCH = "-folder";
+	private static final String MIN_WEIGHT_SWITCH = "-minweight";
+	private static final String MAX_WEIGHT_SWITCH = "-maxweight";
+	private static final String MIN_HEIGHT_SWITCH = "-minheight";
+	private static final String MAX_HEIGHT_SWITCH = "-maxheight";
+	private static final String MATCH_SWITCH = "-match";
+	private static final String DISTANCE_SWITCH = "-distance";
+	private static final String LIMIT_SWITCH = "-limit";
+	private static final String DAYS_SWITCH = "-days";
+	private static final String NEW_LOCATION_SWITCH = "-newlocation";
+	private static final String NEW_DATE_SWITCH = "-newdate";
+
+	private static final String[] FIELD_SWITCHES = { NAME_SWITCH, COLOR_SWITCH, WEIGHT_SWITCH, HEIGHT_SWITCH,
+			LOCATION_SWITCH, DATE_SWITCH, START_SWITCH, END_SWITCH, FOLDER_SWITCH, MIN_WEIGHT_SWITCH, MAX_WEIGHT_SWITCH,
+			MIN_HEIGHT_SWITCH, MAX_HEIGHT_SWITCH, MATCH_SWITCH, DISTANCE_SWITCH, LIMIT_SWITCH, DAYS_SWITCH,
+			NEW_LOCATION_SWITCH, NEW_DATE_SWITCH };
+
+	private static final String[] REQUEST_TYPES = { Constants.ADD_BIRD_REQUEST, Constants.ADD_SIGHTING_REQUEST,
+			Constants.LIST_BIRDS_REQUEST, Constants.QUERY_BIRDS_REQUEST, Constants.SEARCH_NAMES_REQUEST, Constants.LIST_SIGHTINGS_REQUEST,
+			Constants.REMOVE_REQUEST, Constants.DELETE_SIGHTINGS_REQUEST, Constants.UPDATE_SIGHTING_REQUEST, Constants.STATS_REQUEST, Constants.SUMMARY_REQUEST, Constants.CONFIG_REQUEST, Constants.EXPORT_REQUEST, Constants.CREATE_DATASET_REQUEST,
+			Constants.QUIT_REQUEST };
+
+	private final String host;
+	private final int port;
+	private final int parallel;
+	private final String dataset;
+
+	private int failures;
+
+	/**
+	 * @param dataset name of the dataset all the requests are about, null
+	 *            for the default one.
+	 */
+	public BatchRunner(String host, int port, int parallel, String dataset) {
+		this.host = host;
+		this.port = port;
+		this.parallel = parallel;
+		this.dataset = dataset;
+	}
+
+	/**
+	 * Returns true if the arguments can not be run interactively, because
+	 * they contain field values or more than one request.
+	 */
+	public static boolean isBatch(List<String> args) {
+		int requests = 0;
+		for(String arg : args) {
+			if(contains(FIELD_SWITCHES, arg))
+				return true;
+
+			if(contains(REQUEST_TYPES, arg))
+				requests++;
+		}
+
+		return requests > 1;
+	}
+
+	/**
+	 * Runs the requests in the file, if given, followed by the ones in the
+	 * arguments. Returns the exit code.
+	 */
+	public int run(String file, List<String> args) {
+		ArrayList<Command> commands = new ArrayList<Command>();
+		try {
+			if(file != null)
+				readFile(file, commands);
+
+			parse(args, "Arguments", commands);
+		}
+		catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage() + ", exiting.");
+			return -1;
+		}
+		catch (IOException e) {
+			System.err.println("Unable to read '" + file + "', exiting.");
+			return -1;
+		}
+
+		/*
+		 * Spread the requests over the lanes, one connection each.
+		 */
+		ArrayList<ArrayList<Command>> lanes = new ArrayList<ArrayList<Command>>();
+		for(int i = 0; i < parallel; i++)
+			lanes.add(new ArrayList<Command>());
+
+		ArrayList<Command> createCommands = new ArrayList<Command>();
+		ArrayList<Command> quitCommands = new ArrayList<Command>();
+		int next = 0;
+		for(Command command : commands) {
+			if(Constants.CREATE_DATASET_REQUEST.equals(command.request.get(Constants.REQUEST_TYPE))) {
+				createCommands.add(command);
+				continue;
+			}
+
+			if(Constants.QUIT_REQUEST.equals(command.request.get(Constants.REQUEST_TYPE))) {
+				quitCommands.add(command);
+				continue;
+			}
+
+			String name = (String) command.request.get(Constants.BIRD_NAME);
+			int lane = name == null ? next++ : name.hashCode();
+			lanes.get(Math.abs(lane % parallel)).add(command);
+		}
+
+		runLane(createCommands);
+
+		ArrayList<Thread> threads = new ArrayList<Thread>();
+		for(int i = 0; i < parallel; i++) {
+			final ArrayList<Command> lane = lanes.get(i);
+			if(lane.isEmpty())
+				continue;
+
+			Thread thread = new Thread("Lane - " + i) {
+				@Override
+				public void run() {
+					runLane(lane);
+				}
+			};
+			thread.start();
+			threads.add(thread);
+		}
+
+		for(Thread thread : threads) {
+			try {
+				thread.join();
+			}
+			catch (InterruptedException e) {
+			}
+		}
+
+		runLane(quitCommands);
+		return failures > 0 ? -1 : 0;
+	}
+
+	private void runLane(ArrayList<Command> commands) {
+		if(commands.isEmpty())
+			return;
+
+		Connection connection = new Connection(host, port, new SocketOptions());
+		try {
+			for(Command command : commands) {
+				/*
+				 * Quit has no response, the server closes the connection.
+				 */
+				if(Constants.QUIT_REQUEST.equals(command.request.get(Constants.REQUEST_TYPE))) {
+					quit(connection, command);
+					continue;
+				}
+
+				Object response = null;
+				try {
+					response = connection.send(command.request, command.exportFolder);
+					if(Connection.isRejection(response))
+						failed();
+				}
+				catch (Exception e) {
+					failed();
+				}
+
+				/*
+				 * Print the whole result at once, so the lanes do not mix
+				 * their output.
+				 */
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				PrintStream out = new PrintStream(bytes);
+				out.println("[" + command.source + "] " + command.request.get(Constants.REQUEST_TYPE));
+				if(response == null)
+					out.println("An error occured while transferring/receiving data from server.");
+				else
+					Client.printResponse(response, out);
+
+				out.flush();
+				synchronized (System.out) {
+					System.out.print(bytes.toString());
+				}
+			}
+		}
+		finally {
+			connection.close();
+		}
+	}
+
+	private void quit(Connection connection, Command command) {
+		boolean sent = true;
+		try {
+			connection.quit(command.request);
+		}
+		catch (IOException e) {
+			sent = false;
+			failed();
+		}
+
+		synchronized (System.out) {
+			System.out.println("[" + command.source + "] " + command.request.get(Constants.REQUEST_TYPE));
+			if(!sent)
+				System.out.println("An error occured while transferring/receiving data from server.");
+		}
+	}
+
+	private synchronized void failed() {
+		failures++;
+	}
+
+	private void readFile(String file, ArrayList<Command> commands) throws IOException {
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			int number = 0;
+			while((line = reader.readLine()) != null) {
+				number++;
+				line = line.trim();
+				if(line.isEmpty() || line.startsWith("#"))
+					continue;
+
+				parse(tokenize(line), "Line " + number, commands);
+			}
+		}
+		finally {
+			reader.close();
+		}
+	}
+
+	/**
+	 * Splits a line on white spaces, text within double quotes is kept
+	 * together.
+	 */
+	static ArrayList<String> tokenize(String line) {
+		ArrayList<String> tokens = new ArrayList<String>();
+		StringBuilder token = null;
+		boolean quoted = false;
+		for(int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if(c == '"') {
+				quoted = !quoted;
+				if(token == null)
+					token = new StringBuilder();
+			}
+			else if(Character.isWhitespace(c) && !quoted) {
+				if(token != null)
+					tokens.add(token.toString());
+				token = null;
+			}
+			else {
+				if(token == null)
+					token = new StringBuilder();
+				token.append(c);
+			}
+		}
+
+		if(quoted)
+			throw new IllegalArgumentException("Unterminated quote in '" + line + "'");
+
+		if(token != null)
+			tokens.add(token.toString());
+
+		return tokens;
+	}
+
+	/**
+	 * Parses the requests in the tokens, each request switch followed by its
+	 * fields.
+	 */
+	private void parse(List<String> tokens, String source, ArrayList<Command> commands) {
+		HashMap<String, String> fields = null;
+		String requestType = null;
+
+		for(int i = 0; i < tokens.size(); i++) {
+			String token = tokens.get(i);
+			if(contains(REQUEST_TYPES, token)) {
+				if(requestType != null)
+					commands.add(new Command(source, createRequest(requestType, fields, source), fields.get(FOLDER_SWITCH)));
+
+				requestType = token;
+				fields = new HashMap<String, String>();
+			}
+			else if(contains(FIELD_SWITCHES, token)) {
+				if(requestType == null)
+					throw new IllegalArgumentException(source + ": '" + token + "' is not preceded by a request");
+
+				if(i + 1 >= tokens.size())
+					throw new IllegalArgumentException(source + ": '" + token + "' does not has a value");
+
+				fields.put(token, tokens.get(++i));
+			}
+			else {
+				throw new IllegalArgumentException(source + ": '" + token + "' is not a valid option");
+			}
+		}
+
+		if(requestType != null)
+			commands.add(new Command(source, createRequest(requestType, fields, source), fields.get(FOLDER_SWITCH)));
+	}
+
+	/**
+	 * Creates the request, validating the fields the same way the prompts
+	 * do.
+	 */
+	private HashMap<String, Object> createRequest(String requestType, HashMap<String, String> fields, String source) {
+		HashMap<String, Object> request = new HashMap<String, Object>();
+		request.put(Constants.REQUEST_TYPE, requestType);
+		if(dataset != null)
+			request.put(Constants.DATASET, dataset);
+
+		try {
+			if(Constants.ADD_BIRD_REQUEST.equals(requestType)) {
+				request.put(Constants.BIRD_NAME, required(fields, NAME_SWITCH));
+				request.put(Constants.BIRD_COLOR, fields.containsKey(COLOR_SWITCH) ? fields.get(COLOR_SWITCH) : "");
+				request.put(Constants.BIRD_WEIGHT, Float.parseFloat(required(fields, WEIGHT_SWITCH)));
+				request.put(Constants.BIRD_HEIGHT, Float.parseFloat(required(fields, HEIGHT_SWITCH)));
+			}
+			else if(Constants.ADD_SIGHTING_REQUEST.equals(requestType)) {
+				/*
+				 * No request id, the server knows the sighting by its
+				 * content, so running the file again does not add it twice.
+				 */
+				request.put(Constants.BIRD_NAME, required(fields, NAME_SWITCH));
+				request.put(Constants.BIRD_SIGHTING_LOCATION, fields.containsKey(LOCATION_SWITCH) ? fields.get(LOCATION_SWITCH) : "");
+				request.put(Constants.BIRD_SIGHTING_DATE, date(fields, DATE_SWITCH));
+			}
+			else if(Constants.LIST_SIGHTINGS_REQUEST.equals(requestType)) {
+				String birdName = required(fields, NAME_SWITCH);
+				Pattern.compile(birdName);
+				request.put(Constants.BIRD_NAME, birdName);
+				request.put(Constants.START_DATE, date(fields, START_SWITCH));
+				request.put(Constants.END_DATE, date(fields, END_SWITCH));
+			}
+			else if(Constants.REMOVE_REQUEST.equals(requestType)) {
+				request.put(Constants.BIRD_NAME, required(fields, NAME_SWITCH));
+			}
+			else if(Constants.DELETE_SIGHTINGS_REQUEST.equals(requestType)) {
+				request.put(Constants.BIRD_NAME, required(fields, NAME_SWITCH));
+				request.put(Constants.START_DATE, date(fields, START_SWITCH));
+				request.put(Constants.END_DATE, date(fields, END_SWITCH));
+			}
+			else if(Constants.UPDATE_SIGHTING_REQUEST.equals(requestType)) {
+				request.put(Constants.BIRD_NAME, required(fields, NAME_SWITCH));
+				request.put(Constants.BIRD_SIGHTING_LOCATION, fields.containsKey(LOCATION_SWITCH) ? fields.get(LOCATION_SWITCH) : "");
+				request.put(Constants.BIRD_SIGHTING_DATE, date(fields, DATE_SWITCH));
+				if(fields.containsKey(NEW_LOCATION_SWITCH))
+					request.put(Constants.NEW_LOCATION, fields.get(NEW_LOCATION_SWITCH));
+				if(fields.containsKey(NEW_DATE_SWITCH))
+					request.put(Constants.NEW_DATE, date(fields, NEW_DATE_SWITCH));
+				if(!fields.containsKey(NEW_LOCATION_SWITCH) && !fields.containsKey(NEW_DATE_SWITCH))
+					throw new IllegalStateException("'" + NEW_LOCATION_SWITCH + "' or '" + NEW_DATE_SWITCH + "' is missing");
+			}
+			else if(Constants.QUERY_BIRDS_REQUEST.equals(requestType)) {
+				request.put(Constants.BIRD_QUERY, Client.createBirdQuery(fields.get(COLOR_SWITCH), fields.get(MIN_WEIGHT_SWITCH),
+						fields.get(MAX_WEIGHT_SWITCH), fields.get(MIN_HEIGHT_SWITCH), fields.get(MAX_HEIGHT_SWITCH), fields.get(MATCH_SWITCH)));
+			}
+			else if(Constants.SEARCH_NAMES_REQUEST.equals(requestType)) {
+				request.put(Constants.BIRD_NAME, required(fields, NAME_SWITCH));
+				if(fields.containsKey(DISTANCE_SWITCH))
+					request.put(Constants.MAX_DISTANCE, Integer.parseInt(fields.get(DISTANCE_SWITCH)));
+				if(fields.containsKey(LIMIT_SWITCH))
+					request.put(Constants.MAX_RESULTS, Integer.parseInt(fields.get(LIMIT_SWITCH)));
+			}
+			else if(Constants.SUMMARY_REQUEST.equals(requestType)) {
+				if(fields.containsKey(NAME_SWITCH))
+					request.put(Constants.BIRD_NAME, fields.get(NAME_SWITCH));
+				if(fields.containsKey(DAYS_SWITCH))
+					request.put(Constants.DAYS, Integer.parseInt(fields.get(DAYS_SWITCH)));
+				if(fields.containsKey(LIMIT_SWITCH))
+					request.put(Constants.MAX_RESULTS, Integer.parseInt(fields.get(LIMIT_SWITCH)));
+			}
+			else if(Constants.EXPORT_REQUEST.equals(requestType)) {
+				if(new File(required(fields, FOLDER_SWITCH)).isFile())
+					throw new IllegalStateException("'" + FOLDER_SWITCH + "' is a file");
+			}
+		}
+		catch (NumberFormatException e) {
+			throw new IllegalArgumentException(source + ": invalid number for '" + requestType + "'");
+		}
+		catch (PatternSyntaxException e) {
+			throw new IllegalArgumentException(source + ": invalid regular expression for bird name");
+		}
+		catch (ParseException e) {
+			throw new IllegalArgumentException(source + ": invalid date for '" + requestType + "', use " + DateFormat.getInstance().format(new Date()) + " format");
+		}
+		catch (IllegalStateException e) {
+			throw new IllegalArgumentException(source + ": " + e.getMessage() + " for '" + requestType + "'");
+		}
+
+		return request;
+	}
+
+	private static String required(HashMap<String, String> fields, String field) {
+		String value = fields.get(field);
+		if(value == null || value.isEmpty())
+			throw new IllegalStateException("'" + field + "' is missing");
+
+		return value;
+	}
+
+	private static Date date(HashMap<String, String> fields, String field) throws ParseException {
+		String value = required(fields, field);
+		if(!Client.validateDateAndTime(value))
+			throw new ParseException(value, 0);
+
+		return DateFormat.getInstance().parse(value);
+	}
+
+	private static boolean contains(String[] values, String value) {
+		for(String v : values) {
+			if(v.equals(value))
+				return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * A parsed request and where it came from.
+	 */
+	private static class Command {
+		private final String source;
+		private final HashMap<String, Object> request;
+		private final File exportFolder;
+
+		public Command(String source, HashMap<String, Object> request, String exportFolder) {
+			this.source = source;
+			this.request = request;
+			this.exportFolder = exportFolder == null ? null : new File(exportFolder);
+		}
+	}
+}
@@ -0,0 +1,463 @@
+package bird.client;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+import bird.model.Bird;
+import bird.model.BirdQuery;
+import bird.model.BirdSighting;
+import bird.model.CompressedResponse;
+import bird.model.Constants;
+import bird.model.NameMatch;
+import bird.model.SightingSummary;
+import bird.model.SocketOptions;
+import bird.model.Transport;
+
+/**
+ * Embeddable client for the bird server. Every method returns at once with a
+ * future of the response.
+ *
+ * The server answers one request at a time per connection, so each request
+ * takes a keep alive connection of its own from a small pool and gives it
+ * back once answered. A connection the server has closed while it was idle
+ * is found before it is used again and replaced. A request which does not
+ * get a response within the timeout, or whose connection fails, breaks that
+ * connection; listing and stats requests are then sent again over a new one,
+ * and so are add sighting requests since their request id lets the server
+ * add them only once, and delete sightings requests since deleting again
+ * changes nothing. The failed add bird, update sighting & remove requests
+ * are completed with the error since the server might have performed them.
+ *
+ * All the requests are about the dataset given when the client is created,
+ * the default one of the server if none is given.
+ */
+public class BirdClient implements Closeable {
+
+	public static final long DEFAULT_TIMEOUT = 30000;
+	public static final int DEFAULT_READ_RETRIES = 2;
+	public static final int DEFAULT_CONNECTIONS = 4;
+
+	/**
+	 * Milliseconds a connection may stay idle before it is checked for a
+	 * close from the server, which can not happen sooner than a second.
+	 */
+	private static final long CHECK_AFTER = 500;
+
+	private final String host;
+	private final int port;
+	private final long timeout;
+	private final int readRetries;
+	private final SocketOptions options;
+	private final String dataset;
+
+	private final ThreadPoolExecutor workers;
+
+	/**
+	 * Connections waiting for a request, the most recently used last, and
+	 * all the open ones so closing the client can break them.
+	 */
+	private final ArrayDeque<Idle> idle = new ArrayDeque<Idle>();
+	private final HashSet<Transport> open = new HashSet<Transport>();
+	private volatile boolean closed;
+
+	public BirdClient(String host, int port) {
+		this(host, port, DEFAULT_TIMEOUT, DEFAULT_READ_RETRIES);
+	}
+
+	/**
+	 * @param timeout milliseconds to wait for each response.
+	 * @param readRetries times a failed listing, stats or add sighting
+	 *            request is sent again.
+	 */
+	public BirdClient(String host, int port, long timeout, int readRetries) {
+		this(host, port, timeout, readRetries, new SocketOptions());
+	}
+
+	/**
+	 * @param options socket settings of the connections.
+	 */
+	public BirdClient(String host, int port, long timeout, int readRetries, SocketOptions options) {
+		this(host, port, timeout, readRetries, options, null);
+	}
+
+	/**
+	 * @param dataset name of the dataset on the server, null for the
+	 *            default one.
+	 */
+	public BirdClient(String host, int port, long timeout, int readRetries, SocketOptions options, String dataset) {
+		this(host, port, timeout, readRetries, options, dataset, DEFAULT_CONNECTIONS);
+	}
+
+	/**
+	 * @param connections most requests running at the same time, each over
+	 *            a connection of its own.
+	 */
+	public BirdClient(String host, int port, long timeout, int readRetries, SocketOptions options, String dataset, int connections) {
+		this.host = host;
+		this.port = port;
+		this.timeout = timeout;
+		this.readRetries = readRetries;
+		this.options = options;
+		this.dataset = dataset;
+		this.workers = new ThreadPoolExecutor(connections, connections, 0, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<Runnable>(), new DaemonThreadFactory("Bird Client Worker"));
+	}
+
+	/**
+	 * Creates the dataset of the client on the server, requests to a
+	 * dataset which is not present fail.
+	 */
+	public CompletableFuture<String> createDataset() {
+		return submit(request(Constants.CREATE_DATASET_REQUEST), false, String.class);
+	}
+
+	public CompletableFuture<String> addBird(String name, String color, float weight, float height) {
+		HashMap<String, Object> request = request(Constants.ADD_BIRD_REQUEST);
+		request.put(Constants.BIRD_NAME, name);
+		request.put(Constants.BIRD_COLOR, color);
+		request.put(Constants.BIRD_WEIGHT, weight);
+		request.put(Constants.BIRD_HEIGHT, height);
+		return submit(request, false, String.class);
+	}
+
+	public CompletableFuture<String> addSighting(String name, String location, Date date) {
+		HashMap<String, Object> request = request(Constants.ADD_SIGHTING_REQUEST);
+		request.put(Constants.BIRD_NAME, name);
+		request.put(Constants.BIRD_SIGHTING_LOCATION, location);
+		request.put(Constants.BIRD_SIGHTING_DATE, date);
+		request.put(Constants.REQUEST_ID, UUID.randomUUID().toString());
+		return submit(request, true, String.class);
+	}
+
+	public CompletableFuture<Bird[]> listBirds() {
+		return submit(request(Constants.LIST_BIRDS_REQUEST), true, Bird[].class);
+	}
+
+	/**
+	 * Returns the birds matching the query, selected on the server.
+	 */
+	public CompletableFuture<Bird[]> queryBirds(BirdQuery query) {
+		HashMap<String, Object> request = request(Constants.QUERY_BIRDS_REQUEST);
+		request.put(Constants.BIRD_QUERY, query);
+		return submit(request, true, Bird[].class);
+	}
+
+	/**
+	 * Returns the names closest to the text, which may be a misspelled part
+	 * of them, ranked on the server. Null values leave the server defaults.
+	 */
+	public CompletableFuture<NameMatch[]> searchNames(String text, Integer maxDistance, Integer maxResults) {
+		HashMap<String, Object> request = request(Constants.SEARCH_NAMES_REQUEST);
+		request.put(Constants.BIRD_NAME, text);
+		if(maxDistance != null)
+			request.put(Constants.MAX_DISTANCE, maxDistance);
+		if(maxResults != null)
+			request.put(Constants.MAX_RESULTS, maxResults);
+		return submit(request, true, NameMatch[].class);
+	}
+
+	/**
+	 * Lists the sightings of the birds matching the regular expression,
+	 * between the two exclusive dates, on name & date descending.
+	 */
+	public CompletableFuture<BirdSighting[]> listSightings(String nameRegex, Date startDate, Date endDate) {
+		HashMap<String, Object> request = request(Constants.LIST_SIGHTINGS_REQUEST);
+		request.put(Constants.BIRD_NAME, nameRegex);
+		request.put(Constants.START_DATE, startDate);
+		request.put(Constants.END_DATE, endDate);
+		return submit(request, true, BirdSighting[].class);
+	}
+
+	public CompletableFuture<String> remove(String name) {
+		HashMap<String, Object> request = request(Constants.REMOVE_REQUEST);
+		request.put(Constants.BIRD_NAME, name);
+		return submit(request, false, String.class);
+	}
+
+	/**
+	 * Deletes the bird's sightings between the two exclusive dates.
+	 */
+	public CompletableFuture<String> deleteSightings(String name, Date startDate, Date endDate) {
+		HashMap<String, Object> request = request(Constants.DELETE_SIGHTINGS_REQUEST);
+		request.put(Constants.BIRD_NAME, name);
+		request.put(Constants.START_DATE, startDate);
+		request.put(Constants.END_DATE, endDate);
+		return submit(request, true, String.class);
+	}
+
+	/**
+	 * Moves the sighting at the location on the date to the new location or
+	 * date, a null value keeps the present one.
+	 */
+	public CompletableFuture<String> updateSighting(String name, String location, Date date, String newLocation, Date newDate) {
+		HashMap<String, Object> request = request(Constants.UPDATE_SIGHTING_REQUEST);
+		request.put(Constants.BIRD_NAME, name);
+		request.put(Constants.BIRD_SIGHTING_LOCATION, location);
+		request.put(Constants.BIRD_SIGHTING_DATE, date);
+		if(newLocation != null)
+			request.put(Constants.NEW_LOCATION, newLocation);
+		if(newDate != null)
+			request.put(Constants.NEW_DATE, newDate);
+		return submit(request, false, String.class);
+	}
+
+	/**
+	 * Returns the approximate top birds and locations of the last days, and
+	 * the distinct locations of the bird if one is given. Null values leave
+	 * the server defaults.
+	 */
+	public CompletableFuture<SightingSummary> summary(String name, Integer days, Integer top) {
+		HashMap<String, Object> request = request(Constants.SUMMARY_REQUEST);
+		if(name != null)
+			request.put(Constants.BIRD_NAME, name);
+		if(days != null)
+			request.put(Constants.DAYS, days);
+		if(top != null)
+			request.put(Constants.MAX_RESULTS, top);
+		return submit(request, true, SightingSummary.class);
+	}
+
+	public CompletableFuture<String> stats() {
+		return submit(request(Constants.STATS_REQUEST), true, String.class);
+	}
+
+	public CompletableFuture<String> config() {
+		return submit(request(Constants.CONFIG_REQUEST), true, String.class);
+	}
+
+	/**
+	 * Closes the connections, the requests still waiting are completed with
+	 * an error.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		for(Runnable task : workers.shutdownNow())
+			((Call) task).response.completeExceptionally(new IOException("Client has been closed."));
+
+		ArrayList<Transport> transports;
+		synchronized (this) {
+			transports = new ArrayList<Transport>(open);
+			open.clear();
+			idle.clear();
+		}
+
+		for(Transport transport : transports)
+			transport.close();
+	}
+
+	private HashMap<String, Object> request(String requestType) {
+		HashMap<String, Object> request = new HashMap<String, Object>();
+		request.put(Constants.REQUEST_TYPE, requestType);
+		if(dataset != null)
+			request.put(Constants.DATASET, dataset);
+		request.put(Constants.KEEP_ALIVE, Boolean.TRUE);
+		request.put(Constants.ACCEPT_COMPRESSION, Boolean.TRUE);
+		return request;
+	}
+
+	private <T> CompletableFuture<T> submit(HashMap<String, Object> request, boolean idempotent, final Class<T> type) {
+		final CompletableFuture<T> result = new CompletableFuture<T>();
+		final Call call = new Call(request, idempotent);
+		call.response.whenComplete(new BiConsumer<Object, Throwable>() {
+			@Override
+			public void accept(Object response, Throwable error) {
+				if(error != null)
+					result.completeExceptionally(error);
+				else if(type.isInstance(response))
+					result.complete(type.cast(response));
+				else
+					result.completeExceptionally(new IOException(String.valueOf(response)));
+			}
+		});
+
+		/*
+		 * A worker runs the call, so the caller never blocks on a
+		 * connection.
+		 */
+		try {
+			workers.execute(call);
+		}
+		catch (RejectedExecutionException e) {
+			call.response.completeExceptionally(new IOException("Client has been closed."));
+		}
+
+		return result;
+	}
+
+	/**
+	 * Returns an idle connection, or a new one if there is none. One which
+	 * has been idle for a while is checked first, the server closes them
+	 * after its keep alive timeout.
+	 */
+	private Transport take() throws IOException {
+		while(true) {
+			Idle last;
+			synchronized (this) {
+				last = idle.pollLast();
+			}
+
+			if(last == null)
+				break;
+
+			if(System.currentTimeMillis() - last.since < CHECK_AFTER || isOpen(last.transport))
+				return last.transport;
+
+			discard(last.transport);
+		}
+
+		Transport transport = Transport.connect(host, port, options);
+		transport.getSocket().setSoTimeout((int) Math.min(timeout, Integer.MAX_VALUE));
+		synchronized (this) {
+			if(closed) {
+				transport.close();
+				throw new IOException("Client has been closed.");
+			}
+
+			open.add(transport);
+		}
+
+		return transport;
+	}
+
+	/**
+	 * Reads from the idle connection without waiting. Nothing is expected,
+	 * so the end of the stream or any data means it can not be used.
+	 */
+	private boolean isOpen(Transport transport) {
+		Socket socket = transport.getSocket();
+		try {
+			socket.setSoTimeout(1);
+			try {
+				transport.getInputStream().read();
+				return false;
+			}
+			catch (SocketTimeoutException e) {
+				socket.setSoTimeout((int) Math.min(timeout, Integer.MAX_VALUE));
+				return true;
+			}
+		}
+		catch (IOException e) {
+			return false;
+		}
+	}
+
+	private synchronized void release(Transport transport) {
+		if(closed || !open.contains(transport)) {
+			transport.close();
+			return;
+		}
+
+		idle.add(new Idle(transport));
+	}
+
+	private void discard(Transport transport) {
+		synchronized (this) {
+			open.remove(transport);
+		}
+
+		transport.close();
+	}
+
+	/**
+	 * A request and the future of its response. Running it sends it over a
+	 * connection of its own and waits for the response.
+	 */
+	private class Call implements Runnable {
+		private final HashMap<String, Object> request;
+		private final boolean idempotent;
+		private final CompletableFuture<Object> response = new CompletableFuture<Object>();
+
+		public Call(HashMap<String, Object> request, boolean idempotent) {
+			this.request = request;
+			this.idempotent = idempotent;
+		}
+
+		@Override
+		public void run() {
+			for(int attempt = 0; ; attempt++) {
+				if(closed) {
+					response.completeExceptionally(new IOException("Client has been closed."));
+					return;
+				}
+
+				Transport transport;
+				try {
+					transport = take();
+				}
+				catch (IOException e) {
+					/*
+					 * Nothing has been sent, any request can be tried again.
+					 */
+					if(attempt < readRetries)
+						continue;
+
+					response.completeExceptionally(e);
+					return;
+				}
+
+				try {
+					transport.send(request);
+					Object result = CompressedResponse.decompress(transport.receive());
+					release(transport);
+					response.complete(result);
+					return;
+				}
+				catch (Exception e) {
+					discard(transport);
+					if(closed)
+						e = new IOException("Client has been closed.");
+
+					if(!idempotent || attempt >= readRetries || closed) {
+						response.completeExceptionally(e);
+						return;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * A connection waiting for a request, since when.
+	 */
+	private static class Idle {
+		private final Transport transport;
+		private final long since = System.currentTimeMillis();
+
+		public Idle(Transport transport) {
+			this.transport = transport;
+		}
+	}
+
+	/**
+	 * Client threads must not keep the application alive.
+	 */
+	private static class DaemonThreadFactory implements ThreadFactory {
+		private final String name;
+
+		public DaemonThreadFactory(String name) {
+			this.name = name;
+		}
+
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, name);
+			thread.setDaemon(true);
+			return thread;
+		}
+	}
+}
@@ -1,12 +1,13 @@
 package bird.client;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.net.Socket;
+import java.io.PrintStream;
 import java.text.DateFormat;
 import java.text.ParseException;
-import java.util.Arrays;
-import java.util.Comparator;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.InputMismatchException;
@@ -15,13 +16,24 @@ import java.util.regex.Pattern;
 import java.util.regex.PatternSyntaxException;
 
 import bird.model.Bird;
+import bird.model.BirdQuery;
 import bird.model.BirdSighting;
+import bird.model.CompressedResponse;
 import bird.model.Constants;
+import bird.model.ExportResponse;
+import bird.model.NameMatch;
+import bird.model.SocketOptions;
+import bird.model.Transport;
 
 
 
 public class Client {
 	private static final String SERVER_PORT_SWITCH = "-serverPort";
+	private static final String FILE_SWITCH = "-file";
+	private static final String PARALLEL_SWITCH = "-parallel";
+	private static final String DATASET_SWITCH = "-dataset";
+	
+	private static final String SERVER_HOST = "localhost";
 	
 	/*
 	 * 
@@ -34,19 +46,14 @@ public class Client {
 		 */
         System.setProperty("java.awt.headless", "true");
         
-        /*
-         * We could maximum have three arguments.
-         */
-        if(args.length > 3) {
-        	System.out.println("Too many command line arguments, exiting.");
-        	System.exit(-1);
-        }
-        
         /*
          * Read command line argument.
          */
         int port = Constants.DEFAULT_PORT;
-        String requestType = null;
+        int parallel = 1;
+        String file = null;
+        String dataset = null;
+        ArrayList<String> requestArgs = new ArrayList<String>();
         
         for(int i = 0; i < args.length; i++) {
         	String s = args[i];
@@ -72,7 +79,52 @@ public class Client {
         			System.err.println(SERVER_PORT_SWITCH + " does not has a value, using default.");
         		}
         	}
-        	else if(Constants.ADD_BIRD_REQUEST.equals(s)) {
+        	else if(PARALLEL_SWITCH.equals(s)) {
+        		try {
+        			parallel = Integer.parseInt(args[++i]);
+        			if(parallel < 1) {
+        				System.err.println(PARALLEL_SWITCH + " should be a positive integer, using 1.");
+        				parallel = 1;
+        			}
+        		}
+        		catch(NumberFormatException e) {
+        			System.err.println(PARALLEL_SWITCH + " does not has a valid input, using 1.");
+        		}
+        		catch(ArrayIndexOutOfBoundsException e1) {
+        			System.err.println(PARALLEL_SWITCH + " does not has a value, using 1.");
+        		}
+        	}
+        	else if(FILE_SWITCH.equals(s)) {
+        		if(i + 1 >= args.length) {
+        			System.err.println(FILE_SWITCH + " does not has a value, exiting.");
+        			System.exit(-1);
+        		}
+        		
+        		file = args[++i];
+        	}
+        	else if(DATASET_SWITCH.equals(s)) {
+        		if(i + 1 >= args.length) {
+        			System.err.println(DATASET_SWITCH + " does not has a value, exiting.");
+        			System.exit(-1);
+        		}
+        		
+        		dataset = args[++i];
+        	}
+        	else {
+        		requestArgs.add(s);
+        	}
+        }
+        
+        /*
+         * Requests with their values, or a file of them, are run without
+         * prompting.
+         */
+        if(file != null || BatchRunner.isBatch(requestArgs))
+        	System.exit(new BatchRunner(SERVER_HOST, port, parallel, dataset).run(file, requestArgs));
+        
+        String requestType = null;
+        for(String s : requestArgs) {
+        	if(Constants.ADD_BIRD_REQUEST.equals(s)) {
         		requestType = Constants.ADD_BIRD_REQUEST;
         	}
         	else if(Constants.ADD_SIGHTING_REQUEST.equals(s)) {
@@ -81,12 +133,39 @@ public class Client {
         	else if(Constants.LIST_BIRDS_REQUEST.equals(s)) {
         		requestType = Constants.LIST_BIRDS_REQUEST;
         	}
+        	else if(Constants.QUERY_BIRDS_REQUEST.equals(s)) {
+        		requestType = Constants.QUERY_BIRDS_REQUEST;
+        	}
+        	else if(Constants.SEARCH_NAMES_REQUEST.equals(s)) {
+        		requestType = Constants.SEARCH_NAMES_REQUEST;
+        	}
         	else if(Constants.LIST_SIGHTINGS_REQUEST.equals(s)) {
         		requestType = Constants.LIST_SIGHTINGS_REQUEST;
         	}
         	else if(Constants.REMOVE_REQUEST.equals(s)) {
         		requestType = Constants.REMOVE_REQUEST;
         	}
+        	else if(Constants.DELETE_SIGHTINGS_REQUEST.equals(s)) {
+        		requestType = Constants.DELETE_SIGHTINGS_REQUEST;
+        	}
+        	else if(Constants.UPDATE_SIGHTING_REQUEST.equals(s)) {
+        		requestType = Constants.UPDATE_SIGHTING_REQUEST;
+        	}
+        	else if(Constants.STATS_REQUEST.equals(s)) {
+        		requestType = Constants.STATS_REQUEST;
+        	}
+        	else if(Constants.SUMMARY_REQUEST.equals(s)) {
+        		requestType = Constants.SUMMARY_REQUEST;
+        	}
+        	else if(Constants.CONFIG_REQUEST.equals(s)) {
+        		requestType = Constants.CONFIG_REQUEST;
+        	}
+        	else if(Constants.EXPORT_REQUEST.equals(s)) {
+        		requestType = Constants.EXPORT_REQUEST;
+        	}
+        	else if(Constants.CREATE_DATASET_REQUEST.equals(s)) {
+        		requestType = Constants.CREATE_DATASET_REQUEST;
+        	}
         	else if(Constants.QUIT_REQUEST.equals(s)) {
         		requestType = Constants.QUIT_REQUEST;
         	}
@@ -100,339 +179,584 @@ public class Client {
         	System.exit(-1);
         }
         
-        Socket socket = null;
+        HashMap<String, Object> request = new HashMap<String, Object>();
+        request.put(Constants.REQUEST_TYPE, requestType);
+        request.put(Constants.ACCEPT_COMPRESSION, Boolean.TRUE);
+        if(dataset != null)
+        	request.put(Constants.DATASET, dataset);
+        
+        /*
+         * Read every value before connecting, the server does not wait for
+         * a request while it is typed.
+         */
+        File exportFolder = null;
+        boolean ready = true;
+        Scanner scanner = new Scanner(System.in);
+        try {
+        	if(Constants.ADD_BIRD_REQUEST.equals(requestType)) {
+        		ready = readAddBirdRequest(request, scanner);
+        	}
+        	else if(Constants.ADD_SIGHTING_REQUEST.equals(requestType)) {
+        		ready = readAddSightingRequest(request, scanner);
+        	}
+        	else if(Constants.QUERY_BIRDS_REQUEST.equals(requestType)) {
+        		ready = readQueryBirdsRequest(request, scanner);
+        	}
+        	else if(Constants.SEARCH_NAMES_REQUEST.equals(requestType)) {
+        		ready = readSearchNamesRequest(request, scanner);
+        	}
+        	else if(Constants.LIST_SIGHTINGS_REQUEST.equals(requestType)) {
+        		ready = readListBirdSightingsRequest(request, scanner);
+        	}
+        	else if(Constants.REMOVE_REQUEST.equals(requestType)) {
+        		ready = readRemoveBirdRequest(request, scanner);
+        	}
+        	else if(Constants.DELETE_SIGHTINGS_REQUEST.equals(requestType)) {
+        		ready = readDeleteSightingsRequest(request, scanner);
+        	}
+        	else if(Constants.UPDATE_SIGHTING_REQUEST.equals(requestType)) {
+        		ready = readUpdateSightingRequest(request, scanner);
+        	}
+        	else if(Constants.SUMMARY_REQUEST.equals(requestType)) {
+        		ready = readSummaryRequest(request, scanner);
+        	}
+        	else if(Constants.EXPORT_REQUEST.equals(requestType)) {
+        		exportFolder = readExportFolder(scanner);
+        		ready = exportFolder != null;
+        	}
+        	else if(Constants.CREATE_DATASET_REQUEST.equals(requestType) && dataset == null) {
+        		ready = readCreateDatasetRequest(request, scanner);
+        	}
+        }
+        finally {
+        	scanner.close();
+        }
+        
+        if(!ready)
+        	return;
+        
+        Transport transport = null;
         ObjectInputStream in = null;
         ObjectOutputStream out = null;
         
         try {
-			socket = new Socket("localhost", port);
-			out = new ObjectOutputStream(socket.getOutputStream());
-			in = new ObjectInputStream(socket.getInputStream());
+			transport = Transport.connect(SERVER_HOST, port, new SocketOptions());
+			out = transport.getObjectOutputStream();
+			in = transport.getObjectInputStream();
 		} 
         catch (Exception e) {
         	System.err.println("Unable to connect to server, exiting...");
         	System.exit(-1);
 		}
         
-        HashMap<String, Object> request = new HashMap<String, Object>();
-        request.put(Constants.REQUEST_TYPE, requestType);
-        
     	try {
-    		if(Constants.ADD_BIRD_REQUEST.equals(requestType)) {
-    			sendAddBirdRequest(request, in, out);
-        	}
-        	else if(Constants.ADD_SIGHTING_REQUEST.equals(requestType)) {
-        		sendAddSightingRequest(request, in, out);
-        	}
-        	else if(Constants.LIST_BIRDS_REQUEST.equals(requestType)) {
-        		processListBirdsRequest(request, in, out);
-        	}
-        	else if(Constants.LIST_SIGHTINGS_REQUEST.equals(requestType)) {
-        		processListBirdSightingsRequest(request, in, out);
-        	}
-        	else if(Constants.REMOVE_REQUEST.equals(requestType)) {
-        		sendRemoveBirdRequest(request, in, out);
-        	}
-        	else if(Constants.QUIT_REQUEST.equals(requestType)) {
-        		/*
-        		 * Send request.
-        		 */
-    			out.writeObject(request);
-    		}
+    		/*
+    		 * Send request.
+    		 */
+			out.writeObject(request);
+			out.flush();
+			
+			/*
+			 * Wait for response, quit has none.
+			 */
+			if(!Constants.QUIT_REQUEST.equals(requestType))
+				processResponse(requestType, CompressedResponse.decompress(in.readObject()), transport.getInputStream(), exportFolder);
 		} 
     	catch (Exception e) {
     		System.err.println("An error occured while transferring/receiving data from server, exiting...");
 		}
     	finally {
-    		try {
-				in.close();
-				out.close();
-				socket.close();
-			} 
-        	catch (IOException e) {
-			}
+    		transport.close();
     	}
 	}
+	
+	/**
+	 * Prints the response to the request. Changes and stats are answered
+	 * with a message, other requests only with an error message.
+	 */
+	private static void processResponse(String requestType, Object response, InputStream files, File exportFolder) throws IOException {
+		if(response instanceof String) {
+			if(Constants.STATS_REQUEST.equals(requestType) || Constants.CONFIG_REQUEST.equals(requestType))
+				System.out.print(response);
+			else if(Constants.ADD_BIRD_REQUEST.equals(requestType) || Constants.ADD_SIGHTING_REQUEST.equals(requestType)
+					|| Constants.REMOVE_REQUEST.equals(requestType) || Constants.DELETE_SIGHTINGS_REQUEST.equals(requestType)
+					|| Constants.UPDATE_SIGHTING_REQUEST.equals(requestType) || Constants.CREATE_DATASET_REQUEST.equals(requestType))
+				System.out.println(response);
+			else
+				System.err.println(response);
+			
+			return;
+		}
+		
+		/*
+		 * The files follow the export response.
+		 */
+		if(response instanceof ExportResponse)
+			((ExportResponse) response).receive(files, exportFolder);
+		
+		printResponse(response, System.out);
+	}
+
+	/**
+	 * Reads the name of the dataset to create, when it is not given with
+	 * the dataset switch.
+	 */
+	private static boolean readCreateDatasetRequest(HashMap<String, Object> request, Scanner scanner) {
+		System.out.print("Enter dataset name: ");
+		String dataset = scanner.nextLine();
+		if(dataset.isEmpty()) {
+			System.err.println("Dataset name can not be empty, exiting.");
+			return false;
+		}
+		
+		request.put(Constants.DATASET, dataset);
+		return true;
+	}
 
-	private static void sendAddBirdRequest(HashMap<String, Object> request, ObjectInputStream in, ObjectOutputStream out) throws IOException, ClassNotFoundException {
-		Scanner scanner = new Scanner(System.in);
+	private static boolean readAddBirdRequest(HashMap<String, Object> request, Scanner scanner) {
+		/*
+		 * Get bird name.
+		 */
+		System.out.print("Enter bird name: ");
+		String birdName = scanner.nextLine();
+		if(birdName.isEmpty()) {
+			System.err.println("Bird name can not be empty, exiting.");
+			return false;
+		}
+		
+		request.put(Constants.BIRD_NAME, birdName);
+		
+		/*
+		 * Get bird color.
+		 */
+		System.out.print("Enter bird color: ");
+		String birdColor = scanner.nextLine();
+		request.put(Constants.BIRD_COLOR, birdColor);
 		
 		try {
 			/*
-			 * Get bird name.
-			 */
-			System.out.print("Enter bird name: ");
-			String birdName = scanner.nextLine();
-			if(birdName.isEmpty()) {
-				System.err.println("Bird name can not be empty, exiting.");
-				return;
-			}
-			
-			request.put(Constants.BIRD_NAME, birdName);
-			
-			/*
-			 * Get bird color.
-			 */
-			System.out.print("Enter bird color: ");
-			String birdColor = scanner.nextLine();
-			request.put(Constants.BIRD_COLOR, birdColor);
-			
-			try {
-				/*
-				 * Get bird weight.
-				 */
-				System.out.print("Enter bird weight: ");
-				float birdWeight = scanner.nextFloat();
-				request.put(Constants.BIRD_WEIGHT, birdWeight);
-				
-				/*
-				 * Get bird height.
-				 */
-				System.out.print("Enter bird weight: ");
-				float birdHeight = scanner.nextFloat();
-				request.put(Constants.BIRD_HEIGHT, birdHeight);
-			}
-			catch(InputMismatchException e) {
-				System.err.println("Invalid input, exiting.");
-				return;
-			}
-			
-			/*
-			 * Send request.
+			 * Get bird weight.
 			 */
-			out.writeObject(request);
+			System.out.print("Enter bird weight: ");
+			float birdWeight = scanner.nextFloat();
+			request.put(Constants.BIRD_WEIGHT, birdWeight);
 			
 			/*
-			 * Wait for response.
+			 * Get bird height.
 			 */
-			String result = (String) in.readObject();
-			System.out.println(result);
+			System.out.print("Enter bird weight: ");
+			float birdHeight = scanner.nextFloat();
+			request.put(Constants.BIRD_HEIGHT, birdHeight);
 		}
-		finally {
-			scanner.close();
+		catch(InputMismatchException e) {
+			System.err.println("Invalid input, exiting.");
+			return false;
 		}
+		
+		return true;
 	}
 	
-	private static void sendAddSightingRequest(HashMap<String, Object> request, ObjectInputStream in, ObjectOutputStream out)  throws IOException, ClassNotFoundException {
-		Scanner scanner = new Scanner(System.in);
+	private static boolean readAddSightingRequest(HashMap<String, Object> request, Scanner scanner) {
+		/*
+		 * Get bird name.
+		 */
+		System.out.print("Enter bird name: ");
+		String birdName = scanner.nextLine();
+		if(birdName.isEmpty()) {
+			System.err.println("Bird name can not be empty, exiting.");
+			return false;
+		}
+		
+		request.put(Constants.BIRD_NAME, birdName);
+		
+		/*
+		 * Get bird color.
+		 */
+		System.out.print("Enter sighting location: ");
+		String birdSightingLocation = scanner.nextLine();
+		request.put(Constants.BIRD_SIGHTING_LOCATION, birdSightingLocation);
 		
 		try {
 			/*
-			 * Get bird name.
+			 * Get bird weight.
 			 */
-			System.out.print("Enter bird name: ");
-			String birdName = scanner.nextLine();
-			if(birdName.isEmpty()) {
-				System.err.println("Bird name can not be empty, exiting.");
-				return;
-			}
-			
-			request.put(Constants.BIRD_NAME, birdName);
-			
+			System.out.print("Enter sighting date (DD/MM/YY HH:MM): ");
+			String birdSightingDate = scanner.nextLine();
+			if(!validateDateAndTime(birdSightingDate))
+				throw new ParseException("", 0);
+				
+			request.put(Constants.BIRD_SIGHTING_DATE, DateFormat.getInstance().parse(birdSightingDate));
+		}
+		catch(ParseException e) {
+			System.err.println("Invalid input, exiting.");
+			return false;
+		}
+		
+		return true;
+	}
+
+	private static boolean readRemoveBirdRequest(HashMap<String, Object> request, Scanner scanner) {
+		System.out.print("Enter bird name to remove (or just press enter to quit): ");
+		String birdName = scanner.nextLine();
+		if(birdName.isEmpty())
+			return false;
+		
+		request.put(Constants.BIRD_NAME, birdName);
+		return true;
+	}
+	
+	private static boolean readDeleteSightingsRequest(HashMap<String, Object> request, Scanner scanner) {
+		/*
+		 * Get bird name.
+		 */
+		System.out.print("Enter bird name: ");
+		String birdName = scanner.nextLine();
+		if(birdName.isEmpty()) {
+			System.err.println("Bird name can not be empty, exiting.");
+			return false;
+		}
+		
+		request.put(Constants.BIRD_NAME, birdName);
+		
+		try {
 			/*
-			 * Get bird color.
+			 * Get start date.
 			 */
-			System.out.print("Enter sighting location: ");
-			String birdSightingLocation = scanner.nextLine();
-			request.put(Constants.BIRD_SIGHTING_LOCATION, birdSightingLocation);
+			System.out.print("Enter exclusive start date (DD/MM/YY HH:MM): ");
+			String startDate = scanner.nextLine();
+			if(!validateDateAndTime(startDate))
+				throw new ParseException("", 0);
 			
-			try {
-				/*
-				 * Get bird weight.
-				 */
-				System.out.print("Enter sighting date (DD/MM/YY HH:MM): ");
-				String birdSightingDate = scanner.nextLine();
-				if(!validateDateAndTime(birdSightingDate))
-					throw new ParseException("", 0);
-					
-				request.put(Constants.BIRD_SIGHTING_DATE, DateFormat.getInstance().parse(birdSightingDate));
-			}
-			catch(ParseException e) {
-				System.err.println("Invalid input, exiting.");
-				return;
-			}
+			request.put(Constants.START_DATE, DateFormat.getInstance().parse(startDate));
 			
 			/*
-			 * Send request.
+			 * Get end date.
 			 */
-			out.writeObject(request);
+			System.out.print("Enter exclusive end date (DD/MM/YY HH:MM): ");
+			String endDate = scanner.nextLine();
+			if(!validateDateAndTime(endDate))
+				throw new ParseException("", 0);
 			
-			/*
-			 * Wait for response.
-			 */
-			String result = (String) in.readObject();
-			System.out.println(result);
+			request.put(Constants.END_DATE, DateFormat.getInstance().parse(endDate));
 		}
-		finally {
-			scanner.close();
+		catch(ParseException e) {
+			System.err.println("Invalid input, exiting.");
+			return false;
 		}
+		
+		return true;
 	}
-
-	private static void sendRemoveBirdRequest(HashMap<String, Object> request, ObjectInputStream in, ObjectOutputStream out) throws IOException, ClassNotFoundException {
-		Scanner scanner = new Scanner(System.in);
+	
+	private static boolean readUpdateSightingRequest(HashMap<String, Object> request, Scanner scanner) {
+		/*
+		 * Get bird name.
+		 */
+		System.out.print("Enter bird name: ");
+		String birdName = scanner.nextLine();
+		if(birdName.isEmpty()) {
+			System.err.println("Bird name can not be empty, exiting.");
+			return false;
+		}
+		
+		request.put(Constants.BIRD_NAME, birdName);
+		
+		/*
+		 * Get the sighting to update.
+		 */
+		System.out.print("Enter sighting location: ");
+		request.put(Constants.BIRD_SIGHTING_LOCATION, scanner.nextLine());
 		
 		try {
-			System.out.print("Enter bird name to remove (or just press enter to quit): ");
-			String birdName = scanner.nextLine();
-			if(birdName.isEmpty())
-				return;
+			System.out.print("Enter sighting date (DD/MM/YY HH:MM): ");
+			String birdSightingDate = scanner.nextLine();
+			if(!validateDateAndTime(birdSightingDate))
+				throw new ParseException("", 0);
 			
-			request.put(Constants.BIRD_NAME, birdName);
-			/*
-			 * Send request.
-			 */
-			out.writeObject(request);
+			request.put(Constants.BIRD_SIGHTING_DATE, DateFormat.getInstance().parse(birdSightingDate));
 			
 			/*
-			 * Wait for response.
+			 * Get the new values, empty ones keep the present values.
 			 */
-			String result = (String) in.readObject();
-			System.out.println(result);
+			System.out.print("Enter new location (or just press enter to keep it): ");
+			String newLocation = scanner.nextLine();
+			if(!newLocation.isEmpty())
+				request.put(Constants.NEW_LOCATION, newLocation);
+			
+			System.out.print("Enter new date (DD/MM/YY HH:MM, or just press enter to keep it): ");
+			String newDate = scanner.nextLine();
+			if(!newDate.isEmpty()) {
+				if(!validateDateAndTime(newDate))
+					throw new ParseException("", 0);
+				
+				request.put(Constants.NEW_DATE, DateFormat.getInstance().parse(newDate));
+			}
 		}
-		finally {
-			scanner.close();
+		catch(ParseException e) {
+			System.err.println("Invalid input, exiting.");
+			return false;
 		}
+		
+		return true;
 	}
 	
-	private static void processListBirdsRequest(HashMap<String, Object> request, ObjectInputStream in, ObjectOutputStream out) throws IOException, ClassNotFoundException {
+	private static boolean readSummaryRequest(HashMap<String, Object> request, Scanner scanner) {
+		System.out.print("Enter bird name to count its locations (empty for none): ");
+		String birdName = scanner.nextLine();
+		if(!birdName.isEmpty())
+			request.put(Constants.BIRD_NAME, birdName);
+		
+		System.out.print("Enter number of days up to today (empty for 7): ");
+		String days = scanner.nextLine();
+		try {
+			if(!days.isEmpty())
+				request.put(Constants.DAYS, Integer.parseInt(days));
+		}
+		catch(NumberFormatException e) {
+			System.err.println("Invalid input, exiting.");
+			return false;
+		}
+		
+		return true;
+	}
+	
+	private static File readExportFolder(Scanner scanner) {
 		/*
-		 * Send request.
+		 * Get export folder.
 		 */
-		out.writeObject(request);
+		System.out.print("Enter folder to export to: ");
+		String folderName = scanner.nextLine();
+		if(folderName.isEmpty()) {
+			System.err.println("Folder can not be empty, exiting.");
+			return null;
+		}
+		
+		File folder = new File(folderName);
+		if(folder.isFile()) {
+			System.err.println("'" + folderName + "' is a file, exiting.");
+			return null;
+		}
 		
+		return folder;
+	}
+	
+	private static boolean readQueryBirdsRequest(HashMap<String, Object> request, Scanner scanner) {
 		/*
-		 * Wait for response.
+		 * Get the predicates, an empty input leaves it out.
 		 */
-		Bird[] result = (Bird[]) in.readObject();
-		if(result.length < 1) {
-			System.out.println("No record to show");
-			return;
+		System.out.print("Enter bird color (empty for any): ");
+		String color = scanner.nextLine();
+		System.out.print("Enter minimum weight (empty for any): ");
+		String minWeight = scanner.nextLine();
+		System.out.print("Enter maximum weight (empty for any): ");
+		String maxWeight = scanner.nextLine();
+		System.out.print("Enter minimum height (empty for any): ");
+		String minHeight = scanner.nextLine();
+		System.out.print("Enter maximum height (empty for any): ");
+		String maxHeight = scanner.nextLine();
+		System.out.print("Match all or any of them (all/any): ");
+		String match = scanner.nextLine();
+		
+		try {
+			request.put(Constants.BIRD_QUERY, createBirdQuery(color, minWeight, maxWeight, minHeight, maxHeight, match));
+		}
+		catch(NumberFormatException | IllegalStateException e) {
+			System.err.println("Invalid input, exiting.");
+			return false;
 		}
 		
-		String format = "%-30.30s %-20.20s %-15.15s %-15.15s\n";
-		System.out.printf(format, "Name", "Color", "Weight", "Height");
-		for(Bird bird : result)
-			System.out.printf(format, bird.getName(), bird.getColor(), "" + bird.getWeight(), "" + bird.getHeight());
+		return true;
+	}
+	
+	/**
+	 * Builds the query from the inputs, each of which may be empty or null
+	 * to leave it out. Match is "all" (the default) or "any".
+	 * 
+	 * @throws NumberFormatException if a number is invalid.
+	 * @throws IllegalStateException if the match is invalid.
+	 */
+	static BirdQuery createBirdQuery(String color, String minWeight, String maxWeight, String minHeight, String maxHeight, String match) {
+		ArrayList<BirdQuery> predicates = new ArrayList<BirdQuery>();
+		if(color != null && !color.isEmpty())
+			predicates.add(BirdQuery.color(color));
+		
+		if(!isEmpty(minWeight) || !isEmpty(maxWeight))
+			predicates.add(BirdQuery.weight(bound(minWeight, Float.NEGATIVE_INFINITY), bound(maxWeight, Float.POSITIVE_INFINITY)));
+		
+		if(!isEmpty(minHeight) || !isEmpty(maxHeight))
+			predicates.add(BirdQuery.height(bound(minHeight, Float.NEGATIVE_INFINITY), bound(maxHeight, Float.POSITIVE_INFINITY)));
+		
+		BirdQuery[] array = predicates.toArray(new BirdQuery[0]);
+		if(isEmpty(match) || "all".equalsIgnoreCase(match))
+			return BirdQuery.and(array);
+		
+		if("any".equalsIgnoreCase(match))
+			return BirdQuery.or(array);
 		
-		System.out.println("\n");
-		System.out.println("Total number of records: " + result.length);
+		throw new IllegalStateException("match should be all or any");
+	}
+	
+	private static boolean isEmpty(String value) {
+		return value == null || value.isEmpty();
+	}
+	
+	private static float bound(String value, float otherwise) {
+		return isEmpty(value) ? otherwise : Float.parseFloat(value);
 	}
 	
-	private static void processListBirdSightingsRequest(HashMap<String, Object> request, ObjectInputStream in, ObjectOutputStream out) throws IOException, ClassNotFoundException {
-		Scanner scanner = new Scanner(System.in);
+	private static boolean readSearchNamesRequest(HashMap<String, Object> request, Scanner scanner) {
+		/*
+		 * Get the text, a part of the name which may be misspelled.
+		 */
+		System.out.print("Enter bird name or a part of it: ");
+		String text = scanner.nextLine();
+		if(text.isEmpty()) {
+			System.err.println("Bird name can not be empty, exiting.");
+			return false;
+		}
+		
+		request.put(Constants.BIRD_NAME, text);
+		
+		System.out.print("Enter most misspelled letters (empty for 2): ");
+		String distance = scanner.nextLine();
+		try {
+			if(!distance.isEmpty())
+				request.put(Constants.MAX_DISTANCE, Integer.parseInt(distance));
+		}
+		catch(NumberFormatException e) {
+			System.err.println("Invalid input, exiting.");
+			return false;
+		}
+		
+		return true;
+	}
+	
+	private static boolean readListBirdSightingsRequest(HashMap<String, Object> request, Scanner scanner) {
+		/*
+		 * Get bird name.
+		 */
+		System.out.print("Enter bird name (can be a regular expression): ");
+		String birdName = scanner.nextLine();
+		if(birdName.isEmpty()) {
+			System.err.println("Bird name can not be empty, exiting.");
+			return false;
+		}
+		
+		try {
+			Pattern.compile(birdName);
+		}
+		catch(PatternSyntaxException e) {
+			System.err.println("Invalid regular expression for Bird name, exiting.");
+			return false;
+		}
+		
+		request.put(Constants.BIRD_NAME, birdName);
 		
 		try {
 			/*
-			 * Get bird name.
+			 * Get start date.
 			 */
-			System.out.print("Enter bird name (can be a regular expression): ");
-			String birdName = scanner.nextLine();
-			if(birdName.isEmpty()) {
-				System.err.println("Bird name can not be empty, exiting.");
-				return;
-			}
-			
-			try {
-				Pattern.compile(birdName);
-			}
-			catch(PatternSyntaxException e) {
-				System.err.println("Invalid regular expression for Bird name, exiting.");
-				return;
-			}
-			
-			request.put(Constants.BIRD_NAME, birdName);
+			System.out.print("Enter exclusive start date (DD/MM/YY HH:MM): ");
+			String startDate = scanner.nextLine();
+			if(!validateDateAndTime(startDate))
+				throw new ParseException("", 0);
 			
-			try {
-				/*
-				 * Get start date.
-				 */
-				System.out.print("Enter exclusive start date (DD/MM/YY HH:MM): ");
-				String startDate = scanner.nextLine();
-				if(!validateDateAndTime(startDate))
-					throw new ParseException("", 0);
-				
-				request.put(Constants.START_DATE, DateFormat.getInstance().parse(startDate));
-				
-				/*
-				 * Get end date.
-				 */
-				System.out.print("Enter exclusive end date (DD/MM/YY HH:MM): ");
-				String endDate = scanner.nextLine();
-				if(!validateDateAndTime(endDate))
-					throw new ParseException("", 0);
-				
-				request.put(Constants.END_DATE, DateFormat.getInstance().parse(endDate));
-			}
-			catch(ParseException e) {
-				System.err.println("Invalid input, exiting.");
-				return;
-			}
+			request.put(Constants.START_DATE, DateFormat.getInstance().parse(startDate));
 			
 			/*
-			 * Send request.
+			 * Get end date.
 			 */
-			out.writeObject(request);
+			System.out.print("Enter exclusive end date (DD/MM/YY HH:MM): ");
+			String endDate = scanner.nextLine();
+			if(!validateDateAndTime(endDate))
+				throw new ParseException("", 0);
 			
-			/*
-			 * Wait for response.
-			 */
-			BirdSighting[] result = (BirdSighting[]) in.readObject();
-			if(result.length < 1) {
-				System.out.println("\nNo record to show");
-				return;
+			request.put(Constants.END_DATE, DateFormat.getInstance().parse(endDate));
+		}
+		catch(ParseException e) {
+			System.err.println("Invalid input, exiting.");
+			return false;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Prints a response of any request type.
+	 */
+	static void printResponse(Object response, PrintStream out) {
+		if(response instanceof Bird[])
+			printBirds((Bird[]) response, out);
+		else if(response instanceof BirdSighting[])
+			printSightings((BirdSighting[]) response, out);
+		else if(response instanceof NameMatch[])
+			printNameMatches((NameMatch[]) response, out);
+		else if(response instanceof ExportResponse)
+			out.println("Exported " + ((ExportResponse) response).getPaths().length + " file(s), " + ((ExportResponse) response).getTotalLength() + " bytes.");
+		else
+			out.print(response.toString().endsWith("\n") ? response : response + "\n");
+	}
+	
+	static void printBirds(Bird[] result, PrintStream out) {
+		if(result.length < 1) {
+			out.println("No record to show");
+			return;
+		}
+		
+		String format = "%-30.30s %-20.20s %-15.15s %-15.15s\n";
+		out.printf(format, "Name", "Color", "Weight", "Height");
+		for(Bird bird : result)
+			out.printf(format, bird.getName(), bird.getColor(), "" + bird.getWeight(), "" + bird.getHeight());
+		
+		out.println("\n");
+		out.println("Total number of records: " + result.length);
+	}
+	
+	/**
+	 * Prints the matches in the order the server ranked them.
+	 */
+	static void printNameMatches(NameMatch[] result, PrintStream out) {
+		if(result.length < 1) {
+			out.println("No record to show");
+			return;
+		}
+		
+		String format = "%-30.30s %-15.15s\n";
+		out.printf(format, "Name", "Distance");
+		for(NameMatch match : result)
+			out.printf(format, match.getName(), "" + match.getDistance());
+		
+		out.println("\n");
+		out.println("Total number of records: " + result.length);
+	}
+	
+	static void printSightings(BirdSighting[] result, PrintStream out) {
+		if(result.length < 1) {
+			out.println("\nNo record to show");
+			return;
+		}
+		
+		/*
+		 * The server sends them on name first & date second, both
+		 * descending, so they are printed as they are.
+		 */
+		String format = "%-30.30s %-40.40s\n";
+		out.printf(format, "Name", "Date");
+		for(BirdSighting birdSighting : result) {
+			String date = "";
+			try {
+				date = DateFormat.getInstance().format(birdSighting.getDate());
 			}
-			
-			/*
-			 * Sort result on following rules,
-			 * - Sort on name first.
-			 * - Sort on date second.
-			 */
-			Arrays.sort(result, new Comparator<BirdSighting>() {
-				@Override
-				public int compare(BirdSighting o1, BirdSighting o2) {
-					String n1 = o1.getName().toLowerCase();
-					String n2 = o2.getName().toLowerCase();
-					int result = n2.compareTo(n1);
-					if(result != 0)
-						return result;
-					
-					/*
-					 * If both names are equal sort on date.
-					 */
-					Date d1 = o1.getDate();
-					Date d2 = o2.getDate();
-					if(d1 == null && d2 == null)
-						return 0;
-					
-					if(d2 == null)
-						return -1;
-					
-					return d2.compareTo(d1);
-				}
-			});
-			
-			String format = "%-30.30s %-40.40s\n";
-			System.out.printf(format, "Name", "Date");
-			for(BirdSighting birdSighting : result) {
-				String date = "";
-				try {
-					date = DateFormat.getInstance().format(birdSighting.getDate());
-				}
-				catch(Exception e) {
-				}
-				
-				System.out.printf(format, birdSighting.getName(), date);
+			catch(Exception e) {
 			}
 			
-			System.out.println("\n");
-			System.out.println("Total number of records: " + result.length);
-		}
-		finally {
-			scanner.close();
+			out.printf(format, birdSighting.getName(), date);
 		}
+		
+		out.println("\n");
+		out.println("Total number of records: " + result.length);
 	}
 	
-	private static boolean validateDateAndTime(String value) {
+	static boolean validateDateAndTime(String value) {
 		if(value == null || value.isEmpty())
 			return false;
 		
@@ -0,0 +1,190 @@
+package bird.client;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+
+import bird.model.CompressedResponse;
+import bird.model.Constants;
+import bird.model.ExportResponse;
+import bird.model.SocketOptions;
+import bird.model.Transport;
+
+/**
+ * A keep alive connection to the server which is opened on first use and
+ * opened again after a failure or a rejection.
+ */
+class Connection {
+
+	/**
+	 * Times a request is sent before giving up on it, and the pause before
+	 * sending it again, doubled every time.
+	 */
+	private static final int MAX_ATTEMPTS = 5;
+	private static final long FIRST_BACKOFF = 250;
+
+	/**
+	 * Milliseconds to wait for the server to send anything before giving up
+	 * on the connection, so a stalled server does not hang the caller.
+	 */
+	private static final int READ_TIMEOUT = 60000;
+
+	/**
+	 * Requests which can be sent again after a lost response without
+	 * changing the outcome. An add sighting is recognized by the server when
+	 * it comes again, a remove, an update or an add bird would answer that
+	 * the bird or the sighting is not there anymore, or is already there.
+	 */
+	private static final String[] IDEMPOTENT_REQUESTS = { Constants.ADD_SIGHTING_REQUEST, Constants.LIST_BIRDS_REQUEST,
+			Constants.QUERY_BIRDS_REQUEST, Constants.SEARCH_NAMES_REQUEST, Constants.LIST_SIGHTINGS_REQUEST,
+			Constants.STATS_REQUEST, Constants.SUMMARY_REQUEST, Constants.CONFIG_REQUEST, Constants.EXPORT_REQUEST };
+
+	private final String host;
+	private final int port;
+
+	private final SocketOptions options;
+
+	private Transport transport;
+
+	public Connection(String host, int port, SocketOptions options) {
+		this.host = host;
+		this.port = port;
+		this.options = options;
+	}
+
+	/**
+	 * Sends the request and waits for its response.
+	 */
+	public Object send(HashMap<String, Object> request) throws IOException, ClassNotFoundException {
+		return send(request, null);
+	}
+
+	/**
+	 * Sends the request and waits for its response. The files of an export
+	 * are written below the folder. A request the server turned away is sent
+	 * again as it is after a pause, so an add sighting request keeps its
+	 * request id. One whose connection failed is sent again only if it never
+	 * left or is idempotent.
+	 */
+	public Object send(HashMap<String, Object> request, File exportFolder) throws IOException, ClassNotFoundException {
+		request.put(Constants.KEEP_ALIVE, Boolean.TRUE);
+		request.put(Constants.ACCEPT_COMPRESSION, Boolean.TRUE);
+
+		long backoff = FIRST_BACKOFF;
+		for(int attempt = 1; ; attempt++) {
+			try {
+				connect();
+			}
+			catch (IOException e) {
+				if(attempt >= MAX_ATTEMPTS)
+					throw e;
+
+				pause(backoff);
+				backoff *= 2;
+				continue;
+			}
+
+			try {
+				Object response = exchange(request, exportFolder);
+				if(!isRejection(response) || attempt >= MAX_ATTEMPTS)
+					return response;
+
+				/*
+				 * The server closes the connection after the rejection.
+				 */
+				close();
+			}
+			catch (IOException e) {
+				if(attempt >= MAX_ATTEMPTS || !isIdempotent(request))
+					throw e;
+			}
+
+			pause(backoff);
+			backoff *= 2;
+		}
+	}
+
+	/**
+	 * Sends quit without waiting, the server closes the connection instead
+	 * of answering it.
+	 */
+	public void quit(HashMap<String, Object> request) throws IOException {
+		try {
+			connect();
+			transport.send(request);
+		}
+		finally {
+			close();
+		}
+	}
+
+	private void connect() throws IOException {
+		if(transport != null)
+			return;
+
+		transport = Transport.connect(host, port, options);
+		try {
+			transport.getSocket().setSoTimeout(READ_TIMEOUT);
+		}
+		catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	private static void pause(long backoff) throws InterruptedIOException {
+
+		try {
+			Thread.sleep(backoff);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting to send the request again.");
+		}
+	}
+
+	private Object exchange(HashMap<String, Object> request, File exportFolder) throws IOException, ClassNotFoundException {
+		try {
+			transport.send(request);
+			Object response = CompressedResponse.decompress(transport.receive());
+			if(response instanceof ExportResponse) {
+				if(exportFolder == null)
+					throw new IOException("No folder to export to.");
+
+				((ExportResponse) response).receive(transport.getInputStream(), exportFolder);
+			}
+
+			return response;
+		}
+		catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns true if the server turned the request away without running
+	 * it.
+	 */
+	static boolean isRejection(Object response) {
+		return Constants.RATE_LIMITED_RESPONSE.equals(response) || Constants.BUSY_RESPONSE.equals(response)
+				|| Constants.SHUTTING_DOWN_RESPONSE.equals(response);
+	}
+
+	private static boolean isIdempotent(HashMap<String, Object> request) {
+		Object requestType = request.get(Constants.REQUEST_TYPE);
+		for(String idempotent : IDEMPOTENT_REQUESTS) {
+			if(idempotent.equals(requestType))
+				return true;
+		}
+
+		return false;
+	}
+
+	public void close() {
+		if(transport != null)
+			transport.close();
+
+		transport = null;
+	}
+}
@@ -1,6 +1,8 @@
 package bird.model;
 import java.io.Serializable;
+import java.util.Collection;
 import java.util.Date;
+import java.util.List;
 import java.util.Vector;
 
 /**
@@ -44,11 +46,169 @@ public class Bird implements Serializable {
 		return height;
 	}
 
+	/**
+	 * Adds a sighting keeping the sightings ordered on date. Sightings without
+	 * a date are kept at the start.
+	 */
 	public void addSighting(String location, Date date) {
-		sightings.add(new BirdSighting(name, location, date));
+		BirdSighting sighting = new BirdSighting(name, location, date);
+		synchronized (sightings) {
+			sightings.add(upperBound(date), sighting);
+		}
+	}
+	
+	/**
+	 * Adds sightings which are already ordered on date. They are appended in
+	 * one go if none of them is before the present ones.
+	 */
+	public void addSightings(List<BirdSighting> sorted) {
+		if(sorted.isEmpty())
+			return;
+		
+		synchronized (sightings) {
+			if(sightings.isEmpty() || compare(sightings.lastElement().getDate(), sorted.get(0).getDate()) <= 0) {
+				sightings.addAll(sorted);
+				return;
+			}
+			
+			for(BirdSighting sighting : sorted)
+				sightings.add(upperBound(sighting.getDate()), sighting);
+		}
 	}
 	
 	public BirdSighting[] getSightings() {
 		return sightings.toArray(new BirdSighting[0]);
 	}
+	
+	/**
+	 * Returns the number of sightings between the two exclusive dates.
+	 */
+	public int countSightings(Date startDate, Date endDate) {
+		synchronized (sightings) {
+			return Math.max(0, lowerBound(endDate) - upperBound(startDate));
+		}
+	}
+	
+	/**
+	 * Adds the sightings between the two exclusive dates to the result, in
+	 * date order, without copying the others.
+	 */
+	public void collectSightings(Date startDate, Date endDate, Collection<BirdSighting> result) {
+		synchronized (sightings) {
+			int to = lowerBound(endDate);
+			for(int i = upperBound(startDate); i < to; i++)
+				result.add(sightings.get(i));
+		}
+	}
+	
+	/**
+	 * Removes and returns the dated sightings which are before the given
+	 * date.
+	 */
+	public BirdSighting[] removeSightingsBefore(Date date) {
+		synchronized (sightings) {
+			int from = upperBound(null);
+			int to = lowerBound(date);
+			if(to <= from)
+				return new BirdSighting[0];
+			
+			BirdSighting[] removed = sightings.subList(from, to).toArray(new BirdSighting[0]);
+			sightings.subList(from, to).clear();
+			return removed;
+		}
+	}
+	
+	/**
+	 * Removes and returns the sightings between the two exclusive dates.
+	 */
+	public BirdSighting[] removeSightings(Date startDate, Date endDate) {
+		synchronized (sightings) {
+			int from = upperBound(startDate);
+			int to = lowerBound(endDate);
+			if(to <= from)
+				return new BirdSighting[0];
+			
+			BirdSighting[] removed = sightings.subList(from, to).toArray(new BirdSighting[0]);
+			sightings.subList(from, to).clear();
+			return removed;
+		}
+	}
+	
+	/**
+	 * Removes and returns a sighting at the location on the date, null if
+	 * there is none.
+	 */
+	public BirdSighting removeSighting(String location, Date date) {
+		synchronized (sightings) {
+			int to = upperBound(date);
+			for(int i = lowerBound(date); i < to; i++) {
+				BirdSighting sighting = sightings.get(i);
+				if(location == null ? sighting.getLocation() == null : location.equals(sighting.getLocation()))
+					return sightings.remove(i);
+			}
+			
+			return null;
+		}
+	}
+	
+	/**
+	 * Removes and returns the oldest sightings, undated ones first, so that
+	 * at most the given number are left.
+	 */
+	public BirdSighting[] removeOldestSightings(int keep) {
+		synchronized (sightings) {
+			int to = sightings.size() - keep;
+			if(to <= 0)
+				return new BirdSighting[0];
+			
+			BirdSighting[] removed = sightings.subList(0, to).toArray(new BirdSighting[0]);
+			sightings.subList(0, to).clear();
+			return removed;
+		}
+	}
+	
+	/**
+	 * Returns the index of the first sighting which is not before the given
+	 * date.
+	 */
+	private int lowerBound(Date date) {
+		int low = 0;
+		int high = sightings.size();
+		while(low < high) {
+			int mid = (low + high) >>> 1;
+			if(compare(sightings.get(mid).getDate(), date) < 0)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		
+		return low;
+	}
+	
+	/**
+	 * Returns the index of the first sighting which is after the given date.
+	 */
+	private int upperBound(Date date) {
+		int low = 0;
+		int high = sightings.size();
+		while(low < high) {
+			int mid = (low + high) >>> 1;
+			if(compare(sightings.get(mid).getDate(), date) <= 0)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		
+		return low;
+	}
+	
+	private static int compare(Date d1, Date d2) {
+		if(d1 == null)
+			return d2 == null ? 0 : -1;
+		
+		if(d2 == null)
+			return 1;
+		
+		return d1.compareTo(d2);
+	}
 }
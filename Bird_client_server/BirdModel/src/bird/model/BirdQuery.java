@@ -0,0 +1,134 @@
+package bird.model;
+import java.io.Serializable;
+import java.util.Locale;
+
+/**
+ * Filter on the bird attributes, sent with
+ * {@link Constants#QUERY_BIRDS_REQUEST}. A query is either a single
+ * predicate, color equals or weight / height within a range, or the AND / OR
+ * of other queries e.g.
+ *
+ *   BirdQuery.and(BirdQuery.color("red"), BirdQuery.or(BirdQuery.weight(0, 1), BirdQuery.height(2, 3)))
+ *
+ * Colors are compared ignoring case, ranges include both ends.
+ *
+ * @author muaz
+ *
+ */
+public class BirdQuery implements Serializable {
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = 4470365126935101948L;
+
+	public enum Type { COLOR, WEIGHT, HEIGHT, AND, OR }
+
+	private Type type;
+	private String color;
+	private float min;
+	private float max;
+	private BirdQuery[] children;
+
+	private BirdQuery(Type type, String color, float min, float max, BirdQuery[] children) {
+		this.type = type;
+		this.color = color;
+		this.min = min;
+		this.max = max;
+		this.children = children;
+	}
+
+	public static BirdQuery color(String color) {
+		return new BirdQuery(Type.COLOR, color == null ? "" : color, 0, 0, null);
+	}
+
+	public static BirdQuery weight(float min, float max) {
+		return new BirdQuery(Type.WEIGHT, null, min, max, null);
+	}
+
+	public static BirdQuery height(float min, float max) {
+		return new BirdQuery(Type.HEIGHT, null, min, max, null);
+	}
+
+	/**
+	 * Matches the birds matching all of the queries, every bird if there is
+	 * none.
+	 */
+	public static BirdQuery and(BirdQuery... queries) {
+		return new BirdQuery(Type.AND, null, 0, 0, queries.clone());
+	}
+
+	/**
+	 * Matches the birds matching any of the queries, no bird if there is
+	 * none.
+	 */
+	public static BirdQuery or(BirdQuery... queries) {
+		return new BirdQuery(Type.OR, null, 0, 0, queries.clone());
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public String getColor() {
+		return color;
+	}
+
+	public float getMin() {
+		return min;
+	}
+
+	public float getMax() {
+		return max;
+	}
+
+	public BirdQuery[] getChildren() {
+		return children;
+	}
+
+	/**
+	 * Returns true if the bird matches, without any index.
+	 */
+	public boolean matches(Bird bird) {
+		switch(type) {
+		case COLOR:
+			return color.toLowerCase(Locale.ROOT).equals(bird.getColor().toLowerCase(Locale.ROOT));
+		case WEIGHT:
+			return bird.getWeight() >= min && bird.getWeight() <= max;
+		case HEIGHT:
+			return bird.getHeight() >= min && bird.getHeight() <= max;
+		case AND:
+			for(BirdQuery child : children) {
+				if(!child.matches(bird))
+					return false;
+			}
+			return true;
+		default:
+			for(BirdQuery child : children) {
+				if(child.matches(bird))
+					return true;
+			}
+			return false;
+		}
+	}
+
+	@Override
+	public String toString() {
+		switch(type) {
+		case COLOR:
+			return "color = " + color;
+		case WEIGHT:
+			return "weight in [" + min + ", " + max + "]";
+		case HEIGHT:
+			return "height in [" + min + ", " + max + "]";
+		default:
+			StringBuilder builder = new StringBuilder("(");
+			for(int i = 0; i < children.length; i++) {
+				if(i > 0)
+					builder.append(type == Type.AND ? " and " : " or ");
+
+				builder.append(children[i]);
+			}
+			return builder.append(')').toString();
+		}
+	}
+}
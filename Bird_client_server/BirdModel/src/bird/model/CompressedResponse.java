@@ -0,0 +1,83 @@
+package bird.model;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * A serialized response compressed with a Deflater. The server only sends it
+ * to clients which set {@link Constants#ACCEPT_COMPRESSION} in the request,
+ * and only for responses large enough to be worth it.
+ *
+ * @author muaz
+ *
+ */
+public class CompressedResponse implements Serializable {
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = 2380712263495216931L;
+
+	private byte[] data;
+	private int length;
+
+	/**
+	 * @param data compressed bytes.
+	 * @param length length of the uncompressed bytes.
+	 */
+	public CompressedResponse(byte[] data, int length) {
+		this.data = data;
+		this.length = length;
+	}
+
+	public byte[] getData() {
+		return data;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * Returns the response within a compressed response, any other response
+	 * is returned as it is.
+	 */
+	public static Object decompress(Object response) throws IOException, ClassNotFoundException {
+		if(!(response instanceof CompressedResponse))
+			return response;
+
+		CompressedResponse compressed = (CompressedResponse) response;
+		byte[] bytes = new byte[compressed.length];
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(compressed.data);
+			int count = 0;
+			while(count < bytes.length) {
+				int inflated = inflater.inflate(bytes, count, bytes.length - count);
+				if(inflated == 0 && (inflater.finished() || inflater.needsInput()))
+					break;
+
+				count += inflated;
+			}
+
+			if(count != bytes.length)
+				throw new IOException("Corrupt compressed response.");
+		}
+		catch (DataFormatException e) {
+			throw new IOException("Corrupt compressed response.", e);
+		}
+		finally {
+			inflater.end();
+		}
+
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+		try {
+			return in.readObject();
+		}
+		finally {
+			in.close();
+		}
+	}
+}
@@ -2,21 +2,84 @@ package bird.model;
 
 public interface Constants {
 	public static final String REQUEST_TYPE = "request_type";
+	/**
+	 * If true, the server keeps the connection open for the next request.
+	 */
+	public static final String KEEP_ALIVE = "keep_alive";
+	/**
+	 * If true, large responses may be sent as a CompressedResponse.
+	 */
+	public static final String ACCEPT_COMPRESSION = "accept_compression";
 	
 	public static final String ADD_BIRD_REQUEST = "-addbird";
 	public static final String ADD_SIGHTING_REQUEST = "-addsighting";
 	public static final String LIST_BIRDS_REQUEST = "-listbirds";
+	public static final String QUERY_BIRDS_REQUEST = "-querybirds";
+	public static final String SEARCH_NAMES_REQUEST = "-searchnames";
 	public static final String LIST_SIGHTINGS_REQUEST = "-listsightings";
 	public static final String REMOVE_REQUEST = "-remove";
+	public static final String DELETE_SIGHTINGS_REQUEST = "-deletesightings";
+	public static final String UPDATE_SIGHTING_REQUEST = "-updatesighting";
+	public static final String STATS_REQUEST = "-stats";
+	public static final String SUMMARY_REQUEST = "-summary";
+	public static final String CONFIG_REQUEST = "-config";
+	public static final String EXPORT_REQUEST = "-export";
+	public static final String CREATE_DATASET_REQUEST = "-createdataset";
 	public static final String QUIT_REQUEST = "-quit";
 	
 	public static final String BIRD_NAME = "bird_name";
 	public static final String BIRD_COLOR = "bird_color";
 	public static final String BIRD_WEIGHT = "bird_weight";
 	public static final String BIRD_HEIGHT = "bird_height";
+	/**
+	 * A BirdQuery, for the query birds request.
+	 */
+	public static final String BIRD_QUERY = "bird_query";
+	/**
+	 * Most edits a name found by the search names request may be away from
+	 * the text, an Integer.
+	 */
+	public static final String MAX_DISTANCE = "max_distance";
+	/**
+	 * Most names the search names request, or entries per list the summary
+	 * request, returns, an Integer.
+	 */
+	public static final String MAX_RESULTS = "max_results";
+	/**
+	 * Number of days up to today the summary request covers, an Integer.
+	 */
+	public static final String DAYS = "days";
 	
 	public static final String BIRD_SIGHTING_LOCATION = "bird_sighting_location";
 	public static final String BIRD_SIGHTING_DATE = "bird_sighting_date";
+	/**
+	 * Optional key of an add sighting request. Sending it again with the
+	 * same key, e.g. after a failure, adds the sighting only once.
+	 */
+	public static final String REQUEST_ID = "request_id";
+	
+	/**
+	 * New location & date of the sighting, for the update sighting request.
+	 * A missing value keeps the present one.
+	 */
+	public static final String NEW_LOCATION = "new_location";
+	public static final String NEW_DATE = "new_date";
+	
+	/**
+	 * Optional name of the dataset a request is about. Without it the
+	 * request is about the default dataset. A dataset is only created by a
+	 * create dataset request naming it.
+	 */
+	public static final String DATASET = "dataset";
+	
+	/**
+	 * Responses to a request the server turned away without running it.
+	 * The connection is closed after them, and the request may be sent
+	 * again a little later.
+	 */
+	public static final String RATE_LIMITED_RESPONSE = "Too many requests, please slow down.";
+	public static final String BUSY_RESPONSE = "Server is busy, please try again later.";
+	public static final String SHUTTING_DOWN_RESPONSE = "Server is shutting down.";
 	
 	public static final String START_DATE = "start_date";
 	public static final String END_DATE = "end_date";
@@ -0,0 +1,112 @@
+package bird.model;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+
+/**
+ * Lists the files of an export. The raw bytes of the files follow it on the
+ * connection, in the same order, and must be read with
+ * {@link #receive(InputStream, File)} before the next response.
+ *
+ * @author muaz
+ *
+ */
+public class ExportResponse implements Serializable {
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = -6205186402538823815L;
+
+	private String[] paths;
+	private long[] lengths;
+
+	/**
+	 * @param paths file paths relative to the server data folder, separated
+	 *            by '/'.
+	 * @param lengths file lengths in bytes.
+	 */
+	public ExportResponse(String[] paths, long[] lengths) {
+		this.paths = paths;
+		this.lengths = lengths;
+	}
+
+	public String[] getPaths() {
+		return paths;
+	}
+
+	public long[] getLengths() {
+		return lengths;
+	}
+
+	public long getTotalLength() {
+		long total = 0;
+		for(long length : lengths)
+			total += length;
+
+		return total;
+	}
+
+	/**
+	 * Reads the bytes of the files from the connection and writes them below
+	 * the folder. The stream must be the buffered stream the response was
+	 * read from, {@link Transport#getInputStream()}, since it may already
+	 * hold the first bytes of the files.
+	 *
+	 * A path which is absolute, goes up with '..' or does not resolve to a
+	 * file below the folder is refused before anything is written.
+	 */
+	public void receive(InputStream in, File folder) throws IOException {
+		File[] files = resolve(folder);
+		byte[] buffer = new byte[65536];
+		for(int i = 0; i < files.length; i++) {
+			File file = files[i];
+			File parent = file.getParentFile();
+			if(!parent.exists() && !parent.mkdirs())
+				throw new IOException("Unable to create " + parent.getAbsolutePath() + ".");
+
+			FileOutputStream out = new FileOutputStream(file);
+			try {
+				long remaining = lengths[i];
+				while(remaining > 0) {
+					int count = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+					if(count < 0)
+						throw new IOException("Connection closed during export.");
+
+					out.write(buffer, 0, count);
+					remaining -= count;
+				}
+			}
+			finally {
+				out.close();
+			}
+		}
+	}
+
+	private File[] resolve(File folder) throws IOException {
+		if(paths.length != lengths.length)
+			throw new IOException("Export lists " + paths.length + " files with " + lengths.length + " lengths.");
+
+		String root = folder.getCanonicalPath() + File.separator;
+		File[] files = new File[paths.length];
+		for(int i = 0; i < paths.length; i++) {
+			String path = paths[i];
+			if(path == null || path.isEmpty() || path.startsWith("/") || path.indexOf('\\') >= 0 || new File(path).isAbsolute())
+				throw new IOException("Export file '" + path + "' is not a relative path.");
+
+			for(String name : path.split("/")) {
+				if(name.equals(".."))
+					throw new IOException("Export file '" + path + "' is outside the folder.");
+			}
+
+			File file = new File(folder, path.replace('/', File.separatorChar)).getCanonicalFile();
+			if(!file.getPath().startsWith(root))
+				throw new IOException("Export file '" + path + "' is outside the folder.");
+
+			files[i] = file;
+		}
+
+		return files;
+	}
+}
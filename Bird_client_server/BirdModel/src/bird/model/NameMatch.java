@@ -0,0 +1,38 @@
+package bird.model;
+import java.io.Serializable;
+
+/**
+ * A bird name found by {@link Constants#SEARCH_NAMES_REQUEST}, with the
+ * number of edits between the searched text and the closest part of the
+ * name. Zero means the name contains the text, ignoring case.
+ *
+ * @author muaz
+ *
+ */
+public class NameMatch implements Serializable {
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = -2750918733451562907L;
+
+	private String name;
+	private int distance;
+
+	public NameMatch(String name, int distance) {
+		this.name = name;
+		this.distance = distance;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getDistance() {
+		return distance;
+	}
+
+	@Override
+	public String toString() {
+		return name + " (" + distance + ")";
+	}
+}
@@ -0,0 +1,94 @@
+package bird.model;
+import java.io.Serializable;
+
+/**
+ * Approximate figures on the sightings of the last days, answered by
+ * {@link Constants#SUMMARY_REQUEST} from sketches kept on the server rather
+ * than from the sightings themselves. Counts may be somewhat over the true
+ * ones, the number of distinct locations is an estimate within a few
+ * percent.
+ *
+ * @author muaz
+ *
+ */
+public class SightingSummary implements Serializable {
+	/**
+	 *
+	 */
+	private static final long serialVersionUID = 3114580462370271846L;
+
+	private int days;
+	private String birdName;
+	private long distinctLocations;
+	private String[] topBirds;
+	private long[] topBirdCounts;
+	private String[] topLocations;
+	private long[] topLocationCounts;
+
+	/**
+	 * @param birdName the bird the distinct locations are of, or null if
+	 *            none was asked for.
+	 */
+	public SightingSummary(int days, String birdName, long distinctLocations, String[] topBirds, long[] topBirdCounts,
+			String[] topLocations, long[] topLocationCounts) {
+		this.days = days;
+		this.birdName = birdName;
+		this.distinctLocations = distinctLocations;
+		this.topBirds = topBirds;
+		this.topBirdCounts = topBirdCounts;
+		this.topLocations = topLocations;
+		this.topLocationCounts = topLocationCounts;
+	}
+
+	public int getDays() {
+		return days;
+	}
+
+	public String getBirdName() {
+		return birdName;
+	}
+
+	public long getDistinctLocations() {
+		return distinctLocations;
+	}
+
+	/**
+	 * Most sighted birds, most sighted first.
+	 */
+	public String[] getTopBirds() {
+		return topBirds;
+	}
+
+	public long[] getTopBirdCounts() {
+		return topBirdCounts;
+	}
+
+	/**
+	 * Locations with the most sightings, most first.
+	 */
+	public String[] getTopLocations() {
+		return topLocations;
+	}
+
+	public long[] getTopLocationCounts() {
+		return topLocationCounts;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("Sightings of the last ").append(days).append(" day(s), approximately\n");
+		if(birdName != null)
+			builder.append("Distinct locations of '").append(birdName).append("': ").append(distinctLocations).append('\n');
+
+		builder.append("Top birds:\n");
+		for(int i = 0; i < topBirds.length; i++)
+			builder.append(String.format("  %-30.30s %d\n", topBirds[i], topBirdCounts[i]));
+
+		builder.append("Top locations:\n");
+		for(int i = 0; i < topLocations.length; i++)
+			builder.append(String.format("  %-30.30s %d\n", topLocations[i], topLocationCounts[i]));
+
+		return builder.toString();
+	}
+}
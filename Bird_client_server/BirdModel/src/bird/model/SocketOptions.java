@@ -0,0 +1,90 @@
+package bird.model;
+import java.net.Socket;
+import java.net.SocketException;
+
+/**
+ * Socket settings used by both the server and the clients.
+ *
+ * Nagle's algorithm is off by default, since every request and response is
+ * flushed as a whole and waiting for more bytes only adds latency. Buffer
+ * sizes of 0 are left to the system.
+ *
+ * @author muaz
+ *
+ */
+public class SocketOptions {
+
+	public static final int DEFAULT_STREAM_BUFFER = 65536;
+
+	private boolean tcpNoDelay = true;
+	private boolean keepAlive = true;
+	private int sendBuffer;
+	private int receiveBuffer;
+	private int streamBuffer = DEFAULT_STREAM_BUFFER;
+
+	public boolean isTcpNoDelay() {
+		return tcpNoDelay;
+	}
+
+	public SocketOptions setTcpNoDelay(boolean tcpNoDelay) {
+		this.tcpNoDelay = tcpNoDelay;
+		return this;
+	}
+
+	public boolean isKeepAlive() {
+		return keepAlive;
+	}
+
+	/**
+	 * Lets the system find out about peers which have gone away without
+	 * closing the connection.
+	 */
+	public SocketOptions setKeepAlive(boolean keepAlive) {
+		this.keepAlive = keepAlive;
+		return this;
+	}
+
+	public int getSendBuffer() {
+		return sendBuffer;
+	}
+
+	public SocketOptions setSendBuffer(int sendBuffer) {
+		this.sendBuffer = sendBuffer;
+		return this;
+	}
+
+	public int getReceiveBuffer() {
+		return receiveBuffer;
+	}
+
+	/**
+	 * A receive buffer above 64K has to be set before connecting, or on the
+	 * server socket before binding, to take effect.
+	 */
+	public SocketOptions setReceiveBuffer(int receiveBuffer) {
+		this.receiveBuffer = receiveBuffer;
+		return this;
+	}
+
+	public int getStreamBuffer() {
+		return streamBuffer;
+	}
+
+	/**
+	 * Size of the buffers between the object streams and the socket.
+	 */
+	public SocketOptions setStreamBuffer(int streamBuffer) {
+		this.streamBuffer = streamBuffer;
+		return this;
+	}
+
+	public void apply(Socket socket) throws SocketException {
+		socket.setTcpNoDelay(tcpNoDelay);
+		socket.setKeepAlive(keepAlive);
+		if(sendBuffer > 0)
+			socket.setSendBufferSize(sendBuffer);
+
+		if(receiveBuffer > 0)
+			socket.setReceiveBufferSize(receiveBuffer);
+	}
+}
@@ -0,0 +1,243 @@
+package bird.model;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Object streams over a socket, shared by the server and the clients.
+ *
+ * The streams are buffered, so a request or response goes out in as few
+ * packets as possible, and only reaches the socket on {@link #flush()}. Raw
+ * bytes following a response, like the files of an export, must be read from
+ * {@link #getInputStream()} since the buffer may already hold some of them.
+ *
+ * Bytes are counted on the socket side of the buffers, per connection and in
+ * the shared counters given.
+ *
+ * @author muaz
+ *
+ */
+public class Transport {
+
+	private final Socket socket;
+	private final Counters counters;
+	private final AtomicLong bytesRead = new AtomicLong();
+	private final AtomicLong bytesWritten = new AtomicLong();
+	private final InputStream in;
+	private final OutputStream out;
+	private ObjectInputStream objectIn;
+	private ObjectOutputStream objectOut;
+
+	/**
+	 * Applies the options to a connected socket. The counters may be null.
+	 */
+	public Transport(Socket socket, SocketOptions options, Counters counters) throws IOException {
+		this.socket = socket;
+		this.counters = counters;
+		if(counters != null)
+			counters.connections.incrementAndGet();
+
+		options.apply(socket);
+		this.in = new BufferedInputStream(new CountingInputStream(socket.getInputStream()), options.getStreamBuffer());
+		this.out = new BufferedOutputStream(new CountingOutputStream(socket.getOutputStream()), options.getStreamBuffer());
+	}
+
+	/**
+	 * Connects to the server with the options set before connecting, and
+	 * opens the object streams.
+	 */
+	public static Transport connect(String host, int port, SocketOptions options) throws IOException {
+		Socket socket = new Socket();
+		try {
+			if(options.getReceiveBuffer() > 0)
+				socket.setReceiveBufferSize(options.getReceiveBuffer());
+
+			socket.connect(new InetSocketAddress(host, port));
+			Transport transport = new Transport(socket, options, null);
+			transport.open();
+			return transport;
+		}
+		catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Exchanges the stream headers. The header is flushed first, otherwise
+	 * both sides would wait for the other one's.
+	 */
+	public void open() throws IOException {
+		if(objectOut != null)
+			return;
+
+		objectOut = new ObjectOutputStream(out);
+		objectOut.flush();
+		objectIn = new ObjectInputStream(in);
+	}
+
+	public boolean isOpen() {
+		return objectOut != null;
+	}
+
+	public Socket getSocket() {
+		return socket;
+	}
+
+	public ObjectOutputStream getObjectOutputStream() {
+		return objectOut;
+	}
+
+	public ObjectInputStream getObjectInputStream() {
+		return objectIn;
+	}
+
+	/**
+	 * The buffered stream under the object input stream.
+	 */
+	public InputStream getInputStream() {
+		return in;
+	}
+
+	/**
+	 * Writes the object and sends it right away.
+	 */
+	public void send(Object object) throws IOException {
+		objectOut.writeObject(object);
+		flush();
+	}
+
+	public Object receive() throws IOException, ClassNotFoundException {
+		return objectIn.readObject();
+	}
+
+	/**
+	 * Sends everything written so far and forgets the written objects, so
+	 * the stream does not hold on to every object of a long lived
+	 * connection.
+	 */
+	public void flush() throws IOException {
+		objectOut.flush();
+		objectOut.reset();
+	}
+
+	/**
+	 * Counts bytes written around the streams, e.g. straight from a file
+	 * channel.
+	 */
+	public void countWritten(long count) {
+		bytesWritten.addAndGet(count);
+		if(counters != null)
+			counters.bytesWritten.addAndGet(count);
+	}
+
+	public long getBytesRead() {
+		return bytesRead.get();
+	}
+
+	public long getBytesWritten() {
+		return bytesWritten.get();
+	}
+
+	public void close() {
+		try {
+			if(objectOut != null)
+				objectOut.close();
+		}
+		catch (IOException e) {
+		}
+
+		try {
+			socket.close();
+		}
+		catch (IOException e) {
+		}
+	}
+
+	private void countRead(long count) {
+		bytesRead.addAndGet(count);
+		if(counters != null)
+			counters.bytesRead.addAndGet(count);
+	}
+
+	/**
+	 * Totals of all the connections sharing them.
+	 */
+	public static class Counters {
+		private final AtomicLong connections = new AtomicLong();
+		private final AtomicLong bytesRead = new AtomicLong();
+		private final AtomicLong bytesWritten = new AtomicLong();
+
+		public long getConnections() {
+			return connections.get();
+		}
+
+		public long getBytesRead() {
+			return bytesRead.get();
+		}
+
+		public long getBytesWritten() {
+			return bytesWritten.get();
+		}
+	}
+
+	private class CountingInputStream extends FilterInputStream {
+
+		public CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			if(b >= 0)
+				countRead(1);
+
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = in.read(b, off, len);
+			if(n > 0)
+				countRead(n);
+
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = in.skip(n);
+			countRead(skipped);
+			return skipped;
+		}
+	}
+
+	private class CountingOutputStream extends FilterOutputStream {
+
+		public CountingOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			countWritten(1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+			countWritten(len);
+		}
+	}
+}
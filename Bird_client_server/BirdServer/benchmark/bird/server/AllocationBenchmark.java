@@ -0,0 +1,371 @@
+package bird.server;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.Date;
+import java.util.HashMap;
+
+import bird.model.BirdQuery;
+import bird.model.Constants;
+
+/**
+ * Measures the bytes each request handler allocates, on a dataset of
+ * generated birds and sightings in a temporary folder. Every request type is
+ * run first to warm up, checking its responses, then measured with the
+ * thread's allocation counter, including writing the response. Exits with an
+ * error if a request type allocates more than its budget, so it can be run
+ * as a check after changing the request path:
+ *
+ * BirdServer/benchmark/run-allocation-check.sh [-iterations 500]
+ *
+ * It is kept out of the server sources, in a folder of its own which is not
+ * part of the server build output.
+ *
+ * The budgets are for the generated dataset, about a quarter above what
+ * the requests allocate, so a change adding an object or two per bird or
+ * sighting on a path shows. The listings are mostly the serialization of the birds and
+ * sightings they return. The list sightings request is measured without the
+ * cache, since a cached result allocates nothing. Stats, config, export and
+ * quit requests are not dataset requests and are left out.
+ */
+public class AllocationBenchmark {
+
+	private static final String ITERATIONS_SWITCH = "-iterations";
+	private static final int DEFAULT_ITERATIONS = 500;
+
+	private static final int BIRDS = 1000;
+	private static final int SIGHTINGS = 20;
+	private static final String[] COLORS = { "red", "blue", "green", "black", "white" };
+	private static final long DAY = 86400000L;
+	private static final long SECOND = 1000L;
+
+	private final Dataset dataset;
+	private final Deadline deadline = new Deadline(DAY);
+	private final ResponseCompressor compressor = new ResponseCompressor(0);
+	private final com.sun.management.ThreadMXBean threads;
+	private final long base = System.currentTimeMillis() / DAY * DAY - 400 * DAY;
+
+	private AllocationBenchmark(File folder, com.sun.management.ThreadMXBean threads) {
+		this.threads = threads;
+		this.dataset = new Dataset("", new ServerConfig(), folder, new Lifecycle(), new SightingsCache(0, 0),
+				new SightingDeduplicator(600000, 100000), new IoThrottle(0));
+	}
+
+	public static void main(String[] args) {
+		int iterations = DEFAULT_ITERATIONS;
+		for(int i = 0; i < args.length; i++) {
+			try {
+				if(ITERATIONS_SWITCH.equals(args[i]))
+					iterations = Integer.parseInt(args[++i]);
+				else
+					System.err.println("Not a valid option, ignoring...");
+			}
+			catch(RuntimeException e) {
+				System.err.println(ITERATIONS_SWITCH + " does not has a valid value, using " + DEFAULT_ITERATIONS + ".");
+			}
+		}
+
+		if(iterations < 1)
+			iterations = DEFAULT_ITERATIONS;
+
+		if(!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)
+				|| !((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).isThreadAllocatedMemorySupported()) {
+			System.err.println("This JVM does not count allocated bytes per thread, exiting.");
+			System.exit(-1);
+		}
+
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		threads.setThreadAllocatedMemoryEnabled(true);
+
+		File folder = null;
+		int failures = 0;
+		try {
+			folder = Files.createTempDirectory("bird-benchmark").toFile();
+			AllocationBenchmark benchmark = new AllocationBenchmark(folder, threads);
+			if(!benchmark.dataset.createModel())
+				System.exit(-1);
+
+			benchmark.fill();
+			for(Case c : benchmark.cases())
+				failures += benchmark.measure(c, iterations) ? 0 : 1;
+		}
+		catch(Exception e) {
+			System.err.println("Benchmark failed: " + e);
+			failures++;
+		}
+		finally {
+			if(folder != null)
+				delete(folder);
+		}
+
+		System.exit(failures == 0 ? 0 : 1);
+	}
+
+	/**
+	 * Adds the birds and their sightings through the handlers.
+	 */
+	private void fill() throws IOException {
+		ObjectOutputStream out = new ObjectOutputStream(new DiscardOutputStream());
+		for(int i = 0; i < BIRDS; i++) {
+			dataset.processAddBirdRequest(addBird("bird " + i, i), out);
+			for(int j = 0; j < SIGHTINGS; j++) {
+				HashMap<String, Object> request = newRequest(Constants.ADD_SIGHTING_REQUEST);
+				request.put(Constants.BIRD_NAME, "bird " + i);
+				request.put(Constants.BIRD_SIGHTING_LOCATION, "location " + (i + j) % 50);
+				request.put(Constants.BIRD_SIGHTING_DATE, new Date(base + (j * 15 + i % 15) * DAY));
+				dataset.processAddBirdSightingRequest(request, out);
+			}
+
+			out.reset();
+		}
+	}
+
+	/**
+	 * Runs the first iterations of the case checking the responses, then
+	 * measures the others. Returns false if it went over its budget or a
+	 * response was not the expected one.
+	 */
+	private boolean measure(Case c, int iterations) throws IOException {
+		for(int i = 0; i < iterations; i++) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			perform(c.request(i), out);
+			out.close();
+
+			Object response;
+			try {
+				response = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())).readObject();
+			}
+			catch(ClassNotFoundException e) {
+				throw new IOException(e);
+			}
+
+			if(!c.accepts(response)) {
+				System.err.println(c.type + " answered '" + response + "', can not measure it.");
+				return false;
+			}
+		}
+
+		/*
+		 * Requests are made before measuring, the server reads them from the
+		 * client.
+		 */
+		HashMap<?, ?>[] requests = new HashMap<?, ?>[iterations];
+		for(int i = 0; i < iterations; i++)
+			requests[i] = c.request(iterations + i);
+
+		ObjectOutputStream out = new ObjectOutputStream(new DiscardOutputStream());
+		long thread = Thread.currentThread().getId();
+		long time = System.nanoTime();
+		long allocated = threads.getThreadAllocatedBytes(thread);
+		for(HashMap<?, ?> request : requests) {
+			perform(request, out);
+			out.reset();
+		}
+
+		long perRequest = (threads.getThreadAllocatedBytes(thread) - allocated) / iterations;
+		time = (System.nanoTime() - time) / iterations;
+
+		boolean passed = perRequest <= c.budget;
+		System.out.println(String.format("%-18s %10d bytes/request (budget %d) %10d ns/request %s", c.type, perRequest, c.budget, time,
+				passed ? "" : "OVER BUDGET"));
+		return passed;
+	}
+
+	@SuppressWarnings("unchecked")
+	private void perform(HashMap<?, ?> raw, ObjectOutputStream out) throws IOException {
+		HashMap<String, Object> request = (HashMap<String, Object>) raw;
+		Object requestValue = request.get(Constants.REQUEST_TYPE);
+		if(Constants.ADD_BIRD_REQUEST.equals(requestValue))
+			dataset.processAddBirdRequest(request, out);
+		else if(Constants.ADD_SIGHTING_REQUEST.equals(requestValue))
+			dataset.processAddBirdSightingRequest(request, out);
+		else if(Constants.LIST_BIRDS_REQUEST.equals(requestValue))
+			dataset.processListBirdsRequest(request, out, compressor);
+		else if(Constants.QUERY_BIRDS_REQUEST.equals(requestValue))
+			dataset.processQueryBirdsRequest(request, out, compressor);
+		else if(Constants.SEARCH_NAMES_REQUEST.equals(requestValue))
+			dataset.processSearchNamesRequest(request, out, deadline);
+		else if(Constants.LIST_SIGHTINGS_REQUEST.equals(requestValue))
+			dataset.processListBirdsSightingsRequest(request, out, deadline, compressor);
+		else if(Constants.REMOVE_REQUEST.equals(requestValue))
+			dataset.processRemoveRequest(request, out);
+		else if(Constants.DELETE_SIGHTINGS_REQUEST.equals(requestValue))
+			dataset.processDeleteSightingsRequest(request, out);
+		else if(Constants.UPDATE_SIGHTING_REQUEST.equals(requestValue))
+			dataset.processUpdateSightingRequest(request, out);
+		else if(Constants.SUMMARY_REQUEST.equals(requestValue))
+			dataset.processSummaryRequest(request, out);
+	}
+
+	/**
+	 * The request types in the order they run. The sightings added to the
+	 * first bird are updated, then deleted, and the birds added are removed,
+	 * so the dataset is the same after them.
+	 */
+	private Case[] cases() {
+		return new Case[] {
+			new Case(Constants.ADD_BIRD_REQUEST, 1664) {
+				@Override
+				HashMap<String, Object> request(int i) {
+					return addBird("extra " + i, i);
+				}
+			},
+			new Case(Constants.ADD_SIGHTING_REQUEST, 528) {
+				@Override
+				HashMap<String, Object> request(int i) {
+					HashMap<String, Object> request = sighting(Constants.ADD_SIGHTING_REQUEST, i);
+					request.put(Constants.BIRD_SIGHTING_LOCATION, "benchmark");
+					return request;
+				}
+			},
+			new Case(Constants.UPDATE_SIGHTING_REQUEST, 288) {
+				@Override
+				HashMap<String, Object> request(int i) {
+					HashMap<String, Object> request = sighting(Constants.UPDATE_SIGHTING_REQUEST, i);
+					request.put(Constants.BIRD_SIGHTING_LOCATION, "benchmark");
+					request.put(Constants.NEW_LOCATION, "updated");
+					return request;
+				}
+			},
+			new Case(Constants.DELETE_SIGHTINGS_REQUEST, 544) {
+				@Override
+				HashMap<String, Object> request(int i) {
+					HashMap<String, Object> request = newRequest(Constants.DELETE_SIGHTINGS_REQUEST);
+					request.put(Constants.BIRD_NAME, "bird 0");
+					request.put(Constants.START_DATE, new Date(base - DAY + i * SECOND - 1));
+					request.put(Constants.END_DATE, new Date(base - DAY + i * SECOND + 1));
+					return request;
+				}
+
+				@Override
+				boolean accepts(Object response) {
+					return "1 sighting(s) of 'bird 0' have been deleted.".equals(response);
+				}
+			},
+			new Case(Constants.REMOVE_REQUEST, 1536) {
+				@Override
+				HashMap<String, Object> request(int i) {
+					HashMap<String, Object> request = newRequest(Constants.REMOVE_REQUEST);
+					request.put(Constants.BIRD_NAME, "extra " + i);
+					return request;
+				}
+			},
+			new Case(Constants.LIST_BIRDS_REQUEST, 2359296) {
+				@Override
+				HashMap<String, Object> request(int i) {
+					return newRequest(Constants.LIST_BIRDS_REQUEST);
+				}
+			},
+			new Case(Constants.QUERY_BIRDS_REQUEST, 147456) {
+				@Override
+				HashMap<String, Object> request(int i) {
+					HashMap<String, Object> request = newRequest(Constants.QUERY_BIRDS_REQUEST);
+					request.put(Constants.BIRD_QUERY, BirdQuery.and(BirdQuery.color("red"), BirdQuery.weight(10, 20)));
+					return request;
+				}
+			},
+			new Case(Constants.SEARCH_NAMES_REQUEST, 6400) {
+				@Override
+				HashMap<String, Object> request(int i) {
+					HashMap<String, Object> request = newRequest(Constants.SEARCH_NAMES_REQUEST);
+					request.put(Constants.BIRD_NAME, "brid 12");
+					return request;
+				}
+			},
+			new Case(Constants.LIST_SIGHTINGS_REQUEST, 19456) {
+				@Override
+				HashMap<String, Object> request(int i) {
+					HashMap<String, Object> request = newRequest(Constants.LIST_SIGHTINGS_REQUEST);
+					request.put(Constants.BIRD_NAME, "bird 1[0-9]");
+					request.put(Constants.START_DATE, new Date(base));
+					request.put(Constants.END_DATE, new Date(base + 200 * DAY));
+					return request;
+				}
+			},
+			new Case(Constants.SUMMARY_REQUEST, 2112) {
+				@Override
+				HashMap<String, Object> request(int i) {
+					return newRequest(Constants.SUMMARY_REQUEST);
+				}
+			},
+		};
+	}
+
+	private static HashMap<String, Object> newRequest(String requestType) {
+		HashMap<String, Object> request = new HashMap<String, Object>();
+		request.put(Constants.REQUEST_TYPE, requestType);
+		return request;
+	}
+
+	private static HashMap<String, Object> addBird(String name, int i) {
+		HashMap<String, Object> request = newRequest(Constants.ADD_BIRD_REQUEST);
+		request.put(Constants.BIRD_NAME, name);
+		request.put(Constants.BIRD_COLOR, COLORS[i % COLORS.length]);
+		request.put(Constants.BIRD_WEIGHT, (float) (i % 50));
+		request.put(Constants.BIRD_HEIGHT, (float) (i % 30));
+		return request;
+	}
+
+	/**
+	 * Request about the i-th benchmark sighting of the first bird, a second
+	 * apart from the others and the day before the generated ones.
+	 */
+	private HashMap<String, Object> sighting(String requestType, int i) {
+		HashMap<String, Object> request = newRequest(requestType);
+		request.put(Constants.BIRD_NAME, "bird 0");
+		request.put(Constants.BIRD_SIGHTING_DATE, new Date(base - DAY + i * SECOND));
+		return request;
+	}
+
+	private static void delete(File file) {
+		File[] children = file.listFiles();
+		if(children != null) {
+			for(File child : children)
+				delete(child);
+		}
+
+		file.delete();
+	}
+
+	/**
+	 * A request type with its budget in bytes per request.
+	 */
+	private static abstract class Case {
+		private final String type;
+		private final long budget;
+
+		public Case(String type, long budget) {
+			this.type = type;
+			this.budget = budget;
+		}
+
+		abstract HashMap<String, Object> request(int i);
+
+		/**
+		 * Listings and successful changes are accepted.
+		 */
+		boolean accepts(Object response) {
+			if(response instanceof String)
+				return ((String) response).startsWith("Record has been") || ((String) response).startsWith("Successfully");
+
+			return !(response instanceof Object[]) || ((Object[]) response).length > 0;
+		}
+	}
+
+	private static class DiscardOutputStream extends OutputStream {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	}
+}
@@ -0,0 +1,12 @@
+#!/bin/sh
+# Compiles the server with the allocation benchmark into a temporary folder
+# and runs it. Exits with an error if a request type is over its budget.
+#
+# usage: BirdServer/benchmark/run-allocation-check.sh [-iterations 500]
+
+cd "$(dirname "$0")/../.." || exit 1
+OUT=$(mktemp -d) || exit 1
+trap 'rm -rf "$OUT"' EXIT
+
+javac -nowarn -d "$OUT" $(find BirdModel/src BirdServer/src BirdServer/benchmark -name '*.java') || exit 1
+java -cp "$OUT" bird.server.AllocationBenchmark "$@"
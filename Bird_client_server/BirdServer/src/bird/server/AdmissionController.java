@@ -0,0 +1,206 @@
+package bird.server;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import bird.model.Constants;
+
+/**
+ * Decides at the accept loop whether a connection may be queued. Every remote
+ * address gets a token bucket refilled at a fixed rate, and the number of
+ * queued plus in progress requests is capped for the whole server.
+ *
+ * A keep alive connection is charged once, when it is accepted. Its later
+ * requests keep the place it was given, they are read one after the other
+ * so the connection can not take more than one worker.
+ */
+class AdmissionController {
+
+	/**
+	 * Idle buckets are dropped once there are more than this many of them.
+	 */
+	private static final int MAX_BUCKETS = 10000;
+	/**
+	 * A rejected connection is kept open this long, so that the client can
+	 * read the rejection before its unread request resets the connection.
+	 */
+	private static final int REJECT_LINGER = 10000;
+	private static final int MAX_LINGERING = 1000;
+
+	private final double rate;
+	private final double burst;
+	private final int maxOutstanding;
+
+	private final HashMap<InetAddress, TokenBucket> buckets = new HashMap<InetAddress, TokenBucket>();
+	private int outstanding;
+	private int lingering;
+	private final Timer closeTimer = new Timer("Reject Close Timer", true);
+
+	private long admitted;
+	private long rejectedRate;
+	private long rejectedBusy;
+
+	/**
+	 * @param rate connections per second allowed for each remote address, 0
+	 *            for no limit.
+	 * @param burst connections a remote address may open at once.
+	 * @param maxOutstanding queued plus in progress requests, 0 for no limit.
+	 */
+	public AdmissionController(double rate, int burst, int maxOutstanding) {
+		this.rate = rate;
+		this.burst = Math.max(1, burst);
+		this.maxOutstanding = maxOutstanding;
+	}
+
+	/**
+	 * Returns null if the request is admitted, otherwise the message to send
+	 * back to the client. An admitted request must be followed by a call to
+	 * {@link #finished()}.
+	 */
+	public synchronized String admit(InetAddress address) {
+		if(maxOutstanding > 0 && outstanding >= maxOutstanding) {
+			rejectedBusy++;
+			return Constants.BUSY_RESPONSE;
+		}
+
+		if(rate > 0) {
+			long now = System.nanoTime();
+			TokenBucket bucket = buckets.get(address);
+			if(bucket == null) {
+				if(buckets.size() >= MAX_BUCKETS)
+					dropIdleBuckets(now);
+
+				bucket = new TokenBucket(burst, now);
+				buckets.put(address, bucket);
+			}
+
+			if(!bucket.take(now)) {
+				rejectedRate++;
+				return Constants.RATE_LIMITED_RESPONSE;
+			}
+		}
+
+		outstanding++;
+		admitted++;
+		return null;
+	}
+
+	/**
+	 * Admits the next request of a keep alive connection, which is neither
+	 * charged nor turned away. It must be followed by a call to
+	 * {@link #finished()} as well.
+	 */
+	public synchronized void readmit() {
+		outstanding++;
+		admitted++;
+	}
+
+	public synchronized void finished() {
+		outstanding--;
+	}
+
+	/**
+	 * Turns away an admitted request which did not fit in the queue.
+	 */
+	public void rejectQueueFull(ClientConnection connection) {
+		synchronized (this) {
+			outstanding--;
+			rejectedBusy++;
+		}
+
+		reject(connection, Constants.BUSY_RESPONSE);
+	}
+
+	/**
+	 * Sends the rejection message without reading the request, and closes
+	 * the connection a little later. On a keep alive connection turned away
+	 * at shutdown, the message is the response to the request the client has
+	 * already sent.
+	 */
+	public void reject(ClientConnection connection, String message) {
+		final Socket socket = connection.getSocket();
+		try {
+			ObjectOutputStream out = connection.isOpen() ? connection.getOutputStream() : new ObjectOutputStream(socket.getOutputStream());
+			out.writeObject(message);
+			out.flush();
+			socket.shutdownOutput();
+		}
+		catch (IOException e) {
+		}
+
+		synchronized (this) {
+			if(lingering >= MAX_LINGERING) {
+				close(socket);
+				return;
+			}
+
+			lingering++;
+		}
+
+		closeTimer.schedule(new TimerTask() {
+			@Override
+			public void run() {
+				close(socket);
+				synchronized (AdmissionController.this) {
+					lingering--;
+				}
+			}
+		}, REJECT_LINGER);
+	}
+
+	public synchronized String getStats() {
+		return "Admission: outstanding = " + outstanding + "/" + (maxOutstanding > 0 ? Integer.toString(maxOutstanding) : "unlimited")
+				+ ", admitted = " + admitted + ", rejected (rate) = " + rejectedRate + ", rejected (busy) = " + rejectedBusy
+				+ ", clients = " + buckets.size();
+	}
+
+	private static void close(Socket socket) {
+		try {
+			socket.close();
+		}
+		catch (IOException e) {
+		}
+	}
+
+	private void dropIdleBuckets(long now) {
+		Iterator<TokenBucket> iterator = buckets.values().iterator();
+		while(iterator.hasNext()) {
+			TokenBucket bucket = iterator.next();
+			bucket.refill(now);
+			if(bucket.tokens >= burst)
+				iterator.remove();
+		}
+	}
+
+	/**
+	 * Tokens of a single remote address.
+	 */
+	private class TokenBucket {
+		private double tokens;
+		private long refilled;
+
+		public TokenBucket(double tokens, long now) {
+			this.tokens = tokens;
+			this.refilled = now;
+		}
+
+		private void refill(long now) {
+			tokens = Math.min(burst, tokens + (now - refilled) * rate / 1000000000d);
+			refilled = now;
+		}
+
+		private boolean take(long now) {
+			refill(now);
+			if(tokens < 1)
+				return false;
+
+			tokens--;
+			return true;
+		}
+	}
+}
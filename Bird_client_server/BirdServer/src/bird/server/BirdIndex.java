@@ -0,0 +1,197 @@
+package bird.server;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+
+import bird.model.Bird;
+import bird.model.BirdQuery;
+
+/**
+ * Secondary indexes on the bird attributes, a hash index on the color and
+ * sorted indexes on the weight & height, used to answer bird queries without
+ * looking at every bird.
+ *
+ * Like the journal, it must only be used while holding the lock on model,
+ * and must see every bird added to and removed from it.
+ */
+class BirdIndex {
+
+	/**
+	 * Deeper queries are turned away rather than risking the stack.
+	 */
+	static final int MAX_QUERY_DEPTH = 32;
+
+	private final HashMap<String, HashSet<String>> colors = new HashMap<String, HashSet<String>>();
+	private final FloatIndex weights = new FloatIndex();
+	private final FloatIndex heights = new FloatIndex();
+
+	public void birdAdded(Bird bird) {
+		colorAdded(bird);
+		weights.add(bird.getWeight(), bird.getName());
+		heights.add(bird.getHeight(), bird.getName());
+	}
+
+	public void birdRemoved(Bird bird) {
+		String color = colorKey(bird.getColor());
+		HashSet<String> names = colors.get(color);
+		if(names != null) {
+			names.remove(bird.getName());
+			if(names.isEmpty())
+				colors.remove(color);
+		}
+
+		weights.remove(bird.getWeight(), bird.getName());
+		heights.remove(bird.getHeight(), bird.getName());
+	}
+
+	/**
+	 * Indexes the whole model again, once it has been created. The sorted
+	 * indexes are loaded in one go rather than a bird at a time.
+	 */
+	public void rebuild(Collection<Bird> birds) {
+		colors.clear();
+		float[] weightKeys = new float[birds.size()];
+		float[] heightKeys = new float[birds.size()];
+		String[] names = new String[birds.size()];
+		int count = 0;
+		for(Bird bird : birds) {
+			colorAdded(bird);
+			weightKeys[count] = bird.getWeight();
+			heightKeys[count] = bird.getHeight();
+			names[count] = bird.getName();
+			count++;
+		}
+
+		weights.load(weightKeys, names, count);
+		heights.load(heightKeys, names, count);
+	}
+
+	private void colorAdded(Bird bird) {
+		String color = colorKey(bird.getColor());
+		HashSet<String> names = colors.get(color);
+		if(names == null) {
+			names = new HashSet<String>();
+			colors.put(color, names);
+		}
+
+		names.add(bird.getName());
+	}
+
+	/**
+	 * Returns the birds matching the query.
+	 */
+	public ArrayList<Bird> select(BirdQuery query, Map<String, Bird> model) {
+		ArrayList<Bird> birds = new ArrayList<Bird>();
+		for(String name : names(query, model)) {
+			Bird bird = model.get(name);
+			if(bird != null)
+				birds.add(bird);
+		}
+
+		return birds;
+	}
+
+	/**
+	 * Returns true if the query is complete and not too deep.
+	 */
+	public static boolean isValid(BirdQuery query, int depth) {
+		if(query == null || query.getType() == null || depth > MAX_QUERY_DEPTH)
+			return false;
+
+		switch(query.getType()) {
+		case COLOR:
+			return query.getColor() != null;
+		case AND:
+		case OR:
+			if(query.getChildren() == null)
+				return false;
+
+			for(BirdQuery child : query.getChildren()) {
+				if(!isValid(child, depth + 1))
+					return false;
+			}
+			return true;
+		default:
+			return true;
+		}
+	}
+
+	/**
+	 * An AND reads only its most selective part from the indexes and checks
+	 * the rest on the candidates, an OR joins what its parts read.
+	 */
+	private Collection<String> names(BirdQuery query, Map<String, Bird> model) {
+		switch(query.getType()) {
+		case COLOR:
+			HashSet<String> names = colors.get(colorKey(query.getColor()));
+			return names == null ? new ArrayList<String>() : new ArrayList<String>(names);
+		case WEIGHT:
+			ArrayList<String> byWeight = new ArrayList<String>();
+			weights.collect(query.getMin(), query.getMax(), byWeight);
+			return byWeight;
+		case HEIGHT:
+			ArrayList<String> byHeight = new ArrayList<String>();
+			heights.collect(query.getMin(), query.getMax(), byHeight);
+			return byHeight;
+		case AND:
+			BirdQuery[] children = query.getChildren();
+			if(children.length == 0)
+				return new ArrayList<String>(model.keySet());
+
+			BirdQuery first = children[0];
+			int firstEstimate = estimate(first, model);
+			for(int i = 1; i < children.length; i++) {
+				int childEstimate = estimate(children[i], model);
+				if(childEstimate < firstEstimate) {
+					first = children[i];
+					firstEstimate = childEstimate;
+				}
+			}
+
+			ArrayList<String> matches = new ArrayList<String>();
+			for(String name : names(first, model)) {
+				Bird bird = model.get(name);
+				if(bird != null && query.matches(bird))
+					matches.add(name);
+			}
+			return matches;
+		default:
+			HashSet<String> union = new HashSet<String>();
+			for(BirdQuery child : query.getChildren())
+				union.addAll(names(child, model));
+			return union;
+		}
+	}
+
+	/**
+	 * Returns about how many names reading the query from the indexes gives.
+	 */
+	private int estimate(BirdQuery query, Map<String, Bird> model) {
+		switch(query.getType()) {
+		case COLOR:
+			HashSet<String> names = colors.get(colorKey(query.getColor()));
+			return names == null ? 0 : names.size();
+		case WEIGHT:
+			return weights.count(query.getMin(), query.getMax());
+		case HEIGHT:
+			return heights.count(query.getMin(), query.getMax());
+		case AND:
+			int smallest = model.size();
+			for(BirdQuery child : query.getChildren())
+				smallest = Math.min(smallest, estimate(child, model));
+			return smallest;
+		default:
+			long total = 0;
+			for(BirdQuery child : query.getChildren())
+				total += estimate(child, model);
+			return (int) Math.min(total, model.size());
+		}
+	}
+
+	private static String colorKey(String color) {
+		return color.toLowerCase(Locale.ROOT);
+	}
+}
@@ -0,0 +1,515 @@
+package bird.server;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import bird.model.Bird;
+import bird.model.BirdSighting;
+
+/**
+ * Keeps track of the birds which have changed since the last checkpoint and
+ * writes only those changes to numbered segment files. Segments are replayed
+ * over birds.xml & sightings.xml on start up and are folded back into them by
+ * compaction.
+ *
+ * All the record methods must be called while holding the lock on model, so
+ * that a drained checkpoint always matches the state of the model.
+ */
+class ChangeJournal {
+
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".xml";
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	private static final String SEGMENT_ROOT_NODE = "changes";
+	private static final String SEGMENT_BIRD_NODE = "bird";
+	private static final String SEGMENT_SIGHTING_NODE = "sighting";
+	private static final String SEGMENT_DELETED_NODE = "deleted";
+	private static final String NAME_ATTRIBUTE = "name";
+	private static final String REMOVED_ATTRIBUTE = "removed";
+	private static final String COLOR_ATTRIBUTE = "color";
+	private static final String WEIGHT_ATTRIBUTE = "weight";
+	private static final String HEIGHT_ATTRIBUTE = "height";
+	private static final String LOCATION_ATTRIBUTE = "location";
+	private static final String DATE_ATTRIBUTE = "date";
+	private static final String START_ATTRIBUTE = "start";
+	private static final String END_ATTRIBUTE = "end";
+	/**
+	 * Markup around a change in a segment file, in characters.
+	 */
+	private static final int RECORD_OVERHEAD = 48;
+
+	private final File folder;
+	private LinkedHashMap<String, DirtyBird> dirtyBirds = new LinkedHashMap<String, DirtyBird>();
+	private long lastSegment;
+	private final HashMap<String, Long> replayed = new HashMap<String, Long>();
+	private final CheckpointScheduler scheduler;
+	private final IoThrottle throttle;
+
+	public ChangeJournal(File folder, long baseSegment) {
+		this(folder, baseSegment, null, null);
+	}
+
+	/**
+	 * The scheduler is told about every change, segments are written through
+	 * the throttle. Either may be null.
+	 */
+	public ChangeJournal(File folder, long baseSegment, CheckpointScheduler scheduler, IoThrottle throttle) {
+		this.folder = folder;
+		this.lastSegment = baseSegment;
+		this.scheduler = scheduler;
+		this.throttle = throttle;
+
+		for(File segment : listSegments())
+			lastSegment = Math.max(lastSegment, segmentNumber(segment));
+	}
+
+	public synchronized void birdAdded(Bird bird) {
+		DirtyBird dirtyBird = dirtyBird(bird.getName());
+		dirtyBird.added = bird;
+		dirtyBird.sightings.clear();
+		dirtyBird.deletions.clear();
+		changed(bird.getName().length() + bird.getColor().length());
+	}
+
+	public synchronized void birdRemoved(String name) {
+		DirtyBird dirtyBird = dirtyBird(name);
+		dirtyBird.removed = true;
+		dirtyBird.added = null;
+		dirtyBird.sightings.clear();
+		dirtyBird.deletions.clear();
+		changed(name.length());
+	}
+
+	public synchronized void sightingAdded(String name, String location, Date date) {
+		dirtyBird(name).sightings.add(new BirdSighting(name, location, date));
+		changed(name.length() + (location == null ? 0 : location.length()));
+	}
+
+	/**
+	 * Records the removal of the sightings between the two exclusive dates.
+	 * The ones added since the last checkpoint are simply not written.
+	 */
+	public synchronized void sightingsRemoved(String name, Date startDate, Date endDate) {
+		DirtyBird dirtyBird = dirtyBird(name);
+		Iterator<BirdSighting> iterator = dirtyBird.sightings.iterator();
+		while(iterator.hasNext()) {
+			Date date = iterator.next().getDate();
+			if(date != null && date.after(startDate) && date.before(endDate))
+				iterator.remove();
+		}
+
+		dirtyBird.deletions.add(new Deletion(startDate, endDate, null, null));
+		changed(name.length());
+	}
+
+	/**
+	 * Records the removal of a single sighting, which cancels a matching one
+	 * added since the last checkpoint.
+	 */
+	public synchronized void sightingRemoved(String name, String location, Date date) {
+		DirtyBird dirtyBird = dirtyBird(name);
+		Iterator<BirdSighting> iterator = dirtyBird.sightings.iterator();
+		while(iterator.hasNext()) {
+			BirdSighting sighting = iterator.next();
+			if(equals(sighting.getLocation(), location) && equals(sighting.getDate(), date)) {
+				iterator.remove();
+				return;
+			}
+		}
+
+		dirtyBird.deletions.add(new Deletion(null, null, location, date));
+		changed(name.length() + (location == null ? 0 : location.length()));
+	}
+
+	public synchronized boolean isDirty() {
+		return !dirtyBirds.isEmpty();
+	}
+
+	/**
+	 * Takes away all the pending changes and assigns them the next segment
+	 * number. Returns null if nothing has changed since the last checkpoint.
+	 */
+	public synchronized Checkpoint drain() {
+		if(dirtyBirds.isEmpty())
+			return null;
+
+		Checkpoint checkpoint = new Checkpoint(++lastSegment, dirtyBirds);
+		dirtyBirds = new LinkedHashMap<String, DirtyBird>();
+		if(scheduler != null)
+			scheduler.drained();
+
+		return checkpoint;
+	}
+
+	public synchronized long getLastSegment() {
+		return lastSegment;
+	}
+
+	/**
+	 * Writes the checkpoint to its segment file. The file is written under a
+	 * temporary name first so a half written segment is never replayed.
+	 */
+	public boolean write(Checkpoint checkpoint) {
+		try {
+			DocumentBuilder docBuilder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+			Document doc = docBuilder.newDocument();
+			Element rootElement = doc.createElement(SEGMENT_ROOT_NODE);
+			doc.appendChild(rootElement);
+
+			for(DirtyBird dirtyBird : checkpoint.birds.values()) {
+				Element birdElement = doc.createElement(SEGMENT_BIRD_NODE);
+				rootElement.appendChild(birdElement);
+				birdElement.setAttribute(NAME_ATTRIBUTE, dirtyBird.name);
+
+				if(dirtyBird.removed)
+					birdElement.setAttribute(REMOVED_ATTRIBUTE, Boolean.TRUE.toString());
+
+				if(dirtyBird.added != null) {
+					birdElement.setAttribute(COLOR_ATTRIBUTE, dirtyBird.added.getColor());
+					birdElement.setAttribute(WEIGHT_ATTRIBUTE, Float.toString(dirtyBird.added.getWeight()));
+					birdElement.setAttribute(HEIGHT_ATTRIBUTE, Float.toString(dirtyBird.added.getHeight()));
+				}
+
+				/*
+				 * Deletions are replayed before the sightings, which were
+				 * all added after them.
+				 */
+				for(Deletion deletion : dirtyBird.deletions) {
+					Element deletedElement = doc.createElement(SEGMENT_DELETED_NODE);
+					birdElement.appendChild(deletedElement);
+					if(deletion.startDate != null) {
+						deletedElement.setAttribute(START_ATTRIBUTE, DateFormat.getInstance().format(deletion.startDate));
+						deletedElement.setAttribute(END_ATTRIBUTE, DateFormat.getInstance().format(deletion.endDate));
+						continue;
+					}
+
+					if(deletion.location != null)
+						deletedElement.setAttribute(LOCATION_ATTRIBUTE, deletion.location);
+					if(deletion.date != null)
+						deletedElement.setAttribute(DATE_ATTRIBUTE, DateFormat.getInstance().format(deletion.date));
+				}
+
+				for(BirdSighting sighting : dirtyBird.sightings) {
+					Element sightingElement = doc.createElement(SEGMENT_SIGHTING_NODE);
+					birdElement.appendChild(sightingElement);
+					sightingElement.setAttribute(LOCATION_ATTRIBUTE, sighting.getLocation());
+					if(sighting.getDate() != null)
+						sightingElement.setAttribute(DATE_ATTRIBUTE, DateFormat.getInstance().format(sighting.getDate()));
+				}
+			}
+
+			File segmentFile = segmentFile(checkpoint.segment);
+			File tempFile = new File(segmentFile.getAbsolutePath() + TEMP_SUFFIX);
+
+			OutputStream out = new BufferedOutputStream(open(tempFile));
+			try {
+				Transformer transformer = TransformerFactory.newInstance().newTransformer();
+				transformer.transform(new DOMSource(doc), new StreamResult(out));
+			}
+			finally {
+				out.close();
+			}
+
+			if(!tempFile.renameTo(segmentFile)) {
+				System.err.println("Unable to rename " + tempFile.getName() + " to " + segmentFile.getName() + ".");
+				tempFile.delete();
+				return false;
+			}
+		}
+		catch (Exception e) {
+			System.err.println(e.getMessage());
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Replays all segments newer than the base files over the model, oldest
+	 * first.
+	 */
+	public boolean replay(Hashtable<String, Bird> model, ColdStore coldStore, long baseSegment) {
+		try {
+			DocumentBuilder docBuilder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+
+			for(File segmentFile : listSegments()) {
+				if(segmentNumber(segmentFile) <= baseSegment)
+					continue;
+
+				Document doc = docBuilder.parse(segmentFile);
+				doc.getDocumentElement().normalize();
+
+				NodeList birdNodes = doc.getElementsByTagName(SEGMENT_BIRD_NODE);
+				for(int i = 0; i < birdNodes.getLength(); i++) {
+					Node node = birdNodes.item(i);
+					if(node.getNodeType() != Node.ELEMENT_NODE)
+						continue;
+
+					Element birdElement = (Element) node;
+					String name = birdElement.getAttribute(NAME_ATTRIBUTE);
+					if(name == null || name.isEmpty())
+						continue;
+
+					replayed.put(name, segmentNumber(segmentFile));
+
+					if(Boolean.parseBoolean(birdElement.getAttribute(REMOVED_ATTRIBUTE))) {
+						model.remove(name);
+						coldStore.birdRemoved(name);
+					}
+
+					if(birdElement.hasAttribute(COLOR_ATTRIBUTE)) {
+						float weight = 0;
+						float height = 0;
+						try {
+							weight = Float.parseFloat(birdElement.getAttribute(WEIGHT_ATTRIBUTE));
+							height = Float.parseFloat(birdElement.getAttribute(HEIGHT_ATTRIBUTE));
+						}
+						catch(NumberFormatException e) {
+							System.err.println("'" + segmentFile.getName() + "' contains invalid size for bird '" + name + "'.");
+						}
+
+						model.put(name, new Bird(name, birdElement.getAttribute(COLOR_ATTRIBUTE), weight, height));
+					}
+
+					Bird bird = model.get(name);
+					NodeList sightingNodes = birdElement.getElementsByTagName(SEGMENT_SIGHTING_NODE);
+					if(bird == null) {
+						if(sightingNodes.getLength() > 0)
+							System.err.println("Bird '" + name + "' does not present in birds list, skipping.");
+						continue;
+					}
+
+					NodeList deletedNodes = birdElement.getElementsByTagName(SEGMENT_DELETED_NODE);
+					for(int j = 0; j < deletedNodes.getLength(); j++) {
+						Element deletedElement = (Element) deletedNodes.item(j);
+						if(deletedElement.hasAttribute(START_ATTRIBUTE)) {
+							bird.removeSightings(DateFormat.getInstance().parse(deletedElement.getAttribute(START_ATTRIBUTE)),
+									DateFormat.getInstance().parse(deletedElement.getAttribute(END_ATTRIBUTE)));
+							continue;
+						}
+
+						String value = deletedElement.getAttribute(DATE_ATTRIBUTE);
+						bird.removeSighting(deletedElement.hasAttribute(LOCATION_ATTRIBUTE) ? deletedElement.getAttribute(LOCATION_ATTRIBUTE) : null,
+								Server.validateDateAndTime(value) ? DateFormat.getInstance().parse(value) : null);
+					}
+
+					for(int j = 0; j < sightingNodes.getLength(); j++) {
+						Element sightingElement = (Element) sightingNodes.item(j);
+						String value = sightingElement.getAttribute(DATE_ATTRIBUTE);
+						Date date = null;
+						if(Server.validateDateAndTime(value))
+							date = DateFormat.getInstance().parse(value);
+
+						bird.addSighting(sightingElement.getAttribute(LOCATION_ATTRIBUTE), date);
+					}
+				}
+			}
+		}
+		catch (Exception e) {
+			System.err.println(e.getMessage());
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Returns the last replayed segment which changed the bird, 0 if none
+	 * did.
+	 */
+	public long getLastReplayed(String name) {
+		Long segment = replayed.get(name);
+		return segment == null ? 0 : segment;
+	}
+
+	/**
+	 * Deletes the segments which have been folded into the base files.
+	 */
+	public void deleteSegments(long uptoSegment) {
+		for(File segmentFile : listSegments()) {
+			if(segmentNumber(segmentFile) <= uptoSegment)
+				segmentFile.delete();
+		}
+	}
+
+	/**
+	 * Returns the number of segments written after the given one, the ones
+	 * a start up from base files covering that segment replays.
+	 */
+	public int segmentCount(long afterSegment) {
+		int count = 0;
+		for(File segmentFile : listSegments()) {
+			if(segmentNumber(segmentFile) > afterSegment)
+				count++;
+		}
+
+		return count;
+	}
+
+	/**
+	 * Returns the segments written after the given one, oldest first.
+	 */
+	public File[] getSegments(long afterSegment) {
+		ArrayList<File> segments = new ArrayList<File>();
+		for(File segmentFile : listSegments()) {
+			if(segmentNumber(segmentFile) > afterSegment)
+				segments.add(segmentFile);
+		}
+
+		return segments.toArray(new File[0]);
+	}
+
+	public long segmentBytes(long afterSegment) {
+		long bytes = 0;
+		for(File segmentFile : listSegments()) {
+			if(segmentNumber(segmentFile) > afterSegment)
+				bytes += segmentFile.length();
+		}
+
+		return bytes;
+	}
+
+	/**
+	 * Opens the file for writing, through the throttle if there is one.
+	 */
+	private OutputStream open(File file) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+		return throttle == null ? out : throttle.wrap(out);
+	}
+
+	private void changed(int length) {
+		if(scheduler != null)
+			scheduler.changed(length + RECORD_OVERHEAD);
+	}
+
+	private DirtyBird dirtyBird(String name) {
+		DirtyBird dirtyBird = dirtyBirds.get(name);
+		if(dirtyBird == null) {
+			dirtyBird = new DirtyBird(name);
+			dirtyBirds.put(name, dirtyBird);
+		}
+
+		return dirtyBird;
+	}
+
+	private File segmentFile(long segment) {
+		return new File(folder, SEGMENT_PREFIX + String.format("%08d", segment) + SEGMENT_SUFFIX);
+	}
+
+	private File[] listSegments() {
+		File[] segments = folder.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				String name = file.getName();
+				return file.isFile() && name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX) && segmentNumber(file) > 0;
+			}
+		});
+
+		if(segments == null)
+			return new File[0];
+
+		Arrays.sort(segments, new Comparator<File>() {
+			@Override
+			public int compare(File f1, File f2) {
+				long s1 = segmentNumber(f1);
+				long s2 = segmentNumber(f2);
+				return s1 < s2 ? -1 : (s1 == s2 ? 0 : 1);
+			}
+		});
+
+		return segments;
+	}
+
+	private static long segmentNumber(File segmentFile) {
+		String name = segmentFile.getName();
+		try {
+			return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+		}
+		catch(Exception e) {
+			return -1;
+		}
+	}
+
+	private static boolean equals(Object o1, Object o2) {
+		return o1 == null ? o2 == null : o1.equals(o2);
+	}
+
+	/**
+	 * Changes of a single bird since the last checkpoint.
+	 */
+	private static class DirtyBird {
+		private final String name;
+		private boolean removed;
+		private Bird added;
+		private ArrayList<BirdSighting> sightings = new ArrayList<BirdSighting>();
+		private ArrayList<Deletion> deletions = new ArrayList<Deletion>();
+
+		public DirtyBird(String name) {
+			this.name = name;
+		}
+	}
+
+	/**
+	 * Sightings removed from a bird, either those between two exclusive
+	 * dates or a single one.
+	 */
+	private static class Deletion {
+		private final Date startDate;
+		private final Date endDate;
+		private final String location;
+		private final Date date;
+
+		public Deletion(Date startDate, Date endDate, String location, Date date) {
+			this.startDate = startDate;
+			this.endDate = endDate;
+			this.location = location;
+			this.date = date;
+		}
+	}
+
+	/**
+	 * Changes drained from the journal which are waiting to be written.
+	 */
+	static class Checkpoint {
+		private final long segment;
+		private final LinkedHashMap<String, DirtyBird> birds;
+
+		private Checkpoint(long segment, LinkedHashMap<String, DirtyBird> birds) {
+			this.segment = segment;
+			this.birds = birds;
+		}
+
+		public long getSegment() {
+			return segment;
+		}
+
+		public int getBirdCount() {
+			return birds.size();
+		}
+	}
+}
@@ -0,0 +1,114 @@
+package bird.server;
+
+/**
+ * Decides when the pending changes are written. A checkpoint is due once
+ * enough changes, or enough bytes of them, have piled up, or once the oldest
+ * of them has waited long enough, whichever comes first. Nothing is due
+ * while the model does not change.
+ *
+ * The journal reports every change, the save model thread waits here.
+ */
+class CheckpointScheduler {
+
+	private final int maxChanges;
+	private final long maxBytes;
+	private final long maxDelay;
+
+	private int changes;
+	private long bytes;
+	private long firstChangeAt;
+	private boolean stopped;
+	private boolean woken;
+
+	/**
+	 * Limits of 0 turn the matching trigger off.
+	 */
+	public CheckpointScheduler(int maxChanges, long maxBytes, long maxDelay) {
+		this.maxChanges = maxChanges;
+		this.maxBytes = maxBytes;
+		this.maxDelay = maxDelay;
+	}
+
+	/**
+	 * Counts a change of about the given size and wakes the save model
+	 * thread if a checkpoint has become due.
+	 */
+	public synchronized void changed(long size) {
+		if(changes++ == 0)
+			firstChangeAt = System.currentTimeMillis();
+
+		bytes += size;
+		if(isDue())
+			notifyAll();
+	}
+
+	/**
+	 * Forgets the changes counted so far, they have been taken by a
+	 * checkpoint.
+	 */
+	public synchronized void drained() {
+		changes = 0;
+		bytes = 0;
+	}
+
+	/**
+	 * Waits until a checkpoint is due, at most for the given time. Returns
+	 * false if it returned because of the time, of {@link #wake()} or of
+	 * {@link #stop()}.
+	 */
+	public synchronized boolean await(long millis) throws InterruptedException {
+		long until = System.currentTimeMillis() + millis;
+		while(!stopped && !woken && !isDue()) {
+			long now = System.currentTimeMillis();
+			long wait = until - now;
+			if(changes > 0 && maxDelay > 0)
+				wait = Math.min(wait, firstChangeAt + maxDelay - now);
+
+			if(wait <= 0)
+				break;
+
+			wait(wait);
+		}
+
+		woken = false;
+		return !stopped && isDue();
+	}
+
+	/**
+	 * Releases the waiting thread once, so it looks at the model before its
+	 * time is up.
+	 */
+	public synchronized void wake() {
+		woken = true;
+		notifyAll();
+	}
+
+	/**
+	 * Releases the waiting thread for good.
+	 */
+	public synchronized void stop() {
+		stopped = true;
+		notifyAll();
+	}
+
+	public synchronized int getChanges() {
+		return changes;
+	}
+
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	private boolean isDue() {
+		if(changes < 1)
+			return false;
+
+		if(maxChanges > 0 && changes >= maxChanges)
+			return true;
+
+		if(maxBytes > 0 && bytes >= maxBytes)
+			return true;
+
+		return maxDelay > 0 && System.currentTimeMillis() - firstChangeAt >= maxDelay;
+	}
+}
@@ -0,0 +1,93 @@
+package bird.server;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.Socket;
+
+import bird.model.SocketOptions;
+import bird.model.Transport;
+
+/**
+ * A client connection waiting in the request queue. Between two requests a
+ * keep alive connection waits in {@link IdleConnections}, keeping its
+ * transport, and only goes back to the queue once its next request arrives.
+ */
+class ClientConnection {
+
+	private final Socket socket;
+	private final SocketOptions options;
+	private final Transport.Counters counters;
+	private Transport transport;
+
+	public ClientConnection(Socket socket, SocketOptions options, Transport.Counters counters) {
+		this.socket = socket;
+		this.options = options;
+		this.counters = counters;
+	}
+
+	public Socket getSocket() {
+		return socket;
+	}
+
+	/**
+	 * Stream headers are only exchanged for the first request.
+	 */
+	public void open() throws IOException {
+		if(transport != null)
+			return;
+
+		Transport opened = new Transport(socket, options, counters);
+		opened.open();
+		transport = opened;
+	}
+
+	public boolean isOpen() {
+		return transport != null;
+	}
+
+	public Transport getTransport() {
+		return transport;
+	}
+
+	public ObjectOutputStream getOutputStream() {
+		return transport.getObjectOutputStream();
+	}
+
+	public ObjectInputStream getInputStream() {
+		return transport.getObjectInputStream();
+	}
+
+	/**
+	 * Tells if bytes of the next request have already been read into the
+	 * buffer of the transport, where a selector does not see them.
+	 */
+	public boolean hasBufferedInput() {
+		try {
+			return transport.getInputStream().available() > 0;
+		}
+		catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Flushes the response and forgets the written objects, so the stream
+	 * does not hold on to every response of a long lived connection.
+	 */
+	public void finishResponse() throws IOException {
+		transport.flush();
+	}
+
+	public void close() {
+		if(transport != null) {
+			transport.close();
+			return;
+		}
+
+		try {
+			socket.close();
+		}
+		catch (IOException e) {
+		}
+	}
+}
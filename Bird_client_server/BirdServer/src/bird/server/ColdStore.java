@@ -0,0 +1,765 @@
+package bird.server;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.Vector;
+
+import bird.model.BirdSighting;
+
+/**
+ * Holds the sightings which are older than the hot horizon in immutable
+ * segment files, one file per month and demotion run. Every segment keeps the
+ * min/max date of its sightings and a directory of its birds in memory, so a
+ * query only maps the segments overlapping its date range and only decodes
+ * the birds matching its name.
+ *
+ * Segment files are written with a pending suffix and are committed once the
+ * base files, which no longer contain the demoted sightings, have been
+ * written. Uncommitted segments are deleted on start up.
+ */
+class ColdStore {
+
+	private static final String SEGMENT_PREFIX = "cold-";
+	private static final String SEGMENT_SUFFIX = ".dat";
+	private static final String PENDING_SUFFIX = ".pending";
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	private static final int MAGIC = 0x42495244;
+	private static final int VERSION = 1;
+
+	private final File folder;
+	private final Vector<Segment> segments = new Vector<Segment>();
+	private final Hashtable<String, Long> dropped = new Hashtable<String, Long>();
+	/**
+	 * Held while segments are rewritten, by reclaim and expiry.
+	 */
+	private final Object rewriteLock = new Object();
+	private long lastRun;
+	private Date lastCutoff;
+
+	public ColdStore(File folder) {
+		this.folder = folder;
+	}
+
+	/**
+	 * Commits the pending segments which belong to committed runs, deletes
+	 * the rest and loads the directories of all the segments. Segments of
+	 * later runs which were committed are deleted as well, they were demoted
+	 * by base files which have been set aside as damaged, and the base files
+	 * in use still hold their sightings.
+	 */
+	public boolean open(long committedRun) {
+		if(!folder.exists() && !folder.mkdirs()) {
+			System.err.println("Unable to create " + folder.getAbsolutePath() + ".");
+			return false;
+		}
+
+		lastRun = committedRun;
+		try {
+			/*
+			 * Left over by a reclaim which did not finish.
+			 */
+			for(File file : listFiles(TEMP_SUFFIX))
+				file.delete();
+
+			for(File file : listFiles(PENDING_SUFFIX)) {
+				if(runNumber(file) > committedRun) {
+					file.delete();
+					continue;
+				}
+
+				String name = file.getName();
+				file.renameTo(new File(folder, name.substring(0, name.length() - PENDING_SUFFIX.length())));
+			}
+
+			for(File file : listFiles(SEGMENT_SUFFIX)) {
+				if(runNumber(file) > committedRun) {
+					file.delete();
+					continue;
+				}
+
+				Segment segment = new Segment(runNumber(file));
+				segment.map(file);
+				segments.add(segment);
+			}
+		}
+		catch (IOException e) {
+			System.err.println(e.getMessage());
+			return false;
+		}
+
+		System.out.println("Cold store has " + segments.size() + " segment(s).");
+		return true;
+	}
+
+	/**
+	 * Deletes every segment, used when the base files have been recreated.
+	 */
+	public void clear() {
+		File[] files = folder.listFiles();
+		if(files == null)
+			return;
+
+		for(File file : files)
+			file.delete();
+	}
+
+	public synchronized long getLastRun() {
+		return lastRun;
+	}
+
+	/**
+	 * Returns the start of the month in which sightings stop being hot, the
+	 * cutoff moves a month at a time so demotion runs are batched.
+	 */
+	public static Date cutoff(int hotDays) {
+		Calendar calendar = Calendar.getInstance();
+		calendar.add(Calendar.DAY_OF_MONTH, -hotDays);
+		calendar.set(Calendar.DAY_OF_MONTH, 1);
+		calendar.set(Calendar.HOUR_OF_DAY, 0);
+		calendar.set(Calendar.MINUTE, 0);
+		calendar.set(Calendar.SECOND, 0);
+		calendar.set(Calendar.MILLISECOND, 0);
+		return calendar.getTime();
+	}
+
+	public synchronized boolean isDemotionDue(Date cutoff) {
+		return lastCutoff == null || lastCutoff.before(cutoff);
+	}
+
+	public synchronized void demotionDone(Date cutoff) {
+		lastCutoff = cutoff;
+	}
+
+	/**
+	 * Starts a new demotion run. Sightings added to the run are served from
+	 * memory until it is written.
+	 */
+	public synchronized Run newRun() {
+		return new Run(++lastRun);
+	}
+
+	/**
+	 * Makes the segments of the run visible to queries. Caller must hold the
+	 * lock on model and must have removed the sightings from the birds
+	 * within the same lock.
+	 */
+	public void register(Run run) {
+		segments.addAll(run.segments.values());
+	}
+
+	/**
+	 * Removes the segments of a run which could not be written.
+	 */
+	public void unregister(Run run) {
+		segments.removeAll(run.segments.values());
+	}
+
+	/**
+	 * Writes the segments of the run as pending files and maps them.
+	 */
+	public boolean write(Run run) {
+		try {
+			for(Map.Entry<String, Segment> entry : run.segments.entrySet()) {
+				File file = new File(folder, SEGMENT_PREFIX + String.format("%08d", run.run) + "-" + entry.getKey() + SEGMENT_SUFFIX + PENDING_SUFFIX);
+				entry.getValue().write(file);
+			}
+		}
+		catch (IOException e) {
+			System.err.println(e.getMessage());
+			return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Commits the pending segments up to the given run, once the base files
+	 * no longer contain their sightings.
+	 */
+	public void commit(long committedRun) {
+		for(Segment segment : segments.toArray(new Segment[0])) {
+			if(segment.run > committedRun || segment.file == null || !segment.file.getName().endsWith(PENDING_SUFFIX))
+				continue;
+
+			String name = segment.file.getName();
+			File file = new File(folder, name.substring(0, name.length() - PENDING_SUFFIX.length()));
+			if(segment.file.renameTo(file))
+				segment.file = file;
+		}
+	}
+
+	/**
+	 * Returns the files of the committed segments, the ones the base files
+	 * rely on.
+	 */
+	public File[] getCommittedFiles() {
+		ArrayList<File> files = new ArrayList<File>();
+		for(Segment segment : segments.toArray(new Segment[0])) {
+			File file = segment.file;
+			if(file != null && file.getName().endsWith(SEGMENT_SUFFIX))
+				files.add(file);
+		}
+
+		return files.toArray(new File[0]);
+	}
+
+	/**
+	 * Hides the cold sightings of a removed bird. Caller must hold the lock
+	 * on model.
+	 */
+	public void birdRemoved(String name) {
+		for(Segment segment : segments.toArray(new Segment[0])) {
+			if(segment.directory.containsKey(name)) {
+				dropped.put(name, getLastRun());
+				return;
+			}
+		}
+	}
+
+	public void birdDropped(String name, long run) {
+		dropped.put(name, run);
+	}
+
+	/**
+	 * Returns the removed birds along with the last run their sightings
+	 * should be hidden in.
+	 */
+	public HashMap<String, Long> getDropped() {
+		return new HashMap<String, Long>(dropped);
+	}
+
+	/**
+	 * Rewrites the committed segments holding sightings of the given removed
+	 * birds without them, and forgets the removals which no longer hide
+	 * anything. Runs without the lock on model, queries keep using the old
+	 * segments until the new ones replace them. Returns the number of
+	 * sightings reclaimed.
+	 */
+	public int reclaim(Collection<String> names) {
+		synchronized (rewriteLock) {
+			return reclaimSegments(names);
+		}
+	}
+
+	/**
+	 * Takes the sightings dated before the given time out of the committed
+	 * segments, writing them to the archive first if one is given. Segments
+	 * left empty are deleted, the others rewritten, one at a time and
+	 * without the lock on model like a reclaim. Returns the number of
+	 * sightings expired.
+	 */
+	public int expire(long before, SightingArchive archive) throws IOException {
+		synchronized (rewriteLock) {
+			int expired = 0;
+			for(Segment segment : segments.toArray(new Segment[0])) {
+				File file = segment.file;
+				if(file == null || !file.getName().endsWith(SEGMENT_SUFFIX) || segment.minDate >= before)
+					continue;
+
+				Segment rewritten = new Segment(segment.run);
+				ArrayList<BirdSighting> archived = new ArrayList<BirdSighting>();
+				for(String name : segment.directory.keySet()) {
+					ArrayList<BirdSighting> sightings = new ArrayList<BirdSighting>();
+					segment.collect(name, Long.MIN_VALUE, Long.MAX_VALUE, sightings);
+
+					/*
+					 * Sightings of removed birds are dropped without being
+					 * archived.
+					 */
+					Long droppedRun = dropped.get(name);
+					boolean hidden = droppedRun != null && segment.run <= droppedRun;
+					for(BirdSighting sighting : sightings) {
+						if(sighting.getDate().getTime() >= before)
+							rewritten.add(name, sighting);
+						else {
+							expired++;
+							if(!hidden)
+								archived.add(sighting);
+						}
+					}
+				}
+
+				if(archive != null) {
+					archive.write(archived);
+					archive.sync();
+				}
+
+				replace(segment, rewritten);
+			}
+
+			return expired;
+		}
+	}
+
+	/**
+	 * Takes the bird's sightings between the two exclusive dates out of the
+	 * committed segments, only the ones at the location if one is given, and
+	 * no more than the limit if it is positive. Only the segments of the
+	 * range holding the bird are rewritten. Returns the number of sightings
+	 * taken out.
+	 */
+	public int delete(String name, long start, long end, String location, int limit) throws IOException {
+		synchronized (rewriteLock) {
+			Long droppedRun = dropped.get(name);
+			int deleted = 0;
+			for(Segment segment : segments.toArray(new Segment[0])) {
+				if(limit > 0 && deleted >= limit)
+					break;
+
+				File file = segment.file;
+				if(file == null || !file.getName().endsWith(SEGMENT_SUFFIX) || segment.maxDate <= start || segment.minDate >= end)
+					continue;
+
+				if(!segment.directory.containsKey(name) || (droppedRun != null && segment.run <= droppedRun))
+					continue;
+
+				ArrayList<BirdSighting> collected = new ArrayList<BirdSighting>();
+				segment.collect(name, start, end, collected);
+				int matched = 0;
+				for(BirdSighting sighting : collected) {
+					if(location == null || location.equals(sighting.getLocation()))
+						matched++;
+				}
+
+				if(limit > 0)
+					matched = Math.min(matched, limit - deleted);
+
+				if(matched == 0)
+					continue;
+
+				Segment rewritten = new Segment(segment.run);
+				for(String other : segment.directory.keySet()) {
+					ArrayList<BirdSighting> sightings = new ArrayList<BirdSighting>();
+					segment.collect(other, Long.MIN_VALUE, Long.MAX_VALUE, sightings);
+					int skipped = 0;
+					for(BirdSighting sighting : sightings) {
+						long date = sighting.getDate().getTime();
+						if(skipped < matched && other.equals(name) && start < date && date < end
+								&& (location == null || location.equals(sighting.getLocation()))) {
+							skipped++;
+							continue;
+						}
+
+						rewritten.add(other, sighting);
+					}
+				}
+
+				replace(segment, rewritten);
+				deleted += matched;
+			}
+
+			return deleted;
+		}
+	}
+
+	private int reclaimSegments(Collection<String> names) {
+		HashMap<String, Long> removals = getDropped();
+		removals.keySet().retainAll(names);
+		if(removals.isEmpty())
+			return 0;
+
+		int reclaimed = 0;
+		for(Segment segment : segments.toArray(new Segment[0])) {
+			File file = segment.file;
+			if(file == null || !file.getName().endsWith(SEGMENT_SUFFIX))
+				continue;
+
+			HashSet<String> hidden = new HashSet<String>();
+			for(String name : segment.directory.keySet()) {
+				Long run = removals.get(name);
+				if(run != null && segment.run <= run)
+					hidden.add(name);
+			}
+
+			if(hidden.isEmpty())
+				continue;
+
+			try {
+				reclaimed += rewrite(segment, hidden);
+			}
+			catch (IOException e) {
+				System.err.println("Unable to reclaim '" + file.getName() + "', " + e.getMessage());
+			}
+		}
+
+		/*
+		 * A removal is forgotten only if it was not renewed in the meantime
+		 * and none of the segments it hides still has the bird.
+		 */
+		for(Map.Entry<String, Long> removal : removals.entrySet()) {
+			boolean held = false;
+			for(Segment segment : segments.toArray(new Segment[0])) {
+				if(segment.run <= removal.getValue() && segment.directory.containsKey(removal.getKey()))
+					held = true;
+			}
+
+			if(!held)
+				dropped.remove(removal.getKey(), removal.getValue());
+		}
+
+		return reclaimed;
+	}
+
+	/**
+	 * Replaces the segment with one without the sightings of the given
+	 * birds, returns the number of sightings left out.
+	 */
+	private int rewrite(Segment segment, HashSet<String> hidden) throws IOException {
+		Segment rewritten = new Segment(segment.run);
+		int reclaimed = 0;
+		for(String name : segment.directory.keySet()) {
+			ArrayList<BirdSighting> sightings = new ArrayList<BirdSighting>();
+			segment.collect(name, Long.MIN_VALUE, Long.MAX_VALUE, sightings);
+			if(hidden.contains(name)) {
+				reclaimed += sightings.size();
+				continue;
+			}
+
+			for(BirdSighting sighting : sightings)
+				rewritten.add(name, sighting);
+		}
+
+		replace(segment, rewritten);
+		return reclaimed;
+	}
+
+	/**
+	 * Puts the rewritten segment in place of the old one, or deletes the old
+	 * one if the new one is empty.
+	 */
+	private void replace(Segment segment, Segment rewritten) throws IOException {
+		File file = segment.file;
+		if(rewritten.pending.isEmpty()) {
+			segments.remove(segment);
+			file.delete();
+			return;
+		}
+
+		/*
+		 * Written aside and moved over the old file, so a crash leaves
+		 * either of them complete.
+		 */
+		File temp = new File(folder, file.getName() + TEMP_SUFFIX);
+		rewritten.write(temp);
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		rewritten.file = file;
+
+		synchronized (segments) {
+			int index = segments.indexOf(segment);
+			if(index >= 0)
+				segments.set(index, rewritten);
+		}
+	}
+
+	/**
+	 * Adds the cold sightings of the named birds which lie between the two
+	 * exclusive dates. The names must be those of birds in the model.
+	 */
+	public void collect(Set<String> names, Date startDate, Date endDate, ArrayList<BirdSighting> result, Deadline deadline) {
+		long start = startDate.getTime();
+		long end = endDate.getTime();
+
+		for(Segment segment : segments.toArray(new Segment[0])) {
+			/*
+			 * Skip the segments which lie completely outside the date range.
+			 */
+			if(segment.maxDate <= start || segment.minDate >= end)
+				continue;
+
+			/*
+			 * Look the fewer names up in the larger set.
+			 */
+			Set<String> directory = segment.directory.keySet();
+			boolean byName = names.size() < directory.size();
+			for(String name : byName ? names : directory) {
+				deadline.check();
+				if(!(byName ? directory : names).contains(name))
+					continue;
+
+				Long droppedRun = dropped.get(name);
+				if(droppedRun != null && segment.run <= droppedRun)
+					continue;
+
+				segment.collect(name, start, end, result);
+			}
+		}
+	}
+
+	private File[] listFiles(final String suffix) {
+		File[] files = folder.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				String name = file.getName();
+				return file.isFile() && name.startsWith(SEGMENT_PREFIX) && name.endsWith(suffix) && runNumber(file) > 0;
+			}
+		});
+
+		return files == null ? new File[0] : files;
+	}
+
+	private static long runNumber(File file) {
+		String name = file.getName();
+		try {
+			return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.indexOf('-', SEGMENT_PREFIX.length())));
+		}
+		catch(Exception e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Sightings demoted in a single pass, partitioned on month.
+	 */
+	static class Run {
+		private final long run;
+		private final TreeMap<String, Segment> segments = new TreeMap<String, Segment>();
+		private final SimpleDateFormat partitionFormat = new SimpleDateFormat("yyyyMM");
+		private int sightingCount;
+
+		private Run(long run) {
+			this.run = run;
+		}
+
+		public void add(String name, BirdSighting[] sightings) {
+			for(BirdSighting sighting : sightings) {
+				String partition = partitionFormat.format(sighting.getDate());
+				Segment segment = segments.get(partition);
+				if(segment == null) {
+					segment = new Segment(run);
+					segments.put(partition, segment);
+				}
+
+				segment.add(name, sighting);
+				sightingCount++;
+			}
+		}
+
+		public int getSightingCount() {
+			return sightingCount;
+		}
+
+		/**
+		 * Returns the demoted sightings, used to give them back to the
+		 * birds if the run could not be written.
+		 */
+		public LinkedHashMap<String, ArrayList<BirdSighting>> getSightings() {
+			LinkedHashMap<String, ArrayList<BirdSighting>> sightings = new LinkedHashMap<String, ArrayList<BirdSighting>>();
+			for(Segment segment : segments.values()) {
+				for(Map.Entry<String, ArrayList<BirdSighting>> entry : segment.pending.entrySet()) {
+					ArrayList<BirdSighting> list = sightings.get(entry.getKey());
+					if(list == null) {
+						list = new ArrayList<BirdSighting>();
+						sightings.put(entry.getKey(), list);
+					}
+
+					list.addAll(entry.getValue());
+				}
+			}
+
+			return sightings;
+		}
+	}
+
+	/**
+	 * Location of a bird's sightings inside a segment.
+	 */
+	private static class Entry {
+		private final int offset;
+		private final int count;
+
+		public Entry(int offset, int count) {
+			this.offset = offset;
+			this.count = count;
+		}
+	}
+
+	/**
+	 * A single immutable segment. Until it is written, its sightings are
+	 * kept in memory.
+	 *
+	 * File layout: magic, version, min date, max date, bird count, then a
+	 * directory of (name, offset, sighting count) followed by the date
+	 * ordered (date, location) records of every bird.
+	 */
+	private static class Segment {
+		private final long run;
+		private volatile File file;
+		private volatile ByteBuffer buffer;
+		private volatile LinkedHashMap<String, ArrayList<BirdSighting>> pending = new LinkedHashMap<String, ArrayList<BirdSighting>>();
+		private volatile HashMap<String, Entry> directory = new HashMap<String, Entry>();
+		private long minDate = Long.MAX_VALUE;
+		private long maxDate = Long.MIN_VALUE;
+
+		public Segment(long run) {
+			this.run = run;
+		}
+
+		private void add(String name, BirdSighting sighting) {
+			ArrayList<BirdSighting> list = pending.get(name);
+			if(list == null) {
+				list = new ArrayList<BirdSighting>();
+				pending.put(name, list);
+				directory.put(name, null);
+			}
+
+			list.add(sighting);
+			minDate = Math.min(minDate, sighting.getDate().getTime());
+			maxDate = Math.max(maxDate, sighting.getDate().getTime());
+		}
+
+		private void write(File file) throws IOException {
+			/*
+			 * Directory size has to be known before the offsets.
+			 */
+			int directorySize = 0;
+			for(String name : pending.keySet())
+				directorySize += 4 + name.getBytes("UTF-8").length + 4 + 4;
+
+			int offset = 4 + 4 + 8 + 8 + 4 + directorySize;
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+			try {
+				out.writeInt(MAGIC);
+				out.writeInt(VERSION);
+				out.writeLong(minDate);
+				out.writeLong(maxDate);
+				out.writeInt(pending.size());
+
+				for(Map.Entry<String, ArrayList<BirdSighting>> entry : pending.entrySet()) {
+					writeString(out, entry.getKey());
+					out.writeInt(offset);
+					out.writeInt(entry.getValue().size());
+
+					for(BirdSighting sighting : entry.getValue())
+						offset += 8 + 4 + sighting.getLocation().getBytes("UTF-8").length;
+				}
+
+				for(ArrayList<BirdSighting> sightings : pending.values()) {
+					for(BirdSighting sighting : sightings) {
+						out.writeLong(sighting.getDate().getTime());
+						writeString(out, sighting.getLocation());
+					}
+				}
+			}
+			finally {
+				out.close();
+			}
+
+			map(file);
+		}
+
+		/**
+		 * Maps the segment file and reads its header & directory. Once
+		 * mapped, the in memory sightings are released.
+		 */
+		private void map(File file) throws IOException {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			MappedByteBuffer mapped;
+			try {
+				FileChannel channel = raf.getChannel();
+				mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			}
+			finally {
+				raf.close();
+			}
+
+			if(mapped.getInt() != MAGIC || mapped.getInt() != VERSION)
+				throw new IOException("'" + file.getName() + "' is not a valid cold segment.");
+
+			long min = mapped.getLong();
+			long max = mapped.getLong();
+			int count = mapped.getInt();
+
+			HashMap<String, Entry> entries = new HashMap<String, Entry>();
+			for(int i = 0; i < count; i++) {
+				String name = readString(mapped);
+				entries.put(name, new Entry(mapped.getInt(), mapped.getInt()));
+			}
+
+			minDate = min;
+			maxDate = max;
+			directory = entries;
+			buffer = mapped;
+			this.file = file;
+			pending = null;
+		}
+
+		private void collect(String name, long start, long end, ArrayList<BirdSighting> result) {
+			/*
+			 * Read pending before buffer, map() sets them in the opposite
+			 * order so one of them is always available.
+			 */
+			LinkedHashMap<String, ArrayList<BirdSighting>> sightings = pending;
+			ByteBuffer mapped = buffer;
+			if(mapped == null) {
+				for(BirdSighting sighting : sightings.get(name)) {
+					long date = sighting.getDate().getTime();
+					if(date >= end)
+						break;
+
+					if(date > start)
+						result.add(sighting);
+				}
+
+				return;
+			}
+
+			/*
+			 * Duplicate so that each query has its own position.
+			 */
+			Entry entry = directory.get(name);
+			if(entry == null)
+				return;
+			
+			ByteBuffer in = mapped.duplicate();
+			in.position(entry.offset);
+			for(int i = 0; i < entry.count; i++) {
+				long date = in.getLong();
+				if(date >= end)
+					break;
+
+				String location = readString(in);
+				if(date > start)
+					result.add(new BirdSighting(name, location, new Date(date)));
+			}
+		}
+
+		private static void writeString(DataOutputStream out, String value) throws IOException {
+			byte[] bytes = value.getBytes("UTF-8");
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+
+		private static String readString(ByteBuffer in) {
+			byte[] bytes = new byte[in.getInt()];
+			in.get(bytes);
+			try {
+				return new String(bytes, "UTF-8");
+			}
+			catch (IOException e) {
+				throw new IllegalStateException(e);
+			}
+		}
+	}
+}
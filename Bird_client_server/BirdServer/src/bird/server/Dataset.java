@@ -0,0 +1,1619 @@
+package bird.server;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXParseException;
+
+import bird.model.Bird;
+import bird.model.BirdQuery;
+import bird.model.BirdSighting;
+import bird.model.Constants;
+import bird.model.ExportResponse;
+
+/**
+ * A dataset of the server, the birds of one region or tenant. It has its own
+ * model with the indexes and sketches on it, and its own data folder with
+ * the journal, the cold store and the save model, reclaimer & expiry threads
+ * which keep it.
+ *
+ * Datasets share the workers, the network front end, the sightings cache,
+ * the sighting deduplicator and the I/O throttle of the server. The workers
+ * hand each request to the dataset it names.
+ */
+class Dataset {
+	
+	/**
+	 * Queued after the last removal to tell the reclaimer to stop.
+	 */
+	private static final String STOP_RECLAIM = new String("stop");
+	/**
+	 * Segments smaller than this are never worth compacting on size alone.
+	 */
+	private static final long COMPACTION_MIN_BYTES = 1048576;
+	/**
+	 * Birds whose sightings are expired per lock on model.
+	 */
+	private static final int EXPIRY_BATCH = 256;
+	/**
+	 * Bytes of a file sent to an export at a time.
+	 */
+	private static final long EXPORT_CHUNK = 262144;
+	
+	private static final String COLD_FOLDER = "cold";
+	
+	private static final String BIRD_ROOT_NODE = "birds";
+	private static final String BIRD_NODE = "bird";
+	private static final String BIRD_NAME_ATTRIBUTE = "name";
+	private static final String BIRD_COLOR_ATTRIBUTE = "color";
+	private static final String BIRD_WEIGHT_ATTRIBUTE = "weight";
+	private static final String BIRD_HEIGHT_ATTRIBUTE = "height";
+	private static final String BASE_SEGMENT_ATTRIBUTE = "segment";
+	private static final String BASE_COLD_RUN_ATTRIBUTE = "cold";
+	private static final String DROPPED_NODE = "dropped";
+	private static final String DROPPED_NAME_ATTRIBUTE = "name";
+	private static final String DROPPED_RUN_ATTRIBUTE = "run";
+	
+	private static final String SIGHTING_ROOT_NODE = "sightings";
+	private static final String SIGHTING_BIRD_NODE = "bird";
+	private static final String SIGHTING_NODE = "sighting";
+	private static final String SIGHTINGS_NAME_ATTRIBUTE = "name";
+	private static final String SIGHTINGS_LOCATION_ATTRIBUTE = "location";
+	private static final String SIGHTINGS_DATE_ATTRIBUTE = "date";
+	
+	private final String id;
+	private final String label;
+	private final File serverDataFolder;
+	private final int hotDays;
+	private final int snapshotGenerations;
+	private SnapshotManager snapshots;
+	private File birdsFile;
+	private File sightingsFile;
+	/**
+	 * Last segment folded into the base files in use.
+	 */
+	private long baseSegment = 0;
+	
+	private Hashtable<String, Bird> model = new Hashtable<String, Bird>();
+	private ChangeJournal journal;
+	private ColdStore coldStore;
+	private Tombstones tombstones;
+	private final BirdIndex birdIndex = new BirdIndex();
+	private final NameIndex nameIndex = new NameIndex();
+	private final SightingSketches sightingSketches = new SightingSketches();
+	private final LinkedBlockingQueue<String> reclaimRequests = new LinkedBlockingQueue<String>();
+	private final SightingsCache sightingsCache;
+	private final SightingDeduplicator deduplicator;
+	private volatile boolean compactionRequired = false;
+	/**
+	 * Compaction rewrites the snapshot files under the write lock, exports
+	 * open them under the read lock.
+	 */
+	private final ReentrantReadWriteLock snapshotLock = new ReentrantReadWriteLock();
+	/**
+	 * Exports write a checkpoint as well as the save model thread, the
+	 * segments are written one after the other.
+	 */
+	private final Object checkpointLock = new Object();
+	private long baseColdRun = 0;
+	
+	private final Lifecycle lifecycle;
+	private final int saveInterval;
+	private final int compactionSegments;
+	private final int retentionDays;
+	private final int retentionSightings;
+	private final boolean retentionArchive;
+	private final int expiryInterval;
+	private long expiredMemory;
+	private long expiredCold;
+	private long archived;
+	private final CheckpointScheduler checkpointScheduler;
+	private final IoThrottle ioThrottle;
+	private SaveModelThread saveModelThread;
+	private ReclaimerThread reclaimerThread;
+	private ExpiryThread expiryThread;
+	
+	/**
+	 * @param id name of the dataset, empty for the default one.
+	 */
+	public Dataset(String id, ServerConfig config, File serverDataFolder, Lifecycle lifecycle,
+			SightingsCache sightingsCache, SightingDeduplicator deduplicator, IoThrottle ioThrottle) {
+		this.id = id;
+		this.label = id.isEmpty() ? "" : " of dataset '" + id + "'";
+		this.serverDataFolder = serverDataFolder;
+		this.lifecycle = lifecycle;
+		this.sightingsCache = sightingsCache;
+		this.deduplicator = deduplicator;
+		this.ioThrottle = ioThrottle;
+		this.hotDays = config.getInt(ServerConfig.HOT_DAYS);
+		this.saveInterval = config.getInt(ServerConfig.SAVE_INTERVAL) * 1000;
+		this.compactionSegments = config.getInt(ServerConfig.COMPACTION_SEGMENTS);
+		this.snapshotGenerations = config.getInt(ServerConfig.SNAPSHOT_GENERATIONS);
+		this.retentionDays = config.getInt(ServerConfig.RETENTION_DAYS);
+		this.retentionSightings = config.getInt(ServerConfig.RETENTION_SIGHTINGS);
+		this.retentionArchive = config.getInt(ServerConfig.RETENTION_ARCHIVE) != 0;
+		this.expiryInterval = config.getInt(ServerConfig.EXPIRY_INTERVAL) * 1000;
+		this.checkpointScheduler = new CheckpointScheduler(config.getInt(ServerConfig.CHECKPOINT_CHANGES),
+				config.getInt(ServerConfig.CHECKPOINT_BYTES) * 1024L, config.getInt(ServerConfig.CHECKPOINT_DELAY) * 1000L);
+		
+		String suffix = id.isEmpty() ? "" : " - " + id;
+		this.saveModelThread = new SaveModelThread("Save Model Thread" + suffix);
+		this.reclaimerThread = new ReclaimerThread("Reclaimer Thread" + suffix);
+		this.expiryThread = new ExpiryThread("Expiry Thread" + suffix);
+	}
+	
+	public String getId() {
+		return id;
+	}
+	
+	/**
+	 * Starts the save model, reclaimer & expiry threads, once the model has
+	 * been created.
+	 */
+	public void start() {
+		saveModelThread.start();
+		
+		/*
+		 * Reclaimer starts with the removals which are still hiding cold
+		 * sightings.
+		 */
+		reclaimRequests.addAll(coldStore.getDropped().keySet());
+		reclaimerThread.start();
+		
+		/*
+		 * Expiry thread does nothing unless a retention is set.
+		 */
+		expiryThread.start();
+	}
+	
+	/**
+	 * Stops the save model thread, right away unless it is in the middle of
+	 * writing, and the expiry thread between two batches. Returns false if
+	 * they are still running at the deadline, their files are committed
+	 * only once complete so they are left to finish.
+	 */
+	public boolean stopSaving(long deadline) {
+		checkpointScheduler.stop();
+		expiryThread.shutdown();
+		return Lifecycle.join(new Thread[] { saveModelThread, expiryThread }, deadline);
+	}
+	
+	/**
+	 * Stops the reclaimer once it has finished the removals made so far.
+	 */
+	public void stopReclaiming() {
+		reclaimRequests.add(STOP_RECLAIM);
+		Lifecycle.join(new Thread[] { reclaimerThread }, Long.MAX_VALUE);
+	}
+	
+	/**
+	 * Adds the lines of the stats request about this dataset.
+	 */
+	public void appendStats(StringBuilder stats) {
+		stats.append("Birds: ").append(model.size()).append('\n');
+		synchronized (this) {
+			stats.append("Retention: expired (memory) = ").append(expiredMemory)
+					.append(", expired (cold) = ").append(expiredCold)
+					.append(", archived = ").append(archived).append('\n');
+		}
+		stats.append("Checkpoint: pending changes = ").append(checkpointScheduler.getChanges())
+				.append(", pending bytes = ").append(checkpointScheduler.getBytes()).append('\n');
+	}
+	
+	/**
+	 * Reads the data folder into the model. Returns false if it can not be
+	 * used.
+	 */
+	public boolean createModel() {
+		System.out.println("Creating Model" + label + " ...");
+		
+		snapshots = new SnapshotManager(serverDataFolder, snapshotGenerations);
+		if(!snapshots.open())
+			return false;
+		
+		SnapshotManager.Generation[] generations = snapshots.getGenerations();
+		SnapshotManager.Generation generation = null;
+		for(SnapshotManager.Generation candidate : generations) {
+			if(snapshots.isValid(candidate)) {
+				generation = candidate;
+				break;
+			}
+			
+			System.err.println("Snapshot generation " + candidate.getGeneration() + label + " is damaged.");
+		}
+		
+		if(generations.length > 0 && generation == null) {
+			System.err.println("No snapshot generation" + label + " is complete, exiting");
+			return false;
+		}
+		
+		coldStore = new ColdStore(new File(serverDataFolder, COLD_FOLDER));
+		if(generation == null) {
+			/*
+			 * Segments were written on top of base files which are gone, so
+			 * they are meaningless now.
+			 */
+			new ChangeJournal(serverDataFolder, 0).deleteSegments(Long.MAX_VALUE);
+			coldStore.clear();
+			new Tombstones(serverDataFolder).clear();
+		}
+		else {
+			/*
+			 * The next save writes a generation to replace the damaged ones.
+			 */
+			if(generation != generations[0]) {
+				System.out.println("Falling back to snapshot generation " + generation.getGeneration() + label + ".");
+				compactionRequired = true;
+			}
+			
+			snapshots.recovered(generation);
+			birdsFile = snapshots.getBirdsFile();
+			sightingsFile = snapshots.getSightingsFile();
+			
+			/*
+			 * Only parse it if size is greater than 0.
+			 */
+			if(birdsFile.length() > 0) {
+				baseSegment = readBirdsFile();
+				if(baseSegment < 0)
+					return false;
+			}
+		}
+		
+		if(!coldStore.open(baseColdRun))
+			return false;
+		
+		/*
+		 * Only parse it if size is greater than 0.
+		 */
+		if(sightingsFile != null && sightingsFile.length() > 0 && !loadSightingsFile())
+			return false;
+		
+		/*
+		 * Replay the changes which were checkpointed after the base files
+		 * were written.
+		 */
+		journal = new ChangeJournal(serverDataFolder, baseSegment, checkpointScheduler, ioThrottle);
+		if(!journal.replay(model, coldStore, baseSegment))
+			return false;
+		
+		/*
+		 * Removals acknowledged after the last checkpoint.
+		 */
+		tombstones = new Tombstones(serverDataFolder);
+		int removed = tombstones.apply(model, coldStore, journal, baseSegment);
+		if(removed > 0)
+			System.out.println("Removed " + removed + " bird(s) recorded by tombstones" + label + ".");
+		
+		tombstones.prune(baseSegment);
+		
+		/*
+		 * Index the birds as they are after replay.
+		 */
+		birdIndex.rebuild(model.values());
+		nameIndex.rebuild(model.keySet());
+		fillSketches();
+		
+		/*
+		 * A new data folder gets its first generation right away, so the
+		 * segments written from now on have base files to apply to.
+		 */
+		if(generation == null) {
+			compactModel();
+			if(compactionRequired)
+				return false;
+		}
+		
+		System.out.println("Model" + label + " Created ...");
+		return true;
+	}
+	
+	/**
+	 * Counts the sightings recent enough for the sketches, hot and cold.
+	 */
+	private void fillSketches() {
+		Date start = SightingSketches.getStart();
+		ArrayList<BirdSighting> sightings = new ArrayList<BirdSighting>();
+		for(Bird bird : model.values()) {
+			for(BirdSighting sighting : bird.getSightings()) {
+				if(sighting.getDate() != null && !sighting.getDate().before(start))
+					sightings.add(sighting);
+			}
+		}
+		
+		coldStore.collect(model.keySet(), new Date(start.getTime() - 1), new Date(Long.MAX_VALUE), sightings, new Deadline(TimeUnit.DAYS.toMillis(1)));
+		
+		for(BirdSighting sighting : sightings)
+			sightingSketches.sightingAdded(sighting.getName(), sighting.getLocation(), sighting.getDate());
+	}
+	
+	/**
+	 * Reads birds.xml and returns the last segment folded into it, or -1 if
+	 * the file could not be read.
+	 */
+	private long readBirdsFile() {
+		long baseSegment = 0;
+		try {
+			DocumentBuilderFactory docBuilderFactory = DocumentBuilderFactory.newInstance();
+			DocumentBuilder docBuilder = docBuilderFactory.newDocumentBuilder();
+			Document doc = docBuilder.parse(birdsFile);
+			doc.getDocumentElement().normalize();
+			
+			String value = doc.getDocumentElement().getAttribute(BASE_SEGMENT_ATTRIBUTE);
+			if(!value.isEmpty())
+				baseSegment = Long.parseLong(value);
+			
+			/*
+			 * Cold segments of this run and before are part of the model.
+			 */
+			value = doc.getDocumentElement().getAttribute(BASE_COLD_RUN_ATTRIBUTE);
+			if(!value.isEmpty())
+				baseColdRun = Long.parseLong(value);
+			
+			/*
+			 * Removed birds whose sightings are still in the cold segments.
+			 */
+			NodeList droppedNodes = doc.getElementsByTagName(DROPPED_NODE);
+			for(int i = 0; i < droppedNodes.getLength(); i++) {
+				Element droppedElement = (Element) droppedNodes.item(i);
+				coldStore.birdDropped(droppedElement.getAttribute(DROPPED_NAME_ATTRIBUTE), Long.parseLong(droppedElement.getAttribute(DROPPED_RUN_ATTRIBUTE)));
+			}
+
+			NodeList birdNodes = doc.getElementsByTagName(BIRD_NODE);
+			for (int i = 0; i < birdNodes.getLength(); i++) {
+
+				Node node = birdNodes.item(i);
+				if (node.getNodeType() != Node.ELEMENT_NODE)
+					continue;
+					
+				Element birdElement = (Element) node;
+				
+				/*
+				 * Get name, if null or empty, skip it.
+				 */
+				String name = birdElement.getAttribute(BIRD_NAME_ATTRIBUTE);
+				if(name == null || name.isEmpty()) {
+					System.err.println("'" + BIRD_NAME_ATTRIBUTE + "' is missing or contains empty value, skipping.");
+					continue;
+				}
+					
+				String color = birdElement.getAttribute(BIRD_COLOR_ATTRIBUTE);
+				float weight = 0;
+				float height = 0;
+				
+				/*
+				 * Parse weight.
+				 */
+				value = birdElement.getAttribute(BIRD_WEIGHT_ATTRIBUTE);
+				try {
+					weight = Float.parseFloat(value);
+				}
+				catch(NumberFormatException e){
+					System.err.println("'" + BIRD_WEIGHT_ATTRIBUTE + "' attribute does not contain valid value for bird '" + name + "'.");
+				}
+				
+				/*
+				 * Parse height.
+				 */
+				value = birdElement.getAttribute(BIRD_HEIGHT_ATTRIBUTE);
+				try {
+					height = Float.parseFloat(value);
+				}
+				catch(NumberFormatException e){
+					System.err.println("'" + BIRD_HEIGHT_ATTRIBUTE + "' attribute does not contain valid value for bird '" + name + "'.");
+				}
+				
+				if(model.containsKey(name)) {
+					System.err.println("'" + name + "' bird is already present, skipping.");
+					continue;
+				}
+					
+				model.put(name, new Bird(name, color, weight, height));
+			}
+		} 
+		catch (SAXParseException err) {
+			System.err.println("Parsing error:" + " line - " + err.getLineNumber() + ", uri - " + err.getSystemId());
+			System.err.println("Message: " + err.getMessage());
+			return -1;
+		} 
+		catch (Exception e) {
+			System.err.println(e.getMessage());
+			return -1;
+		}
+		
+		return baseSegment;
+	}
+
+	/**
+	 * Loads sightings.xml on all the cores, files which can not be split are
+	 * read sequentially.
+	 */
+	private boolean loadSightingsFile() {
+		try {
+			if(new SightingsLoader(sightingsFile, Runtime.getRuntime().availableProcessors()).load(model))
+				return true;
+		} 
+		catch (IOException e) {
+			System.err.println(e.getMessage());
+		}
+		
+		return readSightingsFile();
+	}
+	
+	private boolean readSightingsFile() {
+		try {
+			DocumentBuilderFactory docBuilderFactory = DocumentBuilderFactory.newInstance();
+			DocumentBuilder docBuilder = docBuilderFactory.newDocumentBuilder();
+			Document doc = docBuilder.parse(sightingsFile);
+			doc.getDocumentElement().normalize();
+
+			NodeList birdNodes = doc.getElementsByTagName(SIGHTING_BIRD_NODE);
+			for (int i = 0; i < birdNodes.getLength(); i++) {
+
+				Node birdNode = birdNodes.item(i);
+				if (birdNode.getNodeType() != Node.ELEMENT_NODE)
+					continue;
+					
+				Element birdElement = (Element) birdNode;
+				
+				/*
+				 * Get name attribute. If name is empty/missing, skip this node.
+				 */
+				String name = birdElement.getAttribute(SIGHTINGS_NAME_ATTRIBUTE);
+				if(name == null || name.isEmpty()) {
+					System.err.println("Sighting record with empty/missing bird name, skipping.");
+					continue;
+				}
+				
+				/*
+				 * Get bird object from the model. If it is not present, skip this node.
+				 */
+				Bird bird = model.get(name);
+				if(bird == null) {
+					System.err.println("Bird '" + name + "' does not present in birds list, skipping.");
+					continue;
+				}
+				
+				/*
+				 * Get sighting nodes.
+				 */
+				NodeList sightingNodes = birdElement.getElementsByTagName(SIGHTING_NODE);
+				for(int j = 0; j < sightingNodes.getLength(); j++) {
+					Node sightingNode = sightingNodes.item(j);
+					if(sightingNode.getNodeType() != Node.ELEMENT_NODE)
+						continue;
+					
+					Element sightingElement = (Element) sightingNode;
+					
+					/*
+					 * Get location.
+					 */
+					String location = sightingElement.getAttribute(SIGHTINGS_LOCATION_ATTRIBUTE);
+					Date date = null;
+					
+					/*
+					 * Parse weight.
+					 */
+					String value = sightingElement.getAttribute(SIGHTINGS_DATE_ATTRIBUTE);
+					if(Server.validateDateAndTime(value))
+						date = DateFormat.getInstance().parse(value);
+					else
+						System.err.println("'" + SIGHTINGS_DATE_ATTRIBUTE + "' attribute does not contain valid value for bird '" + name + "'.");
+					
+					/*
+					 * Add sighting to model.
+					 */
+					bird.addSighting(location, date);
+				}
+			}
+		} 
+		catch (SAXParseException err) {
+			System.err.println("Parsing error" + ", line " + err.getLineNumber() + ", uri " + err.getSystemId());
+			System.err.println(" " + err.getMessage());
+			return false;
+		} 
+		catch (Exception e) {
+			System.err.println(e.getMessage());
+			return false;
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Writes only the changes made since the last checkpoint to a new segment
+	 * file. Does nothing if the model has not changed. Returns false if the
+	 * changes are only in memory, until the next compaction.
+	 */
+	public boolean checkpointModel() {
+		synchronized (checkpointLock) {
+			ChangeJournal.Checkpoint checkpoint;
+			synchronized (model) {
+				checkpoint = journal.drain();
+			}
+			
+			if(checkpoint == null) {
+				System.out.println("Model" + label + " has not changed, skipping checkpoint.");
+				return !compactionRequired;
+			}
+			
+			System.out.println("Writing checkpoint " + checkpoint.getSegment() + " with " + checkpoint.getBirdCount() + " changed bird(s)" + label + " ...");
+			
+			/*
+			 * If the changes could not be written, they are only in memory now.
+			 * Force a full save so they reach the disk.
+			 */
+			if(!journal.write(checkpoint)) {
+				compactionRequired = true;
+				System.err.println("Unable to write checkpoint " + checkpoint.getSegment() + ", model will be compacted.");
+				return false;
+			}
+			
+			return true;
+		}
+	}
+	
+	/**
+	 * Returns true if replaying the segments has become more expensive than
+	 * rewriting the base files.
+	 */
+	private boolean isCompactionDue() {
+		if(compactionRequired || journal.segmentCount(baseSegment) >= compactionSegments)
+			return true;
+		
+		long segmentBytes = journal.segmentBytes(baseSegment);
+		return segmentBytes > COMPACTION_MIN_BYTES && segmentBytes > snapshots.getSize();
+	}
+	
+	/**
+	 * Writes the next generation of birds.xml & sightings.xml from the
+	 * complete model and deletes the segments no retained generation needs.
+	 */
+	private void compactModel() {
+		/*
+		 * Exports must not read the files while they are being rewritten.
+		 */
+		snapshotLock.writeLock().lock();
+		try {
+			System.out.println("Compacting Model" + label + " ...");
+		
+			ChangeJournal.Checkpoint checkpoint = null;
+			long baseSegment = 0;
+			long coldRun = 0;
+		
+			try {
+				DocumentBuilderFactory docFactory = DocumentBuilderFactory.newInstance();
+				DocumentBuilder docBuilder = docFactory.newDocumentBuilder();
+
+				/*
+				 * Create document and root element for birds.
+				 */
+				Document birdDoc = docBuilder.newDocument();
+				Element birdRootElement = birdDoc.createElement(BIRD_ROOT_NODE);
+				birdDoc.appendChild(birdRootElement);
+			
+				/*
+				 * Create document and root element for sightings.
+				 */
+				Document sightingsDoc = docBuilder.newDocument();
+				Element sightingsRootElement = sightingsDoc.createElement(SIGHTING_ROOT_NODE);
+				sightingsDoc.appendChild(sightingsRootElement);
+			
+				synchronized (model) {
+					/*
+					 * The pending changes are also part of the documents being
+					 * built, so the base files cover everything up to this
+					 * segment.
+					 */
+					checkpoint = journal.drain();
+					baseSegment = journal.getLastSegment();
+					birdRootElement.setAttribute(BASE_SEGMENT_ATTRIBUTE, Long.toString(baseSegment));
+				
+					/*
+					 * Demoted sightings are not written below, so the base files
+					 * commit the cold runs done so far.
+					 */
+					coldRun = coldStore.getLastRun();
+					birdRootElement.setAttribute(BASE_COLD_RUN_ATTRIBUTE, Long.toString(coldRun));
+					for(Map.Entry<String, Long> entry : coldStore.getDropped().entrySet()) {
+						Element droppedElement = birdDoc.createElement(DROPPED_NODE);
+						birdRootElement.appendChild(droppedElement);
+						droppedElement.setAttribute(DROPPED_NAME_ATTRIBUTE, entry.getKey());
+						droppedElement.setAttribute(DROPPED_RUN_ATTRIBUTE, Long.toString(entry.getValue()));
+					}
+				
+					for(Bird bird : model.values()) {
+						/*
+						 * Create bird element.
+						 */
+						Element birdElement = birdDoc.createElement(BIRD_NODE);
+						birdRootElement.appendChild(birdElement);
+
+						/*
+						 * Set attributes and their values for birdElement.
+						 */
+						birdElement.setAttribute(BIRD_NAME_ATTRIBUTE, bird.getName());
+						birdElement.setAttribute(BIRD_COLOR_ATTRIBUTE, bird.getColor());
+						birdElement.setAttribute(BIRD_WEIGHT_ATTRIBUTE, Float.toString(bird.getWeight()));
+						birdElement.setAttribute(BIRD_HEIGHT_ATTRIBUTE,  Float.toString(bird.getHeight()));
+					
+						/*
+						 * Write sightings.
+						 */
+						BirdSighting[] sightings = bird.getSightings();
+						if(sightings.length < 1)
+							continue;
+					
+						Element sightingBirdElemnet = sightingsDoc.createElement(SIGHTING_BIRD_NODE);
+						sightingsRootElement.appendChild(sightingBirdElemnet);
+						sightingBirdElemnet.setAttribute(SIGHTINGS_NAME_ATTRIBUTE, bird.getName());
+					
+						for(BirdSighting bs : sightings) {
+							/*
+							 * Now create sighting element.
+							 */
+							Element sightingElement = sightingsDoc.createElement(SIGHTING_NODE);
+							sightingBirdElemnet.appendChild(sightingElement);
+						
+							/*
+							 * Set attributes.
+							 */
+							sightingElement.setAttribute(SIGHTINGS_LOCATION_ATTRIBUTE, bs.getLocation());
+							if(bs.getDate() != null)
+								sightingElement.setAttribute(SIGHTINGS_DATE_ATTRIBUTE, DateFormat.getInstance().format(bs.getDate()));
+						}
+					}
+				}
+
+				/*
+				 * Write the pending changes first, so they are not lost if the
+				 * base files can not be written.
+				 */
+				if(checkpoint != null)
+					journal.write(checkpoint);
+			
+				/*
+				 * Write the content into the birds & sightings files of the
+				 * next generation.
+				 */
+				snapshots.write(birdDoc, sightingsDoc, baseSegment, ioThrottle);
+				birdsFile = snapshots.getBirdsFile();
+				sightingsFile = snapshots.getSightingsFile();
+				this.baseSegment = baseSegment;
+			
+				/*
+				 * Older generations are fallen back to if this one is found
+				 * damaged, they need the segments written since.
+				 */
+				journal.deleteSegments(snapshots.getOldestBaseSegment());
+				tombstones.prune(baseSegment);
+				coldStore.commit(coldRun);
+				
+				/*
+				 * Segments which were pending at removal could not be
+				 * reclaimed then.
+				 */
+				reclaimRequests.addAll(coldStore.getDropped().keySet());
+				compactionRequired = false;
+			}
+			catch (Exception e) {
+				System.err.println(e.getMessage());
+				compactionRequired = true;
+			}
+		
+			System.out.println("Compact Model" + label + " Completed...");
+		}
+		finally {
+			snapshotLock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Moves the sightings which are older than the hot horizon to the cold
+	 * store. Runs once the horizon enters a new month and is followed by a
+	 * compaction, which commits the new cold segments.
+	 */
+	private void demoteModel() {
+		if(hotDays < 1)
+			return;
+		
+		Date cutoff = ColdStore.cutoff(hotDays);
+		if(!coldStore.isDemotionDue(cutoff))
+			return;
+		
+		ColdStore.Run run;
+		synchronized (model) {
+			run = coldStore.newRun();
+			for(Bird bird : model.values())
+				run.add(bird.getName(), bird.removeSightingsBefore(cutoff));
+			
+			/*
+			 * Queries are served from memory until the run is written.
+			 */
+			coldStore.register(run);
+		}
+		
+		if(run.getSightingCount() < 1) {
+			coldStore.demotionDone(cutoff);
+			return;
+		}
+		
+		System.out.println("Moving " + run.getSightingCount() + " sighting(s) before " + DateFormat.getInstance().format(cutoff) + " to cold store" + label + " ...");
+		
+		if(!coldStore.write(run)) {
+			/*
+			 * Give the sightings back to the birds which are still present.
+			 */
+			synchronized (model) {
+				coldStore.unregister(run);
+				for(Map.Entry<String, ArrayList<BirdSighting>> entry : run.getSightings().entrySet()) {
+					Bird bird = model.get(entry.getKey());
+					if(bird == null)
+						continue;
+					
+					for(BirdSighting bs : entry.getValue())
+						bird.addSighting(bs.getLocation(), bs.getDate());
+				}
+			}
+			
+			System.err.println("Unable to write cold segments, sightings are kept in memory.");
+			return;
+		}
+		
+		coldStore.demotionDone(cutoff);
+		compactModel();
+	}
+	
+	/**
+	 * Takes the sightings past the retention out of the birds and the cold
+	 * store, writing them to the archive first unless it is turned off. The
+	 * birds are done in small batches so requests are not held up long.
+	 * 
+	 * The removals are journaled one sighting at a time, as an update does,
+	 * so the next checkpoint keeps them without compacting the model.
+	 */
+	private void expireSightings() {
+		if(retentionDays < 1 && retentionSightings < 1)
+			return;
+		
+		Date cutoff = retentionDays > 0 ? new Date(System.currentTimeMillis() - retentionDays * 24L * 60 * 60 * 1000) : null;
+		SightingArchive archive = retentionArchive ? new SightingArchive(serverDataFolder) : null;
+		ArrayList<String> names;
+		synchronized (model) {
+			names = new ArrayList<String>(model.keySet());
+		}
+		
+		long memory = 0;
+		int cold = 0;
+		try {
+			for(int i = 0; i < names.size() && lifecycle.isRunning(); i += EXPIRY_BATCH) {
+				HashMap<String, ArrayList<BirdSighting>> batch = new HashMap<String, ArrayList<BirdSighting>>();
+				int count = 0;
+				synchronized (model) {
+					for(String name : names.subList(i, Math.min(names.size(), i + EXPIRY_BATCH))) {
+						Bird bird = model.get(name);
+						if(bird == null)
+							continue;
+						
+						ArrayList<BirdSighting> removed = new ArrayList<BirdSighting>();
+						if(cutoff != null)
+							Collections.addAll(removed, bird.removeSightingsBefore(cutoff));
+						if(retentionSightings > 0)
+							Collections.addAll(removed, bird.removeOldestSightings(retentionSightings));
+						
+						if(!removed.isEmpty()) {
+							for(BirdSighting bs : removed)
+								journal.sightingRemoved(name, bs.getLocation(), bs.getDate());
+							
+							batch.put(name, removed);
+							sightingsCache.sightingsRemoved(id, name);
+							count += removed.size();
+						}
+					}
+				}
+				
+				if(batch.isEmpty())
+					continue;
+				
+				if(archive != null) {
+					try {
+						for(ArrayList<BirdSighting> removed : batch.values())
+							archive.write(removed);
+						archive.sync();
+					}
+					catch (IOException e) {
+						/*
+						 * Give the sightings back to the birds which are still
+						 * present.
+						 */
+						synchronized (model) {
+							for(Map.Entry<String, ArrayList<BirdSighting>> entry : batch.entrySet()) {
+								Bird bird = model.get(entry.getKey());
+								if(bird == null)
+									continue;
+								
+								for(BirdSighting bs : entry.getValue()) {
+									bird.addSighting(bs.getLocation(), bs.getDate());
+									journal.sightingAdded(entry.getKey(), bs.getLocation(), bs.getDate());
+								}
+								sightingsCache.sightingsRemoved(id, entry.getKey());
+							}
+						}
+						
+						throw e;
+					}
+				}
+				
+				memory += count;
+			}
+			
+			if(cutoff != null && lifecycle.isRunning()) {
+				cold = coldStore.expire(cutoff.getTime(), archive);
+				if(cold > 0) {
+					synchronized (model) {
+						sightingsCache.sightingsExpired(id, cutoff);
+					}
+				}
+			}
+		}
+		catch (IOException e) {
+			System.err.println("Unable to archive expired sightings, the rest are kept: " + e.getMessage());
+		}
+		finally {
+			if(archive != null) {
+				try {
+					archive.close();
+				}
+				catch (IOException e) {
+					System.err.println("Unable to close the archive: " + e.getMessage());
+				}
+			}
+		}
+		
+		synchronized (this) {
+			expiredMemory += memory;
+			expiredCold += cold;
+			if(archive != null)
+				archived += archive.getCount();
+		}
+		
+		if(memory + cold > 0)
+			System.out.println("Expired " + memory + " sighting(s) in memory and " + cold + " in cold store" + label
+					+ (archive != null && archive.getFile() != null ? ", archived to " + archive.getFile().getName() : "") + ".");
+	}
+	
+	public void processAddBirdRequest(HashMap<String, Object> request, ObjectOutputStream out) throws IOException {
+		String birdName = (String) request.get(Constants.BIRD_NAME);
+		if(birdName == null || birdName.isEmpty()) {
+			out.writeObject("Bird name can not be empty.");
+			return;
+		}
+		
+		String birdColor = (String) request.get(Constants.BIRD_COLOR);
+		float birdWeight = (Float) request.get(Constants.BIRD_WEIGHT);
+		float birdHeight = (Float) request.get(Constants.BIRD_HEIGHT);
+		
+		String message = null;
+		synchronized (model) {
+			if(model.containsKey(birdName))
+				message = "Bird '" + birdName + "' is already present.";
+			else {
+				Bird bird = new Bird(birdName, birdColor, birdWeight, birdHeight);
+				model.put(birdName, bird);
+				birdIndex.birdAdded(bird);
+				nameIndex.nameAdded(birdName);
+				journal.birdAdded(bird);
+				sightingsCache.birdAdded(id, birdName);
+			}
+		}
+		
+		if(message == null)
+			message = "Record has been added successfully.";
+		
+		out.writeObject(message);
+	}
+	
+	public void processAddBirdSightingRequest(HashMap<String, Object> request, ObjectOutputStream out) throws IOException {
+		String birdName = (String) request.get(Constants.BIRD_NAME);
+		if(birdName == null || birdName.isEmpty()) {
+			out.writeObject("Bird name can not be empty.");
+			return;
+		}
+		
+		String birdSightingLocation = (String) request.get(Constants.BIRD_SIGHTING_LOCATION);
+		Date birdSightingDate = (Date) request.get(Constants.BIRD_SIGHTING_DATE);
+		String key = SightingDeduplicator.key(id, (String) request.get(Constants.REQUEST_ID), birdName, birdSightingLocation, birdSightingDate);
+		
+		String message = null;
+		/*
+		 * Acquire lock on model because we are performing multiple
+		 * operations. A repeated submission is acknowledged like the
+		 * first one, without adding it again.
+		 */
+		synchronized (model) {
+			Bird bird = model.get(birdName);
+			if(bird == null)
+				message = "Bird '" + birdName + "' is not present.";
+			else if(!deduplicator.isDuplicate(key)) {
+				bird.addSighting(birdSightingLocation, birdSightingDate);
+				journal.sightingAdded(birdName, birdSightingLocation, birdSightingDate);
+				sightingsCache.sightingAdded(id, birdName, birdSightingDate);
+				sightingSketches.sightingAdded(birdName, birdSightingLocation, birdSightingDate);
+				deduplicator.added(key);
+			}
+		}
+		
+		if(message == null)
+			message = "Record has been added successfully.";
+		
+		out.writeObject(message);
+	}
+	
+	public void processListBirdsRequest(HashMap<String, Object> request, ObjectOutputStream out, ResponseCompressor compressor) throws IOException {
+		Bird[] birds;
+		synchronized (model) {
+			birds = model.values().toArray(new Bird[model.size()]);
+		}
+		
+		writeListing(request, birds, out, compressor);
+	}
+	
+	/**
+	 * Returns the birds matching the query, read from the attribute
+	 * indexes.
+	 */
+	public void processQueryBirdsRequest(HashMap<String, Object> request, ObjectOutputStream out, ResponseCompressor compressor) throws IOException {
+		Object query = request.get(Constants.BIRD_QUERY);
+		if(!(query instanceof BirdQuery) || !BirdIndex.isValid((BirdQuery) query, 0)) {
+			out.writeObject("Bird query is missing or invalid.");
+			return;
+		}
+		
+		Bird[] birds;
+		synchronized (model) {
+			ArrayList<Bird> selected = birdIndex.select((BirdQuery) query, model);
+			birds = selected.toArray(new Bird[selected.size()]);
+		}
+		
+		writeListing(request, birds, out, compressor);
+	}
+	
+	/**
+	 * Returns the names closest to the text, found through the trigram
+	 * index. Only the candidates are picked under the lock.
+	 */
+	public void processSearchNamesRequest(HashMap<String, Object> request, ObjectOutputStream out, Deadline deadline) throws IOException {
+		String text = (String) request.get(Constants.BIRD_NAME);
+		if(text == null || text.isEmpty()) {
+			out.writeObject("Bird name can not be empty.");
+			return;
+		}
+		
+		Integer maxDistance = (Integer) request.get(Constants.MAX_DISTANCE);
+		Integer maxResults = (Integer) request.get(Constants.MAX_RESULTS);
+		if(maxDistance == null)
+			maxDistance = NameIndex.DEFAULT_MAX_DISTANCE;
+		
+		if(maxResults == null)
+			maxResults = NameIndex.DEFAULT_MAX_RESULTS;
+		
+		if(maxDistance < 0 || maxDistance > NameIndex.MAX_DISTANCE || maxResults < 1 || maxResults > NameIndex.MAX_RESULTS) {
+			out.writeObject("Distance should be between 0 and " + NameIndex.MAX_DISTANCE + ", results between 1 and " + NameIndex.MAX_RESULTS + ".");
+			return;
+		}
+		
+		ArrayList<String> candidates;
+		synchronized (model) {
+			candidates = nameIndex.candidates(text, maxDistance, deadline);
+		}
+		
+		out.writeObject(NameIndex.rank(text, candidates, maxDistance, maxResults, deadline));
+	}
+	
+	public void processListBirdsSightingsRequest(HashMap<String,Object> request, ObjectOutputStream out, Deadline deadline, ResponseCompressor compressor) throws IOException {
+		String birdNameRegex = (String) request.get(Constants.BIRD_NAME);
+		if(birdNameRegex == null || birdNameRegex.isEmpty()) {
+			out.writeObject(new BirdSighting[0]);
+			return;
+		}
+		
+		Date startDate = (Date) request.get(Constants.START_DATE);
+		Date endDate = (Date) request.get(Constants.END_DATE);
+		
+		/*
+		 * Serve repeated queries from the cache.
+		 */
+		BirdSighting[] result = sightingsCache.get(id, birdNameRegex, startDate, endDate);
+		if(result != null) {
+			writeListing(request, result, out, compressor);
+			return;
+		}
+		
+		/*
+		 * Match the names outside the lock on model, so a slow regular
+		 * expression does not hold up the other requests on the dataset.
+		 * The names are those of the last change to them.
+		 */
+		String[] allNames;
+		long version;
+		synchronized (model) {
+			allNames = nameIndex.getNames();
+			version = nameIndex.getVersion();
+		}
+		
+		Pattern namePattern = Pattern.compile(birdNameRegex);
+		Deadline.GuardedMatcher matcher = deadline.matcher(namePattern);
+		HashSet<String> names = new HashSet<String>();
+		for(String name : allNames) {
+			deadline.check();
+			if(matcher.matches(name))
+				names.add(name);
+		}
+		
+		synchronized (model) {
+			/*
+			 * Only the birds still present are listed. The model does not
+			 * change while we hold its lock, so it is read in place.
+			 */
+			ArrayList<Bird> birds = new ArrayList<Bird>(names.size());
+			int count = 0;
+			Iterator<String> iterator = names.iterator();
+			while(iterator.hasNext()) {
+				Bird bird = model.get(iterator.next());
+				if(bird == null) {
+					iterator.remove();
+					continue;
+				}
+				
+				birds.add(bird);
+				count += bird.countSightings(startDate, endDate);
+			}
+			
+			/*
+			 * Take the sightings within the date range straight from the
+			 * ordered sightings of each bird.
+			 */
+			SortedSightings sightings = new SortedSightings(count);
+			for(Bird bird : birds)
+				sightings.addBird(bird, startDate, endDate);
+			
+			/*
+			 * Add the sightings from the cold segments overlapping the
+			 * date range.
+			 */
+			ArrayList<BirdSighting> cold = new ArrayList<BirdSighting>();
+			coldStore.collect(names, startDate, endDate, cold, deadline);
+			sightings.addUnordered(cold);
+			
+			/*
+			 * Put it in the cache within the lock, so no mutation can
+			 * slip in between building and caching the result. It is in
+			 * the order clients show it, so they do not sort it. A bird
+			 * added since the names were matched may be missing from it,
+			 * so it is not cached then.
+			 */
+			result = sightings.toArray();
+			if(nameIndex.getVersion() == version)
+				sightingsCache.put(id, birdNameRegex, namePattern, startDate, endDate, names, result);
+		}
+		
+		writeListing(request, result, out, compressor);
+	}
+	
+	/**
+	 * Writes a listing, compressed if the client accepts it and it is
+	 * large enough. Compression happens outside the model lock.
+	 */
+	private static void writeListing(HashMap<String, Object> request, Object[] listing, ObjectOutputStream out, ResponseCompressor compressor) throws IOException {
+		if(Boolean.TRUE.equals(request.get(Constants.ACCEPT_COMPRESSION)))
+			out.writeObject(compressor.compress(listing));
+		else
+			out.writeObject(listing);
+	}
+
+	public void processRemoveRequest(HashMap<String, Object> request, ObjectOutputStream out) throws IOException {
+		String birdName = (String) request.get(Constants.BIRD_NAME);
+		if(birdName == null || birdName.isEmpty()) {
+			out.writeObject("Bird name can not be empty.");
+			return;
+		}
+		
+		/*
+		 * Acquire lock on model so the removal and its journal record are
+		 * seen together by the checkpoint. The bird is gone for queries
+		 * from here on, its cold sightings are hidden until the reclaimer
+		 * takes them out.
+		 */
+		Bird bird;
+		long segment;
+		synchronized (model) {
+			bird = model.remove(birdName);
+			segment = journal.getLastSegment();
+			if(bird != null) {
+				birdIndex.birdRemoved(bird);
+				nameIndex.nameRemoved(birdName);
+				journal.birdRemoved(birdName);
+				coldStore.birdRemoved(birdName);
+				sightingsCache.birdRemoved(id, birdName);
+				sightingSketches.birdRemoved(birdName);
+			}
+		}
+		
+		if(bird == null) {
+			out.writeObject("Unable to remove. " + birdName + " is not present.");
+			return;
+		}
+		
+		/*
+		 * Make the removal durable before acknowledging it, outside the
+		 * lock so other requests do not wait on the disk. Without a
+		 * tombstone the removal is written with a checkpoint right away.
+		 */
+		boolean saved;
+		try {
+			tombstones.record(birdName, segment);
+			saved = true;
+		} 
+		catch (IOException e) {
+			System.err.println("Unable to record tombstone of '" + birdName + "', writing a checkpoint instead.");
+			saved = checkpointModel();
+		}
+		
+		if(!saved) {
+			out.writeObject("Bird '" + birdName + "' has been removed but could not be saved, it may be back after a restart.");
+			return;
+		}
+		
+		reclaimRequests.add(birdName);
+		out.writeObject("Successfully remove bird '" + birdName + "'");
+	}
+
+	/**
+	 * Deletes the bird's sightings between the two exclusive dates. The
+	 * slice is found by a binary search on the bird's sightings, and only
+	 * the cold segments of the range holding the bird are rewritten.
+	 */
+	public void processDeleteSightingsRequest(HashMap<String, Object> request, ObjectOutputStream out) throws IOException {
+		String birdName = (String) request.get(Constants.BIRD_NAME);
+		if(birdName == null || birdName.isEmpty()) {
+			out.writeObject("Bird name can not be empty.");
+			return;
+		}
+		
+		Date startDate = (Date) request.get(Constants.START_DATE);
+		Date endDate = (Date) request.get(Constants.END_DATE);
+		if(startDate == null || endDate == null || !startDate.before(endDate)) {
+			out.writeObject("Start date must be before end date.");
+			return;
+		}
+		
+		if(!model.containsKey(birdName)) {
+			out.writeObject("Bird '" + birdName + "' is not present.");
+			return;
+		}
+		
+		/*
+		 * Cold segments are rewritten first, outside the lock so other
+		 * requests do not wait on the disk.
+		 */
+		int deleted;
+		try {
+			deleted = coldStore.delete(birdName, startDate.getTime(), endDate.getTime(), null, 0);
+		}
+		catch (IOException e) {
+			System.err.println("Unable to delete cold sightings of '" + birdName + "', " + e.getMessage());
+			out.writeObject("Unable to delete the sightings, please try again.");
+			return;
+		}
+		
+		synchronized (model) {
+			Bird bird = model.get(birdName);
+			if(bird != null)
+				deleted += bird.removeSightings(startDate, endDate).length;
+			
+			/*
+			 * Journaled even if only cold sightings went, so a pending
+			 * one demoted meanwhile is not replayed.
+			 */
+			if(deleted > 0) {
+				journal.sightingsRemoved(birdName, startDate, endDate);
+				sightingsCache.sightingsRemoved(id, birdName);
+			}
+		}
+		
+		out.writeObject(deleted + " sighting(s) of '" + birdName + "' have been deleted.");
+	}
+	
+	/**
+	 * Replaces the sighting at the location on the date with one at the
+	 * new location or on the new date. The sighting is looked up in
+	 * memory first, then in the cold segments of its date.
+	 */
+	public void processUpdateSightingRequest(HashMap<String, Object> request, ObjectOutputStream out) throws IOException {
+		String birdName = (String) request.get(Constants.BIRD_NAME);
+		if(birdName == null || birdName.isEmpty()) {
+			out.writeObject("Bird name can not be empty.");
+			return;
+		}
+		
+		String location = (String) request.get(Constants.BIRD_SIGHTING_LOCATION);
+		Date date = (Date) request.get(Constants.BIRD_SIGHTING_DATE);
+		String newLocation = (String) request.get(Constants.NEW_LOCATION);
+		Date newDate = (Date) request.get(Constants.NEW_DATE);
+		if(newLocation == null && newDate == null) {
+			out.writeObject("New location or new date must be given.");
+			return;
+		}
+		
+		if(newLocation == null)
+			newLocation = location;
+		if(newDate == null)
+			newDate = date;
+		
+		String message = null;
+		BirdSighting removed = null;
+		synchronized (model) {
+			Bird bird = model.get(birdName);
+			if(bird == null)
+				message = "Bird '" + birdName + "' is not present.";
+			else {
+				removed = bird.removeSighting(location, date);
+				if(removed != null)
+					sightingReplaced(bird, location, date, newLocation, newDate);
+			}
+		}
+		
+		/*
+		 * Only dated sightings with a location are ever demoted.
+		 */
+		if(message == null && removed == null && location != null && date != null) {
+			int deleted;
+			try {
+				/*
+				 * A single one, like in memory, even if the bird was seen
+				 * more than once at the location on the date.
+				 */
+				deleted = coldStore.delete(birdName, date.getTime() - 1, date.getTime() + 1, location, 1);
+			}
+			catch (IOException e) {
+				System.err.println("Unable to update cold sighting of '" + birdName + "', " + e.getMessage());
+				out.writeObject("Unable to update the sighting, please try again.");
+				return;
+			}
+			
+			if(deleted > 0) {
+				synchronized (model) {
+					Bird bird = model.get(birdName);
+					if(bird != null)
+						sightingReplaced(bird, location, date, newLocation, newDate);
+				}
+			}
+			else
+				message = "Sighting of '" + birdName + "' is not present.";
+		}
+		else if(message == null && removed == null)
+			message = "Sighting of '" + birdName + "' is not present.";
+		
+		if(message == null)
+			message = "Record has been updated successfully.";
+		
+		out.writeObject(message);
+	}
+	
+	/**
+	 * Adds the new sighting in place of the removed one. Caller must hold
+	 * the lock on model.
+	 */
+	private void sightingReplaced(Bird bird, String location, Date date, String newLocation, Date newDate) {
+		String birdName = bird.getName();
+		bird.addSighting(newLocation, newDate);
+		journal.sightingRemoved(birdName, location, date);
+		journal.sightingAdded(birdName, newLocation, newDate);
+		sightingsCache.sightingsRemoved(id, birdName);
+		sightingSketches.sightingAdded(birdName, newLocation, newDate);
+	}
+	
+	/**
+	 * Answers from the sketches, in the same time whatever the number
+	 * of sightings.
+	 */
+	public void processSummaryRequest(HashMap<String, Object> request, ObjectOutputStream out) throws IOException {
+		String birdName = (String) request.get(Constants.BIRD_NAME);
+		Integer days = (Integer) request.get(Constants.DAYS);
+		Integer top = (Integer) request.get(Constants.MAX_RESULTS);
+		if(days == null)
+			days = SightingSketches.DEFAULT_DAYS;
+		
+		if(top == null)
+			top = NameIndex.DEFAULT_MAX_RESULTS;
+		
+		if(days < 1 || days > SightingSketches.MAX_DAYS || top < 1 || top > SightingSketches.MAX_TOP) {
+			out.writeObject("Days should be between 1 and " + SightingSketches.MAX_DAYS + ", results between 1 and " + SightingSketches.MAX_TOP + ".");
+			return;
+		}
+		
+		if(birdName != null && birdName.isEmpty())
+			birdName = null;
+		
+		Object response;
+		synchronized (model) {
+			if(birdName != null && !model.containsKey(birdName))
+				response = "Bird '" + birdName + "' is not present.";
+			else
+				response = sightingSketches.summarize(birdName, days, top, model);
+		}
+		
+		out.writeObject(response);
+	}
+	
+	/**
+	 * Sends the base files and the committed cold segments, which make
+	 * up a data folder the server can start from. The files go straight
+	 * from the disk to the socket.
+	 */
+	public void processExportRequest(ClientConnection connection) throws IOException {
+		ObjectOutputStream out = connection.getOutputStream();
+		
+		/*
+		 * The export is the generation in use with the segments written
+		 * since, nothing is compacted on the request path. The pending
+		 * changes go to a segment first, so the export has every
+		 * acknowledged change.
+		 */
+		checkpointModel();
+		if(compactionRequired) {
+			out.writeObject("Unable to take a snapshot, try again later.");
+			return;
+		}
+		
+		/*
+		 * A compaction may delete the files once the read lock is released,
+		 * the channels opened under it still read them.
+		 */
+		ArrayList<File> files = new ArrayList<File>();
+		ArrayList<String> paths = new ArrayList<String>();
+		FileChannel[] channels;
+		long[] lengths;
+		snapshotLock.readLock().lock();
+		try {
+			files.add(birdsFile);
+			paths.add(SnapshotManager.BIRD_FILE);
+			files.add(sightingsFile);
+			paths.add(SnapshotManager.SIGHTING_FILE);
+			for(File coldFile : coldStore.getCommittedFiles()) {
+				files.add(coldFile);
+				paths.add(COLD_FOLDER + "/" + coldFile.getName());
+			}
+			
+			for(File segmentFile : journal.getSegments(baseSegment)) {
+				files.add(segmentFile);
+				paths.add(segmentFile.getName());
+			}
+			
+			if(tombstones.getFile().exists()) {
+				files.add(tombstones.getFile());
+				paths.add(tombstones.getFile().getName());
+			}
+			
+			channels = new FileChannel[files.size()];
+			lengths = new long[files.size()];
+			try {
+				for(int i = 0; i < channels.length; i++) {
+					channels[i] = new FileInputStream(files.get(i)).getChannel();
+					lengths[i] = channels[i].size();
+				}
+			}
+			catch (IOException e) {
+				close(channels);
+				throw e;
+			}
+		}
+		finally {
+			snapshotLock.readLock().unlock();
+		}
+		
+		/*
+		 * The files are sent a chunk at a time, so the watchdog sees the
+		 * transfer move and closes it once the client stops reading.
+		 */
+		try {
+			out.writeObject(new ExportResponse(paths.toArray(new String[0]), lengths));
+			out.flush();
+			
+			WritableByteChannel target = connection.getSocket().getChannel();
+			if(target == null)
+				target = Channels.newChannel(connection.getSocket().getOutputStream());
+			
+			for(int i = 0; i < channels.length; i++) {
+				long position = 0;
+				while(position < lengths[i]) {
+					long count = channels[i].transferTo(position, Math.min(EXPORT_CHUNK, lengths[i] - position), target);
+					if(count <= 0)
+						throw new IOException(paths.get(i) + " has been truncated during export.");
+					
+					position += count;
+					connection.getTransport().countWritten(count);
+				}
+			}
+		}
+		finally {
+			close(channels);
+		}
+	}
+	
+	private static void close(FileChannel[] channels) {
+		for(FileChannel channel : channels) {
+			try {
+				if(channel != null)
+					channel.close();
+			}
+			catch (IOException e) {
+			}
+		}
+	}
+	
+	/**
+	 * Thread which will work on client request.
+	 * 
+	 * @author muaz
+	 *
+	 */
+	private class SaveModelThread extends Thread {
+		
+		public SaveModelThread(String name) {
+			super(name);
+		}
+
+		@Override
+		public void run() {
+			while (true) {
+				/*
+				 * Wait until enough has changed, or for the next look at the
+				 * cold store while nothing does.
+				 */
+				boolean due;
+				try {
+					due = checkpointScheduler.await(saveInterval);
+				} 
+				catch (InterruptedException e) {
+					System.out.println("Save Model Thread has interuppted.");
+					break;
+				}
+				
+				if(!lifecycle.isRunning())
+					break;
+				
+				/*
+				 * Write the changes to a new segment and fold the segments
+				 * into the xml files once they have grown too much. Following
+				 * functions gets lock on model when needed so no need to
+				 * acquire lock here.
+				 */
+				demoteModel();
+				if(due)
+					checkpointModel();
+				
+				if(isCompactionDue())
+					compactModel();
+			}
+			
+			System.out.println("Shutting down - " + getName());
+		}
+	}
+	
+	/**
+	 * Thread which takes the sightings of removed birds out of the cold
+	 * segments, away from the request path.
+	 */
+	private class ReclaimerThread extends Thread {
+		
+		public ReclaimerThread(String name) {
+			super(name);
+		}
+		
+		@Override
+		public void run() {
+			boolean stop = false;
+			while (!stop) {
+				String name;
+				try {
+					name = reclaimRequests.take();
+				} 
+				catch (InterruptedException e) {
+					break;
+				}
+				
+				if(name == STOP_RECLAIM)
+					break;
+				
+				/*
+				 * Take the removals queued meanwhile along, so a burst of them
+				 * rewrites every segment once.
+				 */
+				HashSet<String> names = new HashSet<String>();
+				names.add(name);
+				ArrayList<String> queued = new ArrayList<String>();
+				reclaimRequests.drainTo(queued);
+				for(String s : queued) {
+					if(s == STOP_RECLAIM)
+						stop = true;
+					else
+						names.add(s);
+				}
+				
+				int reclaimed = coldStore.reclaim(names);
+				if(reclaimed > 0)
+					System.out.println("Reclaimed " + reclaimed + " cold sighting(s) of " + names.size() + " removed bird(s)" + label + ".");
+			}
+			
+			System.out.println("Shutting down - " + getName());
+		}
+	}
+	
+	/**
+	 * Thread which expires old sightings every interval.
+	 */
+	private class ExpiryThread extends Thread {
+		
+		private boolean stopped;
+		
+		public ExpiryThread(String name) {
+			super(name);
+		}
+		
+		public synchronized void shutdown() {
+			stopped = true;
+			notifyAll();
+		}
+		
+		@Override
+		public void run() {
+			while (true) {
+				synchronized (this) {
+					long deadline = System.currentTimeMillis() + expiryInterval;
+					long wait;
+					while(!stopped && (wait = deadline - System.currentTimeMillis()) > 0) {
+						try {
+							wait(wait);
+						} 
+						catch (InterruptedException e) {
+							stopped = true;
+						}
+					}
+					
+					if(stopped)
+						break;
+				}
+				
+				expireSightings();
+			}
+			
+			System.out.println("Shutting down - " + getName());
+		}
+	}
+	
+}
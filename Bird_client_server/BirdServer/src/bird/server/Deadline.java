@@ -0,0 +1,109 @@
+package bird.server;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Time budget of a request. Long running loops call {@link #check()}, and
+ * regular expressions match against {@link #guard(CharSequence)} so even a
+ * match which backtracks without end gives up in time.
+ */
+class Deadline {
+
+	/**
+	 * Characters read by a guarded match between two clock reads.
+	 */
+	private static final int CHECK_INTERVAL = 4096;
+
+	private final long millis;
+	private final long expiresAt;
+
+	public Deadline(long millis) {
+		this.millis = millis;
+		this.expiresAt = System.nanoTime() + millis * 1000000L;
+	}
+
+	/**
+	 * Throws if the time is up.
+	 */
+	public void check() {
+		if(System.nanoTime() - expiresAt > 0)
+			throw new ExpiredException("Request timed out after " + millis + " ms.");
+	}
+
+	/**
+	 * Returns the text as it is, except that reading it throws once the time
+	 * is up.
+	 */
+	public CharSequence guard(CharSequence text) {
+		return new GuardedSequence(text);
+	}
+
+	/**
+	 * Returns a guarded matcher of the pattern for matching many texts in a
+	 * row, which does not allocate for each of them.
+	 */
+	public GuardedMatcher matcher(Pattern pattern) {
+		return new GuardedMatcher(pattern);
+	}
+
+	/**
+	 * Thrown out of the request when its time is up. It is unchecked so it
+	 * can leave a regular expression match.
+	 */
+	static class ExpiredException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		public ExpiredException(String message) {
+			super(message);
+		}
+	}
+
+	/**
+	 * Matcher and guarded text reused for every text matched.
+	 */
+	class GuardedMatcher {
+		private final GuardedSequence sequence = new GuardedSequence("");
+		private final Matcher matcher;
+
+		private GuardedMatcher(Pattern pattern) {
+			this.matcher = pattern.matcher(sequence);
+		}
+
+		public boolean matches(CharSequence text) {
+			sequence.text = text;
+			return matcher.reset(sequence).matches();
+		}
+	}
+
+	private class GuardedSequence implements CharSequence {
+		private CharSequence text;
+		private int reads;
+
+		public GuardedSequence(CharSequence text) {
+			this.text = text;
+		}
+
+		@Override
+		public char charAt(int index) {
+			if(++reads % CHECK_INTERVAL == 0)
+				check();
+
+			return text.charAt(index);
+		}
+
+		@Override
+		public int length() {
+			return text.length();
+		}
+
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			return new GuardedSequence(text.subSequence(start, end));
+		}
+
+		@Override
+		public String toString() {
+			return text.toString();
+		}
+	}
+}
@@ -0,0 +1,150 @@
+package bird.server;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Bird names sorted on a float attribute, kept in two parallel arrays so a
+ * range is found with two binary searches and read without boxing. Adding and
+ * removing shift the arrays, which is cheap next to the request itself for
+ * the number of birds the server holds. A whole model is loaded at once and
+ * sorted a single time instead.
+ *
+ * Keys are compared with {@link Float#compare(float, float)}, so NaN sorts
+ * after every number and no range matches it.
+ */
+class FloatIndex {
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private float[] keys = new float[INITIAL_CAPACITY];
+	private String[] names = new String[INITIAL_CAPACITY];
+	private int size;
+
+	public void add(float key, String name) {
+		if(size == keys.length) {
+			keys = Arrays.copyOf(keys, size * 2);
+			names = Arrays.copyOf(names, size * 2);
+		}
+
+		int index = upperBound(key);
+		System.arraycopy(keys, index, keys, index + 1, size - index);
+		System.arraycopy(names, index, names, index + 1, size - index);
+		keys[index] = key;
+		names[index] = name;
+		size++;
+	}
+
+	/**
+	 * Removes the name from among the entries with the key. Returns false if
+	 * it is not there.
+	 */
+	public boolean remove(float key, String name) {
+		for(int i = lowerBound(key); i < size && Float.compare(keys[i], key) == 0; i++) {
+			if(!names[i].equals(name))
+				continue;
+
+			System.arraycopy(keys, i + 1, keys, i, size - i - 1);
+			System.arraycopy(names, i + 1, names, i, size - i - 1);
+			names[--size] = null;
+			return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Replaces the entries with the given ones. Entries with equal keys keep
+	 * their order, as if they had been added one after the other.
+	 */
+	public void load(float[] keys, String[] names, int count) {
+		/*
+		 * Sort the key of each entry with its position, packed in a long,
+		 * so nothing is boxed.
+		 */
+		long[] order = new long[count];
+		for(int i = 0; i < count; i++)
+			order[i] = ((long) sortable(keys[i]) << 32) | i;
+
+		Arrays.sort(order);
+
+		this.keys = new float[Math.max(INITIAL_CAPACITY, count)];
+		this.names = new String[this.keys.length];
+		for(int i = 0; i < count; i++) {
+			int index = (int) order[i];
+			this.keys[i] = keys[index];
+			this.names[i] = names[index];
+		}
+
+		size = count;
+	}
+
+	/**
+	 * Adds the names whose key is within the range, both ends included.
+	 */
+	public void collect(float min, float max, Collection<String> into) {
+		if(Float.isNaN(min) || Float.isNaN(max))
+			return;
+
+		int to = upperBound(max);
+		for(int i = lowerBound(min); i < to; i++)
+			into.add(names[i]);
+	}
+
+	/**
+	 * Returns the number of names within the range, to pick the cheapest
+	 * predicate first.
+	 */
+	public int count(float min, float max) {
+		if(Float.isNaN(min) || Float.isNaN(max))
+			return 0;
+
+		return Math.max(0, upperBound(max) - lowerBound(min));
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns an int which sorts as {@link Float#compare(float, float)} sorts
+	 * the key, with NaN after every number.
+	 */
+	private static int sortable(float key) {
+		int bits = Float.floatToIntBits(key);
+		return bits ^ ((bits >> 31) & 0x7fffffff);
+	}
+
+	/**
+	 * Returns the index of the first key which is not below the given one.
+	 */
+	private int lowerBound(float key) {
+		int low = 0;
+		int high = size;
+		while(low < high) {
+			int mid = (low + high) >>> 1;
+			if(Float.compare(keys[mid], key) < 0)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+
+		return low;
+	}
+
+	/**
+	 * Returns the index of the first key which is above the given one.
+	 */
+	private int upperBound(float key) {
+		int low = 0;
+		int high = size;
+		while(low < high) {
+			int mid = (low + high) >>> 1;
+			if(Float.compare(keys[mid], key) <= 0)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+
+		return low;
+	}
+}
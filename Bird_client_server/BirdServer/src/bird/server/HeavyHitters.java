@@ -0,0 +1,64 @@
+package bird.server;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Space saving summary of the most frequent values. At most capacity values
+ * are counted, a new one takes the place of the least counted and starts
+ * from its count, so a count is never below the true one and over it by at
+ * most the count it took over.
+ */
+class HeavyHitters {
+
+	private final int capacity;
+	private final HashMap<String, long[]> counts;
+
+	public HeavyHitters(int capacity) {
+		this.capacity = capacity;
+		this.counts = new HashMap<String, long[]>(capacity * 2);
+	}
+
+	/**
+	 * Counts the value. Taking a place looks at every counted value, which
+	 * is bounded by the capacity.
+	 */
+	public void add(String value) {
+		long[] count = counts.get(value);
+		if(count != null) {
+			count[0]++;
+			return;
+		}
+
+		if(counts.size() < capacity) {
+			counts.put(value, new long[] { 1 });
+			return;
+		}
+
+		String least = null;
+		long[] leastCount = null;
+		for(Map.Entry<String, long[]> entry : counts.entrySet()) {
+			if(leastCount == null || entry.getValue()[0] < leastCount[0]) {
+				least = entry.getKey();
+				leastCount = entry.getValue();
+			}
+		}
+
+		counts.remove(least);
+		leastCount[0]++;
+		counts.put(value, leastCount);
+	}
+
+	/**
+	 * Adds the counts to the totals, to merge summaries.
+	 */
+	public void addTo(HashMap<String, Long> totals) {
+		for(Map.Entry<String, long[]> entry : counts.entrySet()) {
+			Long total = totals.get(entry.getKey());
+			totals.put(entry.getKey(), (total == null ? 0 : total) + entry.getValue()[0]);
+		}
+	}
+
+	public void clear() {
+		counts.clear();
+	}
+}
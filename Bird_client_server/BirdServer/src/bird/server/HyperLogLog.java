@@ -0,0 +1,85 @@
+package bird.server;
+import java.util.Arrays;
+
+/**
+ * Estimates the number of distinct values added to it in constant memory,
+ * 2^precision registers of one byte, with a standard error of about
+ * 1.04 / sqrt(2^precision).
+ */
+class HyperLogLog {
+
+	private final int precision;
+	private final byte[] registers;
+
+	public HyperLogLog(int precision) {
+		this.precision = precision;
+		this.registers = new byte[1 << precision];
+	}
+
+	public void add(String value) {
+		long hash = hash(value);
+		int index = (int) (hash >>> (64 - precision));
+
+		/*
+		 * The position of the first set bit of the rest of the hash, the bit
+		 * or-ed in keeps it within the bits left.
+		 */
+		int rank = Long.numberOfLeadingZeros((hash << precision) | (1L << (precision - 1))) + 1;
+		if(rank > registers[index])
+			registers[index] = (byte) rank;
+	}
+
+	/**
+	 * Adds the values of the other one, which must have the same precision.
+	 */
+	public void merge(HyperLogLog other) {
+		for(int i = 0; i < registers.length; i++) {
+			if(other.registers[i] > registers[i])
+				registers[i] = other.registers[i];
+		}
+	}
+
+	public void clear() {
+		Arrays.fill(registers, (byte) 0);
+	}
+
+	public long estimate() {
+		double sum = 0;
+		int zeros = 0;
+		for(byte register : registers) {
+			sum += 1.0 / (1L << register);
+			if(register == 0)
+				zeros++;
+		}
+
+		double m = registers.length;
+		double estimate = 0.7213 / (1 + 1.079 / m) * m * m / sum;
+
+		/*
+		 * Small counts leave registers empty, counting those is closer.
+		 */
+		if(estimate <= 2.5 * m && zeros > 0)
+			estimate = m * Math.log(m / zeros);
+
+		return Math.round(estimate);
+	}
+
+	/**
+	 * 64 bit FNV-1a of the characters, mixed so every bit depends on all
+	 * of them.
+	 */
+	private static long hash(String value) {
+		long hash = 0xcbf29ce484222325L;
+		for(int i = 0; i < value.length(); i++) {
+			hash ^= value.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		hash *= 0xc4ceb9fe1a85ec53L;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+}
@@ -0,0 +1,249 @@
+package bird.server;
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Keep alive connections between two of their requests. They are kept out
+ * of the request queue, so an idle client does not hold a worker. A selector
+ * watches them and a connection goes back to the queue only once its next
+ * request starts to arrive. Connections idle for longer than the keep alive
+ * timeout, or closed by the client, are closed.
+ *
+ * A watched channel is non-blocking, it is switched back before a worker
+ * reads from its streams.
+ */
+class IdleConnections extends Thread {
+
+	/**
+	 * Milliseconds between two looks for connections idle for too long.
+	 */
+	private static final long CHECK_INTERVAL = 1000;
+
+	private final LinkedBlockingQueue<ClientConnection> requests;
+	private final AdmissionController admissionController;
+	private final long timeout;
+	private final Selector selector;
+	/**
+	 * Connections handed over since the last select, registered by the
+	 * thread of the selector.
+	 */
+	private final ConcurrentLinkedQueue<ClientConnection> added = new ConcurrentLinkedQueue<ClientConnection>();
+	private volatile boolean stopped;
+
+	private int idle;
+	private long resumed;
+	private long timedOut;
+
+	public IdleConnections(LinkedBlockingQueue<ClientConnection> requests, AdmissionController admissionController, long timeout) throws IOException {
+		super("Keep Alive Thread");
+		this.requests = requests;
+		this.admissionController = admissionController;
+		this.timeout = timeout;
+		this.selector = Selector.open();
+	}
+
+	/**
+	 * Takes a keep alive connection whose request has been answered. If the
+	 * next request has already been read ahead it goes back to the queue
+	 * right away.
+	 */
+	public void add(ClientConnection connection) {
+		if(stopped || connection.getSocket().getChannel() == null) {
+			connection.close();
+			return;
+		}
+
+		if(connection.hasBufferedInput()) {
+			resume(connection);
+			return;
+		}
+
+		added.add(connection);
+		selector.wakeup();
+
+		/*
+		 * It may have been added just after the thread stopped.
+		 */
+		if(stopped && added.remove(connection))
+			connection.close();
+	}
+
+	/**
+	 * Stops watching. Connections whose next request has arrived go to the
+	 * queue, the others are closed.
+	 */
+	public void shutdown() {
+		stopped = true;
+		selector.wakeup();
+		try {
+			join();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	public synchronized String getStats() {
+		return "Keep alive: idle = " + idle + ", resumed = " + resumed + ", timed out = " + timedOut;
+	}
+
+	@Override
+	public void run() {
+		while(!stopped) {
+			try {
+				selector.select(CHECK_INTERVAL);
+			}
+			catch (IOException e) {
+				System.err.println("Keep alive connections can not be watched, closing them.");
+				break;
+			}
+
+			register();
+			closeExpired();
+			wakeReady();
+		}
+
+		/*
+		 * A last look, the requests which have arrived are still served.
+		 */
+		register();
+		wakeReady();
+		for(SelectionKey key : selector.keys()) {
+			if(!key.isValid())
+				continue;
+
+			key.cancel();
+			close(((Idle) key.attachment()).connection);
+			changeIdle(-1);
+		}
+
+		ClientConnection connection;
+		while((connection = added.poll()) != null)
+			connection.close();
+
+		try {
+			selector.close();
+		}
+		catch (IOException e) {
+		}
+	}
+
+	private void register() {
+		ClientConnection connection;
+		while((connection = added.poll()) != null) {
+			try {
+				SocketChannel channel = connection.getSocket().getChannel();
+				channel.configureBlocking(false);
+				channel.register(selector, SelectionKey.OP_READ, new Idle(connection));
+				changeIdle(1);
+			}
+			catch (IOException e) {
+				close(connection);
+			}
+		}
+	}
+
+	/**
+	 * Queues the connections with something to read. A closed connection is
+	 * readable as well, the worker finds it closed.
+	 */
+	private void wakeReady() {
+		ArrayList<ClientConnection> ready = new ArrayList<ClientConnection>();
+		do {
+			for(SelectionKey key : selector.selectedKeys()) {
+				if(!key.isValid())
+					continue;
+
+				key.cancel();
+				ready.add(((Idle) key.attachment()).connection);
+				changeIdle(-1);
+			}
+
+			selector.selectedKeys().clear();
+
+			/*
+			 * The cancelled keys are only dropped by the next select, a
+			 * channel can not be made blocking before. It also picks up the
+			 * connections which have become ready meanwhile.
+			 */
+			try {
+				selector.selectNow();
+			}
+			catch (IOException e) {
+				break;
+			}
+		}
+		while(!selector.selectedKeys().isEmpty());
+
+		for(ClientConnection connection : ready) {
+			try {
+				connection.getSocket().getChannel().configureBlocking(true);
+			}
+			catch (IOException e) {
+				close(connection);
+				continue;
+			}
+
+			resume(connection);
+		}
+	}
+
+	private void closeExpired() {
+		long now = System.currentTimeMillis();
+		for(SelectionKey key : selector.keys()) {
+			Idle idle = (Idle) key.attachment();
+			if(key.isValid() && now - idle.since >= timeout) {
+				key.cancel();
+				close(idle.connection);
+				changeIdle(-1);
+				synchronized (this) {
+					timedOut++;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Closes the socket only, the streams can not be flushed while the
+	 * channel is non-blocking.
+	 */
+	private static void close(ClientConnection connection) {
+		try {
+			connection.getSocket().close();
+		}
+		catch (IOException e) {
+		}
+	}
+
+	private synchronized void changeIdle(int delta) {
+		idle += delta;
+	}
+
+	/**
+	 * Puts the connection back in the queue. It keeps the place it was
+	 * admitted with, so neither the rate nor the queue capacity turn it away
+	 * while the client counts on it.
+	 */
+	private void resume(ClientConnection connection) {
+		synchronized (this) {
+			resumed++;
+		}
+
+		admissionController.readmit();
+		requests.add(connection);
+	}
+
+	private static class Idle {
+		private final ClientConnection connection;
+		private final long since = System.currentTimeMillis();
+
+		public Idle(ClientConnection connection) {
+			this.connection = connection;
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package bird.server;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Caps the rate at which checkpoints and compactions write, so a large save
+ * leaves disk bandwidth to the requests. Writers sleep once they are ahead
+ * of the rate, at most by a tenth of a second worth of bytes.
+ */
+class IoThrottle {
+
+	/**
+	 * Bytes written between two looks at the clock.
+	 */
+	private static final int SLICE = 65536;
+
+	private final long bytesPerSecond;
+	private volatile boolean enabled;
+	private long startedAt;
+	private long written;
+
+	/**
+	 * A rate of 0 does not throttle at all.
+	 */
+	public IoThrottle(long bytesPerSecond) {
+		this.bytesPerSecond = bytesPerSecond;
+		this.enabled = bytesPerSecond > 0;
+	}
+
+	/**
+	 * Stops throttling, used once the server is shutting down and the last
+	 * save should be as quick as possible.
+	 */
+	public void disable() {
+		enabled = false;
+	}
+
+	public OutputStream wrap(OutputStream out) {
+		return new ThrottledOutputStream(out);
+	}
+
+	/**
+	 * Accounts for the bytes and sleeps while the writes are ahead of the
+	 * rate.
+	 */
+	private synchronized void acquire(int bytes) throws IOException {
+		if(!enabled)
+			return;
+
+		long now = System.currentTimeMillis();
+
+		/*
+		 * Time spent idle is not credit for a later burst.
+		 */
+		long due = startedAt + written * 1000 / bytesPerSecond;
+		if(due < now - 100) {
+			startedAt = now;
+			written = 0;
+		}
+
+		written += bytes;
+		long ahead = startedAt + written * 1000 / bytesPerSecond - now;
+		if(ahead <= 100)
+			return;
+
+		try {
+			Thread.sleep(ahead - 100);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while throttled.");
+		}
+	}
+
+	private class ThrottledOutputStream extends FilterOutputStream {
+
+		public ThrottledOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			acquire(1);
+			out.write(b);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while(len > 0) {
+				int n = Math.min(len, SLICE);
+				acquire(n);
+				out.write(b, off, n);
+				off += n;
+				len -= n;
+			}
+		}
+	}
+}
@@ -0,0 +1,69 @@
+package bird.server;
+
+/**
+ * Phases of the server, the threads look at it to decide whether to go on.
+ *
+ * - STARTING, model is being created.
+ * - RUNNING, clients are accepted.
+ * - DRAINING, no new clients are accepted and the queued requests are being
+ *   finished within the drain deadline.
+ * - STOPPED, all the threads have finished or have been aborted.
+ */
+class Lifecycle {
+
+	enum Phase { STARTING, RUNNING, DRAINING, STOPPED }
+
+	private volatile Phase phase = Phase.STARTING;
+
+	public Phase getPhase() {
+		return phase;
+	}
+
+	public boolean isRunning() {
+		return phase == Phase.STARTING || phase == Phase.RUNNING;
+	}
+
+	public synchronized void running() {
+		if(phase == Phase.STARTING)
+			phase = Phase.RUNNING;
+	}
+
+	/**
+	 * Moves to the drain phase. Returns false if draining had already begun.
+	 */
+	public synchronized boolean drain() {
+		if(!isRunning())
+			return false;
+
+		phase = Phase.DRAINING;
+		return true;
+	}
+
+	public synchronized void stopped() {
+		phase = Phase.STOPPED;
+	}
+
+	/**
+	 * Joins the threads until the deadline, given in
+	 * {@link System#currentTimeMillis()} terms. Returns true if all of them
+	 * have finished.
+	 */
+	public static boolean join(Thread[] threads, long deadline) {
+		for(Thread thread : threads) {
+			long remaining = deadline - System.currentTimeMillis();
+			try {
+				if(remaining > 0)
+					thread.join(remaining);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+
+			if(thread.isAlive())
+				return false;
+		}
+
+		return true;
+	}
+}
@@ -0,0 +1,364 @@
+package bird.server;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import bird.model.NameMatch;
+
+/**
+ * Trigram index on the bird names, to find names by a part of them even if it
+ * is misspelled. The distance of a name is the number of edits between the
+ * searched text and the closest part of the name, so a name containing the
+ * text is at distance 0.
+ *
+ * A part of a name within k edits of the text shares all but at most 3k of
+ * the text's trigrams, so only names sharing enough of them are compared
+ * with the text. A name has to share at least one, so a short text misspelled
+ * throughout does not find anything. A text shorter than a trigram is in
+ * every trigram containing it, or in a name too short to have one.
+ *
+ * Names are numbered, so the lists of names per trigram are plain int arrays.
+ *
+ * Like the journal, it must only be used while holding the lock on model,
+ * and must see every bird added to and removed from it. Ranking the
+ * candidates does not need the lock.
+ */
+class NameIndex {
+
+	static final int DEFAULT_MAX_DISTANCE = 2;
+	static final int MAX_DISTANCE = 4;
+	static final int DEFAULT_MAX_RESULTS = 20;
+	static final int MAX_RESULTS = 1000;
+
+	private static final int GRAM = 3;
+
+	/**
+	 * Names read between two deadline checks.
+	 */
+	private static final int CHECK_INTERVAL = 4096;
+
+	private final HashMap<String, Integer> ids = new HashMap<String, Integer>();
+	private final HashMap<String, IntList> grams = new HashMap<String, IntList>();
+	private final IntList freeIds = new IntList();
+	private String[] names = new String[16];
+	private int nextId;
+
+	/**
+	 * Trigrams shared with the text per name, reset after every search.
+	 */
+	private int[] counts = new int[16];
+
+	/**
+	 * Names too short to have a trigram, always candidates.
+	 */
+	private final HashSet<String> shortNames = new HashSet<String>();
+
+	/**
+	 * Copy of all the names, dropped whenever a name is added or removed.
+	 */
+	private String[] snapshot;
+	private long version;
+
+	public void nameAdded(String name) {
+		snapshot = null;
+		version++;
+
+		HashSet<String> nameGrams = grams(key(name));
+		if(nameGrams.isEmpty()) {
+			shortNames.add(name);
+			return;
+		}
+
+		int id;
+		if(freeIds.size > 0)
+			id = freeIds.values[--freeIds.size];
+		else {
+			id = nextId++;
+			if(id == names.length) {
+				names = Arrays.copyOf(names, id * 2);
+				counts = Arrays.copyOf(counts, id * 2);
+			}
+		}
+
+		names[id] = name;
+		ids.put(name, id);
+		for(String gram : nameGrams) {
+			IntList list = grams.get(gram);
+			if(list == null) {
+				list = new IntList();
+				grams.put(gram, list);
+			}
+
+			list.add(id);
+		}
+	}
+
+	public void nameRemoved(String name) {
+		snapshot = null;
+		version++;
+
+		Integer id = ids.remove(name);
+		if(id == null) {
+			shortNames.remove(name);
+			return;
+		}
+
+		for(String gram : grams(key(name))) {
+			IntList list = grams.get(gram);
+			if(list == null)
+				continue;
+
+			list.remove(id);
+			if(list.size == 0)
+				grams.remove(gram);
+		}
+
+		names[id] = null;
+		freeIds.add(id);
+	}
+
+	/**
+	 * Indexes all the names again, once the model has been created.
+	 */
+	public void rebuild(Collection<String> modelNames) {
+		ids.clear();
+		grams.clear();
+		freeIds.size = 0;
+		shortNames.clear();
+		names = new String[Math.max(16, modelNames.size())];
+		counts = new int[names.length];
+		nextId = 0;
+		for(String name : modelNames)
+			nameAdded(name);
+	}
+
+	/**
+	 * Returns all the names, in no particular order. The array is not
+	 * changed afterwards, so it can be read without the lock on model while
+	 * the names change. It is only copied again after a change.
+	 */
+	public String[] getNames() {
+		if(snapshot == null) {
+			String[] copy = new String[ids.size() + shortNames.size()];
+			int i = 0;
+			for(String name : ids.keySet())
+				copy[i++] = name;
+			for(String name : shortNames)
+				copy[i++] = name;
+
+			snapshot = copy;
+		}
+
+		return snapshot;
+	}
+
+	/**
+	 * Returns a number which changes whenever a name is added or removed.
+	 */
+	public long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Returns the names which may be within the distance of the text.
+	 */
+	public ArrayList<String> candidates(String text, int maxDistance, Deadline deadline) {
+		String key = key(text);
+		HashSet<String> textGrams = grams(key);
+		ArrayList<IntList> lists = new ArrayList<IntList>();
+		int needed;
+		if(textGrams.isEmpty()) {
+			for(Map.Entry<String, IntList> entry : grams.entrySet()) {
+				if(entry.getKey().contains(key))
+					lists.add(entry.getValue());
+			}
+			needed = 1;
+		}
+		else {
+			for(String gram : textGrams) {
+				IntList list = grams.get(gram);
+				lists.add(list == null ? new IntList() : list);
+			}
+			needed = Math.max(1, lists.size() - GRAM * maxDistance);
+		}
+
+		/*
+		 * A candidate is in at least needed of the lists, so it is in one of
+		 * the count - needed + 1 smallest ones. The larger lists only add to
+		 * the names found there.
+		 */
+		Collections.sort(lists, new Comparator<IntList>() {
+			@Override
+			public int compare(IntList o1, IntList o2) {
+				return Integer.compare(o1.size, o2.size);
+			}
+		});
+
+		ArrayList<String> candidates = new ArrayList<String>();
+		IntList found = new IntList();
+		int read = 0;
+		try {
+			for(int i = 0; i < lists.size(); i++) {
+				IntList list = lists.get(i);
+				boolean collecting = i < lists.size() - needed + 1;
+				for(int j = 0; j < list.size; j++) {
+					if(++read % CHECK_INTERVAL == 0)
+						deadline.check();
+
+					int id = list.values[j];
+					if(counts[id] > 0)
+						counts[id]++;
+					else if(collecting) {
+						counts[id] = 1;
+						found.add(id);
+					}
+				}
+			}
+
+			for(int i = 0; i < found.size; i++) {
+				int id = found.values[i];
+				if(counts[id] >= needed)
+					candidates.add(names[id]);
+			}
+		}
+		finally {
+			for(int i = 0; i < found.size; i++)
+				counts[found.values[i]] = 0;
+		}
+
+		candidates.addAll(shortNames);
+		return candidates;
+	}
+
+	/**
+	 * Compares the candidates with the text and returns those within the
+	 * distance, closest first, then shortest, then by name.
+	 */
+	public static NameMatch[] rank(String text, Collection<String> candidates, int maxDistance, int maxResults, Deadline deadline) {
+		Comparator<NameMatch> order = new Comparator<NameMatch>() {
+			@Override
+			public int compare(NameMatch o1, NameMatch o2) {
+				if(o1.getDistance() != o2.getDistance())
+					return Integer.compare(o1.getDistance(), o2.getDistance());
+
+				if(o1.getName().length() != o2.getName().length())
+					return Integer.compare(o1.getName().length(), o2.getName().length());
+
+				return o1.getName().compareTo(o2.getName());
+			}
+		};
+
+		/*
+		 * Keep the best ones only, the worst of them on top.
+		 */
+		PriorityQueue<NameMatch> best = new PriorityQueue<NameMatch>(maxResults + 1, Collections.reverseOrder(order));
+		char[] key = key(text).toCharArray();
+		int[] column = new int[key.length + 1];
+		int checked = 0;
+		for(String name : candidates) {
+			if(++checked % CHECK_INTERVAL == 0)
+				deadline.check();
+
+			/*
+			 * Once full, a name longer than the worst kept one can not be
+			 * ranked higher unless it is closer, which it can not be if that
+			 * one contains the text.
+			 */
+			NameMatch worst = best.size() == maxResults ? best.peek() : null;
+			if(worst != null && worst.getDistance() == 0 && name.length() > worst.getName().length())
+				continue;
+
+			int distance = distance(key, key(name), column);
+			if(distance > maxDistance)
+				continue;
+
+			NameMatch match = new NameMatch(name, distance);
+			if(worst != null && order.compare(match, worst) >= 0)
+				continue;
+
+			best.add(match);
+			if(best.size() > maxResults)
+				best.poll();
+		}
+
+		NameMatch[] result = best.toArray(new NameMatch[0]);
+		Arrays.sort(result, order);
+		return result;
+	}
+
+	/**
+	 * Returns the fewest edits turning the text into any part of the name,
+	 * using the column for the running costs.
+	 */
+	private static int distance(char[] text, String name, int[] column) {
+		for(int i = 0; i <= text.length; i++)
+			column[i] = i;
+
+		int best = column[text.length];
+		for(int j = 0; j < name.length() && best > 0; j++) {
+			char c = name.charAt(j);
+
+			/*
+			 * A part may start anywhere, so the empty text costs nothing at
+			 * every position.
+			 */
+			int diagonal = column[0];
+			for(int i = 1; i <= text.length; i++) {
+				int above = column[i];
+				int cost = diagonal + (text[i - 1] == c ? 0 : 1);
+				column[i] = Math.min(cost, Math.min(above, column[i - 1]) + 1);
+				diagonal = above;
+			}
+
+			best = Math.min(best, column[text.length]);
+		}
+
+		return best;
+	}
+
+	private static HashSet<String> grams(String key) {
+		HashSet<String> result = new HashSet<String>();
+		for(int i = 0; i + GRAM <= key.length(); i++)
+			result.add(key.substring(i, i + GRAM));
+
+		return result;
+	}
+
+	private static String key(String name) {
+		return name.toLowerCase(Locale.ROOT);
+	}
+
+	/**
+	 * Growable list of name numbers, in no particular order.
+	 */
+	private static class IntList {
+		private int[] values = new int[4];
+		private int size;
+
+		public void add(int value) {
+			if(size == values.length)
+				values = Arrays.copyOf(values, size * 2);
+
+			values[size++] = value;
+		}
+
+		/**
+		 * Removes the value, moving the last one in its place.
+		 */
+		public void remove(int value) {
+			for(int i = 0; i < size; i++) {
+				if(values[i] == value) {
+					values[i] = values[--size];
+					return;
+				}
+			}
+		}
+	}
+}
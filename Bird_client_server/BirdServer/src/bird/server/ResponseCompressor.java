@@ -0,0 +1,111 @@
+package bird.server;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import bird.model.CompressedResponse;
+
+/**
+ * Compresses large listings for the clients accepting it. Each worker has its
+ * own, so the Deflater and the buffer are reused without locking.
+ *
+ * The size of a listing is estimated from the number of its elements, so a
+ * small listing is not serialized twice. A large one is serialized once,
+ * straight through the Deflater.
+ */
+class ResponseCompressor {
+
+	/**
+	 * Buffers grown beyond this by a big response are dropped after it, so an
+	 * idle worker does not hold on to them.
+	 */
+	private static final int MAX_RETAINED_BUFFER = 1048576;
+	/**
+	 * Rough serialized size of a bird or a sighting in a listing.
+	 */
+	private static final int ELEMENT_SIZE = 64;
+
+	private final int threshold;
+	private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+	private Buffer compressed = new Buffer();
+
+	private long responses;
+	private long rawBytes;
+	private long compressedBytes;
+
+	/**
+	 * @param threshold estimated serialized size in bytes from which
+	 *            listings are compressed, 0 disables compression.
+	 */
+	public ResponseCompressor(int threshold) {
+		this.threshold = threshold;
+	}
+
+	/**
+	 * Returns a compressed response if the listing is estimated to be at
+	 * least the threshold and compressing makes it smaller, otherwise the
+	 * listing itself.
+	 */
+	public Object compress(Object[] listing) throws IOException {
+		if(threshold <= 0 || (long) listing.length * ELEMENT_SIZE < threshold)
+			return listing;
+
+		try {
+			DeflaterOutputStream deflated = new DeflaterOutputStream(compressed, deflater);
+			ObjectOutputStream out = new ObjectOutputStream(deflated);
+			out.writeObject(listing);
+			out.flush();
+			deflated.finish();
+
+			long length = deflater.getBytesRead();
+			if(compressed.size() >= length || length > Integer.MAX_VALUE)
+				return listing;
+
+			synchronized (this) {
+				responses++;
+				rawBytes += length;
+				compressedBytes += compressed.size();
+			}
+
+			return new CompressedResponse(Arrays.copyOf(compressed.getBuffer(), compressed.size()), (int) length);
+		}
+		finally {
+			deflater.reset();
+			compressed = release(compressed);
+		}
+	}
+
+	/**
+	 * Adds the counters of this compressor to the totals, in responses, raw
+	 * bytes & compressed bytes order.
+	 */
+	public synchronized void addStats(long[] totals) {
+		totals[0] += responses;
+		totals[1] += rawBytes;
+		totals[2] += compressedBytes;
+	}
+
+	private static Buffer release(Buffer buffer) {
+		if(buffer.getBuffer().length > MAX_RETAINED_BUFFER)
+			return new Buffer();
+
+		buffer.reset();
+		return buffer;
+	}
+
+	/**
+	 * Byte array stream whose bytes can be read without copying them.
+	 */
+	private static class Buffer extends ByteArrayOutputStream {
+		public Buffer() {
+			super(8192);
+		}
+
+		public byte[] getBuffer() {
+			return buf;
+		}
+	}
+}
@@ -1,106 +1,158 @@
 package bird.server;
 import java.io.File;
+import java.io.FileFilter;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.channels.ServerSocketChannel;
 import java.text.DateFormat;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.Hashtable;
-import java.util.Vector;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXParseException;
-
-import bird.model.Bird;
-import bird.model.BirdSighting;
 import bird.model.Constants;
+import bird.model.SocketOptions;
+import bird.model.Transport;
 
 
 public class Server {
 	
-	private static final String PORT_SWITCH = "-port";
-	private static final String DATA_SWITCH = "-data";
-	private static final String PROC_COUNT_SWITCH = "-proc_count";
-	
-	private static final int DEFAULT_PROC_COUNT = 2;
 	/**
-	 * 30 mins gap between two save model call.
+	 * Time given to the aborted workers to notice it.
 	 */
-	private static final int SAVE_MODEL_INTERVAL = 1800000;
+	private static final int ABORT_TIMEOUT = 1000;
+	/**
+	 * Queued after the last request to tell a worker to stop.
+	 */
+	private static final ClientConnection STOP_REQUEST = new ClientConnection(null, null, null);
 	
 	private static final String DATA_FOLDER = "serverdata";
-	private static final String BIRD_FILE = "birds.xml";
-	private static final String SIGHTING_FILE = "sightings.xml";
-	
-	private static final String BIRD_ROOT_NODE = "birds";
-	private static final String BIRD_NODE = "bird";
-	private static final String BIRD_NAME_ATTRIBUTE = "name";
-	private static final String BIRD_COLOR_ATTRIBUTE = "color";
-	private static final String BIRD_WEIGHT_ATTRIBUTE = "weight";
-	private static final String BIRD_HEIGHT_ATTRIBUTE = "height";
-	
-	private static final String SIGHTING_ROOT_NODE = "sightings";
-	private static final String SIGHTING_BIRD_NODE = "bird";
-	private static final String SIGHTING_NODE = "sighting";
-	private static final String SIGHTINGS_NAME_ATTRIBUTE = "name";
-	private static final String SIGHTINGS_LOCATION_ATTRIBUTE = "location";
-	private static final String SIGHTINGS_DATE_ATTRIBUTE = "date";
+	/**
+	 * Folder of the named datasets, each in a folder of its name. The
+	 * default dataset is in the data folder itself.
+	 */
+	private static final String DATASETS_FOLDER = "datasets";
+	private static final Pattern DATASET_ID = Pattern.compile("[A-Za-z0-9_-]{1,64}");
 	
+	private final ServerConfig config;
 	private final int port;
 	private final File serverDataFolder;
-	private File birdsFile;
-	private File sightingsFile;
 	
 	private ServerSocket serverSocket;
 	
-	private Hashtable<String, Bird> model = new Hashtable<String, Bird>();
-	private Vector<Socket> requests = new Vector<Socket>();
+	/**
+	 * Datasets by name, the default one under the empty name.
+	 */
+	private final LinkedHashMap<String, Dataset> datasets = new LinkedHashMap<String, Dataset>();
+	/**
+	 * Names of the datasets whose model is being created, guarded by the
+	 * lock on datasets.
+	 */
+	private final HashSet<String> creating = new HashSet<String>();
+	private final LinkedBlockingQueue<ClientConnection> requests;
+	/**
+	 * New connections the queue takes, 0 for no limit. Keep alive
+	 * connections back for their next request always get in.
+	 */
+	private final int queueCapacity;
+	private final SightingsCache sightingsCache;
+	private final SightingDeduplicator deduplicator;
+	private final AdmissionController admissionController;
 	
-	private volatile boolean shutdown = false;
-	private SaveModelThread saveModelThread = new SaveModelThread();
+	private final Lifecycle lifecycle = new Lifecycle();
+	private final int drainTimeout;
+	private final int compressThreshold;
+	private final boolean logRequests;
+	private final int requestTimeout;
+	private final int keepAliveTimeout;
+	private final int backlog;
+	private final SocketOptions socketOptions;
+	private final Transport.Counters transportCounters = new Transport.Counters();
+	private final ScheduledThreadPoolExecutor watchdog;
+	private IdleConnections idleConnections;
+	private final IoThrottle ioThrottle;
 	private WorkerThread[] workerThreads;
 		
-	public Server(int port, File serverDataFolder, int procCount) {
-		this.port = port;
+	public Server(ServerConfig config, File serverDataFolder) {
+		this.config = config;
+		this.port = config.getInt(ServerConfig.PORT);
+		this.requestTimeout = config.getInt(ServerConfig.REQUEST_TIMEOUT) * 1000;
+		this.keepAliveTimeout = config.getInt(ServerConfig.KEEP_ALIVE_TIMEOUT) * 1000;
+		this.backlog = config.getInt(ServerConfig.BACKLOG);
+		this.socketOptions = new SocketOptions()
+				.setTcpNoDelay(config.getInt(ServerConfig.TCP_NO_DELAY) != 0)
+				.setKeepAlive(config.getInt(ServerConfig.TCP_KEEP_ALIVE) != 0)
+				.setSendBuffer(config.getInt(ServerConfig.SEND_BUFFER))
+				.setReceiveBuffer(config.getInt(ServerConfig.RECEIVE_BUFFER))
+				.setStreamBuffer(config.getInt(ServerConfig.STREAM_BUFFER));
+		this.drainTimeout = config.getInt(ServerConfig.DRAIN_TIMEOUT);
+		this.compressThreshold = config.getInt(ServerConfig.COMPRESS_THRESHOLD);
+		this.logRequests = config.getInt(ServerConfig.LOG_REQUESTS) != 0;
 		this.serverDataFolder = serverDataFolder;
-		this.workerThreads = new WorkerThread[procCount];
+		
+		this.queueCapacity = config.getInt(ServerConfig.QUEUE_CAPACITY);
+		this.requests = new LinkedBlockingQueue<ClientConnection>();
+		
+		int cacheSize = config.getInt(ServerConfig.CACHE_SIZE);
+		this.sightingsCache = new SightingsCache(cacheSize > 0 ? config.getInt(ServerConfig.CACHE_ENTRIES) : 0, cacheSize);
+		this.deduplicator = new SightingDeduplicator(config.getInt(ServerConfig.DEDUP_WINDOW) * 1000L, config.getInt(ServerConfig.DEDUP_ENTRIES));
+		this.admissionController = new AdmissionController(config.getInt(ServerConfig.RATE), config.getInt(ServerConfig.BURST), config.getInt(ServerConfig.MAX_PENDING));
+		this.watchdog = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "Request Watchdog");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		this.watchdog.setRemoveOnCancelPolicy(true);
+		this.ioThrottle = new IoThrottle(config.getInt(ServerConfig.CHECKPOINT_RATE) * 1024L);
+		this.workerThreads = new WorkerThread[config.getInt(ServerConfig.PROC_COUNT)];
 		for(int i = 0; i < workerThreads.length; i++)
 			workerThreads[i] = new WorkerThread("Worker - " + i);
 	}
 
-	@SuppressWarnings("static-access")
 	public void run () {
 		/*
-		 * Read files and create model. We do not need to get lock on model
-		 * because all the threads will be started later.
+		 * Read files and create the model of every dataset. We do not need
+		 * to get lock on them because all the threads will be started later.
 		 */
-		if(!createModel())
+		if(!openDatasets())
 			return;
 		
 		/*
-		 * Start save model thread.
+		 * Start the save model, reclaimer & expiry threads of the datasets.
 		 */
-		saveModelThread.start();
+		for(Dataset dataset : datasets.values())
+			dataset.start();
 		
 		/*
-		 * Start worker threads.
+		 * Start worker threads, and the thread which hands keep alive
+		 * connections back to them.
 		 */
+		try {
+			idleConnections = new IdleConnections(requests, admissionController, keepAliveTimeout);
+		}
+		catch (IOException e) {
+			System.err.println("Unable to watch keep alive connections, exiting.");
+			for(Dataset dataset : datasets.values())
+				dataset.stopSaving(System.currentTimeMillis());
+			return;
+		}
+		
+		idleConnections.start();
 		for(WorkerThread wt : workerThreads)
 			wt.start();
 		
@@ -108,18 +160,53 @@ public class Server {
 		 * Create and connect server socket.
 		 */
 		try {
-			serverSocket = new ServerSocket(port);
+			/*
+			 * Sockets accepted through a channel can take file transfers
+			 * without copying them through the heap.
+			 */
+			serverSocket = ServerSocketChannel.open().socket();
+			
+			/*
+			 * Accepted sockets take the receive buffer of the server socket,
+			 * it has to be set before binding for windows larger than 64K.
+			 */
+			if(socketOptions.getReceiveBuffer() > 0)
+				serverSocket.setReceiveBufferSize(socketOptions.getReceiveBuffer());
+			
+			/*
+			 * A deeper accept queue rides out bursts of connections instead
+			 * of dropping their SYNs.
+			 */
+			serverSocket.bind(new InetSocketAddress(port), backlog);
+			lifecycle.running();
 		} 
 		catch (Exception e1) {
 			System.err.println("Unable to create server socket, exiting.");
-			shutdown = true;
+			lifecycle.drain();
 		}
 		
 		System.out.println("Accepting clients now.");
 		
-		while(!shutdown) {
+		while(lifecycle.isRunning()) {
 			try {
-				requests.add(serverSocket.accept());
+				Socket socket = serverSocket.accept();
+				
+				/*
+				 * Turn the client away before reading anything from it, if it
+				 * is sending too fast or the server is already full.
+				 */
+				String rejection = admissionController.admit(socket.getInetAddress());
+				if(rejection != null) {
+					admissionController.reject(new ClientConnection(socket, socketOptions, transportCounters), rejection);
+					continue;
+				}
+				
+				/*
+				 * A client which does not send its request in time is
+				 * dropped instead of holding a worker.
+				 */
+				socket.setSoTimeout(requestTimeout);
+				enqueue(new ClientConnection(socket, socketOptions, transportCounters));
 				
 				System.out.println("A client has connected.");
 			} 
@@ -136,347 +223,231 @@ public class Server {
 		System.out.println("Server Shutdown Has Started...");
 		
 		/*
-		 * Now wait for the worker threads to stop.
+		 * No dataset is created from here on, the save model threads stop
+		 * right away unless they are in the middle of writing, which is not
+		 * throttled any more.
 		 */
-		boolean completed = true;
-		do {
-			try {
-				/*
-				 * Wait for sometime before checking.
-				 */
-				Thread.currentThread().sleep(250);
-			} 
-			catch (InterruptedException e) {
-			}
-			
-			completed = true;
-			for(WorkerThread wt : workerThreads) {
-				if(wt.isAlive()) {
-					completed = false;
-					break;
-				}
-			}
-		} while(!completed);
+		ioThrottle.disable();
+		Dataset[] all;
+		synchronized (datasets) {
+			all = datasets.values().toArray(new Dataset[0]);
+		}
+		
+		/*
+		 * Saving and draining share the deadline, a long compaction does
+		 * not put off the end of the shutdown.
+		 */
+		long deadline = System.currentTimeMillis() + drainTimeout * 1000L;
+		for(Dataset dataset : all) {
+			if(!dataset.stopSaving(deadline))
+				System.err.println("Saving" + (dataset.getId().isEmpty() ? "" : " of dataset '" + dataset.getId() + "'")
+						+ " did not stop within " + drainTimeout + " seconds.");
+		}
 		
 		/*
-		 * Now stop the save model thread. We need to interrupt it because it
-		 * might be sleeping and it's sleeping time is very long.
+		 * Idle keep alive connections are closed, those whose next request
+		 * has arrived are queued still.
 		 */
-		saveModelThread.interrupt();
+		idleConnections.shutdown();
 		
 		/*
-		 * Now wait for it to stop.
+		 * Workers finish the queued requests and then stop, one stop request
+		 * for each of them.
 		 */
-		while (saveModelThread.isAlive()) {
+		for(int i = 0; i < workerThreads.length; i++) {
+			/*
+			 * A full queue has room again once a worker takes the next
+			 * request.
+			 */
 			try {
-				/*
-				 * Wait for sometime before checking.
-				 */
-				Thread.currentThread().sleep(250);
-			} 
+				requests.put(STOP_REQUEST);
+			}
 			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
 			}
 		}
 		
-		System.out.println("All Threads have been stopped.");
-		
 		/*
-		 * At the end save model.
+		 * Write the changes made so far while the workers are draining, so
+		 * only the changes of the last few requests are left for the end.
 		 */
-		saveModel();
+		for(Dataset dataset : all)
+			dataset.checkpointModel();
 		
-		System.out.println("Server Has Shutdown");
-	}
-
-	private boolean createModel() {
-		System.out.println("Creating Model ...");
-		
-		boolean birdsFileCreated = false;
-		birdsFile = new File(serverDataFolder.getAbsolutePath() + File.separator + BIRD_FILE);
-		if(!birdsFile.exists()) {
-			try {
-				birdsFile.createNewFile();
-				birdsFileCreated = true;
-			} 
-			catch (IOException e) {
-				System.err.println("Unable to create birds.xml file, exiting");
-				return false;
-			}
+		if(!Lifecycle.join(workerThreads, deadline)) {
+			System.err.println("Requests did not finish within " + drainTimeout + " seconds, aborting them.");
+			abortRequests();
+			Lifecycle.join(workerThreads, System.currentTimeMillis() + ABORT_TIMEOUT);
 		}
-		
-		sightingsFile = new File(serverDataFolder.getAbsolutePath() + File.separator + SIGHTING_FILE);
-		if(birdsFileCreated && sightingsFile.exists()) {
+		else {
 			/*
-			 * If the birds file has been created new, delete previous
-			 * sightings file and create it new as well.
+			 * A keep alive connection might have been queued again just
+			 * behind the stop requests.
 			 */
-			sightingsFile.delete();
-		}
-		
-		if(!sightingsFile.exists()) {
-			try {
-				sightingsFile.createNewFile();
-			} 
-			catch (IOException e) {
-				System.err.println("Unable to create sightings.xml file, exiting");
-				return false;
-			}
+			abortRequests();
 		}
 		
 		/*
-		 * Only parse it if size is greater than 0.
+		 * Reclaimers finish the removals made so far.
 		 */
-		if(birdsFile.length() > 0 && !readBirdsFile())
-			return false;
+		for(Dataset dataset : all)
+			dataset.stopReclaiming();
+		
+		watchdog.shutdownNow();
+		lifecycle.stopped();
+		System.out.println("All Threads have been stopped.");
 		
 		/*
-		 * Only parse it if size is greater than 0.
+		 * At the end write the pending changes.
 		 */
-		if(sightingsFile.length() > 0 && !readSightingsFile())
-			return false;
+		for(Dataset dataset : all)
+			dataset.checkpointModel();
 		
-		System.out.println("Model Created ...");
-		return true;
+		System.out.println("Server Has Shutdown");
 	}
-	
-	private boolean readBirdsFile() {
-		try {
-			DocumentBuilderFactory docBuilderFactory = DocumentBuilderFactory.newInstance();
-			DocumentBuilder docBuilder = docBuilderFactory.newDocumentBuilder();
-			Document doc = docBuilder.parse(birdsFile);
-			doc.getDocumentElement().normalize();
-
-			NodeList birdNodes = doc.getElementsByTagName(BIRD_NODE);
-			for (int i = 0; i < birdNodes.getLength(); i++) {
 
-				Node node = birdNodes.item(i);
-				if (node.getNodeType() != Node.ELEMENT_NODE)
-					continue;
-					
-				Element birdElement = (Element) node;
-				
-				/*
-				 * Get name, if null or empty, skip it.
-				 */
-				String name = birdElement.getAttribute(BIRD_NAME_ATTRIBUTE);
-				if(name == null || name.isEmpty()) {
-					System.err.println("'" + BIRD_NAME_ATTRIBUTE + "' is missing or contains empty value, skipping.");
-					continue;
-				}
-					
-				String color = birdElement.getAttribute(BIRD_COLOR_ATTRIBUTE);
-				float weight = 0;
-				float height = 0;
-				
-				/*
-				 * Parse weight.
-				 */
-				String value = birdElement.getAttribute(BIRD_WEIGHT_ATTRIBUTE);
-				try {
-					weight = Float.parseFloat(value);
-				}
-				catch(NumberFormatException e){
-					System.err.println("'" + BIRD_WEIGHT_ATTRIBUTE + "' attribute does not contain valid value for bird '" + name + "'.");
-				}
-				
-				/*
-				 * Parse height.
-				 */
-				value = birdElement.getAttribute(BIRD_HEIGHT_ATTRIBUTE);
-				try {
-					height = Float.parseFloat(value);
-				}
-				catch(NumberFormatException e){
-					System.err.println("'" + BIRD_HEIGHT_ATTRIBUTE + "' attribute does not contain valid value for bird '" + name + "'.");
-				}
-				
-				if(model.containsKey(name)) {
-					System.err.println("'" + name + "' bird is already present, skipping.");
-					continue;
-				}
-					
-				model.put(name, new Bird(name, color, weight, height));
-			}
-		} 
-		catch (SAXParseException err) {
-			System.err.println("Parsing error:" + " line - " + err.getLineNumber() + ", uri - " + err.getSystemId());
-			System.err.println("Message: " + err.getMessage());
-			return false;
-		} 
-		catch (Exception e) {
-			System.err.println(e.getMessage());
-			return false;
+	/**
+	 * Queues the connection for a worker, or turns it away if the queue is
+	 * full.
+	 */
+	private void enqueue(ClientConnection connection) {
+		if(queueCapacity > 0 && requests.size() >= queueCapacity)
+			admissionController.rejectQueueFull(connection);
+		else
+			requests.add(connection);
+	}
+	
+	/**
+	 * Turns away the requests still in the queue and aborts the ones in
+	 * progress, once the drain deadline has passed.
+	 */
+	private void abortRequests() {
+		ArrayList<ClientConnection> queued = new ArrayList<ClientConnection>();
+		requests.drainTo(queued);
+		for(ClientConnection connection : queued) {
+			if(connection == STOP_REQUEST)
+				continue;
+			
+			admissionController.reject(connection, Constants.SHUTTING_DOWN_RESPONSE);
+			admissionController.finished();
 		}
 		
-		return true;
+		for(WorkerThread wt : workerThreads)
+			wt.abort();
 	}
-
-	private boolean readSightingsFile() {
-		try {
-			DocumentBuilderFactory docBuilderFactory = DocumentBuilderFactory.newInstance();
-			DocumentBuilder docBuilder = docBuilderFactory.newDocumentBuilder();
-			Document doc = docBuilder.parse(sightingsFile);
-			doc.getDocumentElement().normalize();
-
-			NodeList birdNodes = doc.getElementsByTagName(SIGHTING_BIRD_NODE);
-			for (int i = 0; i < birdNodes.getLength(); i++) {
-
-				Node birdNode = birdNodes.item(i);
-				if (birdNode.getNodeType() != Node.ELEMENT_NODE)
-					continue;
-					
-				Element birdElement = (Element) birdNode;
-				
-				/*
-				 * Get name attribute. If name is empty/missing, skip this node.
-				 */
-				String name = birdElement.getAttribute(SIGHTINGS_NAME_ATTRIBUTE);
-				if(name == null || name.isEmpty()) {
-					System.err.println("Sighting record with empty/missing bird name, skipping.");
-					continue;
-				}
-				
-				/*
-				 * Get bird object from the model. If it is not present, skip this node.
-				 */
-				Bird bird = model.get(name);
-				if(bird == null) {
-					System.err.println("Bird '" + name + "' does not present in birds list, skipping.");
-					continue;
-				}
-				
-				/*
-				 * Get sighting nodes.
-				 */
-				NodeList sightingNodes = birdElement.getElementsByTagName(SIGHTING_NODE);
-				for(int j = 0; j < sightingNodes.getLength(); j++) {
-					Node sightingNode = sightingNodes.item(j);
-					if(sightingNode.getNodeType() != Node.ELEMENT_NODE)
-						continue;
-					
-					Element sightingElement = (Element) sightingNode;
-					
-					/*
-					 * Get location.
-					 */
-					String location = sightingElement.getAttribute(SIGHTINGS_LOCATION_ATTRIBUTE);
-					Date date = null;
-					
-					/*
-					 * Parse weight.
-					 */
-					String value = sightingElement.getAttribute(SIGHTINGS_DATE_ATTRIBUTE);
-					if(validateDateAndTime(value))
-						date = DateFormat.getInstance().parse(value);
-					else
-						System.err.println("'" + SIGHTINGS_DATE_ATTRIBUTE + "' attribute does not contain valid value for bird '" + name + "'.");
-					
-					/*
-					 * Add sighting to model.
-					 */
-					bird.addSighting(location, date);
-				}
-			}
-		} 
-		catch (SAXParseException err) {
-			System.err.println("Parsing error" + ", line " + err.getLineNumber() + ", uri " + err.getSystemId());
-			System.err.println(" " + err.getMessage());
-			return false;
-		} 
-		catch (Exception e) {
-			System.err.println(e.getMessage());
+	
+	/**
+	 * Creates the model of the default dataset and of every named dataset
+	 * found in the data folder.
+	 */
+	private boolean openDatasets() {
+		Dataset dataset = new Dataset("", config, serverDataFolder, lifecycle, sightingsCache, deduplicator, ioThrottle);
+		if(!dataset.createModel())
 			return false;
+		
+		datasets.put("", dataset);
+		
+		File[] folders = new File(serverDataFolder, DATASETS_FOLDER).listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				return file.isDirectory() && DATASET_ID.matcher(file.getName()).matches();
+			}
+		});
+		
+		if(folders == null)
+			return true;
+		
+		for(File folder : folders) {
+			dataset = new Dataset(folder.getName(), config, folder, lifecycle, sightingsCache, deduplicator, ioThrottle);
+			if(!dataset.createModel())
+				return false;
+			
+			datasets.put(folder.getName(), dataset);
 		}
 		
 		return true;
 	}
 	
-	private void saveModel() {
-		System.out.println("Saving Model ...");
+	/**
+	 * Returns the dataset the request names, the default one if it names
+	 * none, or null if it is not present.
+	 */
+	private Dataset getDataset(HashMap<String, Object> request) {
+		Object value = request.get(Constants.DATASET);
+		synchronized (datasets) {
+			return datasets.get(value instanceof String ? (String) value : "");
+		}
+	}
+	
+	/**
+	 * Creates the dataset the request names and returns the message for the
+	 * client. The model is created outside the lock on datasets, so the
+	 * requests to the other datasets go on meanwhile.
+	 */
+	private String createDataset(HashMap<String, Object> request) {
+		Object value = request.get(Constants.DATASET);
+		String id = value instanceof String ? (String) value : "";
+		if(!DATASET_ID.matcher(id).matches())
+			return "Dataset name should be 1 to 64 letters, digits, '_' or '-'.";
 		
-		try {
-			DocumentBuilderFactory docFactory = DocumentBuilderFactory.newInstance();
-			DocumentBuilder docBuilder = docFactory.newDocumentBuilder();
-
-			/*
-			 * Create document and root element for birds.
-			 */
-			Document birdDoc = docBuilder.newDocument();
-			Element birdRootElement = birdDoc.createElement(BIRD_ROOT_NODE);
-			birdDoc.appendChild(birdRootElement);
+		synchronized (datasets) {
+			if(datasets.containsKey(id))
+				return "Dataset '" + id + "' is already present.";
 			
-			/*
-			 * Create document and root element for sightings.
-			 */
-			Document sightingsDoc = docBuilder.newDocument();
-			Element sightingsRootElement = sightingsDoc.createElement(SIGHTING_ROOT_NODE);
-			sightingsDoc.appendChild(sightingsRootElement);
+			if(creating.contains(id))
+				return "Dataset '" + id + "' is being created, try again later.";
 			
-			synchronized (model) {
-				for(Bird bird : model.values()) {
-					/*
-					 * Create bird element.
-					 */
-					Element birdElement = birdDoc.createElement(BIRD_NODE);
-					birdRootElement.appendChild(birdElement);
-
-					/*
-					 * Set attributes and their values for birdElement.
-					 */
-					birdElement.setAttribute(BIRD_NAME_ATTRIBUTE, bird.getName());
-					birdElement.setAttribute(BIRD_COLOR_ATTRIBUTE, bird.getColor());
-					birdElement.setAttribute(BIRD_WEIGHT_ATTRIBUTE, Float.toString(bird.getWeight()));
-					birdElement.setAttribute(BIRD_HEIGHT_ATTRIBUTE,  Float.toString(bird.getHeight()));
-					
-					/*
-					 * Write sightings.
-					 */
-					BirdSighting[] sightings = bird.getSightings();
-					if(sightings.length < 1)
-						continue;
-					
-					Element sightingBirdElemnet = sightingsDoc.createElement(SIGHTING_BIRD_NODE);
-					sightingsRootElement.appendChild(sightingBirdElemnet);
-					sightingBirdElemnet.setAttribute(SIGHTINGS_NAME_ATTRIBUTE, bird.getName());
-					
-					for(BirdSighting bs : sightings) {
-						/*
-						 * Now create sighting element.
-						 */
-						Element sightingElement = sightingsDoc.createElement(SIGHTING_NODE);
-						sightingBirdElemnet.appendChild(sightingElement);
-						
-						/*
-						 * Set attributes.
-						 */
-						sightingElement.setAttribute(SIGHTINGS_LOCATION_ATTRIBUTE, bs.getLocation());
-						if(bs.getDate() != null)
-							sightingElement.setAttribute(SIGHTINGS_DATE_ATTRIBUTE, DateFormat.getInstance().format(bs.getDate()));
-					}
+			if(!lifecycle.isRunning())
+				return Constants.SHUTTING_DOWN_RESPONSE;
+			
+			creating.add(id);
+		}
+		
+		Dataset dataset = null;
+		boolean started = false;
+		try {
+			dataset = newDataset(id);
+		}
+		finally {
+			synchronized (datasets) {
+				creating.remove(id);
+				
+				/*
+				 * The shutdown takes the datasets under this lock once the
+				 * server has stopped running, so a dataset started here is
+				 * always stopped by it.
+				 */
+				if(dataset != null && lifecycle.isRunning()) {
+					dataset.start();
+					datasets.put(id, dataset);
+					started = true;
 				}
 			}
-
-			/*
-			 * Write the content into birds.xml file.
-			 */
-			TransformerFactory transformerFactory = TransformerFactory.newInstance();
-			Transformer transformer = transformerFactory.newTransformer();
-			transformer.transform(new DOMSource(birdDoc), new StreamResult(birdsFile));
-			
-			/*
-			 * Write the content into sightings.xml file.
-			 */
-			transformer = transformerFactory.newTransformer();
-			transformer.transform(new DOMSource(sightingsDoc), new StreamResult(sightingsFile));
 		}
-		catch (Exception e) {
-			System.err.println(e.getMessage());
+		
+		if(dataset == null)
+			return "Unable to create dataset '" + id + "'.";
+		
+		return started ? "Dataset '" + id + "' has been created." : Constants.SHUTTING_DOWN_RESPONSE;
+	}
+	
+	/**
+	 * Creates the folder and the model of a new dataset, returns null if
+	 * either fails.
+	 */
+	private Dataset newDataset(String id) {
+		File folder = new File(new File(serverDataFolder, DATASETS_FOLDER), id);
+		if(!folder.isDirectory() && !folder.mkdirs()) {
+			System.err.println("Unable to create " + folder.getAbsolutePath() + ".");
+			return null;
 		}
 		
-		System.out.println("Save Model Completed...");
+		Dataset dataset = new Dataset(id, config, folder, lifecycle, sightingsCache, deduplicator, ioThrottle);
+		return dataset.createModel() ? dataset : null;
 	}
 	
-	private static boolean validateDateAndTime(String value) {
+	static boolean validateDateAndTime(String value) {
 		if(value == null || value.isEmpty())
 			return false;
 		
@@ -507,242 +478,216 @@ public class Server {
 	 *
 	 */
 	private class WorkerThread extends Thread {
+		
+		private volatile Socket current;
+		private final ResponseCompressor compressor = new ResponseCompressor(compressThreshold);
 				
 		public WorkerThread(String name) {
 			super(name);
+			
+			/*
+			 * An aborted worker stuck in a request must not keep the
+			 * process alive after shutdown.
+			 */
+			setDaemon(true);
+		}
+		
+		/**
+		 * Interrupts the worker and closes the socket of the request in
+		 * progress.
+		 */
+		public void abort() {
+			interrupt();
+			
+			Socket socket = current;
+			if(socket != null) {
+				try {
+					socket.close();
+				} 
+				catch (IOException e) {
+				}
+			}
 		}
 
 		@SuppressWarnings("unchecked")
 		@Override
 		public void run() {
-			while (!shutdown || !requests.isEmpty()) {
-				Socket socket = null;
-				ObjectOutputStream out = null;
-				ObjectInputStream in = null;
+			while (true) {
+				ClientConnection connection;
 				
+				/*
+				 * Wait for the next request.
+				 */
 				try {
-					/*
-					 * If there is no request, the following line will throw
-					 * exception which will be handled through catch. Its valid
-					 * because otherwise we need to check size by acquiring lock
-					 * on requests vector.
-					 */
-					socket = requests.remove(0);
-					out = new ObjectOutputStream(socket.getOutputStream());
-					in = new ObjectInputStream(socket.getInputStream());
+					connection = requests.take();
+				} 
+				catch (InterruptedException e) {
+					break;
+				}
+				
+				if(connection == STOP_REQUEST)
+					break;
+				
+				current = connection.getSocket();
+				boolean keepAlive = false;
+				ScheduledFuture<?> watch = null;
+				try {
+					connection.open();
+					ObjectOutputStream out = connection.getOutputStream();
+					ObjectInputStream in = connection.getInputStream();
 					
 					HashMap<String, Object> request = (HashMap<String, Object>) in.readObject();
 					String requestValue = (String) request.get(Constants.REQUEST_TYPE);
 					
-					System.out.println(getName() + " - Performing request '" + requestValue + "'");
+					if(logRequests)
+						System.out.println(getName() + " - Performing request '" + requestValue + "'");
+					
+					/*
+					 * The request has its own time from here on. Exports are
+					 * as long as the data, they are watched for progress
+					 * only like any other response.
+					 */
+					Deadline deadline = new Deadline(requestTimeout);
+					watch = watchdog.scheduleAtFixedRate(new CloseTask(connection), requestTimeout * 2L, requestTimeout * 2L,
+							TimeUnit.MILLISECONDS);
 					
-					if(Constants.ADD_BIRD_REQUEST.equals(requestValue))
-						processAddBirdRequest(request, out);
-					else if(Constants.ADD_SIGHTING_REQUEST.equals(requestValue))
-						processAddBirdSightingRequest(request, out);
-					else if(Constants.LIST_BIRDS_REQUEST.equals(requestValue))
-						processListBirdsRequest(out);
-					else if(Constants.LIST_SIGHTINGS_REQUEST.equals(requestValue))
-						processListBirdsSightingsRequest(request, out);
-					else if(Constants.REMOVE_REQUEST.equals(requestValue))
-						processRemoveRequest(request, out);
-					else if(Constants.QUIT_REQUEST.equals(requestValue))
-						processQuitRequest();
+					try {
+						if(Constants.STATS_REQUEST.equals(requestValue))
+							processStatsRequest(request, out);
+						else if(Constants.CONFIG_REQUEST.equals(requestValue))
+							out.writeObject(config.describe());
+						else if(Constants.QUIT_REQUEST.equals(requestValue))
+							processQuitRequest();
+						else if(Constants.CREATE_DATASET_REQUEST.equals(requestValue))
+							out.writeObject(createDataset(request));
+						else {
+							Dataset dataset = getDataset(request);
+							if(dataset == null)
+								out.writeObject("Dataset '" + request.get(Constants.DATASET) + "' is not present.");
+							else if(Constants.ADD_BIRD_REQUEST.equals(requestValue))
+								dataset.processAddBirdRequest(request, out);
+							else if(Constants.ADD_SIGHTING_REQUEST.equals(requestValue))
+								dataset.processAddBirdSightingRequest(request, out);
+							else if(Constants.LIST_BIRDS_REQUEST.equals(requestValue))
+								dataset.processListBirdsRequest(request, out, compressor);
+							else if(Constants.QUERY_BIRDS_REQUEST.equals(requestValue))
+								dataset.processQueryBirdsRequest(request, out, compressor);
+							else if(Constants.SEARCH_NAMES_REQUEST.equals(requestValue))
+								dataset.processSearchNamesRequest(request, out, deadline);
+							else if(Constants.LIST_SIGHTINGS_REQUEST.equals(requestValue))
+								dataset.processListBirdsSightingsRequest(request, out, deadline, compressor);
+							else if(Constants.REMOVE_REQUEST.equals(requestValue))
+								dataset.processRemoveRequest(request, out);
+							else if(Constants.DELETE_SIGHTINGS_REQUEST.equals(requestValue))
+								dataset.processDeleteSightingsRequest(request, out);
+							else if(Constants.UPDATE_SIGHTING_REQUEST.equals(requestValue))
+								dataset.processUpdateSightingRequest(request, out);
+							else if(Constants.SUMMARY_REQUEST.equals(requestValue))
+								dataset.processSummaryRequest(request, out);
+							else if(Constants.EXPORT_REQUEST.equals(requestValue))
+								dataset.processExportRequest(connection);
+						}
+					}
+					catch (Deadline.ExpiredException e) {
+						System.err.println(getName() + " - Request '" + requestValue + "' timed out.");
+						out.writeObject(e.getMessage());
+					}
+					
+					connection.finishResponse();
+					keepAlive = Boolean.TRUE.equals(request.get(Constants.KEEP_ALIVE)) && lifecycle.isRunning();
 				}
 				catch (Exception e) {
 				}
 				finally {
-					try {
-						/*
-						 * Close the client streams and socket.
-						 */
-						if(out != null)
-							out.close();
-						
-						if(in != null)
-							in.close();
-						
-						if(socket != null)
-							socket.close();
-					} 
-					catch (IOException e) {
-					}
-				}
-				
-				try {
-					sleep(250);
-				} 
-				catch (InterruptedException e) {
+					if(watch != null)
+						watch.cancel(false);
+					
+					current = null;
+					admissionController.finished();
+					
+					if(keepAlive)
+						idleConnections.add(connection);
+					else
+						connection.close();
 				}
 			}
 			
 			System.out.println("Shutting down - " + getName());
 		}
 
-		private void processAddBirdRequest(HashMap<String, Object> request, ObjectOutputStream out) throws IOException {
-			String birdName = (String) request.get(Constants.BIRD_NAME);
-			if(birdName == null || birdName.isEmpty()) {
-				out.writeObject("Bird name can not be empty.");
-				return;
-			}
-			
-			String birdColor = (String) request.get(Constants.BIRD_COLOR);
-			float birdWeight = (Float) request.get(Constants.BIRD_WEIGHT);
-			float birdHeight = (Float) request.get(Constants.BIRD_HEIGHT);
-			
-			String message = null;
-			synchronized (model) {
-				if(model.containsKey(birdName))
-					message = "Bird '" + birdName + "' is already present.";
-				else
-					model.put(birdName, new Bird(birdName, birdColor, birdWeight, birdHeight));
-			}
-			
-			if(message == null)
-				message = "Record has been added successfully.";
-			
-			out.writeObject(message);
-		}
-		
-		private void processAddBirdSightingRequest(HashMap<String, Object> request, ObjectOutputStream out) throws IOException {
-			String birdName = (String) request.get(Constants.BIRD_NAME);
-			if(birdName == null || birdName.isEmpty()) {
-				out.writeObject("Bird name can not be empty.");
-				return;
-			}
-			
-			String birdSightingLocation = (String) request.get(Constants.BIRD_SIGHTING_LOCATION);
-			Date birdSightingDate = (Date) request.get(Constants.BIRD_SIGHTING_DATE);
-			
-			String message = null;
-			/*
-			 * Acquire lock on model because we are performing multiple
-			 * operations.
-			 */
-			synchronized (model) {
-				Bird bird = model.get(birdName);
-				if(bird == null)
-					message = "Bird '" + birdName + "' is not present.";
-				else
-					bird.addSighting(birdSightingLocation, birdSightingDate);
+		/**
+		 * Writes the stats of the server and of the dataset the request
+		 * names, the default one if it names none.
+		 */
+		private void processStatsRequest(HashMap<String, Object> request, ObjectOutputStream out) throws IOException {
+			Dataset dataset;
+			int count;
+			synchronized (datasets) {
+				Object value = request.get(Constants.DATASET);
+				dataset = datasets.get(value instanceof String ? (String) value : "");
+				count = datasets.size();
 			}
 			
-			if(message == null)
-				message = "Record has been added successfully.";
+			StringBuilder stats = new StringBuilder();
+			stats.append("Phase: ").append(lifecycle.getPhase()).append('\n');
+			stats.append("Datasets: ").append(count).append('\n');
+			if(dataset != null)
+				dataset.appendStats(stats);
+			stats.append(sightingsCache.getStats()).append('\n');
+			stats.append(admissionController.getStats()).append('\n');
+			stats.append(idleConnections.getStats()).append('\n');
+			stats.append(deduplicator.getStats()).append('\n');
 			
-			out.writeObject(message);
-		}
-		
-		private void processListBirdsRequest(ObjectOutputStream out) throws IOException {
-			Bird[] birds = new Bird[0];
-			synchronized (model) {
-				birds = model.values().toArray(new Bird[0]);
-			}
+			long[] compression = new long[3];
+			for(WorkerThread wt : workerThreads)
+				wt.compressor.addStats(compression);
 			
-			if(birds == null)
-				birds = new Bird[0];
+			stats.append("Transport: connections = ").append(transportCounters.getConnections())
+					.append(", bytes read = ").append(transportCounters.getBytesRead())
+					.append(", bytes written = ").append(transportCounters.getBytesWritten()).append('\n');
+			stats.append("Compression: responses = ").append(compression[0]).append(", raw bytes = ").append(compression[1])
+					.append(", compressed bytes = ").append(compression[2]).append('\n');
 			
-			out.writeObject(birds);
+			out.writeObject(stats.toString());
 		}
 		
-		private void processListBirdsSightingsRequest(HashMap<String,Object> request, ObjectOutputStream out) throws IOException {
-			String birdNameRegex = (String) request.get(Constants.BIRD_NAME);
-			if(birdNameRegex == null || birdNameRegex.isEmpty()) {
-				out.writeObject(new BirdSighting[0]);
-				return;
-			}
-			
-			Date startDate = (Date) request.get(Constants.START_DATE);
-			Date endDate = (Date) request.get(Constants.END_DATE);
-			
-			ArrayList<BirdSighting> sightings = new ArrayList<BirdSighting>();
-			synchronized (model) {
-				/*
-				 * Get the sightings matching the bird name regular expression.
-				 */
-				for(String name : model.keySet().toArray(new String[0])) {
-					if(name.matches(birdNameRegex)) {
-						Bird bird = model.get(name);
-						sightings.addAll(Arrays.asList(bird.getSightings()));
-					}
-				}
-				
-				/*
-				 * Now filter on the bases of date range.
-				 */
-				for(BirdSighting bs : sightings.toArray(new BirdSighting[0])) {
-					Date date = bs.getDate();
-					if(date != null && startDate.before(date) && endDate.after(date))
-						continue;
-					
-					sightings.remove(bs);
-				}
-			}
-			
-			out.writeObject(sightings.toArray(new BirdSighting[0]));
-		}
-
-		private void processRemoveRequest(HashMap<String, Object> request, ObjectOutputStream out) throws IOException {
-			String birdName = (String) request.get(Constants.BIRD_NAME);
-			if(birdName == null || birdName.isEmpty()) {
-				out.writeObject("Bird name can not be empty.");
-				return;
-			}
-			
-			/*
-			 * Don't need to syncronize because hash table is thread safe. 
-			 */
-			if(model.remove(birdName) == null)
-				out.writeObject("Unable to remove. " + birdName + " is not present.");
-			else
-				out.writeObject("Successfully remove bird '" + birdName + "'");
-		}
-
 		private void processQuitRequest() throws IOException {
-			shutdown = true;
-			
-			if(!serverSocket.isClosed())
+			if(lifecycle.drain() && !serverSocket.isClosed())
 				serverSocket.close();
 		}
 	}
 	
 	/**
-	 * Thread which will work on client request.
-	 * 
-	 * @author muaz
-	 *
+	 * Closes the connection of a request which has written nothing for twice
+	 * its deadline, typically a response stuck on a client which does not
+	 * read. A large response to a slow client is left alone as long as it
+	 * moves.
 	 */
-	private class SaveModelThread extends Thread {
+	private static class CloseTask implements Runnable {
+		private final ClientConnection connection;
+		private long written;
+		private boolean closed;
 		
-		public SaveModelThread() {
-			super("Save Model Thread");
+		public CloseTask(ClientConnection connection) {
+			this.connection = connection;
+			this.written = connection.getTransport().getBytesWritten();
 		}
-
+		
 		@Override
 		public void run() {
-			while (!shutdown) {
-				try {
-					sleep(SAVE_MODEL_INTERVAL);
-				} 
-				catch (InterruptedException e) {
-					System.out.println("Save Model Thread has interuppted.");
-				}
-				
-				/*
-				 * check again after sleep that whether server is
-				 * shutting down or not.
-				 */
-				if(shutdown)
-					break;
-				
-				/*
-				 * Save model to xml files. Following functions gets lock on model
-				 * when needed so no need to acquire lock here. 
-				 */
-				saveModel();
+			long now = connection.getTransport().getBytesWritten();
+			if(now != written || closed) {
+				written = now;
+				return;
 			}
 			
-			System.out.println("Shutting down - " + getName());
+			closed = true;
+			System.err.println("Request is not making progress, closing its connection.");
+			try {
+				connection.getSocket().close();
+			} 
+			catch (IOException e) {
+			}
 		}
 	}
 	
@@ -757,80 +702,17 @@ public class Server {
 		 */
         System.setProperty("java.awt.headless", "true");
         
-		/*
-		 * All switches must have values. For default values, switches must be
-		 * missing.
-		 */
-        if(args.length % 2 != 0) {
-        	System.out.println("All options must contain values or should be skip to use default value.");
-        	System.exit(-1);
-        }
-        
         /*
-         * Read command line argument.
+         * Read the properties file and the command line arguments.
          */
-        int port = Constants.DEFAULT_PORT;
-        String dataLocation = null;
-        int procCount = DEFAULT_PROC_COUNT;
-        
-        for(int i = 0; i < args.length; i++) {
-        	String s = args[i];
-        	String v = args[++i];
-        	
-        	if(PORT_SWITCH.equals(s)) {
-        		try {
-        			port = Integer.parseInt(v);
-        			if(port < Constants.MIN_PORT || port > Constants.MAX_PORT) {
-        				System.err.println("'" + PORT_SWITCH + "' should be between " + Constants.MIN_PORT + " & " + Constants.MAX_PORT + " range, using default.");
-        				port = Constants.DEFAULT_PORT;
-        			}
-        		}
-        		catch(NumberFormatException e) {
-        			System.err.println("'" + PORT_SWITCH + "' does not has a valid input, using default.");
-        		}
-        	}
-        	else if(DATA_SWITCH.equals(s)) {
-        		File file = new File(v);
-        		
-				/*
-				 * If the given path does not exit, it's a valid input
-				 * because we could create folder at the given location.
-				 */
-				if(!file.exists()) {	
-					dataLocation = v;
-					continue;
-				}
-				
-				/*
-				 * If path exists and it is a file so use default value.
-				 */
-				if(file.isFile()) {
-					System.err.println("'" + DATA_SWITCH + "' has a file path. using default.");
-					continue;
-				}
-				
-				dataLocation = v;
-        	}
-        	else if(PROC_COUNT_SWITCH.equals(s)) {
-        		try {
-        			procCount = Integer.parseInt(v);
-        			if(procCount < 1) {
-        				System.err.println("'" + PROC_COUNT_SWITCH + "' should be a positive integer, using default.");
-        				port = DEFAULT_PROC_COUNT;
-        			}
-        		}
-        		catch(NumberFormatException e) {
-        			System.err.println("'" + PROC_COUNT_SWITCH + ", does not has a valid input, using default.");
-        		}
-        	}
-        	else {
-        		System.err.println("Not a valid option, ignoring...");
-        	}
-        }
+        ServerConfig config = ServerConfig.load(args);
+        if(config == null)
+        	System.exit(-1);
         
         /*
-         * If dataLocation is null, find user directory path.
+         * If no data location is given, find user directory path.
          */
+        String dataLocation = config.getDataLocation();
         if(dataLocation == null)
         	dataLocation = System.getProperty("user.home");
         
@@ -843,16 +725,15 @@ public class Server {
         	System.exit(-1);
         }
         
-        if(!dataLocation.endsWith(DATA_FOLDER))
-        	dataLocation += "\\" + DATA_FOLDER;
-        
         File serverDataFolder = new File(dataLocation);
+        if(!DATA_FOLDER.equals(serverDataFolder.getName()))
+        	serverDataFolder = new File(serverDataFolder, DATA_FOLDER);
         
 		/*
 		 * If server data folder does not exist, try to create it.
 		 */
         if(!serverDataFolder.exists())
-        	serverDataFolder.mkdir();
+        	serverDataFolder.mkdirs();
         
         /*
          *  If server data folder still does not exist, exit gracefully.
@@ -875,14 +756,13 @@ public class Server {
         /*
          * Print values.
          */
+        config.setDataLocation(serverDataFolder.getAbsolutePath());
         System.out.println("Server is going to start with following values,");
-        System.out.println(PORT_SWITCH + " = " + port);
-        System.out.println(DATA_SWITCH + " = " + serverDataFolder.getAbsolutePath());
-        System.out.println(PROC_COUNT_SWITCH + " = " + procCount);
+        System.out.print(config.describe());
         
         /*
          * Run server now.
          */
-        new Server(port, serverDataFolder, procCount).run();
+        new Server(config, serverDataFolder).run();
 	}
 }
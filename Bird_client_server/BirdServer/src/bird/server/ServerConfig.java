@@ -0,0 +1,351 @@
+package bird.server;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import bird.model.Constants;
+import bird.model.SocketOptions;
+
+/**
+ * Settings of the server. Every setting starts at its default, may be set in
+ * a properties file given with {@value #CONFIG_SWITCH} and may be overridden
+ * on the command line with a switch of the same name, e.g. proc_count=4 in
+ * the file or -proc_count 4 on the command line. A properties file per kind
+ * of node works as a profile.
+ *
+ * Invalid values are reported and the setting keeps its previous value.
+ */
+class ServerConfig {
+
+	public static final String CONFIG_SWITCH = "-config";
+
+	public static final String PORT = "port";
+	public static final String DATA = "data";
+	public static final String PROC_COUNT = "proc_count";
+	public static final String QUEUE_CAPACITY = "queue_capacity";
+	public static final String HOT_DAYS = "hot_days";
+	public static final String CACHE_SIZE = "cache_size";
+	public static final String CACHE_ENTRIES = "cache_entries";
+	public static final String RATE = "rate";
+	public static final String BURST = "burst";
+	public static final String MAX_PENDING = "max_pending";
+	public static final String DRAIN_TIMEOUT = "drain_timeout";
+	public static final String COMPRESS_THRESHOLD = "compress_threshold";
+	public static final String REQUEST_TIMEOUT = "request_timeout";
+	public static final String KEEP_ALIVE_TIMEOUT = "keep_alive_timeout";
+	public static final String BACKLOG = "backlog";
+	public static final String TCP_NO_DELAY = "tcp_no_delay";
+	public static final String TCP_KEEP_ALIVE = "tcp_keep_alive";
+	public static final String STREAM_BUFFER = "stream_buffer";
+	public static final String SEND_BUFFER = "send_buffer";
+	public static final String RECEIVE_BUFFER = "receive_buffer";
+	public static final String SAVE_INTERVAL = "save_interval";
+	public static final String CHECKPOINT_CHANGES = "checkpoint_changes";
+	public static final String CHECKPOINT_BYTES = "checkpoint_bytes";
+	public static final String CHECKPOINT_DELAY = "checkpoint_delay";
+	public static final String CHECKPOINT_RATE = "checkpoint_rate";
+	public static final String COMPACTION_SEGMENTS = "compaction_segments";
+	public static final String SNAPSHOT_GENERATIONS = "snapshot_generations";
+	public static final String DEDUP_WINDOW = "dedup_window";
+	public static final String DEDUP_ENTRIES = "dedup_entries";
+	public static final String RETENTION_DAYS = "retention_days";
+	public static final String RETENTION_SIGHTINGS = "retention_sightings";
+	public static final String RETENTION_ARCHIVE = "retention_archive";
+	public static final String EXPIRY_INTERVAL = "expiry_interval";
+	public static final String LOG_REQUESTS = "log_requests";
+
+	private static final String DEFAULT_SOURCE = "default";
+	private static final String COMMAND_LINE_SOURCE = "command line";
+
+	private final LinkedHashMap<String, Setting> settings = new LinkedHashMap<String, Setting>();
+	private String dataLocation;
+	private String dataSource = DEFAULT_SOURCE;
+
+	public ServerConfig() {
+		add(PORT, Constants.DEFAULT_PORT, Constants.MIN_PORT, Constants.MAX_PORT);
+		/*
+		 * Worker threads, each one works on a single request at a time.
+		 */
+		add(PROC_COUNT, 2, 1, 1024);
+		/*
+		 * New connections waiting for a worker, 0 for no limit besides
+		 * max_pending. Keep alive connections are not turned away once in.
+		 */
+		add(QUEUE_CAPACITY, 0, 0, Integer.MAX_VALUE);
+		/*
+		 * Sightings older than a year are moved to the cold store, 0 keeps
+		 * everything in memory.
+		 */
+		add(HOT_DAYS, 365, 0, Integer.MAX_VALUE);
+		/*
+		 * Number of sightings the list sightings cache may hold, 0 disables
+		 * it, and the number of results it may hold.
+		 */
+		add(CACHE_SIZE, 1000000, 0, Integer.MAX_VALUE);
+		add(CACHE_ENTRIES, 256, 1, Integer.MAX_VALUE);
+		/*
+		 * Connections per second allowed for a single client address, 0 for
+		 * no limit. Requests sent over a keep alive connection are not
+		 * charged again.
+		 */
+		add(RATE, 50, 0, Integer.MAX_VALUE);
+		add(BURST, 100, 1, Integer.MAX_VALUE);
+		/*
+		 * Queued and in progress requests the server takes before turning
+		 * new connections away, 0 for no limit.
+		 */
+		add(MAX_PENDING, 1000, 0, Integer.MAX_VALUE);
+		/*
+		 * Seconds given to the queued and in progress requests to finish once
+		 * shutdown has started.
+		 */
+		add(DRAIN_TIMEOUT, 30, 0, Integer.MAX_VALUE);
+		/*
+		 * Serialized size in bytes, estimated from the number of elements,
+		 * from which listing responses are compressed for the clients
+		 * accepting it, 0 disables compression.
+		 */
+		add(COMPRESS_THRESHOLD, 16384, 0, Integer.MAX_VALUE);
+		/*
+		 * Seconds a client may take to send its request, and the server may
+		 * take to work on it. A response still being written at twice this
+		 * time has its connection closed.
+		 */
+		add(REQUEST_TIMEOUT, 5, 1, Integer.MAX_VALUE);
+		/*
+		 * Seconds a keep alive connection may take to send its next request.
+		 */
+		add(KEEP_ALIVE_TIMEOUT, 10, 1, Integer.MAX_VALUE);
+		/*
+		 * Connections the system queues until they are accepted.
+		 */
+		add(BACKLOG, 1024, 1, Integer.MAX_VALUE);
+		/*
+		 * 1 turns Nagle's algorithm off, and 1 turns TCP keep alive probes
+		 * on.
+		 */
+		add(TCP_NO_DELAY, 1, 0, 1);
+		add(TCP_KEEP_ALIVE, 1, 0, 1);
+		/*
+		 * Bytes buffered between the object streams and a socket.
+		 */
+		add(STREAM_BUFFER, SocketOptions.DEFAULT_STREAM_BUFFER, 512, Integer.MAX_VALUE);
+		/*
+		 * Socket buffer sizes in bytes, 0 leaves them to the system.
+		 */
+		add(SEND_BUFFER, 0, 0, Integer.MAX_VALUE);
+		add(RECEIVE_BUFFER, 0, 0, Integer.MAX_VALUE);
+		/*
+		 * Seconds between two looks at the cold store while the model does
+		 * not change.
+		 */
+		add(SAVE_INTERVAL, 1800, 1, Integer.MAX_VALUE);
+		/*
+		 * Changes, kilobytes of pending changes and seconds a change may
+		 * wait after which a checkpoint is written, 0 turns a trigger off.
+		 */
+		add(CHECKPOINT_CHANGES, 10000, 0, Integer.MAX_VALUE);
+		add(CHECKPOINT_BYTES, 4096, 0, Integer.MAX_VALUE);
+		add(CHECKPOINT_DELAY, 300, 0, Integer.MAX_VALUE);
+		/*
+		 * Kilobytes per second checkpoints and compactions may write, 0 for
+		 * no limit.
+		 */
+		add(CHECKPOINT_RATE, 32768, 0, Integer.MAX_VALUE);
+		/*
+		 * Segments after which they are compacted into the base files.
+		 */
+		add(COMPACTION_SEGMENTS, 16, 1, Integer.MAX_VALUE);
+		/*
+		 * Generations of the base files kept, older ones are fallen back to
+		 * if the newest is found damaged at start up.
+		 */
+		add(SNAPSHOT_GENERATIONS, 2, 1, 100);
+		/*
+		 * Seconds a sighting is remembered so a repeated submission of it is
+		 * not added again, 0 turns it off, and the most sightings
+		 * remembered.
+		 */
+		add(DEDUP_WINDOW, 600, 0, Integer.MAX_VALUE);
+		add(DEDUP_ENTRIES, 100000, 1, Integer.MAX_VALUE);
+		/*
+		 * Days after which sightings expire and the most sightings a bird
+		 * keeps in memory, older ones first to go, 0 keeps them all.
+		 * Expired sightings are written to the archive folder first unless
+		 * archiving is 0. Expiry runs every interval seconds.
+		 */
+		add(RETENTION_DAYS, 0, 0, Integer.MAX_VALUE);
+		add(RETENTION_SIGHTINGS, 0, 0, Integer.MAX_VALUE);
+		add(RETENTION_ARCHIVE, 1, 0, 1);
+		add(EXPIRY_INTERVAL, 3600, 1, Integer.MAX_VALUE);
+		/*
+		 * Whether a line is logged for every request, 0 leaves it out.
+		 */
+		add(LOG_REQUESTS, 1, 0, 1);
+	}
+
+	/**
+	 * Reads the properties file, if the arguments name one, and then the
+	 * switches. Returns null if the arguments or the file can not be used.
+	 */
+	public static ServerConfig load(String[] args) {
+		/*
+		 * All switches must have values. For default values, switches must
+		 * be missing.
+		 */
+		if(args.length % 2 != 0) {
+			System.out.println("All options must contain values or should be skip to use default value.");
+			return null;
+		}
+
+		ServerConfig config = new ServerConfig();
+		for(int i = 0; i < args.length; i += 2) {
+			if(CONFIG_SWITCH.equals(args[i]) && !config.read(new File(args[i + 1])))
+				return null;
+		}
+
+		for(int i = 0; i < args.length; i += 2) {
+			if(CONFIG_SWITCH.equals(args[i]))
+				continue;
+
+			if(!args[i].startsWith("-") || !config.set(args[i].substring(1), args[i + 1], COMMAND_LINE_SOURCE))
+				System.err.println("Not a valid option, ignoring...");
+		}
+
+		return config;
+	}
+
+	public int getInt(String name) {
+		return settings.get(name).value;
+	}
+
+	/**
+	 * Returns the data location given, null if none was.
+	 */
+	public String getDataLocation() {
+		return dataLocation;
+	}
+
+	/**
+	 * Replaces the data location with the folder it has been resolved to.
+	 */
+	public void setDataLocation(String dataLocation) {
+		this.dataLocation = dataLocation;
+	}
+
+	/**
+	 * Returns one line per setting with its value and where the value came
+	 * from.
+	 */
+	public String describe() {
+		StringBuilder builder = new StringBuilder();
+		builder.append(DATA).append(" = ").append(dataLocation == null ? "" : dataLocation)
+				.append(" (").append(dataSource).append(")\n");
+		for(Setting setting : settings.values()) {
+			builder.append(setting.name).append(" = ").append(setting.value)
+					.append(" (").append(setting.source).append(")\n");
+		}
+
+		return builder.toString();
+	}
+
+	private void add(String name, int value, int min, int max) {
+		settings.put(name, new Setting(name, value, min, max));
+	}
+
+	private boolean read(File file) {
+		Properties properties = new Properties();
+		try {
+			InputStream in = new FileInputStream(file);
+			try {
+				properties.load(in);
+			}
+			finally {
+				in.close();
+			}
+		}
+		catch (IOException e) {
+			System.err.println("Unable to read " + file.getAbsolutePath() + ", exiting.");
+			return false;
+		}
+
+		for(Map.Entry<Object, Object> entry : properties.entrySet()) {
+			String name = ((String) entry.getKey()).trim();
+			if(!set(name, ((String) entry.getValue()).trim(), file.getName()))
+				System.err.println("'" + name + "' in " + file.getName() + " is not a valid setting, ignoring...");
+		}
+
+		return true;
+	}
+
+	/**
+	 * Sets the value if it is valid. Returns false if there is no such
+	 * setting.
+	 */
+	private boolean set(String name, String value, String source) {
+		if(DATA.equals(name)) {
+			/*
+			 * If the given path does not exit, it's a valid input because we
+			 * could create folder at the given location. If it exists and it
+			 * is a file, keep the previous value.
+			 */
+			if(new File(value).isFile()) {
+				System.err.println("'" + name + "' has a file path. using default.");
+				return true;
+			}
+
+			dataLocation = value;
+			dataSource = source;
+			return true;
+		}
+
+		Setting setting = settings.get(name);
+		if(setting == null)
+			return false;
+
+		int parsed;
+		try {
+			parsed = Integer.parseInt(value);
+		}
+		catch(NumberFormatException e) {
+			System.err.println("'" + name + "' does not has a valid input, using default.");
+			return true;
+		}
+
+		if(parsed < setting.min || parsed > setting.max) {
+			if(setting.max != Integer.MAX_VALUE)
+				System.err.println("'" + name + "' should be between " + setting.min + " & " + setting.max + " range, using default.");
+			else if(setting.min == 0)
+				System.err.println("'" + name + "' should not be negative, using default.");
+			else if(setting.min == 1)
+				System.err.println("'" + name + "' should be a positive integer, using default.");
+			else
+				System.err.println("'" + name + "' should be at least " + setting.min + ", using default.");
+
+			return true;
+		}
+
+		setting.value = parsed;
+		setting.source = source;
+		return true;
+	}
+
+	private static class Setting {
+		private final String name;
+		private final int min;
+		private final int max;
+		private int value;
+		private String source = DEFAULT_SOURCE;
+
+		public Setting(String name, int value, int min, int max) {
+			this.name = name;
+			this.value = value;
+			this.min = min;
+			this.max = max;
+		}
+	}
+}
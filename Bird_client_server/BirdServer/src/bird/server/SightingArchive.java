@@ -0,0 +1,141 @@
+package bird.server;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.Collection;
+import java.util.Date;
+import java.util.zip.GZIPOutputStream;
+
+import bird.model.BirdSighting;
+
+/**
+ * Compressed file the expired sightings are written to before they are
+ * dropped, one per expiry pass in the archive folder of the server data. Each
+ * line holds the bird name, the location and the date in milliseconds,
+ * separated by tabs, with tabs, line breaks and backslashes escaped.
+ *
+ * The file is opened on the first sighting. {@link #sync()} ends the
+ * current gzip member and forces it to the disk, so whatever was written
+ * before can be dropped safely; later lines go to a new member, which gzip
+ * readers join.
+ */
+class SightingArchive {
+
+	static final String ARCHIVE_FOLDER = "archive";
+
+	private final File folder;
+	private File file;
+	private FileOutputStream fileOut;
+	private Writer writer;
+	private long count;
+
+	public SightingArchive(File dataFolder) {
+		this.folder = new File(dataFolder, ARCHIVE_FOLDER);
+	}
+
+	public void write(Collection<BirdSighting> sightings) throws IOException {
+		for(BirdSighting sighting : sightings) {
+			if(writer == null)
+				open();
+
+			writer.write(escape(sighting.getName()));
+			writer.write('\t');
+			writer.write(escape(sighting.getLocation()));
+			writer.write('\t');
+			writer.write(sighting.getDate() == null ? "" : Long.toString(sighting.getDate().getTime()));
+			writer.write('\n');
+			count++;
+		}
+	}
+
+	/**
+	 * Makes everything written so far durable.
+	 */
+	public void sync() throws IOException {
+		if(writer == null)
+			return;
+
+		writer.close();
+		fileOut.getFD().sync();
+		fileOut.close();
+		writer = null;
+	}
+
+	public void close() throws IOException {
+		sync();
+	}
+
+	/**
+	 * Returns the number of sightings written.
+	 */
+	public long getCount() {
+		return count;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	private void open() throws IOException {
+		if(file == null) {
+			if(!folder.exists() && !folder.mkdirs())
+				throw new IOException("Unable to create " + folder.getAbsolutePath() + ".");
+
+			String name = "sightings-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+			file = new File(folder, name + ".txt.gz");
+			for(int i = 1; file.exists(); i++)
+				file = new File(folder, name + "-" + i + ".txt.gz");
+		}
+
+		/*
+		 * A new member goes after the synced ones.
+		 */
+		fileOut = new FileOutputStream(file, true);
+		writer = new BufferedWriter(new OutputStreamWriter(new GZIPOutputStream(new NonClosingOutputStream(fileOut)), "UTF-8"));
+	}
+
+	private static String escape(String value) {
+		StringBuilder builder = new StringBuilder(value.length());
+		for(int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if(c == '\\')
+				builder.append("\\\\");
+			else if(c == '\t')
+				builder.append("\\t");
+			else if(c == '\n')
+				builder.append("\\n");
+			else if(c == '\r')
+				builder.append("\\r");
+			else
+				builder.append(c);
+		}
+
+		return builder.toString();
+	}
+
+	/**
+	 * Lets the gzip stream be closed, to write its trailer, while the file
+	 * stays open to be synced.
+	 */
+	private static class NonClosingOutputStream extends FilterOutputStream {
+
+		public NonClosingOutputStream(FileOutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+		}
+
+		@Override
+		public void close() throws IOException {
+			flush();
+		}
+	}
+}
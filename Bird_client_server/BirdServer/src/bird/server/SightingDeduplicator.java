@@ -0,0 +1,78 @@
+package bird.server;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Remembers the sightings added within the last window, so a submission
+ * repeated by a client retrying it is not added twice. A sighting is known by
+ * its dataset and the request id the client gave it, or by its dataset, bird,
+ * location and date if it has none.
+ *
+ * Keys are kept in the order they were added and dropped once they are older
+ * than the window, or the oldest ones first once there are too many.
+ */
+class SightingDeduplicator {
+
+	private final long window;
+	private final int maxEntries;
+	private final LinkedHashMap<String, Long> keys = new LinkedHashMap<String, Long>();
+	private long duplicates;
+
+	/**
+	 * @param window milliseconds a sighting is remembered, 0 disables it.
+	 */
+	public SightingDeduplicator(long window, int maxEntries) {
+		this.window = window;
+		this.maxEntries = maxEntries;
+	}
+
+	public static String key(String dataset, String requestId, String name, String location, Date date) {
+		if(requestId != null)
+			return "id\u0000" + dataset + '\u0000' + requestId;
+
+		return "sighting\u0000" + dataset + '\u0000' + name + '\u0000' + (location == null ? "" : location) + '\u0000' + (date == null ? "" : Long.toString(date.getTime()));
+	}
+
+	/**
+	 * Returns true if the sighting with the key was added within the window,
+	 * and counts it as a duplicate.
+	 */
+	public synchronized boolean isDuplicate(String key) {
+		if(window == 0)
+			return false;
+
+		expire(System.currentTimeMillis());
+		if(!keys.containsKey(key))
+			return false;
+
+		duplicates++;
+		return true;
+	}
+
+	public synchronized void added(String key) {
+		if(window == 0)
+			return;
+
+		long now = System.currentTimeMillis();
+		keys.remove(key);
+		keys.put(key, now);
+		expire(now);
+	}
+
+	public synchronized String getStats() {
+		return "Deduplication: duplicates = " + duplicates + ", tracked = " + keys.size();
+	}
+
+	private void expire(long now) {
+		Iterator<Map.Entry<String, Long>> iterator = keys.entrySet().iterator();
+		while(iterator.hasNext()) {
+			Map.Entry<String, Long> eldest = iterator.next();
+			if(keys.size() <= maxEntries && now - eldest.getValue() < window)
+				break;
+
+			iterator.remove();
+		}
+	}
+}
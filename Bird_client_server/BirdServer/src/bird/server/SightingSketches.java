@@ -0,0 +1,184 @@
+package bird.server;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Hashtable;
+import java.util.Map;
+import java.util.TimeZone;
+
+import bird.model.SightingSummary;
+
+/**
+ * Sketches of the sightings of the last days, so the most sighted birds and
+ * locations and the distinct locations of a bird are answered without going
+ * through the sightings. Sightings are put in a bucket per local day by their
+ * date, in a ring of {@link #MAX_DAYS} buckets, and those dated outside of it
+ * are left out. Memory is bounded per bird and the work per sighting is
+ * bounded too, however many sightings there are.
+ *
+ * Like the journal, it must only be used while holding the lock on model.
+ * Removing a bird drops its distinct locations, its sightings stay counted
+ * in the locations and are hidden from the top birds.
+ */
+class SightingSketches {
+
+	static final int MAX_DAYS = 31;
+	static final int DEFAULT_DAYS = 7;
+
+	/**
+	 * Most values counted per day, and so the most a top list can have.
+	 */
+	static final int MAX_TOP = 128;
+
+	private static final long DAY = 24L * 60 * 60 * 1000;
+
+	/**
+	 * 1024 registers, an error of about 3%.
+	 */
+	private static final int PRECISION = 10;
+
+	private final long[] days = new long[MAX_DAYS];
+	private final HeavyHitters[] birds = new HeavyHitters[MAX_DAYS];
+	private final HeavyHitters[] locations = new HeavyHitters[MAX_DAYS];
+	private final HashMap<String, BirdDays> birdLocations = new HashMap<String, BirdDays>();
+
+	public SightingSketches() {
+		for(int i = 0; i < MAX_DAYS; i++) {
+			days[i] = Long.MIN_VALUE;
+			birds[i] = new HeavyHitters(MAX_TOP);
+			locations[i] = new HeavyHitters(MAX_TOP);
+		}
+	}
+
+	public void sightingAdded(String name, String location, Date date) {
+		if(date == null)
+			return;
+
+		long day = day(date.getTime());
+		long today = day(System.currentTimeMillis());
+		if(day > today || day <= today - MAX_DAYS)
+			return;
+
+		int slot = slot(day);
+		if(days[slot] != day) {
+			days[slot] = day;
+			birds[slot].clear();
+			locations[slot].clear();
+		}
+
+		birds[slot].add(name);
+		locations[slot].add(location);
+
+		BirdDays birdDays = birdLocations.get(name);
+		if(birdDays == null) {
+			birdDays = new BirdDays();
+			birdLocations.put(name, birdDays);
+		}
+
+		birdDays.add(slot, day, location);
+	}
+
+	public void birdRemoved(String name) {
+		birdLocations.remove(name);
+	}
+
+	/**
+	 * Returns the date from which sightings are counted.
+	 */
+	public static Date getStart() {
+		long day = day(System.currentTimeMillis()) - MAX_DAYS + 1;
+		return new Date(day * DAY - TimeZone.getDefault().getOffset(day * DAY));
+	}
+
+	/**
+	 * Sums up the given number of days up to today. The top lists only
+	 * have birds still in the model.
+	 *
+	 * @param name the bird to count the distinct locations of, or null.
+	 */
+	public SightingSummary summarize(String name, int dayCount, int top, Hashtable<String, ?> model) {
+		long today = day(System.currentTimeMillis());
+		HashMap<String, Long> birdTotals = new HashMap<String, Long>();
+		HashMap<String, Long> locationTotals = new HashMap<String, Long>();
+		HyperLogLog distinct = new HyperLogLog(PRECISION);
+		BirdDays birdDays = name == null ? null : birdLocations.get(name);
+		for(long day = today - dayCount + 1; day <= today; day++) {
+			int slot = slot(day);
+			if(days[slot] == day) {
+				birds[slot].addTo(birdTotals);
+				locations[slot].addTo(locationTotals);
+			}
+
+			if(birdDays != null && birdDays.days[slot] == day && birdDays.locations[slot] != null)
+				distinct.merge(birdDays.locations[slot]);
+		}
+
+		birdTotals.keySet().retainAll(model.keySet());
+		ArrayList<Map.Entry<String, Long>> topBirds = top(birdTotals, top);
+		ArrayList<Map.Entry<String, Long>> topLocations = top(locationTotals, top);
+
+		String[] birdNames = new String[topBirds.size()];
+		long[] birdCounts = new long[topBirds.size()];
+		for(int i = 0; i < birdNames.length; i++) {
+			birdNames[i] = topBirds.get(i).getKey();
+			birdCounts[i] = topBirds.get(i).getValue();
+		}
+
+		String[] locationNames = new String[topLocations.size()];
+		long[] locationCounts = new long[topLocations.size()];
+		for(int i = 0; i < locationNames.length; i++) {
+			locationNames[i] = topLocations.get(i).getKey();
+			locationCounts[i] = topLocations.get(i).getValue();
+		}
+
+		return new SightingSummary(dayCount, name, name == null ? -1 : distinct.estimate(), birdNames, birdCounts,
+				locationNames, locationCounts);
+	}
+
+	private static ArrayList<Map.Entry<String, Long>> top(HashMap<String, Long> totals, int top) {
+		ArrayList<Map.Entry<String, Long>> entries = new ArrayList<Map.Entry<String, Long>>(totals.entrySet());
+		Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+			@Override
+			public int compare(Map.Entry<String, Long> o1, Map.Entry<String, Long> o2) {
+				int result = o2.getValue().compareTo(o1.getValue());
+				return result != 0 ? result : o1.getKey().compareTo(o2.getKey());
+			}
+		});
+
+		return entries.size() > top ? new ArrayList<Map.Entry<String, Long>>(entries.subList(0, top)) : entries;
+	}
+
+	/**
+	 * Number of the local day the time falls on.
+	 */
+	private static long day(long time) {
+		return Math.floorDiv(time + TimeZone.getDefault().getOffset(time), DAY);
+	}
+
+	private static int slot(long day) {
+		return (int) Math.floorMod(day, (long) MAX_DAYS);
+	}
+
+	/**
+	 * Distinct locations of a bird per day of the ring, created on its first
+	 * sighting of the day.
+	 */
+	private static class BirdDays {
+		private final long[] days = new long[MAX_DAYS];
+		private final HyperLogLog[] locations = new HyperLogLog[MAX_DAYS];
+
+		public void add(int slot, long day, String location) {
+			if(days[slot] != day || locations[slot] == null) {
+				days[slot] = day;
+				if(locations[slot] == null)
+					locations[slot] = new HyperLogLog(PRECISION);
+				else
+					locations[slot].clear();
+			}
+
+			locations[slot].add(location);
+		}
+	}
+}
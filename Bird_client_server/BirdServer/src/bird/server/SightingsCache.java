@@ -0,0 +1,222 @@
+package bird.server;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.regex.Pattern;
+
+import bird.model.BirdSighting;
+
+/**
+ * Bounded cache for the results of list sightings requests, keyed on the
+ * name expression and the date range. Size is counted in cached sightings &
+ * matched names and the least recently used results are evicted first.
+ *
+ * Every entry remembers the birds it was built from, so a mutation only
+ * invalidates the results it could have changed. Results are put and
+ * invalidated while holding the lock on model.
+ *
+ * The cache is shared by all the datasets, within one size. Entries are
+ * keyed and invalidated per dataset.
+ */
+class SightingsCache {
+
+	/**
+	 * Time a cached pattern may take to match a new bird name.
+	 */
+	private static final long MATCH_TIMEOUT = 50;
+
+	private final int maxEntries;
+	private final long maxSize;
+
+	private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+	private long size;
+
+	private long hits;
+	private long misses;
+	private long evictions;
+	private long invalidations;
+
+	public SightingsCache(int maxEntries, long maxSize) {
+		this.maxEntries = maxEntries;
+		this.maxSize = maxSize;
+	}
+
+	public synchronized BirdSighting[] get(String dataset, String nameRegex, Date startDate, Date endDate) {
+		Entry entry = entries.get(new Key(dataset, nameRegex, startDate, endDate));
+		if(entry == null) {
+			misses++;
+			return null;
+		}
+
+		hits++;
+		return entry.sightings;
+	}
+
+	public synchronized void put(String dataset, String nameRegex, Pattern namePattern, Date startDate, Date endDate, HashSet<String> names, BirdSighting[] sightings) {
+		if(maxEntries < 1)
+			return;
+
+		Entry entry = new Entry(dataset, namePattern, startDate.getTime(), endDate.getTime(), names, sightings);
+		if(entry.size > maxSize)
+			return;
+
+		Entry previous = entries.put(new Key(dataset, nameRegex, startDate, endDate), entry);
+		if(previous != null)
+			size -= previous.size;
+		size += entry.size;
+
+		/*
+		 * Evict least recently used results until we are in bounds again.
+		 */
+		Iterator<Entry> iterator = entries.values().iterator();
+		while((entries.size() > maxEntries || size > maxSize) && iterator.hasNext()) {
+			Entry eldest = iterator.next();
+			iterator.remove();
+			size -= eldest.size;
+			evictions++;
+		}
+	}
+
+	/**
+	 * A new bird can only appear in the results whose expression matches
+	 * its name.
+	 */
+	public synchronized void birdAdded(String dataset, String name) {
+		Iterator<Entry> iterator = entries.values().iterator();
+		while(iterator.hasNext()) {
+			Entry entry = iterator.next();
+			if(entry.dataset.equals(dataset) && matches(entry.namePattern, name))
+				invalidate(iterator, entry);
+		}
+	}
+
+	public synchronized void birdRemoved(String dataset, String name) {
+		Iterator<Entry> iterator = entries.values().iterator();
+		while(iterator.hasNext()) {
+			Entry entry = iterator.next();
+			if(entry.dataset.equals(dataset) && entry.names.contains(name))
+				invalidate(iterator, entry);
+		}
+	}
+
+	/**
+	 * A sighting only changes the results which were built from its bird
+	 * and whose date range contains the sighting.
+	 */
+	public synchronized void sightingAdded(String dataset, String name, Date date) {
+		if(date == null)
+			return;
+
+		long time = date.getTime();
+		Iterator<Entry> iterator = entries.values().iterator();
+		while(iterator.hasNext()) {
+			Entry entry = iterator.next();
+			if(entry.start < time && time < entry.end && entry.dataset.equals(dataset) && entry.names.contains(name))
+				invalidate(iterator, entry);
+		}
+	}
+
+	/**
+	 * Sightings taken from a bird, by the retention policy, change every
+	 * result built from it.
+	 */
+	public synchronized void sightingsRemoved(String dataset, String name) {
+		birdRemoved(dataset, name);
+	}
+
+	/**
+	 * Expired sightings only change the results whose range starts before
+	 * the cutoff.
+	 */
+	public synchronized void sightingsExpired(String dataset, Date before) {
+		long time = before.getTime();
+		Iterator<Entry> iterator = entries.values().iterator();
+		while(iterator.hasNext()) {
+			Entry entry = iterator.next();
+			if(entry.start < time && entry.dataset.equals(dataset))
+				invalidate(iterator, entry);
+		}
+	}
+
+	public synchronized String getStats() {
+		long requests = hits + misses;
+		return "Sightings cache: entries = " + entries.size() + ", size = " + size + "/" + maxSize
+				+ ", hits = " + hits + ", misses = " + misses
+				+ ", hit ratio = " + (requests == 0 ? 0 : (hits * 100 / requests)) + "%"
+				+ ", evictions = " + evictions + ", invalidations = " + invalidations;
+	}
+
+	/**
+	 * A pattern which takes too long on the new name is taken as a match,
+	 * so the add request is not held up by someone else's query.
+	 */
+	private static boolean matches(Pattern pattern, String name) {
+		try {
+			return pattern.matcher(new Deadline(MATCH_TIMEOUT).guard(name)).matches();
+		}
+		catch (Deadline.ExpiredException e) {
+			return true;
+		}
+	}
+
+	private void invalidate(Iterator<Entry> iterator, Entry entry) {
+		iterator.remove();
+		size -= entry.size;
+		invalidations++;
+	}
+
+	/**
+	 * Query parameters of a cached result.
+	 */
+	private static class Key {
+		private final String dataset;
+		private final String nameRegex;
+		private final long start;
+		private final long end;
+
+		public Key(String dataset, String nameRegex, Date startDate, Date endDate) {
+			this.dataset = dataset;
+			this.nameRegex = nameRegex;
+			this.start = startDate.getTime();
+			this.end = endDate.getTime();
+		}
+
+		@Override
+		public int hashCode() {
+			return ((dataset.hashCode() * 31 + nameRegex.hashCode()) * 31 + (int) (start ^ (start >>> 32))) * 31 + (int) (end ^ (end >>> 32));
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if(!(obj instanceof Key))
+				return false;
+
+			Key key = (Key) obj;
+			return start == key.start && end == key.end && nameRegex.equals(key.nameRegex) && dataset.equals(key.dataset);
+		}
+	}
+
+	/**
+	 * A cached result along with the birds it was built from.
+	 */
+	private static class Entry {
+		private final String dataset;
+		private final Pattern namePattern;
+		private final long start;
+		private final long end;
+		private final HashSet<String> names;
+		private final BirdSighting[] sightings;
+		private final long size;
+
+		public Entry(String dataset, Pattern namePattern, long start, long end, HashSet<String> names, BirdSighting[] sightings) {
+			this.dataset = dataset;
+			this.namePattern = namePattern;
+			this.start = start;
+			this.end = end;
+			this.names = names;
+			this.sightings = sightings;
+			this.size = 1 + names.size() + sightings.length;
+		}
+	}
+}
@@ -0,0 +1,414 @@
+package bird.server;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import bird.model.Bird;
+import bird.model.BirdSighting;
+
+/**
+ * Loads sightings.xml on all the cores. The file is cut into chunks at bird
+ * element boundaries, every chunk is parsed on its own with the prolog & root
+ * element of the file around it, and the sightings are merged into the model
+ * in file order at the end.
+ *
+ * Chunks are read from the file when they are parsed, so only the chunks in
+ * progress are in memory. Files larger than an int can address are left to
+ * the sequential reader.
+ *
+ * Attribute values can not contain '<', so a bird start tag in the text
+ * always starts an element. Files which do not have the usual layout are left
+ * to the sequential reader.
+ */
+class SightingsLoader {
+
+	private static final String SIGHTING_ROOT_NODE = "sightings";
+	private static final String SIGHTING_BIRD_NODE = "bird";
+	private static final String SIGHTING_NODE = "sighting";
+	private static final String SIGHTINGS_NAME_ATTRIBUTE = "name";
+	private static final String SIGHTINGS_LOCATION_ATTRIBUTE = "location";
+	private static final String SIGHTINGS_DATE_ATTRIBUTE = "date";
+
+	/**
+	 * Chunks per core, so a core which is done early can take more work.
+	 */
+	private static final int CHUNKS_PER_CORE = 4;
+	/**
+	 * Files smaller than this are parsed in one chunk.
+	 */
+	private static final int MIN_CHUNK_SIZE = 262144;
+	/**
+	 * Larger files are cut into more chunks, so a chunk never takes much
+	 * memory.
+	 */
+	private static final int MAX_CHUNK_SIZE = 67108864;
+	/**
+	 * Bytes read at a time while looking for a tag.
+	 */
+	private static final int WINDOW_SIZE = 65536;
+
+	private static final byte[] BIRD_START = ("<" + SIGHTING_BIRD_NODE).getBytes();
+	private static final byte[] ROOT_END = ("</" + SIGHTING_ROOT_NODE + ">").getBytes();
+
+	private final File file;
+	private final int parallelism;
+
+	public SightingsLoader(File file, int parallelism) {
+		this.file = file;
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Adds the sightings of the file to the birds in the model. Returns
+	 * false, without changing the model, if the file could not be split or
+	 * parsed.
+	 */
+	public boolean load(Hashtable<String, Bird> model) throws IOException {
+		FileInputStream stream = new FileInputStream(file);
+		try {
+			FileChannel channel = stream.getChannel();
+			long size = channel.size();
+			if(size > Integer.MAX_VALUE) {
+				System.out.println("Sightings file is too large to be split, reading it sequentially.");
+				return false;
+			}
+
+			return load(model, channel, (int) size);
+		}
+		finally {
+			stream.close();
+		}
+	}
+
+	private boolean load(Hashtable<String, Bird> model, FileChannel channel, int size) throws IOException {
+		/*
+		 * Everything before the first bird is the prolog and the root start
+		 * tag, which is put in front of every chunk.
+		 */
+		int first = indexOfBird(channel, 0, size);
+		int end = lastIndexOf(channel, size, ROOT_END);
+		if(end < 0)
+			return false;
+
+		if(first < 0 || first > end)
+			return true;
+
+		byte[] prolog = read(channel, 0, first);
+		int[] bounds = split(channel, first, end);
+		Chunk[] chunks = new Chunk[bounds.length - 1];
+		for(int i = 0; i < chunks.length; i++)
+			chunks[i] = new Chunk(channel, prolog, bounds[i], bounds[i + 1]);
+
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			pool.invoke(new ParseTask(chunks, 0, chunks.length));
+		}
+		finally {
+			pool.shutdown();
+		}
+
+		for(Chunk chunk : chunks) {
+			if(chunk.error != null) {
+				System.err.println("Unable to load sightings on all cores, " + chunk.error.getMessage());
+				return false;
+			}
+		}
+
+		/*
+		 * Merge in file order, so the sightings end up in the same order as
+		 * with the sequential reader.
+		 */
+		for(Chunk chunk : chunks) {
+			for(Map.Entry<String, ArrayList<BirdSighting>> entry : chunk.sightings.entrySet()) {
+				Bird bird = model.get(entry.getKey());
+				if(bird == null) {
+					System.err.println("Bird '" + entry.getKey() + "' does not present in birds list, skipping.");
+					continue;
+				}
+
+				bird.addSightings(entry.getValue());
+			}
+		}
+
+		System.out.println("Loaded sightings in " + chunks.length + " chunk(s).");
+		return true;
+	}
+
+	/**
+	 * Returns the chunk boundaries, each one at the start of a bird element.
+	 */
+	private int[] split(FileChannel channel, int first, int end) throws IOException {
+		int chunkCount = Math.max(1, Math.min(parallelism * CHUNKS_PER_CORE, (end - first) / MIN_CHUNK_SIZE));
+		chunkCount = Math.max(chunkCount, (end - first) / MAX_CHUNK_SIZE + 1);
+		int target = (end - first) / chunkCount;
+
+		ArrayList<Integer> bounds = new ArrayList<Integer>();
+		bounds.add(first);
+		for(int i = 1; i < chunkCount; i++) {
+			int from = Math.max(first + i * target, bounds.get(bounds.size() - 1) + 1);
+			int bound = indexOfBird(channel, from, end);
+			if(bound < 0)
+				break;
+
+			if(bound > bounds.get(bounds.size() - 1))
+				bounds.add(bound);
+		}
+
+		bounds.add(end);
+
+		int[] result = new int[bounds.size()];
+		for(int i = 0; i < result.length; i++)
+			result[i] = bounds.get(i);
+
+		return result;
+	}
+
+	/**
+	 * Returns the index of the next bird start tag, the tag name followed by
+	 * a white space, '/' or '>'. The file is read a window at a time, the
+	 * windows overlap by the length of the tag.
+	 */
+	private static int indexOfBird(FileChannel channel, int from, int to) throws IOException {
+		int position = from;
+		while(position <= to - BIRD_START.length - 1) {
+			int length = Math.min(WINDOW_SIZE, to - position);
+			byte[] bytes = read(channel, position, length);
+			int index = indexOfBird(bytes, 0, length);
+			if(index >= 0)
+				return position + index;
+
+			position += length - BIRD_START.length;
+		}
+
+		return -1;
+	}
+
+	private static int indexOfBird(byte[] bytes, int from, int to) {
+		for(int i = from; i <= to - BIRD_START.length - 1; i++) {
+			if(!matches(bytes, i, BIRD_START))
+				continue;
+
+			byte next = bytes[i + BIRD_START.length];
+			if(next == ' ' || next == '\t' || next == '\r' || next == '\n' || next == '/' || next == '>')
+				return i;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Returns the index of the last occurrence of the pattern, reading the
+	 * file backwards a window at a time.
+	 */
+	private static int lastIndexOf(FileChannel channel, int size, byte[] pattern) throws IOException {
+		int to = size;
+		while(to >= pattern.length) {
+			int position = Math.max(0, to - WINDOW_SIZE);
+			byte[] bytes = read(channel, position, to - position);
+			for(int i = bytes.length - pattern.length; i >= 0; i--) {
+				if(matches(bytes, i, pattern))
+					return position + i;
+			}
+
+			if(position == 0)
+				break;
+
+			to = position + pattern.length - 1;
+		}
+
+		return -1;
+	}
+
+	private static boolean matches(byte[] bytes, int offset, byte[] pattern) {
+		for(int i = 0; i < pattern.length; i++) {
+			if(bytes[offset + i] != pattern[i])
+				return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Reads the part of the file, the channel is shared by the chunks so
+	 * the position is given on every read.
+	 */
+	private static byte[] read(FileChannel channel, int position, int length) throws IOException {
+		byte[] bytes = new byte[length];
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		while(buffer.hasRemaining()) {
+			if(channel.read(buffer, position + buffer.position()) < 0)
+				throw new EOFException("Sightings file has been truncated while loading.");
+		}
+
+		return bytes;
+	}
+
+	/**
+	 * Dates are validated the same way as {@link Server#validateDateAndTime},
+	 * with a format of the chunk's own since formats are not thread safe.
+	 */
+	private static Date parseDate(DateFormat format, String value) {
+		if(value == null || value.isEmpty())
+			return null;
+
+		try {
+			Date date = format.parse(value);
+			return value.equals(format.format(date)) ? date : null;
+		}
+		catch(ParseException e) {
+		}
+
+		return null;
+	}
+
+	/**
+	 * A part of the file and the sightings parsed from it.
+	 */
+	private static class Chunk extends DefaultHandler {
+		private final FileChannel channel;
+		private final byte[] prolog;
+		private final int from;
+		private final int to;
+
+		private final LinkedHashMap<String, ArrayList<BirdSighting>> sightings = new LinkedHashMap<String, ArrayList<BirdSighting>>();
+		private final DateFormat format = DateFormat.getInstance();
+		private String name;
+		private ArrayList<BirdSighting> current;
+		private Exception error;
+
+		public Chunk(FileChannel channel, byte[] prolog, int from, int to) {
+			this.channel = channel;
+			this.prolog = prolog;
+			this.from = from;
+			this.to = to;
+		}
+
+		private void parse() {
+			try {
+				InputStream in = new SequenceInputStream(new SequenceInputStream(
+						new ByteArrayInputStream(prolog),
+						new ByteArrayInputStream(read(channel, from, to - from))),
+						new ByteArrayInputStream(ROOT_END));
+
+				SAXParser parser = SAXParserFactory.newInstance().newSAXParser();
+				parser.parse(in, this);
+			}
+			catch (Exception e) {
+				error = e;
+				return;
+			}
+
+			/*
+			 * Sightings are written in date order, so this is mostly a
+			 * single pass.
+			 */
+			for(ArrayList<BirdSighting> list : sightings.values())
+				Collections.sort(list, DATE_ORDER);
+		}
+
+		@Override
+		public void startElement(String uri, String localName, String qName, Attributes attributes) throws SAXException {
+			if(SIGHTING_BIRD_NODE.equals(qName)) {
+				/*
+				 * Get name attribute. If name is empty/missing, skip this node.
+				 */
+				name = attributes.getValue(SIGHTINGS_NAME_ATTRIBUTE);
+				current = null;
+				if(name == null || name.isEmpty()) {
+					System.err.println("Sighting record with empty/missing bird name, skipping.");
+					return;
+				}
+
+				current = sightings.get(name);
+				if(current == null) {
+					current = new ArrayList<BirdSighting>();
+					sightings.put(name, current);
+				}
+			}
+			else if(SIGHTING_NODE.equals(qName) && current != null) {
+				String location = attributes.getValue(SIGHTINGS_LOCATION_ATTRIBUTE);
+				Date date = parseDate(format, attributes.getValue(SIGHTINGS_DATE_ATTRIBUTE));
+				if(date == null)
+					System.err.println("'" + SIGHTINGS_DATE_ATTRIBUTE + "' attribute does not contain valid value for bird '" + name + "'.");
+
+				current.add(new BirdSighting(name, location == null ? "" : location, date));
+			}
+		}
+
+		@Override
+		public void endElement(String uri, String localName, String qName) throws SAXException {
+			if(SIGHTING_BIRD_NODE.equals(qName))
+				current = null;
+		}
+	}
+
+	/**
+	 * Splits the chunks until each task parses a single one.
+	 */
+	private static class ParseTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Chunk[] chunks;
+		private final int from;
+		private final int to;
+
+		public ParseTask(Chunk[] chunks, int from, int to) {
+			this.chunks = chunks;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if(to - from == 1) {
+				chunks[from].parse();
+				return;
+			}
+
+			int mid = (from + to) >>> 1;
+			invokeAll(new ParseTask(chunks, from, mid), new ParseTask(chunks, mid, to));
+		}
+	}
+
+	/**
+	 * Same order as {@link Bird}, sightings without a date first.
+	 */
+	private static final Comparator<BirdSighting> DATE_ORDER = new Comparator<BirdSighting>() {
+		@Override
+		public int compare(BirdSighting s1, BirdSighting s2) {
+			Date d1 = s1.getDate();
+			Date d2 = s2.getDate();
+			if(d1 == null)
+				return d2 == null ? 0 : -1;
+
+			if(d2 == null)
+				return 1;
+
+			return d1.compareTo(d2);
+		}
+	};
+}
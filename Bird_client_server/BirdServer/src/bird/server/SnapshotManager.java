@@ -0,0 +1,416 @@
+package bird.server;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+
+import org.w3c.dom.Document;
+
+/**
+ * Generations of the base files. A compaction writes birds & sightings of
+ * the next generation aside, forces them to the disk and moves them in
+ * place, then commits them by replacing the manifest the same way. A crash
+ * at any point leaves the previous generation in use.
+ *
+ * The manifest lists the retained generations, newest first, with the
+ * length and CRC32 of both files and the last journal segment folded into
+ * them; a last line holds the CRC32 of the lines before it. The manifest it
+ * replaces is kept as the previous one, read if the manifest is missing or
+ * damaged. At startup the newest generation whose files match the manifest
+ * is used, which is a sequential read of the files ahead of parsing them.
+ *
+ * Base files of an older server, birds.xml & sightings.xml without a
+ * manifest, are adopted as generation 0 and keep their names.
+ */
+class SnapshotManager {
+
+	static final String BIRD_FILE = "birds.xml";
+	static final String SIGHTING_FILE = "sightings.xml";
+
+	private static final String MANIFEST_FILE = "snapshots.manifest";
+	private static final String PREVIOUS_SUFFIX = ".previous";
+	private static final String TEMP_SUFFIX = ".tmp";
+	private static final String DAMAGED_SUFFIX = ".damaged";
+	private static final String GENERATION_LINE = "generation";
+	private static final String CHECKSUM_LINE = "checksum";
+
+	private final File folder;
+	private final int retained;
+
+	/**
+	 * Retained generations, newest first, the first one is in use.
+	 */
+	private final ArrayList<Generation> generations = new ArrayList<Generation>();
+	private long lastGeneration;
+
+	/**
+	 * @param retained generations kept, at least 1.
+	 */
+	public SnapshotManager(File folder, int retained) {
+		this.folder = folder;
+		this.retained = Math.max(1, retained);
+	}
+
+	/**
+	 * Reads the manifest, or adopts the base files of an older server.
+	 * Returns false if neither manifest can be used.
+	 */
+	public boolean open() {
+		for(File file : folder.listFiles(new FileFilter() {
+			@Override
+			public boolean accept(File file) {
+				return file.isFile() && file.getName().endsWith(TEMP_SUFFIX)
+						&& (file.getName().startsWith("birds.") || file.getName().startsWith("sightings.") || file.getName().startsWith(MANIFEST_FILE));
+			}
+		}))
+			file.delete();
+
+		File manifest = new File(folder, MANIFEST_FILE);
+		File previous = new File(folder, MANIFEST_FILE + PREVIOUS_SUFFIX);
+		List<Generation> read = null;
+		if(manifest.exists()) {
+			read = readManifest(manifest);
+			if(read == null)
+				System.err.println(manifest.getName() + " is damaged, using the previous one.");
+		}
+
+		if(read == null && previous.exists()) {
+			read = readManifest(previous);
+			if(read == null)
+				System.err.println(previous.getName() + " is damaged.");
+		}
+
+		if(read == null && (manifest.exists() || previous.exists())) {
+			System.err.println("No snapshot manifest can be read in " + folder.getAbsolutePath() + ".");
+			return false;
+		}
+
+		if(read == null)
+			return adopt();
+
+		generations.addAll(read);
+		for(Generation generation : generations)
+			lastGeneration = Math.max(lastGeneration, generation.generation);
+
+		return true;
+	}
+
+	/**
+	 * Returns the generations from the newest, to be tried in that order.
+	 */
+	public Generation[] getGenerations() {
+		return generations.toArray(new Generation[0]);
+	}
+
+	/**
+	 * Returns true if both files of the generation are complete, as they
+	 * were committed.
+	 */
+	public boolean isValid(Generation generation) {
+		File birds = birdsFile(generation.generation);
+		File sightings = sightingsFile(generation.generation);
+		try {
+			return birds.length() == generation.birdsLength && sightings.length() == generation.sightingsLength
+					&& checksum(birds) == generation.birdsChecksum && checksum(sightings) == generation.sightingsChecksum;
+		}
+		catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Makes the generation the one in use. The newer ones are damaged, their
+	 * files are set aside so they are not read again.
+	 */
+	public void recovered(Generation generation) {
+		while(!generations.isEmpty() && generations.get(0) != generation) {
+			Generation damaged = generations.remove(0);
+			System.err.println("Setting aside damaged snapshot generation " + damaged.generation + ".");
+			setAside(birdsFile(damaged.generation));
+			setAside(sightingsFile(damaged.generation));
+		}
+	}
+
+	/**
+	 * Returns the birds file in use, null if there is none yet.
+	 */
+	public File getBirdsFile() {
+		return generations.isEmpty() ? null : birdsFile(generations.get(0).generation);
+	}
+
+	public File getSightingsFile() {
+		return generations.isEmpty() ? null : sightingsFile(generations.get(0).generation);
+	}
+
+	/**
+	 * Returns the bytes of the files in use.
+	 */
+	public long getSize() {
+		return generations.isEmpty() ? 0 : generations.get(0).birdsLength + generations.get(0).sightingsLength;
+	}
+
+	/**
+	 * Returns the last journal segment folded into the oldest retained
+	 * generation. Later segments are kept, so falling back to any retained
+	 * generation still replays every change.
+	 */
+	public long getOldestBaseSegment() {
+		return generations.isEmpty() ? 0 : generations.get(generations.size() - 1).baseSegment;
+	}
+
+	/**
+	 * Writes the documents as the next generation, through the throttle, and
+	 * commits it. The generations beyond the retained ones are deleted.
+	 */
+	public void write(Document birds, Document sightings, long baseSegment, IoThrottle throttle) throws Exception {
+		Generation written = new Generation(lastGeneration + 1, baseSegment);
+		TransformerFactory transformerFactory = TransformerFactory.newInstance();
+		written.birdsChecksum = writeDocument(transformerFactory, birds, birdsFile(written.generation), throttle);
+		written.birdsLength = birdsFile(written.generation).length();
+		written.sightingsChecksum = writeDocument(transformerFactory, sightings, sightingsFile(written.generation), throttle);
+		written.sightingsLength = sightingsFile(written.generation).length();
+
+		ArrayList<Generation> kept = new ArrayList<Generation>();
+		kept.add(written);
+		for(int i = 0; i < generations.size() && kept.size() < retained; i++)
+			kept.add(generations.get(i));
+
+		writeManifest(kept);
+		lastGeneration = written.generation;
+
+		for(Generation generation : generations) {
+			if(!kept.contains(generation)) {
+				birdsFile(generation.generation).delete();
+				sightingsFile(generation.generation).delete();
+			}
+		}
+
+		generations.clear();
+		generations.addAll(kept);
+	}
+
+	/**
+	 * Base files of an older server become generation 0. Without them the
+	 * data folder is new and has no generation yet.
+	 */
+	private boolean adopt() {
+		File birds = birdsFile(0);
+		File sightings = sightingsFile(0);
+		if(!birds.exists()) {
+			if(sightings.exists())
+				System.err.println(sightings.getName() + " is ignored, there is no " + birds.getName() + ".");
+
+			return true;
+		}
+
+		try {
+			if(!sightings.exists())
+				sightings.createNewFile();
+
+			Generation generation = new Generation(0, 0);
+			generation.birdsLength = birds.length();
+			generation.birdsChecksum = checksum(birds);
+			generation.sightingsLength = sightings.length();
+			generation.sightingsChecksum = checksum(sightings);
+			generations.add(generation);
+			return true;
+		}
+		catch (IOException e) {
+			System.err.println("Unable to read " + folder.getAbsolutePath() + ", " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Writes the document aside, forces it to the disk and moves it in place.
+	 * Returns the checksum of the file.
+	 */
+	private long writeDocument(TransformerFactory transformerFactory, Document doc, File file, IoThrottle throttle) throws Exception {
+		File temp = new File(folder, file.getName() + TEMP_SUFFIX);
+		FileOutputStream stream = new FileOutputStream(temp);
+		CRC32 crc = new CRC32();
+		try {
+			OutputStream out = new BufferedOutputStream(new CheckedOutputStream(throttle.wrap(stream), crc));
+			transformerFactory.newTransformer().transform(new DOMSource(doc), new StreamResult(out));
+			out.flush();
+			stream.getFD().sync();
+		}
+		finally {
+			stream.close();
+		}
+
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		return crc.getValue();
+	}
+
+	/**
+	 * Replaces the manifest, keeping the one it replaces as the previous one.
+	 * The folder is synced so the moves of the base files and of the
+	 * manifest are durable.
+	 */
+	private void writeManifest(List<Generation> kept) throws IOException {
+		StringBuilder text = new StringBuilder();
+		for(Generation generation : kept) {
+			text.append(GENERATION_LINE).append(' ').append(generation.generation)
+					.append(' ').append(generation.baseSegment)
+					.append(' ').append(generation.birdsLength).append(' ').append(generation.birdsChecksum)
+					.append(' ').append(generation.sightingsLength).append(' ').append(generation.sightingsChecksum).append('\n');
+		}
+
+		CRC32 crc = new CRC32();
+		crc.update(text.toString().getBytes("UTF-8"));
+		text.append(CHECKSUM_LINE).append(' ').append(crc.getValue()).append('\n');
+
+		File manifest = new File(folder, MANIFEST_FILE);
+		File temp = new File(folder, MANIFEST_FILE + TEMP_SUFFIX);
+		FileOutputStream stream = new FileOutputStream(temp);
+		try {
+			Writer writer = new OutputStreamWriter(stream, "UTF-8");
+			writer.write(text.toString());
+			writer.flush();
+			stream.getFD().sync();
+		}
+		finally {
+			stream.close();
+		}
+
+		syncFolder();
+		if(manifest.exists())
+			Files.move(manifest.toPath(), new File(folder, MANIFEST_FILE + PREVIOUS_SUFFIX).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		Files.move(temp.toPath(), manifest.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		syncFolder();
+	}
+
+	/**
+	 * Returns the generations of the manifest, or null if it is damaged.
+	 */
+	private static List<Generation> readManifest(File file) {
+		ArrayList<Generation> read = new ArrayList<Generation>();
+		CRC32 crc = new CRC32();
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+			try {
+				String line;
+				while((line = reader.readLine()) != null) {
+					String[] fields = line.split(" ");
+					if(fields.length == 2 && CHECKSUM_LINE.equals(fields[0]))
+						return Long.parseLong(fields[1]) == crc.getValue() && reader.readLine() == null ? read : null;
+
+					if(fields.length != 7 || !GENERATION_LINE.equals(fields[0]))
+						return null;
+
+					crc.update((line + "\n").getBytes("UTF-8"));
+					Generation generation = new Generation(Long.parseLong(fields[1]), Long.parseLong(fields[2]));
+					generation.birdsLength = Long.parseLong(fields[3]);
+					generation.birdsChecksum = Long.parseLong(fields[4]);
+					generation.sightingsLength = Long.parseLong(fields[5]);
+					generation.sightingsChecksum = Long.parseLong(fields[6]);
+					read.add(generation);
+				}
+			}
+			finally {
+				reader.close();
+			}
+		}
+		catch (IOException e) {
+			System.err.println("Unable to read " + file.getName() + ", " + e.getMessage());
+		}
+		catch (NumberFormatException e) {
+		}
+
+		/*
+		 * A manifest without its checksum line is cut short.
+		 */
+		return null;
+	}
+
+	private static long checksum(File file) throws IOException {
+		CRC32 crc = new CRC32();
+		byte[] buffer = new byte[65536];
+		InputStream in = new BufferedInputStream(new FileInputStream(file), buffer.length);
+		try {
+			int count;
+			while((count = in.read(buffer)) > 0)
+				crc.update(buffer, 0, count);
+		}
+		finally {
+			in.close();
+		}
+
+		return crc.getValue();
+	}
+
+	private void syncFolder() {
+		try {
+			FileChannel channel = FileChannel.open(folder.toPath(), StandardOpenOption.READ);
+			try {
+				channel.force(true);
+			}
+			finally {
+				channel.close();
+			}
+		}
+		catch (IOException e) {
+			/*
+			 * Not every platform can sync a folder, the moves are still
+			 * atomic there.
+			 */
+		}
+	}
+
+	private void setAside(File file) {
+		if(file.exists())
+			file.renameTo(new File(folder, file.getName() + DAMAGED_SUFFIX));
+	}
+
+	private File birdsFile(long generation) {
+		return new File(folder, generation == 0 ? BIRD_FILE : "birds." + generation + ".xml");
+	}
+
+	private File sightingsFile(long generation) {
+		return new File(folder, generation == 0 ? SIGHTING_FILE : "sightings." + generation + ".xml");
+	}
+
+	/**
+	 * A committed generation as the manifest describes it.
+	 */
+	static class Generation {
+		private final long generation;
+		private final long baseSegment;
+		private long birdsLength;
+		private long birdsChecksum;
+		private long sightingsLength;
+		private long sightingsChecksum;
+
+		private Generation(long generation, long baseSegment) {
+			this.generation = generation;
+			this.baseSegment = baseSegment;
+		}
+
+		public long getGeneration() {
+			return generation;
+		}
+	}
+}
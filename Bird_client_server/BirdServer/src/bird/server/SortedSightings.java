@@ -0,0 +1,164 @@
+package bird.server;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.PriorityQueue;
+
+import bird.model.Bird;
+import bird.model.BirdSighting;
+
+/**
+ * Builds a sightings listing in the order clients show it: on bird name
+ * descending ignoring case, then on date descending.
+ *
+ * Each bird's sightings are already ordered on date, so they are added as
+ * runs, read backwards. The runs are put in order of their lower case names,
+ * computed once per bird, and only runs of names equal but for case are
+ * merged, with a heap of their heads. Cold sightings come in no particular
+ * order; they are sorted and split into runs per bird first.
+ */
+class SortedSightings {
+
+	private final ArrayList<BirdSighting> sightings;
+	private final ArrayList<Run> runs = new ArrayList<Run>();
+	private final HashMap<String, String> keys = new HashMap<String, String>();
+
+	/**
+	 * @param capacity sightings expected, to size the list once.
+	 */
+	public SortedSightings(int capacity) {
+		this.sightings = new ArrayList<BirdSighting>(capacity);
+	}
+
+	/**
+	 * Adds the bird's sightings between the two exclusive dates.
+	 */
+	public void addBird(Bird bird, Date startDate, Date endDate) {
+		int from = sightings.size();
+		bird.collectSightings(startDate, endDate, sightings);
+		if(sightings.size() > from)
+			runs.add(new Run(key(bird.getName()), from, sightings.size()));
+	}
+
+	/**
+	 * Adds sightings of any birds in any order.
+	 */
+	public void addUnordered(ArrayList<BirdSighting> unordered) {
+		if(unordered.isEmpty())
+			return;
+
+		Collections.sort(unordered, new Comparator<BirdSighting>() {
+			@Override
+			public int compare(BirdSighting o1, BirdSighting o2) {
+				int result = o1.getName().compareTo(o2.getName());
+				return result != 0 ? result : SortedSightings.compare(o1.getDate(), o2.getDate());
+			}
+		});
+
+		int from = sightings.size();
+		sightings.addAll(unordered);
+		for(int i = from + 1; i <= sightings.size(); i++) {
+			String name = sightings.get(i - 1).getName();
+			if(i == sightings.size() || !name.equals(sightings.get(i).getName())) {
+				runs.add(new Run(key(name), from, i));
+				from = i;
+			}
+		}
+	}
+
+	/**
+	 * Returns the sightings in their final order.
+	 */
+	public BirdSighting[] toArray() {
+		BirdSighting[] result = new BirdSighting[sightings.size()];
+		Collections.sort(runs, new Comparator<Run>() {
+			@Override
+			public int compare(Run o1, Run o2) {
+				return o2.key.compareTo(o1.key);
+			}
+		});
+
+		int position = 0;
+		for(int i = 0; i < runs.size();) {
+			int j = i + 1;
+			while(j < runs.size() && runs.get(j).key.equals(runs.get(i).key))
+				j++;
+
+			if(j - i == 1) {
+				Run run = runs.get(i);
+				for(int k = run.to - 1; k >= run.from; k--)
+					result[position++] = sightings.get(k);
+			}
+			else
+				position = merge(i, j, result, position);
+
+			i = j;
+		}
+
+		return result;
+	}
+
+	/**
+	 * Merges the runs from i to j on date descending into the result.
+	 */
+	private int merge(int i, int j, BirdSighting[] result, int position) {
+		PriorityQueue<Run> heads = new PriorityQueue<Run>(j - i, new Comparator<Run>() {
+			@Override
+			public int compare(Run o1, Run o2) {
+				return SortedSightings.compare(sightings.get(o2.next).getDate(), sightings.get(o1.next).getDate());
+			}
+		});
+
+		for(int k = i; k < j; k++)
+			heads.add(runs.get(k));
+
+		while(!heads.isEmpty()) {
+			Run run = heads.poll();
+			result[position++] = sightings.get(run.next--);
+			if(run.next >= run.from)
+				heads.add(run);
+		}
+
+		return position;
+	}
+
+	private String key(String name) {
+		String key = keys.get(name);
+		if(key == null) {
+			key = name.toLowerCase(Locale.ROOT);
+			keys.put(name, key);
+		}
+
+		return key;
+	}
+
+	private static int compare(Date d1, Date d2) {
+		if(d1 == null)
+			return d2 == null ? 0 : -1;
+
+		if(d2 == null)
+			return 1;
+
+		return d1.compareTo(d2);
+	}
+
+	/**
+	 * Sightings of one bird in the list, ordered on date, read from the end.
+	 */
+	private static class Run {
+		private final String key;
+		private final int from;
+		private final int to;
+		private int next;
+
+		public Run(String key, int from, int to) {
+			this.key = key;
+			this.from = from;
+			this.to = to;
+			this.next = to - 1;
+		}
+	}
+}
@@ -0,0 +1,185 @@
+package bird.server;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Hashtable;
+
+import bird.model.Bird;
+
+/**
+ * Durable record of the removed birds, written before the removal is
+ * acknowledged. The journal only saves a removal with the next checkpoint,
+ * a tombstone covers it until then.
+ *
+ * A tombstone keeps the last journal segment at the time of removal, the
+ * removal itself goes to a later segment. It is obsolete once the base files
+ * or a replayed segment after it have the bird's final state.
+ */
+class Tombstones {
+
+	private static final String TOMBSTONE_FILE = "tombstones.dat";
+	private static final String TEMP_SUFFIX = ".tmp";
+	/**
+	 * A longer name can only come from a torn record.
+	 */
+	private static final int MAX_NAME_LENGTH = 1048576;
+
+	private final File file;
+	/**
+	 * Record being appended, reused as records are appended one at a time.
+	 */
+	private final ByteArrayOutputStream record = new ByteArrayOutputStream(64);
+	private final DataOutputStream recordOut = new DataOutputStream(record);
+
+	public Tombstones(File folder) {
+		this.file = new File(folder, TOMBSTONE_FILE);
+	}
+
+	/**
+	 * Appends the tombstone and forces it to the disk.
+	 */
+	public synchronized void record(String name, long segment) throws IOException {
+		record.reset();
+		writeTombstone(recordOut, new Tombstone(name, segment));
+		
+		FileOutputStream stream = new FileOutputStream(file, true);
+		try {
+			record.writeTo(stream);
+			stream.getFD().sync();
+		}
+		finally {
+			stream.close();
+		}
+	}
+
+	/**
+	 * Removes the birds whose removal is neither in the base files nor in a
+	 * replayed segment. Returns the number of birds removed.
+	 */
+	public int apply(Hashtable<String, Bird> model, ColdStore coldStore, ChangeJournal journal, long baseSegment) {
+		int count = 0;
+		for(Tombstone tombstone : read()) {
+			if(baseSegment > tombstone.segment || journal.getLastReplayed(tombstone.name) > tombstone.segment)
+				continue;
+
+			if(model.remove(tombstone.name) != null) {
+				coldStore.birdRemoved(tombstone.name);
+				count++;
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * Forgets the tombstones whose removals the base files cover.
+	 */
+	public synchronized void prune(long baseSegment) {
+		if(!file.exists())
+			return;
+
+		ArrayList<Tombstone> kept = new ArrayList<Tombstone>();
+		for(Tombstone tombstone : read()) {
+			if(tombstone.segment >= baseSegment)
+				kept.add(tombstone);
+		}
+
+		try {
+			if(kept.isEmpty()) {
+				Files.deleteIfExists(file.toPath());
+				return;
+			}
+
+			File temp = new File(file.getParentFile(), TOMBSTONE_FILE + TEMP_SUFFIX);
+			FileOutputStream stream = new FileOutputStream(temp);
+			try {
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+				for(Tombstone tombstone : kept)
+					writeTombstone(out, tombstone);
+
+				out.flush();
+				stream.getFD().sync();
+			}
+			finally {
+				stream.close();
+			}
+
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (IOException e) {
+			System.err.println("Unable to prune tombstones, " + e.getMessage());
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Deletes every tombstone, used when the base files have been recreated.
+	 */
+	public void clear() {
+		file.delete();
+	}
+
+	/**
+	 * Reads the tombstones, a record cut short by a crash ends the file.
+	 */
+	private ArrayList<Tombstone> read() {
+		ArrayList<Tombstone> tombstones = new ArrayList<Tombstone>();
+		if(!file.exists())
+			return tombstones;
+
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				while(true) {
+					int length = in.readInt();
+					if(length < 0 || length > MAX_NAME_LENGTH)
+						break;
+					
+					byte[] bytes = new byte[length];
+					in.readFully(bytes);
+					tombstones.add(new Tombstone(new String(bytes, "UTF-8"), in.readLong()));
+				}
+			}
+			catch (EOFException e) {
+			}
+			finally {
+				in.close();
+			}
+		}
+		catch (IOException e) {
+			System.err.println("Unable to read tombstones, " + e.getMessage());
+		}
+
+		return tombstones;
+	}
+
+	private static void writeTombstone(DataOutputStream out, Tombstone tombstone) throws IOException {
+		byte[] bytes = tombstone.name.getBytes("UTF-8");
+		out.writeInt(bytes.length);
+		out.write(bytes);
+		out.writeLong(tombstone.segment);
+	}
+
+	private static class Tombstone {
+		private final String name;
+		private final long segment;
+
+		public Tombstone(String name, long segment) {
+			this.name = name;
+			this.segment = segment;
+		}
+	}
+}
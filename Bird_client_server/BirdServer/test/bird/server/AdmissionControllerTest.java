@@ -0,0 +1,84 @@
+package bird.server;
+import static bird.server.Assert.assertEquals;
+import static bird.server.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import bird.model.Constants;
+
+/**
+ * Token buckets and the cap on outstanding requests of the admission
+ * controller.
+ */
+public class AdmissionControllerTest {
+
+	public static void main(String[] args) throws Exception {
+		burstThenRateLimited();
+		bucketsPerAddress();
+		noRateLimit();
+		busyUntilFinished();
+		readmitIsNotCharged();
+		Assert.passed(AdmissionControllerTest.class);
+	}
+
+	private static void burstThenRateLimited() throws UnknownHostException {
+		AdmissionController controller = new AdmissionController(0.001, 3, 0);
+		InetAddress address = address(1);
+		for(int i = 0; i < 3; i++)
+			assertEquals("Request " + i + " of the burst", null, controller.admit(address));
+
+		assertEquals("Request past the burst", Constants.RATE_LIMITED_RESPONSE, controller.admit(address));
+		assertTrue("Stats count the rejection", controller.getStats().contains("rejected (rate) = 1"));
+	}
+
+	private static void bucketsPerAddress() throws UnknownHostException {
+		AdmissionController controller = new AdmissionController(0.001, 1, 0);
+		assertEquals("First address", null, controller.admit(address(1)));
+		assertEquals("First address again", Constants.RATE_LIMITED_RESPONSE, controller.admit(address(1)));
+		assertEquals("Second address", null, controller.admit(address(2)));
+		assertTrue("Stats count both clients", controller.getStats().contains("clients = 2"));
+	}
+
+	private static void noRateLimit() throws UnknownHostException {
+		AdmissionController controller = new AdmissionController(0, 1, 0);
+		for(int i = 0; i < 100; i++)
+			assertEquals("Request " + i + " without a rate", null, controller.admit(address(1)));
+	}
+
+	private static void busyUntilFinished() throws UnknownHostException {
+		AdmissionController controller = new AdmissionController(0, 1, 2);
+		assertEquals("First request", null, controller.admit(address(1)));
+		assertEquals("Second request", null, controller.admit(address(2)));
+		assertEquals("Request over the cap", Constants.BUSY_RESPONSE, controller.admit(address(3)));
+
+		controller.finished();
+		assertEquals("Request after one finished", null, controller.admit(address(3)));
+		assertTrue("Stats count the outstanding requests", controller.getStats().contains("outstanding = 2/2"));
+	}
+
+	private static void readmitIsNotCharged() throws UnknownHostException {
+		AdmissionController controller = new AdmissionController(0.001, 1, 2);
+		assertEquals("Keep alive connection", null, controller.admit(address(1)));
+		controller.finished();
+
+		/*
+		 * Its bucket is empty, the next requests of the connection still go
+		 * through.
+		 */
+		for(int i = 0; i < 5; i++) {
+			controller.readmit();
+			controller.finished();
+		}
+
+		assertTrue("Readmitted requests are counted", controller.getStats().contains("admitted = 6"));
+
+		controller.readmit();
+		controller.readmit();
+		assertEquals("Readmitted requests take places", Constants.BUSY_RESPONSE, controller.admit(address(2)));
+	}
+
+	private static InetAddress address(int last) throws UnknownHostException {
+		return InetAddress.getByAddress(new byte[] { 10, 0, 0, (byte) last });
+	}
+}
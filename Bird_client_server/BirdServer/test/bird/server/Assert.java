@@ -0,0 +1,39 @@
+package bird.server;
+
+/**
+ * Checks for the tests, which are plain classes with a main method so they
+ * run without a test framework. A failed check throws, which ends the test
+ * with an error.
+ */
+class Assert {
+
+	private static int checks;
+
+	public static void assertTrue(String message, boolean condition) {
+		checks++;
+		if(!condition)
+			throw new AssertionError(message);
+	}
+
+	public static void assertFalse(String message, boolean condition) {
+		assertTrue(message, !condition);
+	}
+
+	public static void assertEquals(String message, Object expected, Object actual) {
+		checks++;
+		if(expected == null ? actual != null : !expected.equals(actual))
+			throw new AssertionError(message + ", expected <" + expected + "> but was <" + actual + ">");
+	}
+
+	public static void assertEquals(String message, long expected, long actual) {
+		assertEquals(message, Long.valueOf(expected), Long.valueOf(actual));
+	}
+
+	/**
+	 * Prints the number of checks run by the test, called at the end of its
+	 * main method.
+	 */
+	public static void passed(Class<?> test) {
+		System.out.println(test.getSimpleName() + ": " + checks + " check(s) passed.");
+	}
+}
@@ -0,0 +1,104 @@
+package bird.server;
+import static bird.server.Assert.assertEquals;
+import static bird.server.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Counts of the space saving summary of the most frequent values.
+ */
+public class HeavyHittersTest {
+
+	public static void main(String[] args) {
+		exactWithinCapacity();
+		frequentValuesKept();
+		mergedTotals();
+		Assert.passed(HeavyHittersTest.class);
+	}
+
+	private static void exactWithinCapacity() {
+		HeavyHitters summary = new HeavyHitters(10);
+		for(int i = 0; i < 5; i++) {
+			for(int j = 0; j <= i; j++)
+				summary.add("bird " + i);
+		}
+
+		HashMap<String, Long> totals = totals(summary);
+		assertEquals("Values counted", 5, totals.size());
+		for(int i = 0; i < 5; i++)
+			assertEquals("Count of bird " + i, i + 1, (long) totals.get("bird " + i));
+
+		summary.clear();
+		assertEquals("Cleared summary", 0, totals(summary).size());
+	}
+
+	private static void frequentValuesKept() {
+		HeavyHitters summary = new HeavyHitters(20);
+		HashMap<String, Long> actual = new HashMap<String, Long>();
+
+		/*
+		 * Three values seen more often than the total divided by the
+		 * capacity, among many rare ones.
+		 */
+		for(int i = 0; i < 1000; i++) {
+			add(summary, actual, "rare " + i);
+			if(i % 4 == 0)
+				add(summary, actual, "robin");
+			if(i % 5 == 0)
+				add(summary, actual, "crow");
+			if(i % 10 == 0)
+				add(summary, actual, "owl");
+		}
+
+		HashMap<String, Long> totals = totals(summary);
+		assertTrue("No more values than the capacity", totals.size() <= 20);
+
+		long most = 0;
+		for(Map.Entry<String, Long> entry : totals.entrySet()) {
+			long count = entry.getValue();
+			assertTrue("Count of " + entry.getKey() + " is not below the true one", count >= actual.get(entry.getKey()));
+			most = Math.max(most, count - actual.get(entry.getKey()));
+		}
+
+		for(String frequent : new String[] { "robin", "crow", "owl" })
+			assertTrue("Frequent value " + frequent + " is kept", totals.containsKey(frequent));
+
+		/*
+		 * A count is over by at most the total divided by the capacity.
+		 */
+		long total = 0;
+		for(long count : actual.values())
+			total += count;
+		assertTrue("Overcount " + most + " is bounded", most <= total / 20);
+	}
+
+	private static void mergedTotals() {
+		HeavyHitters first = new HeavyHitters(10);
+		HeavyHitters second = new HeavyHitters(10);
+		for(int i = 0; i < 3; i++)
+			first.add("robin");
+		for(int i = 0; i < 2; i++) {
+			second.add("robin");
+			second.add("crow");
+		}
+
+		HashMap<String, Long> totals = new HashMap<String, Long>();
+		first.addTo(totals);
+		second.addTo(totals);
+		assertEquals("Merged count", 5, (long) totals.get("robin"));
+		assertEquals("Count in one summary only", 2, (long) totals.get("crow"));
+	}
+
+	private static void add(HeavyHitters summary, HashMap<String, Long> actual, String value) {
+		summary.add(value);
+		Long count = actual.get(value);
+		actual.put(value, count == null ? 1 : count + 1);
+	}
+
+	private static HashMap<String, Long> totals(HeavyHitters summary) {
+		HashMap<String, Long> totals = new HashMap<String, Long>();
+		summary.addTo(totals);
+		return totals;
+	}
+}
@@ -0,0 +1,62 @@
+package bird.server;
+import static bird.server.Assert.assertEquals;
+import static bird.server.Assert.assertTrue;
+
+/**
+ * Distinct count estimates of the HyperLogLog sketch.
+ */
+public class HyperLogLogTest {
+
+	private static final int PRECISION = 12;
+
+	public static void main(String[] args) {
+		smallCounts();
+		largeCount();
+		merged();
+		Assert.passed(HyperLogLogTest.class);
+	}
+
+	private static void smallCounts() {
+		HyperLogLog sketch = new HyperLogLog(PRECISION);
+		assertEquals("Empty sketch", 0, sketch.estimate());
+
+		for(int i = 0; i < 10; i++) {
+			sketch.add("location " + i);
+			sketch.add("location " + i);
+		}
+
+		assertEquals("Few values are counted exactly, repeated ones once", 10, sketch.estimate());
+
+		sketch.clear();
+		assertEquals("Cleared sketch", 0, sketch.estimate());
+	}
+
+	private static void largeCount() {
+		HyperLogLog sketch = new HyperLogLog(PRECISION);
+		for(int i = 0; i < 100000; i++)
+			sketch.add("location " + i);
+
+		assertWithin("Estimate of 100000 values", 100000, sketch.estimate(), 0.05);
+	}
+
+	private static void merged() {
+		HyperLogLog first = new HyperLogLog(PRECISION);
+		HyperLogLog second = new HyperLogLog(PRECISION);
+		for(int i = 0; i < 30000; i++)
+			first.add("location " + i);
+
+		/*
+		 * Half of them are in both.
+		 */
+		for(int i = 15000; i < 45000; i++)
+			second.add("location " + i);
+
+		first.merge(second);
+		assertWithin("Estimate of the union", 45000, first.estimate(), 0.05);
+		assertWithin("Merged sketch is unchanged", 30000, second.estimate(), 0.05);
+	}
+
+	private static void assertWithin(String message, long expected, long actual, double error) {
+		assertTrue(message + ", expected about " + expected + " but was " + actual, Math.abs(actual - expected) <= expected * error);
+	}
+}
@@ -0,0 +1,107 @@
+package bird.server;
+import static bird.server.Assert.assertEquals;
+import static bird.server.Assert.assertFalse;
+import static bird.server.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import bird.model.NameMatch;
+
+/**
+ * Candidates and ranking of the trigram name index.
+ */
+public class NameIndexTest {
+
+	private static final Deadline DEADLINE = new Deadline(60000);
+
+	public static void main(String[] args) {
+		containedText();
+		misspelledText();
+		rankingOrder();
+		shortNamesAndText();
+		addedAndRemoved();
+		namesCopy();
+		Assert.passed(NameIndexTest.class);
+	}
+
+	private static void containedText() {
+		NameIndex index = index("American Robin", "European Robin", "Crow");
+		assertEquals("Names containing the text", "[American Robin:0, European Robin:0]", search(index, "robin", 0, 10));
+		assertEquals("Upper case text", "[American Robin:0, European Robin:0]", search(index, "ROBIN", 0, 10));
+	}
+
+	private static void misspelledText() {
+		NameIndex index = index("Robin", "Crow");
+		assertEquals("Missing letter", "[Robin:1]", search(index, "robn", 1, 10));
+		assertEquals("Extra letter, against the closest part of the name", "[Robin:1]", search(index, "robni", 2, 10));
+		assertEquals("Wrong letters", "[Robin:2]", search(index, "robxx", 2, 10));
+		assertEquals("Too far for one edit", "[]", search(index, "robxx", 1, 10));
+		assertEquals("No trigram in common", "[]", search(index, "rxbxn", 4, 10));
+	}
+
+	private static void rankingOrder() {
+		NameIndex index = index("Robin Hood", "Robin", "Rob", "Robyn", "Abin");
+		assertEquals("Closest, then shortest, then by name", "[Robin:0, Robin Hood:0, Robyn:1, Rob:2]",
+				search(index, "robin", 2, 4));
+		assertEquals("Limited to the best ones", "[Robin:0, Robin Hood:0]", search(index, "robin", 2, 2));
+	}
+
+	private static void shortNamesAndText() {
+		NameIndex index = index("Ox", "Crow", "Crane");
+		assertEquals("Name shorter than a trigram", "[Ox:0]", search(index, "ox", 0, 10));
+		assertEquals("Text shorter than a trigram", "[Crow:0, Crane:0]", search(index, "cr", 0, 10));
+	}
+
+	private static void addedAndRemoved() {
+		NameIndex index = index("Robin", "Crow", "Ox");
+		index.nameRemoved("Robin");
+		index.nameRemoved("Ox");
+		assertEquals("Removed name", "[]", search(index, "robin", 2, 10));
+		assertEquals("Removed short name", "[]", search(index, "ox", 0, 10));
+
+		/*
+		 * The new name takes the number of the removed one.
+		 */
+		index.nameAdded("Rook");
+		assertEquals("Name added in place of a removed one", "[Rook:0]", search(index, "rook", 0, 10));
+		assertEquals("Other names are unchanged", "[Crow:0]", search(index, "crow", 0, 10));
+
+		for(int i = 0; i < 100; i++)
+			index.nameAdded("Bird " + i);
+		assertEquals("Index grows", "[Bird 42:0]", search(index, "bird 42", 0, 10));
+	}
+
+	private static void namesCopy() {
+		NameIndex index = index("Robin", "Ox");
+		String[] names = index.getNames();
+		long version = index.getVersion();
+		assertTrue("Copy is kept until a change", names == index.getNames());
+
+		index.nameAdded("Crow");
+		assertFalse("Version changes with the names", version == index.getVersion());
+		assertTrue("Copy is dropped after a change", names != index.getNames());
+
+		String[] sorted = index.getNames().clone();
+		Arrays.sort(sorted);
+		assertEquals("All the names", "[Crow, Ox, Robin]", Arrays.toString(sorted));
+		assertEquals("Old copy is unchanged", 2, names.length);
+	}
+
+	private static NameIndex index(String... names) {
+		NameIndex index = new NameIndex();
+		index.rebuild(Arrays.asList(names));
+		return index;
+	}
+
+	private static String search(NameIndex index, String text, int maxDistance, int maxResults) {
+		NameMatch[] matches = NameIndex.rank(text, index.candidates(text, maxDistance, DEADLINE), maxDistance, maxResults, DEADLINE);
+		StringBuilder result = new StringBuilder("[");
+		for(NameMatch match : matches) {
+			if(result.length() > 1)
+				result.append(", ");
+			result.append(match.getName()).append(':').append(match.getDistance());
+		}
+
+		return result.append(']').toString();
+	}
+}
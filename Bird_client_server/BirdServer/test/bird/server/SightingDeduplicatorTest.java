@@ -0,0 +1,77 @@
+package bird.server;
+import static bird.server.Assert.assertFalse;
+import static bird.server.Assert.assertTrue;
+
+import java.util.Date;
+
+/**
+ * Keys and the window of the sighting deduplicator.
+ */
+public class SightingDeduplicatorTest {
+
+	public static void main(String[] args) throws Exception {
+		keys();
+		repeatedWithinWindow();
+		expiredAfterWindow();
+		oldestDroppedOverMaxEntries();
+		disabled();
+		Assert.passed(SightingDeduplicatorTest.class);
+	}
+
+	private static void keys() {
+		Date date = new Date(1000);
+		String byContent = SightingDeduplicator.key("", null, "robin", "park", date);
+		assertTrue("Same content, same key", byContent.equals(SightingDeduplicator.key("", null, "robin", "park", new Date(1000))));
+		assertFalse("Other location", byContent.equals(SightingDeduplicator.key("", null, "robin", "lake", date)));
+		assertFalse("Other date", byContent.equals(SightingDeduplicator.key("", null, "robin", "park", new Date(2000))));
+		assertFalse("Other dataset", byContent.equals(SightingDeduplicator.key("north", null, "robin", "park", date)));
+
+		String byId = SightingDeduplicator.key("", "42", "robin", "park", date);
+		assertTrue("Request id alone makes the key", byId.equals(SightingDeduplicator.key("", "42", "crow", "lake", null)));
+		assertFalse("Request id and content keys differ", byId.equals(byContent));
+		assertFalse("Request id in another dataset", byId.equals(SightingDeduplicator.key("north", "42", "robin", "park", date)));
+
+		/*
+		 * Separators keep the fields apart.
+		 */
+		assertFalse("Fields are not run together",
+				SightingDeduplicator.key("", null, "ab", "c", null).equals(SightingDeduplicator.key("", null, "a", "bc", null)));
+	}
+
+	private static void repeatedWithinWindow() {
+		SightingDeduplicator deduplicator = new SightingDeduplicator(60000, 100);
+		String key = SightingDeduplicator.key("", "1", null, null, null);
+		assertFalse("First submission", deduplicator.isDuplicate(key));
+		deduplicator.added(key);
+		assertTrue("Repeated submission", deduplicator.isDuplicate(key));
+		assertFalse("Other submission", deduplicator.isDuplicate(SightingDeduplicator.key("", "2", null, null, null)));
+		assertTrue("Stats count the duplicate", deduplicator.getStats().contains("duplicates = 1, tracked = 1"));
+	}
+
+	private static void expiredAfterWindow() throws InterruptedException {
+		SightingDeduplicator deduplicator = new SightingDeduplicator(50, 100);
+		String key = SightingDeduplicator.key("", "1", null, null, null);
+		deduplicator.added(key);
+		Thread.sleep(100);
+		assertFalse("Submission after the window", deduplicator.isDuplicate(key));
+		assertTrue("Expired key is dropped", deduplicator.getStats().contains("tracked = 0"));
+	}
+
+	private static void oldestDroppedOverMaxEntries() {
+		SightingDeduplicator deduplicator = new SightingDeduplicator(60000, 3);
+		for(int i = 0; i < 5; i++)
+			deduplicator.added(SightingDeduplicator.key("", Integer.toString(i), null, null, null));
+
+		assertFalse("Oldest key is dropped", deduplicator.isDuplicate(SightingDeduplicator.key("", "0", null, null, null)));
+		assertFalse("Second oldest key is dropped", deduplicator.isDuplicate(SightingDeduplicator.key("", "1", null, null, null)));
+		assertTrue("Newest key is kept", deduplicator.isDuplicate(SightingDeduplicator.key("", "4", null, null, null)));
+		assertTrue("No more keys than the maximum", deduplicator.getStats().contains("tracked = 3"));
+	}
+
+	private static void disabled() {
+		SightingDeduplicator deduplicator = new SightingDeduplicator(0, 100);
+		String key = SightingDeduplicator.key("", "1", null, null, null);
+		deduplicator.added(key);
+		assertFalse("Nothing is a duplicate without a window", deduplicator.isDuplicate(key));
+	}
+}
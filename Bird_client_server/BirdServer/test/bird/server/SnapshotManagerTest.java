@@ -0,0 +1,163 @@
+package bird.server;
+import static bird.server.Assert.assertEquals;
+import static bird.server.Assert.assertFalse;
+import static bird.server.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.w3c.dom.Document;
+
+/**
+ * Generations of the base files committed by the manifest, and falling
+ * back when files or the manifest are damaged.
+ */
+public class SnapshotManagerTest {
+
+	private static final IoThrottle THROTTLE = new IoThrottle(0);
+
+	public static void main(String[] args) throws Exception {
+		File folder = TempFolder.create("bird-snapshots");
+		try {
+			newFolder(mkdir(folder, "new"));
+			retainedGenerations(mkdir(folder, "retained"));
+			damagedGeneration(mkdir(folder, "damaged"));
+			damagedManifest(mkdir(folder, "manifest"));
+			adopted(mkdir(folder, "adopted"));
+		}
+		finally {
+			TempFolder.delete(folder);
+		}
+
+		Assert.passed(SnapshotManagerTest.class);
+	}
+
+	private static void newFolder(File folder) {
+		SnapshotManager snapshots = new SnapshotManager(folder, 2);
+		assertTrue("New folder opens", snapshots.open());
+		assertEquals("No generation yet", 0, snapshots.getGenerations().length);
+		assertEquals("No birds file yet", null, snapshots.getBirdsFile());
+		assertEquals("No base segment yet", 0, snapshots.getOldestBaseSegment());
+	}
+
+	private static void retainedGenerations(File folder) throws Exception {
+		SnapshotManager snapshots = new SnapshotManager(folder, 2);
+		assertTrue("Folder opens", snapshots.open());
+		snapshots.write(document("birds", 1), document("sightings", 1), 10, THROTTLE);
+		snapshots.write(document("birds", 2), document("sightings", 2), 20, THROTTLE);
+		snapshots.write(document("birds", 3), document("sightings", 3), 30, THROTTLE);
+
+		assertEquals("Generations kept", 2, snapshots.getGenerations().length);
+		assertEquals("Newest generation in use", new File(folder, "birds.3.xml"), snapshots.getBirdsFile());
+		assertEquals("Base segment of the oldest kept", 20, snapshots.getOldestBaseSegment());
+		assertFalse("Generation beyond the retained ones is deleted", new File(folder, "birds.1.xml").exists());
+
+		SnapshotManager reopened = new SnapshotManager(folder, 2);
+		assertTrue("Folder opens again", reopened.open());
+		SnapshotManager.Generation[] generations = reopened.getGenerations();
+		assertEquals("Generations read", 2, generations.length);
+		assertEquals("Newest first", 3, generations[0].getGeneration());
+		assertTrue("Newest generation is valid", reopened.isValid(generations[0]));
+		assertEquals("Size of the files in use", new File(folder, "birds.3.xml").length() + new File(folder, "sightings.3.xml").length(),
+				reopened.getSize());
+
+		reopened.write(document("birds", 4), document("sightings", 4), 40, THROTTLE);
+		assertEquals("Numbering goes on after reopening", new File(folder, "birds.4.xml"), reopened.getBirdsFile());
+	}
+
+	private static void damagedGeneration(File folder) throws Exception {
+		SnapshotManager snapshots = new SnapshotManager(folder, 2);
+		snapshots.open();
+		snapshots.write(document("birds", 1), document("sightings", 1), 10, THROTTLE);
+		snapshots.write(document("birds", 2), document("sightings", 2), 20, THROTTLE);
+
+		/*
+		 * Same length, other bytes.
+		 */
+		RandomAccessFile file = new RandomAccessFile(new File(folder, "sightings.2.xml"), "rw");
+		try {
+			file.seek(file.length() - 2);
+			file.write('x');
+		}
+		finally {
+			file.close();
+		}
+
+		SnapshotManager reopened = new SnapshotManager(folder, 2);
+		reopened.open();
+		SnapshotManager.Generation[] generations = reopened.getGenerations();
+		assertFalse("Changed file is found", reopened.isValid(generations[0]));
+		assertTrue("Previous generation is valid", reopened.isValid(generations[1]));
+
+		reopened.recovered(generations[1]);
+		assertEquals("Previous generation in use", new File(folder, "birds.1.xml"), reopened.getBirdsFile());
+		assertEquals("Damaged generation is dropped", 1, reopened.getGenerations().length);
+		assertTrue("Damaged file is set aside", new File(folder, "sightings.2.xml.damaged").exists());
+		assertFalse("Damaged file is not read again", new File(folder, "sightings.2.xml").exists());
+	}
+
+	private static void damagedManifest(File folder) throws Exception {
+		SnapshotManager snapshots = new SnapshotManager(folder, 2);
+		snapshots.open();
+		snapshots.write(document("birds", 1), document("sightings", 1), 10, THROTTLE);
+		snapshots.write(document("birds", 2), document("sightings", 2), 20, THROTTLE);
+
+		File manifest = new File(folder, "snapshots.manifest");
+		RandomAccessFile file = new RandomAccessFile(manifest, "rw");
+		try {
+			file.setLength(file.length() / 2);
+		}
+		finally {
+			file.close();
+		}
+
+		write(new File(folder, "birds.3.xml.tmp"), "torn");
+		SnapshotManager reopened = new SnapshotManager(folder, 2);
+		assertTrue("Opens with the previous manifest", reopened.open());
+		assertEquals("Generations of the previous manifest", 1, reopened.getGenerations().length);
+		assertEquals("Generation of the previous manifest", new File(folder, "birds.1.xml"), reopened.getBirdsFile());
+		assertFalse("File left by a crash is deleted", new File(folder, "birds.3.xml.tmp").exists());
+
+		write(new File(folder, "snapshots.manifest.previous"), "generation 1 2\n");
+		assertFalse("Does not open with both manifests damaged", new SnapshotManager(folder, 2).open());
+	}
+
+	private static void adopted(File folder) throws Exception {
+		write(new File(folder, SnapshotManager.BIRD_FILE), "<birds/>");
+		SnapshotManager snapshots = new SnapshotManager(folder, 2);
+		assertTrue("Base files of an older server are adopted", snapshots.open());
+		assertEquals("As generation 0", 0, snapshots.getGenerations()[0].getGeneration());
+		assertEquals("Keeping their names", new File(folder, SnapshotManager.BIRD_FILE), snapshots.getBirdsFile());
+		assertTrue("Missing sightings file is created", new File(folder, SnapshotManager.SIGHTING_FILE).exists());
+		assertTrue("Adopted generation is valid", snapshots.isValid(snapshots.getGenerations()[0]));
+
+		snapshots.write(document("birds", 1), document("sightings", 1), 10, THROTTLE);
+		assertEquals("Next generation", new File(folder, "birds.1.xml"), snapshots.getBirdsFile());
+	}
+
+	private static Document document(String root, int generation) throws Exception {
+		Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().newDocument();
+		doc.appendChild(doc.createElement(root)).setTextContent("generation " + generation);
+		return doc;
+	}
+
+	private static File mkdir(File parent, String name) {
+		File folder = new File(parent, name);
+		folder.mkdirs();
+		return folder;
+	}
+
+	private static void write(File file, String text) throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(text.getBytes("UTF-8"));
+		}
+		finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,122 @@
+package bird.server;
+import static bird.server.Assert.assertEquals;
+import static bird.server.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Random;
+
+import bird.model.Bird;
+import bird.model.BirdSighting;
+
+/**
+ * Order of the sightings listing, checked against a plain sort.
+ */
+public class SortedSightingsTest {
+
+	private static final long DAY = 86400000L;
+
+	public static void main(String[] args) {
+		singleBird();
+		namesEqualButForCase();
+		mixedWithCold();
+		Assert.passed(SortedSightingsTest.class);
+	}
+
+	private static void singleBird() {
+		Bird bird = new Bird("Robin", "red", 1, 1);
+		bird.addSighting("park", new Date(3 * DAY));
+		bird.addSighting("lake", new Date(1 * DAY));
+		bird.addSighting("wood", new Date(2 * DAY));
+
+		SortedSightings sorted = new SortedSightings(3);
+		sorted.addBird(bird, new Date(0), new Date(3 * DAY));
+		assertEquals("Between the exclusive dates, latest first", "[Robin wood, Robin lake]", toString(sorted.toArray()));
+	}
+
+	private static void namesEqualButForCase() {
+		Bird upper = new Bird("ROBIN", "red", 1, 1);
+		upper.addSighting("a", new Date(1 * DAY));
+		upper.addSighting("c", new Date(3 * DAY));
+		Bird lower = new Bird("robin", "red", 1, 1);
+		lower.addSighting("b", new Date(2 * DAY));
+		lower.addSighting("d", new Date(4 * DAY));
+		Bird crow = new Bird("crow", "black", 1, 1);
+		crow.addSighting("e", new Date(5 * DAY));
+
+		SortedSightings sorted = new SortedSightings(5);
+		sorted.addBird(crow, new Date(0), new Date(10 * DAY));
+		sorted.addBird(upper, new Date(0), new Date(10 * DAY));
+		sorted.addBird(lower, new Date(0), new Date(10 * DAY));
+		assertEquals("Runs of names equal but for case are merged", "[robin d, ROBIN c, robin b, ROBIN a, crow e]",
+				toString(sorted.toArray()));
+	}
+
+	private static void mixedWithCold() {
+		Random random = new Random(7);
+		String[] names = { "Robin", "robin", "Crow", "Owl", "owl", "Blue Jay", "Wren" };
+		HashMap<String, Bird> birds = new HashMap<String, Bird>();
+		for(String name : names)
+			birds.put(name, new Bird(name, "brown", 1, 1));
+
+		ArrayList<BirdSighting> cold = new ArrayList<BirdSighting>();
+		for(int i = 0; i < 2000; i++) {
+			String name = names[random.nextInt(names.length)];
+			Date date = new Date(random.nextInt(1000) * DAY);
+			if(random.nextBoolean())
+				birds.get(name).addSighting("memory " + i, date);
+			else
+				cold.add(new BirdSighting(name, "cold " + i, random.nextInt(20) == 0 ? null : date));
+		}
+
+		SortedSightings sorted = new SortedSightings(2000);
+		ArrayList<BirdSighting> expected = new ArrayList<BirdSighting>(cold);
+		for(Bird bird : birds.values()) {
+			sorted.addBird(bird, new Date(-1), new Date(2000 * DAY));
+			bird.collectSightings(new Date(-1), new Date(2000 * DAY), expected);
+		}
+
+		sorted.addUnordered(cold);
+		BirdSighting[] result = sorted.toArray();
+		assertEquals("Every sighting is listed", expected.size(), result.length);
+
+		for(int i = 1; i < result.length; i++)
+			assertTrue("Sighting " + i + " is in order", compare(result[i - 1], result[i]) >= 0);
+
+		ArrayList<String> listed = new ArrayList<String>();
+		for(BirdSighting sighting : result)
+			listed.add(sighting.getLocation());
+		ArrayList<String> added = new ArrayList<String>();
+		for(BirdSighting sighting : expected)
+			added.add(sighting.getLocation());
+		Collections.sort(listed);
+		Collections.sort(added);
+		assertEquals("Each sighting is listed once", added, listed);
+	}
+
+	/**
+	 * Listing order, name descending ignoring case then date descending,
+	 * undated last.
+	 */
+	private static int compare(BirdSighting o1, BirdSighting o2) {
+		int result = o1.getName().toLowerCase(Locale.ROOT).compareTo(o2.getName().toLowerCase(Locale.ROOT));
+		if(result != 0)
+			return result;
+
+		if(o1.getDate() == null)
+			return o2.getDate() == null ? 0 : -1;
+
+		return o2.getDate() == null ? 1 : o1.getDate().compareTo(o2.getDate());
+	}
+
+	private static String toString(BirdSighting[] sightings) {
+		ArrayList<String> result = new ArrayList<String>();
+		for(BirdSighting sighting : sightings)
+			result.add(sighting.getName() + " " + sighting.getLocation());
+
+		return result.toString();
+	}
+}
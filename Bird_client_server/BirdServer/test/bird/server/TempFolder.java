@@ -0,0 +1,25 @@
+package bird.server;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * Folders for the tests which write files, deleted with their content once
+ * the test is done.
+ */
+class TempFolder {
+
+	public static File create(String prefix) throws IOException {
+		return Files.createTempDirectory(prefix).toFile();
+	}
+
+	public static void delete(File file) {
+		File[] children = file.listFiles();
+		if(children != null) {
+			for(File child : children)
+				delete(child);
+		}
+
+		file.delete();
+	}
+}
@@ -0,0 +1,108 @@
+package bird.server;
+import static bird.server.Assert.assertEquals;
+import static bird.server.Assert.assertFalse;
+import static bird.server.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Hashtable;
+
+import bird.model.Bird;
+
+/**
+ * Recording, applying and pruning of the tombstones of removed birds.
+ */
+public class TombstonesTest {
+
+	public static void main(String[] args) throws Exception {
+		File folder = TempFolder.create("bird-tombstones");
+		try {
+			appliedUntilCovered(new File(folder, "applied"));
+			pruned(new File(folder, "pruned"));
+			tornRecordIgnored(new File(folder, "torn"));
+		}
+		finally {
+			TempFolder.delete(folder);
+		}
+
+		Assert.passed(TombstonesTest.class);
+	}
+
+	private static void appliedUntilCovered(File folder) throws IOException {
+		Tombstones tombstones = open(folder);
+		tombstones.record("robin", 3);
+		tombstones.record("crow", 5);
+
+		Hashtable<String, Bird> model = model("robin", "crow", "owl");
+		assertEquals("Birds removed with no base files", 2, apply(tombstones, folder, model, 0));
+		assertEquals("Bird left", 1, model.size());
+		assertTrue("Bird without a tombstone is kept", model.containsKey("owl"));
+
+		/*
+		 * Base files written after segment 3 have the robin's removal.
+		 */
+		model = model("robin", "crow", "owl");
+		assertEquals("Birds removed past base segment 4", 1, apply(tombstones, folder, model, 4));
+		assertTrue("Removal in the base files is not applied again", model.containsKey("robin"));
+		assertFalse("Removal after the base files is applied", model.containsKey("crow"));
+
+		model = model("owl");
+		assertEquals("Birds already gone are not counted", 0, apply(tombstones, folder, model, 0));
+	}
+
+	private static void pruned(File folder) throws IOException {
+		Tombstones tombstones = open(folder);
+		tombstones.record("robin", 3);
+		tombstones.record("crow", 5);
+
+		tombstones.prune(4);
+		Hashtable<String, Bird> model = model("robin", "crow");
+		assertEquals("Tombstones left after pruning", 1, apply(tombstones, folder, model, 0));
+		assertTrue("Pruned tombstone is forgotten", model.containsKey("robin"));
+
+		tombstones.prune(6);
+		assertFalse("File is deleted once empty", tombstones.getFile().exists());
+
+		tombstones.record("owl", 7);
+		tombstones.clear();
+		assertFalse("File is deleted when cleared", tombstones.getFile().exists());
+	}
+
+	private static void tornRecordIgnored(File folder) throws IOException {
+		Tombstones tombstones = open(folder);
+		tombstones.record("robin", 3);
+
+		/*
+		 * A record cut short by a crash, the length of its name only.
+		 */
+		FileOutputStream out = new FileOutputStream(tombstones.getFile(), true);
+		try {
+			out.write(new byte[] { 0, 0, 0, 5, 'c' });
+		}
+		finally {
+			out.close();
+		}
+
+		Hashtable<String, Bird> model = model("robin", "crow");
+		assertEquals("Records before the torn one are applied", 1, apply(tombstones, folder, model, 0));
+		assertTrue("Torn record is ignored", model.containsKey("crow"));
+	}
+
+	private static Tombstones open(File folder) {
+		folder.mkdirs();
+		return new Tombstones(folder);
+	}
+
+	private static int apply(Tombstones tombstones, File folder, Hashtable<String, Bird> model, long baseSegment) {
+		return tombstones.apply(model, new ColdStore(new File(folder, "cold")), new ChangeJournal(folder, baseSegment), baseSegment);
+	}
+
+	private static Hashtable<String, Bird> model(String... names) {
+		Hashtable<String, Bird> model = new Hashtable<String, Bird>();
+		for(String name : names)
+			model.put(name, new Bird(name, "brown", 1, 1));
+
+		return model;
+	}
+}
@@ -0,0 +1,27 @@
+#!/bin/sh
+# Compiles the server with its tests into a temporary folder and runs every
+# *Test class. Exits with an error if a test fails.
+#
+# usage: BirdServer/test/run-tests.sh [TestClass ...]
+
+cd "$(dirname "$0")/../.." || exit 1
+OUT=$(mktemp -d) || exit 1
+trap 'rm -rf "$OUT"' EXIT
+
+javac -nowarn -d "$OUT" $(find BirdModel/src BirdServer/src BirdServer/test -name '*.java') || exit 1
+
+if [ $# -eq 0 ]; then
+	set -- $(cd BirdServer/test && find . -name '*Test.java' | sed -e 's|^\./||' -e 's|\.java$||' -e 's|/|.|g' | sort)
+fi
+
+failed=0
+for test in "$@"; do
+	case "$test" in
+		*.*) ;;
+		*) test="bird.server.$test" ;;
+	esac
+
+	java -ea -cp "$OUT" "$test" || { echo "$test FAILED"; failed=1; }
+done
+
+exit $failed